@@ -0,0 +1,146 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stands in for API Gateway when the services run in-process. Routes map a method and resource path, like
+ * GET tenants/{id}, to a handler method. Requests are turned into the same proxy events API Gateway sends the
+ * Lambda functions. Behind a {@link LocalStubServer} it also serves the calls the services make to each
+ * other.
+ */
+public class LocalApiRouter {
+
+    @FunctionalInterface
+    public interface Handler {
+        APIGatewayProxyResponseEvent handle(Map<String, Object> event, Context context);
+    }
+
+    private final String stage;
+    // Routes can be added after the stub server in front of the router has started
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param stage the API stage the services put in front of every resource path
+     */
+    public LocalApiRouter(String stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param resource the resource path with {name} for path parameters, e.g. tenants/{id}
+     * @param function the function name handlers see in their context
+     * @param handler the handler method
+     * @return this router
+     */
+    public LocalApiRouter route(String method, String resource, String function, Handler handler) {
+        routes.add(new Route(method, resource, function, handler));
+        return this;
+    }
+
+    /**
+     * Invoke the handler for a request the way API Gateway would.
+     * @param method the HTTP method
+     * @param resource the resource path without the stage, e.g. tenants/1234
+     * @param queryParams query string parameters, or null
+     * @param body the request body, or null
+     * @return the handler's response, or a 404 response if no route matches
+     */
+    public APIGatewayProxyResponseEvent invoke(String method, String resource, Map<String, List<String>> queryParams,
+                                               String body) {
+        String[] segments = trim(resource).split("/");
+        for (Route route : routes) {
+            Map<String, String> pathParams = route.match(method, segments);
+            if (pathParams != null) {
+                Map<String, Object> event = new HashMap<>();
+                event.put("resource", "/" + route.resource);
+                event.put("path", "/" + trim(resource));
+                event.put("httpMethod", method);
+                event.put("pathParameters", pathParams.isEmpty() ? null : pathParams);
+                if (queryParams != null && !queryParams.isEmpty()) {
+                    Map<String, String> single = new HashMap<>();
+                    for (Map.Entry<String, List<String>> param : queryParams.entrySet()) {
+                        List<String> values = param.getValue();
+                        single.put(param.getKey(), values.isEmpty() ? null : values.get(values.size() - 1));
+                    }
+                    event.put("queryStringParameters", single);
+                    event.put("multiValueQueryStringParameters", queryParams);
+                }
+                event.put("body", body);
+                event.put("requestContext", Map.of("stage", stage, "httpMethod", method));
+                return route.handler.handle(event, new LocalContext(route.function));
+            }
+        }
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(404)
+                .withBody("{\"message\":\"No route for " + method + " " + resource + "\"}");
+    }
+
+    private static String trim(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    private static final class Route {
+        private final String method;
+        private final String resource;
+        private final String[] segments;
+        private final String function;
+        private final Handler handler;
+
+        private Route(String method, String resource, String function, Handler handler) {
+            this.method = method;
+            this.resource = trim(resource);
+            this.segments = this.resource.split("/");
+            this.function = function;
+            this.handler = handler;
+        }
+
+        // Path parameters if the request matches this route, null if it doesn't
+        private Map<String, String> match(String requestMethod, String[] requestSegments) {
+            if (!method.equalsIgnoreCase(requestMethod) || segments.length != requestSegments.length) {
+                return null;
+            }
+            Map<String, String> pathParams = new HashMap<>();
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (segment.startsWith("{") && segment.endsWith("}")) {
+                    pathParams.put(segment.substring(1, segment.length() - 1),
+                            URLDecoder.decode(requestSegments[i], StandardCharsets.UTF_8));
+                } else if (!segment.equals(requestSegments[i])) {
+                    return null;
+                }
+            }
+            return pathParams;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.http.SdkHttpRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers AWS SDK calls from the local stand-ins. The SDK loads it into every client it builds from
+ * software/amazon/awssdk/global/handlers/execution.interceptors in the benchmarks jar, so the services run
+ * with their usual clients. {@link LocalStubServer} gives each call an empty response to unmarshal and this
+ * interceptor replaces the result with what the registered stand-in returns for the same request.
+ * <p>
+ * Calls to a service with no stand-in registered go through unchanged, so the interceptor does nothing
+ * outside of a load test.
+ */
+public class LocalAwsInterceptor implements ExecutionInterceptor {
+
+    private static final Map<String, Object> STAND_INS = new ConcurrentHashMap<>();
+    private static final Map<String, Object> TABLES = new ConcurrentHashMap<>();
+
+    /**
+     * @param client the SDK client interface the stand-in implements, e.g. SsmClient.class
+     * @param standIn the stand-in
+     */
+    public static <C> void register(Class<C> client, C standIn) {
+        STAND_INS.put(client.getPackageName() + ".model", standIn);
+    }
+
+    /**
+     * Route calls for one DynamoDB table to its own stand-in.
+     * @param tableName the table name the services are configured with
+     * @param table the stand-in for that table
+     */
+    public static void registerTable(String tableName, LocalDynamoDbClient table) {
+        TABLES.put(tableName, table);
+    }
+
+    public static void clear() {
+        STAND_INS.clear();
+        TABLES.clear();
+    }
+
+    @Override
+    public Optional<InputStream> modifyHttpResponseContent(Context.ModifyHttpResponse context,
+                                                           ExecutionAttributes executionAttributes) {
+        if (standIn(context.request()) == null) {
+            return context.responseBody();
+        }
+        // Just enough for the SDK to unmarshal an empty response, modifyResponse replaces it
+        String operation = executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+        String body = isQueryProtocol(context.httpRequest())
+                ? "<" + operation + "Response><" + operation + "Result/></" + operation + "Response>"
+                : "{}";
+        return Optional.of(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public SdkResponse modifyResponse(Context.ModifyResponse context, ExecutionAttributes executionAttributes) {
+        SdkRequest request = context.request();
+        Object standIn = standIn(request);
+        if (standIn == null) {
+            return context.response();
+        }
+        String operation = executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+        String methodName = Character.toLowerCase(operation.charAt(0)) + operation.substring(1);
+        try {
+            Method method = standIn.getClass().getMethod(methodName, request.getClass());
+            return (SdkResponse) method.invoke(standIn, request);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("No local stand-in for " + operation, e);
+        } catch (InvocationTargetException e) {
+            // Surface the stand-in's error, e.g. a ConditionalCheckFailedException, as the SDK would
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static Object standIn(SdkRequest request) {
+        Optional<String> tableName = request.getValueForField("TableName", String.class);
+        if (tableName.isPresent() && TABLES.containsKey(tableName.get())) {
+            return TABLES.get(tableName.get());
+        }
+        return STAND_INS.get(request.getClass().getPackageName());
+    }
+
+    private static boolean isQueryProtocol(SdkHttpRequest request) {
+        return request.firstMatchingHeader("Content-Type")
+                .map(contentType -> contentType.startsWith("application/x-www-form-urlencoded"))
+                .orElse(false);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory stand-in for CloudWatch that answers the calls MetricServiceDAL makes with synthetic data.
+ * ListMetrics returns one ECS service per cluster and GetMetricData returns a value for every timestamp of
+ * every query that returns data, paged the way CloudWatch pages results. Results are generated once per
+ * query id and reused, so a benchmark measures the DAL and not the data generator.
+ */
+public class LocalCloudWatchClient implements CloudWatchClient {
+
+    // CloudWatch returns at most 100,800 data points per call. Keep pages small enough that the
+    // benchmarks also walk the DAL's nextToken loop.
+    private static final int RESULTS_PER_PAGE = 100;
+
+    private final int timestamps;
+    private final Duration period;
+    private final Instant end;
+    private final Map<String, MetricDataResult> results = new ConcurrentHashMap<>();
+
+    /**
+     * @param timestamps the number of data points returned for every query
+     * @param period the time between data points
+     */
+    public LocalCloudWatchClient(int timestamps, Duration period) {
+        this.timestamps = timestamps;
+        this.period = period;
+        this.end = Instant.now();
+    }
+
+    @Override
+    public ListMetricsResponse listMetrics(ListMetricsRequest request) {
+        List<Dimension> dimensions = new ArrayList<>();
+        for (DimensionFilter filter : request.dimensions()) {
+            dimensions.add(Dimension.builder().name(filter.name()).value(filter.value()).build());
+            dimensions.add(Dimension.builder().name("ServiceName").value(filter.value()).build());
+        }
+        return ListMetricsResponse.builder()
+                .metrics(software.amazon.awssdk.services.cloudwatch.model.Metric.builder()
+                        .namespace(request.namespace())
+                        .metricName(request.metricName())
+                        .dimensions(dimensions)
+                        .build())
+                .build();
+    }
+
+    @Override
+    public GetMetricDataResponse getMetricData(GetMetricDataRequest request) {
+        List<MetricDataQuery> returned = new ArrayList<>();
+        for (MetricDataQuery query : request.metricDataQueries()) {
+            if (query.returnData() == null || query.returnData()) {
+                returned.add(query);
+            }
+        }
+        int from = request.nextToken() != null ? Integer.parseInt(request.nextToken()) : 0;
+        int to = Math.min(returned.size(), from + RESULTS_PER_PAGE);
+        List<MetricDataResult> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(results.computeIfAbsent(returned.get(i).id(), this::generate));
+        }
+        return GetMetricDataResponse.builder()
+                .metricDataResults(page)
+                .nextToken(to < returned.size() ? String.valueOf(to) : null)
+                .build();
+    }
+
+    private MetricDataResult generate(String id) {
+        // Seeded by query id so every run sees the same values
+        Random random = new Random(id.hashCode());
+        List<Instant> times = new ArrayList<>(timestamps);
+        List<Double> values = new ArrayList<>(timestamps);
+        for (int i = 0; i < timestamps; i++) {
+            // CloudWatch returns the newest data point first
+            times.add(end.minus(period.multipliedBy(i)));
+            values.add(random.nextDouble() * 100d);
+        }
+        return MetricDataResult.builder()
+                .id(id)
+                .label(id)
+                .statusCode(StatusCode.COMPLETE)
+                .timestamps(times)
+                .values(values)
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
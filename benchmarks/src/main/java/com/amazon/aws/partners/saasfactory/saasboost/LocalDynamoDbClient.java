@@ -0,0 +1,203 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory stand-in for a DynamoDB table keyed on a single string attribute. It answers the item, scan and
+ * query calls the service DALs make and evaluates their condition, filter and update expressions with
+ * {@link LocalExpressions}. Each instance is one table, table names in requests are ignored, so register
+ * one per table with {@link LocalAwsInterceptor#registerTable}. Writes to an item are atomic, so it's safe
+ * to share between the threads of a load test.
+ */
+public class LocalDynamoDbClient implements DynamoDbClient {
+
+    private final String keyAttribute;
+    private final long latencyMillis;
+    private final Map<String, Map<String, AttributeValue>> items = new ConcurrentHashMap<>();
+
+    public LocalDynamoDbClient(String keyAttribute) {
+        this(keyAttribute, 0);
+    }
+
+    /**
+     * @param keyAttribute the name of the table's partition key
+     * @param latencyMillis delay added to every call
+     */
+    public LocalDynamoDbClient(String keyAttribute, long latencyMillis) {
+        this.keyAttribute = keyAttribute;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public DescribeTableResponse describeTable(DescribeTableRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        return DescribeTableResponse.builder()
+                .table(TableDescription.builder()
+                        .tableName(request.tableName())
+                        .tableStatus(TableStatus.ACTIVE)
+                        .itemCount((long) items.size())
+                        .build())
+                .build();
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        return GetItemResponse.builder()
+                .item(items.get(key(request.key())))
+                .build();
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<Map<String, AttributeValue>> old = new ArrayList<>(1);
+        items.compute(key(request.item()), (key, existing) -> {
+            checkCondition(request.conditionExpression(), existing, request.expressionAttributeNames(),
+                    request.expressionAttributeValues());
+            old.add(existing);
+            return Collections.unmodifiableMap(new HashMap<>(request.item()));
+        });
+        PutItemResponse.Builder response = PutItemResponse.builder();
+        if (request.returnValues() == ReturnValue.ALL_OLD && old.get(0) != null) {
+            response.attributes(old.get(0));
+        }
+        return response.build();
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<Map<String, AttributeValue>> oldAndNew = new ArrayList<>(2);
+        items.compute(key(request.key()), (key, existing) -> {
+            checkCondition(request.conditionExpression(), existing, request.expressionAttributeNames(),
+                    request.expressionAttributeValues());
+            // Like DynamoDB, updating an item that doesn't exist creates it
+            Map<String, AttributeValue> updated = new HashMap<>(existing != null ? existing : request.key());
+            LocalExpressions.update(request.updateExpression(), updated, request.expressionAttributeNames(),
+                    request.expressionAttributeValues());
+            oldAndNew.add(existing);
+            oldAndNew.add(updated);
+            return Collections.unmodifiableMap(updated);
+        });
+        UpdateItemResponse.Builder response = UpdateItemResponse.builder();
+        ReturnValue returnValue = request.returnValues();
+        if (returnValue == ReturnValue.ALL_NEW || returnValue == ReturnValue.UPDATED_NEW) {
+            response.attributes(oldAndNew.get(1));
+        } else if ((returnValue == ReturnValue.ALL_OLD || returnValue == ReturnValue.UPDATED_OLD)
+                && oldAndNew.get(0) != null) {
+            response.attributes(oldAndNew.get(0));
+        }
+        return response.build();
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<Map<String, AttributeValue>> old = new ArrayList<>(1);
+        items.compute(key(request.key()), (key, existing) -> {
+            checkCondition(request.conditionExpression(), existing, request.expressionAttributeNames(),
+                    request.expressionAttributeValues());
+            old.add(existing);
+            return null;
+        });
+        DeleteItemResponse.Builder response = DeleteItemResponse.builder();
+        if (request.returnValues() == ReturnValue.ALL_OLD && old.get(0) != null) {
+            response.attributes(old.get(0));
+        }
+        return response.build();
+    }
+
+    @Override
+    public ScanResponse scan(ScanRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<Map<String, AttributeValue>> matched = new ArrayList<>();
+        for (Map<String, AttributeValue> item : items.values()) {
+            if (LocalExpressions.matches(request.filterExpression(), item, request.expressionAttributeNames(),
+                    request.expressionAttributeValues())) {
+                matched.add(item);
+            }
+        }
+        return ScanResponse.builder()
+                .items(matched)
+                .count(matched.size())
+                .scannedCount(items.size())
+                .build();
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<Map<String, AttributeValue>> matched = new ArrayList<>();
+        for (Map<String, AttributeValue> item : items.values()) {
+            if (LocalExpressions.matches(request.keyConditionExpression(), item,
+                    request.expressionAttributeNames(), request.expressionAttributeValues())
+                    && LocalExpressions.matches(request.filterExpression(), item,
+                    request.expressionAttributeNames(), request.expressionAttributeValues())) {
+                matched.add(item);
+            }
+        }
+        return QueryResponse.builder()
+                .items(matched)
+                .count(matched.size())
+                .scannedCount(matched.size())
+                .build();
+    }
+
+    private String key(Map<String, AttributeValue> item) {
+        AttributeValue key = item != null ? item.get(keyAttribute) : null;
+        if (key == null || key.s() == null) {
+            throw LocalExpressions.validation("The provided key element does not match the schema");
+        }
+        return key.s();
+    }
+
+    private static void checkCondition(String expression, Map<String, AttributeValue> item,
+                                       Map<String, String> names, Map<String, AttributeValue> values) {
+        if (!LocalExpressions.matches(expression, item, names, values)) {
+            throw ConditionalCheckFailedException.builder()
+                    .message("The conditional request failed")
+                    .statusCode(400)
+                    .awsErrorDetails(AwsErrorDetails.builder()
+                            .errorCode("ConditionalCheckFailedException")
+                            .errorMessage("The conditional request failed")
+                            .serviceName("DynamoDb")
+                            .build())
+                    .build();
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequest;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsRequestEntry;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsResponse;
+import software.amazon.awssdk.services.eventbridge.model.PutEventsResultEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for EventBridge that accepts every event and counts it. Nothing is delivered, so the services'
+ * event handlers don't run as a side effect of a load test.
+ */
+public class LocalEventBridgeClient implements EventBridgeClient {
+
+    private final long latencyMillis;
+    private final AtomicLong published = new AtomicLong();
+
+    public LocalEventBridgeClient() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis delay added to every call
+     */
+    public LocalEventBridgeClient(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    @Override
+    public PutEventsResponse putEvents(PutEventsRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<PutEventsResultEntry> entries = new ArrayList<>(request.entries().size());
+        for (PutEventsRequestEntry entry : request.entries()) {
+            entries.add(PutEventsResultEntry.builder().eventId(UUID.randomUUID().toString()).build());
+        }
+        published.addAndGet(entries.size());
+        return PutEventsResponse.builder()
+                .entries(entries)
+                .failedEntryCount(0)
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parser and evaluator for the parts of the DynamoDB expression language the service DALs use. Condition,
+ * filter and key condition expressions support =, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=, IN, BETWEEN, AND,
+ * OR, NOT, parentheses and the attribute_exists, attribute_not_exists, begins_with and contains functions.
+ * Update expressions support SET, with + and - and if_not_exists, and REMOVE. Paths can use #name
+ * placeholders and dots into nested maps. Parsed expressions are cached by their text, placeholders are
+ * resolved when they're evaluated.
+ */
+final class LocalExpressions {
+
+    private static final Pattern TOKEN = Pattern.compile(
+            "\\s*(<>|<=|>=|=|<|>|\\(|\\)|,|\\+|-|[#:]?[A-Za-z0-9_]+(?:\\.[#A-Za-z0-9_]+)*)");
+    private static final Map<String, Condition> CONDITIONS = new ConcurrentHashMap<>();
+    private static final Map<String, List<Action>> UPDATES = new ConcurrentHashMap<>();
+
+    private LocalExpressions() {
+    }
+
+    static boolean matches(String expression, Map<String, AttributeValue> item, Map<String, String> names,
+                           Map<String, AttributeValue> values) {
+        if (Utils.isBlank(expression)) {
+            return true;
+        }
+        Condition condition = CONDITIONS.computeIfAbsent(expression, e -> new Parser(e).condition());
+        return condition.test(item != null ? item : Collections.emptyMap(), new Placeholders(names, values));
+    }
+
+    static void update(String expression, Map<String, AttributeValue> item, Map<String, String> names,
+                       Map<String, AttributeValue> values) {
+        if (Utils.isBlank(expression)) {
+            return;
+        }
+        List<Action> actions = UPDATES.computeIfAbsent(expression, e -> new Parser(e).update());
+        Placeholders placeholders = new Placeholders(names, values);
+        for (Action action : actions) {
+            action.apply(item, placeholders);
+        }
+    }
+
+    static DynamoDbException validation(String message) {
+        return DynamoDbException.builder()
+                .message(message)
+                .statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode("ValidationException")
+                        .errorMessage(message)
+                        .serviceName("DynamoDb")
+                        .build())
+                .build();
+    }
+
+    private interface Condition {
+        boolean test(Map<String, AttributeValue> item, Placeholders placeholders);
+    }
+
+    private interface Operand {
+        AttributeValue resolve(Map<String, AttributeValue> item, Placeholders placeholders);
+    }
+
+    private interface Action {
+        void apply(Map<String, AttributeValue> item, Placeholders placeholders);
+    }
+
+    private static final class Placeholders {
+        private final Map<String, String> names;
+        private final Map<String, AttributeValue> values;
+
+        private Placeholders(Map<String, String> names, Map<String, AttributeValue> values) {
+            this.names = names != null ? names : Collections.emptyMap();
+            this.values = values != null ? values : Collections.emptyMap();
+        }
+
+        private String name(String segment) {
+            if (!segment.startsWith("#")) {
+                return segment;
+            }
+            String name = names.get(segment);
+            if (name == null) {
+                throw validation("An expression attribute name used in the document path is not defined; "
+                        + "attribute name: " + segment);
+            }
+            return name;
+        }
+
+        private AttributeValue value(String placeholder) {
+            AttributeValue value = values.get(placeholder);
+            if (value == null) {
+                throw validation("An expression attribute value used in expression is not defined; "
+                        + "attribute value: " + placeholder);
+            }
+            return value;
+        }
+    }
+
+    private static final class Path implements Operand {
+        private final String[] segments;
+
+        private Path(String path) {
+            this.segments = path.split("\\.");
+        }
+
+        @Override
+        public AttributeValue resolve(Map<String, AttributeValue> item, Placeholders placeholders) {
+            Map<String, AttributeValue> map = item;
+            AttributeValue value = null;
+            for (String segment : segments) {
+                if (map == null) {
+                    return null;
+                }
+                value = map.get(placeholders.name(segment));
+                map = value != null && value.hasM() ? value.m() : null;
+            }
+            return value;
+        }
+
+        private void set(Map<String, AttributeValue> item, Placeholders placeholders, AttributeValue value) {
+            set(item, placeholders, value, 0);
+        }
+
+        private void set(Map<String, AttributeValue> map, Placeholders placeholders, AttributeValue value, int depth) {
+            String name = placeholders.name(segments[depth]);
+            if (depth == segments.length - 1) {
+                map.put(name, value);
+                return;
+            }
+            AttributeValue parent = map.get(name);
+            if (parent == null || !parent.hasM()) {
+                throw validation("The document path provided in the update expression is invalid for update");
+            }
+            Map<String, AttributeValue> child = new HashMap<>(parent.m());
+            set(child, placeholders, value, depth + 1);
+            map.put(name, AttributeValue.builder().m(child).build());
+        }
+
+        private void remove(Map<String, AttributeValue> map, Placeholders placeholders, int depth) {
+            String name = placeholders.name(segments[depth]);
+            if (depth == segments.length - 1) {
+                map.remove(name);
+                return;
+            }
+            AttributeValue parent = map.get(name);
+            if (parent != null && parent.hasM()) {
+                Map<String, AttributeValue> child = new HashMap<>(parent.m());
+                remove(child, placeholders, depth + 1);
+                map.put(name, AttributeValue.builder().m(child).build());
+            }
+        }
+    }
+
+    private static final class Parser {
+        private final String expression;
+        private final List<String> tokens = new ArrayList<>();
+        private int position;
+
+        private Parser(String expression) {
+            this.expression = expression;
+            Matcher matcher = TOKEN.matcher(expression);
+            int end = 0;
+            while (matcher.find() && matcher.start() == end) {
+                tokens.add(matcher.group(1));
+                end = matcher.end();
+            }
+            if (expression.substring(end).trim().length() > 0) {
+                throw invalid("unexpected character at " + end);
+            }
+        }
+
+        private Condition condition() {
+            Condition condition = or();
+            if (position < tokens.size()) {
+                throw invalid("unexpected token " + tokens.get(position));
+            }
+            return condition;
+        }
+
+        private List<Action> update() {
+            List<Action> actions = new ArrayList<>();
+            while (position < tokens.size()) {
+                String clause = next();
+                if ("SET".equalsIgnoreCase(clause)) {
+                    do {
+                        Path path = new Path(next());
+                        expect("=");
+                        Operand value = sum();
+                        actions.add((item, placeholders) -> {
+                            AttributeValue resolved = value.resolve(item, placeholders);
+                            if (resolved == null) {
+                                throw validation("The provided expression refers to an attribute that does not "
+                                        + "exist in the item");
+                            }
+                            path.set(item, placeholders, resolved);
+                        });
+                    } while (accept(","));
+                } else if ("REMOVE".equalsIgnoreCase(clause)) {
+                    do {
+                        Path path = new Path(next());
+                        actions.add((item, placeholders) -> path.remove(item, placeholders, 0));
+                    } while (accept(","));
+                } else {
+                    throw invalid("unsupported update clause " + clause);
+                }
+            }
+            return actions;
+        }
+
+        private Condition or() {
+            Condition left = and();
+            while (acceptKeyword("OR")) {
+                Condition l = left;
+                Condition r = and();
+                left = (item, placeholders) -> l.test(item, placeholders) || r.test(item, placeholders);
+            }
+            return left;
+        }
+
+        private Condition and() {
+            Condition left = not();
+            while (acceptKeyword("AND")) {
+                Condition l = left;
+                Condition r = not();
+                left = (item, placeholders) -> l.test(item, placeholders) && r.test(item, placeholders);
+            }
+            return left;
+        }
+
+        private Condition not() {
+            if (acceptKeyword("NOT")) {
+                Condition negated = not();
+                return (item, placeholders) -> !negated.test(item, placeholders);
+            }
+            return primary();
+        }
+
+        private Condition primary() {
+            if (accept("(")) {
+                Condition grouped = or();
+                expect(")");
+                return grouped;
+            }
+            String token = peek();
+            if (position + 1 < tokens.size() && "(".equals(tokens.get(position + 1))) {
+                return function(next());
+            }
+            Operand left = operand();
+            if (acceptKeyword("IN")) {
+                expect("(");
+                List<Operand> candidates = new ArrayList<>();
+                do {
+                    candidates.add(operand());
+                } while (accept(","));
+                expect(")");
+                return (item, placeholders) -> {
+                    AttributeValue value = left.resolve(item, placeholders);
+                    for (Operand candidate : candidates) {
+                        if (value != null && value.equals(candidate.resolve(item, placeholders))) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            if (acceptKeyword("BETWEEN")) {
+                Operand low = operand();
+                if (!acceptKeyword("AND")) {
+                    throw invalid("BETWEEN without AND");
+                }
+                Operand high = operand();
+                return (item, placeholders) -> {
+                    AttributeValue value = left.resolve(item, placeholders);
+                    Integer fromLow = compare(value, low.resolve(item, placeholders));
+                    Integer toHigh = compare(value, high.resolve(item, placeholders));
+                    return fromLow != null && toHigh != null && fromLow >= 0 && toHigh <= 0;
+                };
+            }
+            String comparator = next();
+            Operand right = operand();
+            switch (comparator) {
+                case "=":
+                    return (item, placeholders) -> {
+                        AttributeValue value = left.resolve(item, placeholders);
+                        return value != null && value.equals(right.resolve(item, placeholders));
+                    };
+                case "<>":
+                    return (item, placeholders) -> {
+                        AttributeValue value = left.resolve(item, placeholders);
+                        return value != null && !value.equals(right.resolve(item, placeholders));
+                    };
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                    return (item, placeholders) -> {
+                        Integer c = compare(left.resolve(item, placeholders), right.resolve(item, placeholders));
+                        if (c == null) {
+                            return false;
+                        }
+                        switch (comparator) {
+                            case "<":
+                                return c < 0;
+                            case "<=":
+                                return c <= 0;
+                            case ">":
+                                return c > 0;
+                            default:
+                                return c >= 0;
+                        }
+                    };
+                default:
+                    throw invalid("unexpected token " + token + " " + comparator);
+            }
+        }
+
+        private Condition function(String name) {
+            expect("(");
+            List<Operand> arguments = new ArrayList<>();
+            do {
+                arguments.add(operand());
+            } while (accept(","));
+            expect(")");
+            switch (name) {
+                case "attribute_exists":
+                    return (item, placeholders) -> arguments.get(0).resolve(item, placeholders) != null;
+                case "attribute_not_exists":
+                    return (item, placeholders) -> arguments.get(0).resolve(item, placeholders) == null;
+                case "begins_with":
+                    return (item, placeholders) -> {
+                        AttributeValue value = arguments.get(0).resolve(item, placeholders);
+                        AttributeValue prefix = arguments.get(1).resolve(item, placeholders);
+                        return value != null && value.s() != null && prefix != null && prefix.s() != null
+                                && value.s().startsWith(prefix.s());
+                    };
+                case "contains":
+                    return (item, placeholders) -> {
+                        AttributeValue value = arguments.get(0).resolve(item, placeholders);
+                        AttributeValue operand = arguments.get(1).resolve(item, placeholders);
+                        if (value == null || operand == null) {
+                            return false;
+                        }
+                        if (value.s() != null && operand.s() != null) {
+                            return value.s().contains(operand.s());
+                        }
+                        if (value.hasSs() && operand.s() != null) {
+                            return value.ss().contains(operand.s());
+                        }
+                        return value.hasL() && value.l().contains(operand);
+                    };
+                default:
+                    throw invalid("unsupported function " + name);
+            }
+        }
+
+        private Operand sum() {
+            Operand left = value();
+            if (accept("+") || accept("-")) {
+                boolean add = "+".equals(tokens.get(position - 1));
+                Operand right = value();
+                return (item, placeholders) -> {
+                    AttributeValue l = left.resolve(item, placeholders);
+                    AttributeValue r = right.resolve(item, placeholders);
+                    if (l == null || r == null || l.n() == null || r.n() == null) {
+                        throw validation("An operand in the update expression has an incorrect data type");
+                    }
+                    BigDecimal result = add
+                            ? new BigDecimal(l.n()).add(new BigDecimal(r.n()))
+                            : new BigDecimal(l.n()).subtract(new BigDecimal(r.n()));
+                    return AttributeValue.builder().n(result.toPlainString()).build();
+                };
+            }
+            return left;
+        }
+
+        private Operand value() {
+            if (acceptKeyword("if_not_exists")) {
+                expect("(");
+                Path path = new Path(next());
+                expect(",");
+                Operand fallback = operand();
+                expect(")");
+                return (item, placeholders) -> {
+                    AttributeValue value = path.resolve(item, placeholders);
+                    return value != null ? value : fallback.resolve(item, placeholders);
+                };
+            }
+            return operand();
+        }
+
+        private Operand operand() {
+            String token = next();
+            if (token.startsWith(":")) {
+                return (item, placeholders) -> placeholders.value(token);
+            }
+            if (!Character.isLetterOrDigit(token.charAt(0)) && token.charAt(0) != '#' && token.charAt(0) != '_') {
+                throw invalid("unexpected token " + token);
+            }
+            return new Path(token);
+        }
+
+        private String peek() {
+            if (position >= tokens.size()) {
+                throw invalid("unexpected end of expression");
+            }
+            return tokens.get(position);
+        }
+
+        private String next() {
+            String token = peek();
+            position++;
+            return token;
+        }
+
+        private boolean accept(String token) {
+            if (position < tokens.size() && token.equals(tokens.get(position))) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (position < tokens.size() && keyword.equalsIgnoreCase(tokens.get(position))) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw invalid("expected " + token);
+            }
+        }
+
+        private DynamoDbException invalid(String reason) {
+            return validation("Invalid expression: " + reason + " in " + expression);
+        }
+    }
+
+    // Null when the values can't be ordered, like DynamoDB comparing a string with a number
+    private static Integer compare(AttributeValue left, AttributeValue right) {
+        if (left == null || right == null) {
+            return null;
+        }
+        if (left.n() != null && right.n() != null) {
+            return new BigDecimal(left.n()).compareTo(new BigDecimal(right.n()));
+        }
+        if (left.s() != null && right.s() != null) {
+            return left.s().compareTo(right.s());
+        }
+        return null;
+    }
+}
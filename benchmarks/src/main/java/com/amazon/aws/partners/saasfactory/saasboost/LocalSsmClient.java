@@ -0,0 +1,175 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.services.ssm.SsmClient;
+import software.amazon.awssdk.services.ssm.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory stand-in for Parameter Store that answers the calls ParameterStoreFacade makes. Paths are paged
+ * 10 parameters at a time like the real service, so callers walk their nextToken loops. SecureString values
+ * come back encoded unless decryption is asked for. Safe to share between the threads of a load test.
+ */
+public class LocalSsmClient implements SsmClient {
+
+    private static final int RESULTS_PER_PAGE = 10;
+
+    private final long latencyMillis;
+    private final ConcurrentNavigableMap<String, Parameter> parameters = new ConcurrentSkipListMap<>();
+
+    public LocalSsmClient() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis delay added to every call
+     */
+    public LocalSsmClient(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public int size() {
+        return parameters.size();
+    }
+
+    @Override
+    public GetParameterResponse getParameter(GetParameterRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        Parameter parameter = parameters.get(request.name());
+        if (parameter == null) {
+            throw ParameterNotFoundException.builder().message("Parameter " + request.name() + " not found").build();
+        }
+        return GetParameterResponse.builder()
+                .parameter(decrypt(parameter, Boolean.TRUE.equals(request.withDecryption())))
+                .build();
+    }
+
+    @Override
+    public GetParametersResponse getParameters(GetParametersRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<Parameter> found = new ArrayList<>();
+        List<String> invalid = new ArrayList<>();
+        for (String name : request.names()) {
+            Parameter parameter = parameters.get(name);
+            if (parameter != null) {
+                found.add(decrypt(parameter, Boolean.TRUE.equals(request.withDecryption())));
+            } else {
+                invalid.add(name);
+            }
+        }
+        return GetParametersResponse.builder()
+                .parameters(found)
+                .invalidParameters(invalid)
+                .build();
+    }
+
+    @Override
+    public GetParametersByPathResponse getParametersByPath(GetParametersByPathRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        String prefix = request.path().endsWith("/") ? request.path() : request.path() + "/";
+        boolean recursive = Boolean.TRUE.equals(request.recursive());
+        List<Parameter> matched = new ArrayList<>();
+        for (Parameter parameter : parameters.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            if (recursive || parameter.name().indexOf('/', prefix.length()) < 0) {
+                matched.add(parameter);
+            }
+        }
+        int from = Utils.isNotEmpty(request.nextToken()) ? Integer.parseInt(request.nextToken()) : 0;
+        int to = Math.min(matched.size(), from + RESULTS_PER_PAGE);
+        List<Parameter> page = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            page.add(decrypt(matched.get(i), Boolean.TRUE.equals(request.withDecryption())));
+        }
+        return GetParametersByPathResponse.builder()
+                .parameters(page)
+                .nextToken(to < matched.size() ? String.valueOf(to) : null)
+                .build();
+    }
+
+    @Override
+    public PutParameterResponse putParameter(PutParameterRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        Parameter updated = parameters.compute(request.name(), (name, existing) -> {
+            if (existing != null && !Boolean.TRUE.equals(request.overwrite())) {
+                throw ParameterAlreadyExistsException.builder()
+                        .message("The parameter already exists. To overwrite this value, set the overwrite option")
+                        .build();
+            }
+            return Parameter.builder()
+                    .name(name)
+                    .value(request.value())
+                    .type(request.type() != null ? request.type() : ParameterType.STRING)
+                    .version(existing != null ? existing.version() + 1 : 1L)
+                    .lastModifiedDate(Instant.now())
+                    .build();
+        });
+        return PutParameterResponse.builder()
+                .version(updated.version())
+                .build();
+    }
+
+    @Override
+    public DeleteParameterResponse deleteParameter(DeleteParameterRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        if (parameters.remove(request.name()) == null) {
+            throw ParameterNotFoundException.builder().message("Parameter " + request.name() + " not found").build();
+        }
+        return DeleteParameterResponse.builder().build();
+    }
+
+    @Override
+    public DeleteParametersResponse deleteParameters(DeleteParametersRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        List<String> deleted = new ArrayList<>();
+        List<String> invalid = new ArrayList<>();
+        for (String name : request.names()) {
+            if (parameters.remove(name) != null) {
+                deleted.add(name);
+            } else {
+                invalid.add(name);
+            }
+        }
+        return DeleteParametersResponse.builder()
+                .deletedParameters(deleted)
+                .invalidParameters(invalid)
+                .build();
+    }
+
+    private static Parameter decrypt(Parameter parameter, boolean decrypt) {
+        if (decrypt || parameter.type() != ParameterType.SECURE_STRING) {
+            return parameter;
+        }
+        return parameter.toBuilder()
+                .value(Base64.getEncoder().encodeToString(parameter.value().getBytes(StandardCharsets.UTF_8)))
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
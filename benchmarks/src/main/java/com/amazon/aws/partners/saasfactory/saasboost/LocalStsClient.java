@@ -0,0 +1,75 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
+import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
+import software.amazon.awssdk.services.sts.model.AssumedRoleUser;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Stand-in for STS that hands out placeholder credentials for every AssumeRole call. ApiGatewayHelper
+ * assumes the API trust role before each call the services make to each other, and the stub API Gateway
+ * doesn't check signatures.
+ */
+public class LocalStsClient implements StsClient {
+
+    private final long latencyMillis;
+
+    public LocalStsClient() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis delay added to every call
+     */
+    public LocalStsClient(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public AssumeRoleResponse assumeRole(AssumeRoleRequest request) {
+        SimulatedLatency.pause(latencyMillis);
+        int seconds = request.durationSeconds() != null ? request.durationSeconds() : 3600;
+        return AssumeRoleResponse.builder()
+                .credentials(Credentials.builder()
+                        .accessKeyId("LOCALACCESSKEY")
+                        .secretAccessKey("local")
+                        .sessionToken("local")
+                        .expiration(Instant.now().plus(Duration.ofSeconds(seconds)))
+                        .build())
+                .assumedRoleUser(AssumedRoleUser.builder()
+                        .arn(request.roleArn() + "/" + request.roleSessionName())
+                        .assumedRoleId("LOCAL:" + request.roleSessionName())
+                        .build())
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
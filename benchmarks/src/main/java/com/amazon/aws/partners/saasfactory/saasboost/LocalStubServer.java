@@ -0,0 +1,159 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loopback HTTP server that takes the place of API Gateway and the AWS endpoints during a load test. Once
+ * started, every https URL the JVM opens is sent here instead, with the original host as the first path
+ * segment. Requests for the API Gateway host are served by a {@link LocalApiRouter}, so the calls the
+ * services make to each other through ApiGatewayHelper take the same HTTP path they do when deployed.
+ * Anything else is an AWS SDK call and gets an empty 200 response, which {@link LocalAwsInterceptor} fills
+ * in from the stand-ins.
+ * <p>
+ * The https redirect is installed with {@link URL#setURLStreamHandlerFactory}, which a JVM allows once, so
+ * only one server can be started per process.
+ */
+public class LocalStubServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String apiHost;
+    private final String stage;
+    private final LocalApiRouter router;
+
+    /**
+     * @param apiHost the API Gateway host the services are configured with
+     * @param stage the API stage the services put in front of every resource path
+     * @param router serves the API requests
+     * @param threads the number of requests served at once
+     */
+    public LocalStubServer(String apiHost, String stage, LocalApiRouter router, int threads) throws IOException {
+        this.apiHost = apiHost;
+        this.stage = trim(stage);
+        this.router = router;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), threads);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+        final int port = server.getAddress().getPort();
+        URL.setURLStreamHandlerFactory(protocol -> !"https".equals(protocol) ? null : new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL url) throws IOException {
+                return new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port,
+                        "/" + url.getHost() + url.getFile()).openConnection();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            String path = trim(exchange.getRequestURI().getRawPath());
+            int hostEnd = path.indexOf('/');
+            String host = hostEnd < 0 ? path : path.substring(0, hostEnd);
+            if (!host.equals(apiHost)) {
+                respond(exchange, 200, "");
+                return;
+            }
+            String resource = hostEnd < 0 ? "" : path.substring(hostEnd + 1);
+            if (resource.startsWith(stage + "/")) {
+                resource = resource.substring(stage.length() + 1);
+            }
+            APIGatewayProxyResponseEvent response;
+            try {
+                response = router.invoke(exchange.getRequestMethod(), resource,
+                        queryParams(exchange.getRequestURI().getRawQuery()), body.isEmpty() ? null : body);
+            } catch (RuntimeException e) {
+                // API Gateway answers an unhandled Lambda error with a 502
+                response = new APIGatewayProxyResponseEvent().withStatusCode(502)
+                        .withBody("{\"message\":\"Internal server error\"}");
+            }
+            respond(exchange, response.getStatusCode() != null ? response.getStatusCode() : 200,
+                    response.getBody() != null ? response.getBody() : "");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bytes.length > 0 ? bytes.length : -1);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static Map<String, List<String>> queryParams(String rawQuery) {
+        if (Utils.isBlank(rawQuery)) {
+            return null;
+        }
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String trim(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the dashboard's cross tenant metrics path: MetricServiceDAL.queryMetrics end to end against
+ * a LocalCloudWatchClient, and the two pieces it spends most of its time in, Metric.addQueueValue and
+ * MetricHelper.getPercentiles. Every benchmark reports throughput and sampled latency percentiles. Run
+ * through main, or pass -prof gc to the benchmarks jar, to also get the allocation rate.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-benchmarks.xml")
+@State(Scope.Benchmark)
+public class MetricAggregationBenchmark {
+
+    // Each tenant takes two of the 500 queries a GetMetricData call allows
+    @Param({"10", "100", "250"})
+    public int tenants;
+
+    // Data points per query: a day at the 15 minute period HOUR_24 uses, and a week of hourly points
+    @Param({"96", "168"})
+    public int timestamps;
+
+    private MetricServiceDAL dal;
+    private List<String> tenantIds;
+    private Instant[] times;
+    private MetricValue[] values;
+    private List<MetricValue> sortedValues;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tenantIds = new ArrayList<>(tenants);
+        Map<String, Map<String, Object>> tenantCache = new HashMap<>();
+        for (int i = 0; i < tenants; i++) {
+            String tenantId = UUID.nameUUIDFromBytes(("tenant" + i).getBytes()).toString();
+            String shortId = tenantId.split("-")[0];
+            Map<String, Object> resources = new HashMap<>();
+            resources.put("ECS_CLUSTER", Collections.singletonMap("name", "tenant-" + shortId));
+            resources.put("LOAD_BALANCER", Collections.singletonMap("name", "app/tenant-" + shortId + "/" + i));
+            Map<String, Object> tenant = new HashMap<>();
+            tenant.put("id", tenantId);
+            tenant.put("resources", resources);
+            tenantCache.put(tenantId, tenant);
+            tenantIds.add(tenantId);
+        }
+        MetricService.tenantCache = tenantCache;
+        dal = new MetricServiceDAL(new LocalCloudWatchClient(timestamps, Duration.ofMinutes(15)), null);
+
+        Random random = new Random(42);
+        Instant now = Instant.now();
+        times = new Instant[timestamps];
+        for (int t = 0; t < timestamps; t++) {
+            times[t] = now.minus(Duration.ofMinutes(15L * t));
+        }
+        values = new MetricValue[tenants];
+        for (int i = 0; i < tenants; i++) {
+            values[i] = new MetricValue(random.nextDouble() * 100d, tenantIds.get(i));
+        }
+        sortedValues = new ArrayList<>(Arrays.asList(values));
+        Collections.sort(sortedValues);
+    }
+
+    @Benchmark
+    public List<QueryResult> queryMetrics() {
+        MetricQuery query = new MetricQuery();
+        query.setId("benchmark");
+        query.setStat("Sum");
+        query.setTimeRangeName("HOUR_24");
+        query.setTenants(tenantIds);
+        query.setTopTenants(true);
+        query.setStatsMap(true);
+        query.getDimensions().add(new MetricQuery.Dimension("CPUUtilization", "AWS/ECS"));
+        return dal.queryMetrics(query);
+    }
+
+    @Benchmark
+    public Metric addQueueValue() {
+        Metric metric = new Metric();
+        for (Instant time : times) {
+            for (MetricValue value : values) {
+                metric.addQueueValue(time, value);
+            }
+        }
+        return metric;
+    }
+
+    @Benchmark
+    public Map<String, Double> getPercentiles() {
+        return MetricHelper.getPercentiles(sortedValues);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(MetricAggregationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.ssm.SsmClient;
+import software.amazon.awssdk.services.ssm.model.ParameterType;
+import software.amazon.awssdk.services.sts.StsClient;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Offline load test for the control plane services. The TenantService, SettingsService, OnboardingService and
+ * MetricService handlers run in-process, built the same way Lambda builds them. Their AWS SDK clients and
+ * the calls they make to each other through ApiGatewayHelper go to a {@link LocalStubServer} on the loopback
+ * interface, which serves the API with a {@link LocalApiRouter} and answers DynamoDB, Parameter Store,
+ * EventBridge, CloudWatch and STS from local stand-ins through {@link LocalAwsInterceptor}. A pool of
+ * workers sends a weighted mix of requests for a fixed time, then a latency histogram is printed for each
+ * kind of request.
+ * <p>
+ * With --rate the workers send requests on a fixed schedule and latency is measured from when each request
+ * was due, so a slow response is charged for the requests queued up behind it. Without it every worker sends
+ * its next request as soon as the last one returns.
+ * <p>
+ * The services read their configuration from environment variables when their classes load. Run it with
+ * the variables in {@link #REQUIRED_ENV} set to any value.
+ */
+public class ServiceLoadTest {
+
+    static final String[] REQUIRED_ENV = {
+            "AWS_REGION", "AWS_ACCESS_KEY_ID", "AWS_SECRET_ACCESS_KEY", "SAAS_BOOST_ENV", "SAAS_BOOST_EVENT_BUS",
+            "API_GATEWAY_HOST", "API_GATEWAY_STAGE", "API_TRUST_ROLE", "TENANTS_TABLE", "ONBOARDING_TABLE",
+            "ATHENA_DATABASE", "S3_ATHENA_BUCKET", "S3_ATHENA_OUTPUT_PATH", "ACCESS_LOGS_TABLE"
+    };
+    private static final String DEFAULT_MIX = "getTenants=10,getProvisionedTenants=5,getTenant=25,updateTenant=5,"
+            + "getSettings=10,getSetting=15,getOnboardings=5,getOnboarding=10,queryMetrics=10,refreshTenantCache=5";
+    private static final String[] ONBOARDING_STATUSES = {"deployed", "deployed", "deployed", "updated", "failed"};
+    private static final String USAGE = "Usage: ServiceLoadTest [--threads 16] [--duration 60] [--warmup 10] "
+            + "[--rate 0] [--tenants 100] [--settings 50] [--latency-ms 0] [--mix " + DEFAULT_MIX + "] "
+            + "[--csv results.csv]";
+
+    @FunctionalInterface
+    private interface Operation {
+        // Returns the HTTP status code of the response
+        int run(Random random);
+    }
+
+    private final int threads;
+    private final Duration duration;
+    private final Duration warmup;
+    private final double rate;
+    private final int tenantCount;
+    private final int settingCount;
+    private final long latencyMillis;
+    private final Map<String, Integer> mix;
+    private final String csv;
+
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final LatencyHistogram all = new LatencyHistogram();
+    private final List<String> tenantIds = new ArrayList<>();
+    private final Map<String, String> tenantBodies = new HashMap<>();
+    private final List<String> settingNames = new ArrayList<>();
+    private final List<String> onboardingIds = new ArrayList<>();
+    private LocalApiRouter router;
+    private LocalStubServer stubServer;
+    private LocalEventBridgeClient eventBridge;
+
+    ServiceLoadTest(Map<String, String> options) {
+        this.threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        this.duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "60")));
+        this.warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        this.tenantCount = Integer.parseInt(options.getOrDefault("tenants", "100"));
+        this.settingCount = Integer.parseInt(options.getOrDefault("settings", "50"));
+        this.latencyMillis = Long.parseLong(options.getOrDefault("latency-ms", "0"));
+        this.mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+        this.csv = options.get("csv");
+        if (threads < 1 || tenantCount < 1 || settingCount < 1 || duration.isZero() || rate < 0) {
+            throw new IllegalArgumentException(USAGE);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String variable : REQUIRED_ENV) {
+            if (Utils.isBlank(System.getenv(variable))) {
+                throw new IllegalStateException("Missing environment variable " + variable);
+            }
+        }
+        // The services log every request at INFO, which would be most of what we measure
+        if (System.getProperty("log4j2.configurationFile") == null) {
+            System.setProperty("log4j2.configurationFile", "log4j2-benchmarks.xml");
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        ServiceLoadTest loadTest = new ServiceLoadTest(options);
+        try {
+            loadTest.setup();
+            loadTest.run();
+            loadTest.report();
+        } finally {
+            loadTest.close();
+        }
+    }
+
+    void setup() throws IOException {
+        LocalDynamoDbClient tenantsTable = new LocalDynamoDbClient("id", latencyMillis);
+        LocalDynamoDbClient onboardingTable = new LocalDynamoDbClient("id", latencyMillis);
+        LocalSsmClient ssm = new LocalSsmClient(latencyMillis);
+        eventBridge = new LocalEventBridgeClient(latencyMillis);
+        LocalAwsInterceptor.registerTable(System.getenv("TENANTS_TABLE"), tenantsTable);
+        LocalAwsInterceptor.registerTable(System.getenv("ONBOARDING_TABLE"), onboardingTable);
+        LocalAwsInterceptor.register(SsmClient.class, ssm);
+        LocalAwsInterceptor.register(EventBridgeClient.class, eventBridge);
+        LocalAwsInterceptor.register(CloudWatchClient.class, new LocalCloudWatchClient(96, Duration.ofMinutes(15)));
+        LocalAwsInterceptor.register(StsClient.class, new LocalStsClient(latencyMillis));
+
+        router = new LocalApiRouter(System.getenv("API_GATEWAY_STAGE"));
+        // Serves a request per worker, plus the calls a handler makes to another service while it runs
+        stubServer = new LocalStubServer(System.getenv("API_GATEWAY_HOST"), System.getenv("API_GATEWAY_STAGE"),
+                router, threads * 2);
+        stubServer.start();
+
+        // Built the way Lambda builds them, so their constructors make the same warm up calls
+        TenantServiceDAL tenantDal = new TenantServiceDAL();
+        TenantService tenantService = new TenantService();
+        SettingsService settingsService = new SettingsService();
+        OnboardingServiceDAL onboardingDal = new OnboardingServiceDAL();
+        OnboardingService onboardingService = new OnboardingService();
+        MetricService metricService = new MetricService();
+        router.route("GET", "tenants", "TenantService", tenantService::getTenants)
+                .route("GET", "tenants/{id}", "TenantService", tenantService::getTenant)
+                .route("PUT", "tenants/{id}", "TenantService", tenantService::updateTenant)
+                .route("GET", "settings", "SettingsService", settingsService::getSettings)
+                .route("GET", "settings/{id}", "SettingsService", settingsService::getSetting)
+                .route("GET", "settings/{id}/secret", "SettingsService", settingsService::getSecret)
+                .route("GET", "onboarding", "OnboardingService", onboardingService::getOnboardings)
+                .route("GET", "onboarding/{id}", "OnboardingService", onboardingService::getOnboarding)
+                .route("POST", "metrics/query", "MetricService", metricService::queryMetrics);
+
+        for (int i = 0; i < tenantCount; i++) {
+            Tenant tenant = new Tenant();
+            tenant.setName("Load Test Tenant " + i);
+            tenant.setTier("default");
+            tenant.setActive(Boolean.TRUE);
+            tenant.setOnboardingStatus(ONBOARDING_STATUSES[i % ONBOARDING_STATUSES.length]);
+            Map<String, Tenant.Resource> resources = new HashMap<>();
+            resources.put("ECS_CLUSTER", new Tenant.Resource("tenant-cluster-" + i,
+                    "arn:aws:ecs:local:000000000000:cluster/tenant-cluster-" + i, ""));
+            resources.put("LOAD_BALANCER", new Tenant.Resource("app/tenant-alb-" + i + "/" + i,
+                    "arn:aws:elasticloadbalancing:local:000000000000:loadbalancer/app/tenant-alb-" + i, ""));
+            tenant.setResources(resources);
+            tenant = tenantDal.insertTenant(tenant);
+            String tenantId = tenant.getId().toString();
+            tenantIds.add(tenantId);
+            tenantBodies.put(tenantId, Utils.toJson(tenant));
+
+            Onboarding onboarding = new Onboarding();
+            onboarding.setTenantId(tenant.getId());
+            onboarding.setRequest(new OnboardingRequest(tenant.getName()));
+            onboardingIds.add(onboardingDal.insertOnboarding(onboarding).getId().toString());
+        }
+        String prefix = "/saas-boost/" + System.getenv("SAAS_BOOST_ENV") + "/";
+        for (int i = 0; i < settingCount; i++) {
+            String name = "LOAD_TEST_SETTING_" + i;
+            settingNames.add(name);
+            ssm.putParameter(request -> request
+                    .name(prefix + name)
+                    .type(ParameterType.STRING)
+                    .value(Utils.randomString(32))
+            );
+        }
+
+        MetricQuery query = new MetricQuery();
+        query.setId("loadtest");
+        query.setStat("Sum");
+        query.setTimeRangeName("HOUR_24");
+        query.setTenants(tenantIds);
+        query.setTopTenants(true);
+        query.setStatsMap(true);
+        query.getDimensions().add(new MetricQuery.Dimension("CPUUtilization", "AWS/ECS"));
+        String metricQuery = Utils.toJson(query);
+
+        operations.put("getTenants", random -> status(router.invoke("GET", "tenants", null, null)));
+        operations.put("getProvisionedTenants", random -> status(router.invoke("GET", "tenants",
+                Map.of("status", List.of("provisioned")), null)));
+        operations.put("getTenant", random -> status(router.invoke("GET", "tenants/" + pick(tenantIds, random),
+                null, null)));
+        operations.put("updateTenant", random -> {
+            String tenantId = pick(tenantIds, random);
+            return status(router.invoke("PUT", "tenants/" + tenantId, null, tenantBodies.get(tenantId)));
+        });
+        operations.put("getSettings", random -> status(router.invoke("GET", "settings", null, null)));
+        operations.put("getSetting", random -> status(router.invoke("GET", "settings/" + pick(settingNames, random),
+                null, null)));
+        operations.put("getOnboardings", random -> status(router.invoke("GET", "onboarding", null, null)));
+        operations.put("getOnboarding", random -> status(router.invoke("GET", "onboarding/"
+                + pick(onboardingIds, random), null, null)));
+        operations.put("queryMetrics", random -> status(router.invoke("POST", "metrics/query", null, metricQuery)));
+        // What a cold MetricService does before its first query, a call to the tenant service through the API.
+        // The result isn't cached, so the MetricService instance above keeps its own cache.
+        operations.put("refreshTenantCache", random ->
+                MetricService.getTenants(new LocalContext("MetricService")).size() == tenantCount ? 200 : 500);
+
+        for (String name : mix.keySet()) {
+            if (!operations.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown operation " + name + " in --mix, choose from "
+                        + operations.keySet());
+            }
+            stats.put(name, new Stats());
+        }
+        System.out.printf("Seeded %d tenants, %d onboardings and %d settings%n", tenantsTable.size(),
+                onboardingTable.size(), ssm.size());
+    }
+
+    void run() throws InterruptedException {
+        String[] names = mix.keySet().toArray(new String[0]);
+        int[] cumulativeWeights = new int[names.length];
+        int totalWeight = 0;
+        for (int i = 0; i < names.length; i++) {
+            totalWeight += mix.get(names[i]);
+            cumulativeWeights[i] = totalWeight;
+        }
+        final int weights = totalWeight;
+
+        System.out.printf("Running %s for %d seconds after a %d second warm up with %d threads%s%n", mix,
+                duration.getSeconds(), warmup.getSeconds(), threads,
+                rate > 0 ? String.format(" at %.0f requests per second", rate) : "");
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmup.toNanos();
+        final long end = measureFrom + duration.toNanos();
+        // Each worker sends its share of the target rate on its own schedule
+        final long interval = rate > 0 ? (long) (threads * 1_000_000_000d / rate) : 0L;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final long offset = interval * t / threads;
+            workers.execute(() -> {
+                Random random = ThreadLocalRandom.current();
+                long due = start + offset;
+                while (true) {
+                    long now = System.nanoTime();
+                    if (interval > 0) {
+                        if (due - now > 0) {
+                            LockSupport.parkNanos(due - now);
+                        }
+                    } else {
+                        due = now;
+                    }
+                    if (due - end >= 0) {
+                        break;
+                    }
+                    int choice = Arrays.binarySearch(cumulativeWeights, random.nextInt(weights) + 1);
+                    String name = names[choice >= 0 ? choice : -choice - 1];
+                    int status;
+                    Exception error = null;
+                    try {
+                        status = operations.get(name).run(random);
+                    } catch (Exception e) {
+                        status = 500;
+                        error = e;
+                    }
+                    long latency = System.nanoTime() - due;
+                    if (due - measureFrom >= 0) {
+                        stats.get(name).record(latency, status, error);
+                        all.record(latency, TimeUnit.NANOSECONDS);
+                    }
+                    due += interval;
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(warmup.plus(duration).getSeconds() + 60, TimeUnit.SECONDS);
+        workers.shutdownNow();
+    }
+
+    void close() {
+        if (stubServer != null) {
+            stubServer.close();
+        }
+        LocalAwsInterceptor.clear();
+    }
+
+    void report() throws IOException {
+        long errors = 0;
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats operation = entry.getValue();
+            errors += operation.errors.get();
+            System.out.println();
+            operation.histogram.print(entry.getKey(), System.out);
+            if (operation.errors.get() > 0) {
+                System.out.printf("  %d errors, first: %s%n", operation.errors.get(), operation.firstError.get());
+            }
+        }
+        System.out.println();
+        all.print("all", System.out);
+        System.out.printf("%nThroughput %.1f requests per second, %d errors, %d events published%n",
+                all.getCount() / (double) duration.getSeconds(), errors, eventBridge.getPublishedCount());
+
+        if (csv != null) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(csv), StandardCharsets.UTF_8))) {
+                out.println("operation,requests,errors,throughput,mean_ms,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+                for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                    csvLine(out, entry.getKey(), entry.getValue().histogram, entry.getValue().errors.get());
+                }
+                csvLine(out, "all", all, errors);
+            }
+            System.out.println("Wrote " + csv);
+        }
+    }
+
+    private void csvLine(PrintWriter out, String name, LatencyHistogram histogram, long errors) {
+        out.printf(Locale.ROOT, "%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n", name, histogram.getCount(), errors,
+                histogram.getCount() / (double) duration.getSeconds(), histogram.getMeanMicros() / 1000d,
+                histogram.getPercentileMicros(50d) / 1000d, histogram.getPercentileMicros(90d) / 1000d,
+                histogram.getPercentileMicros(99d) / 1000d, histogram.getPercentileMicros(99.9d) / 1000d,
+                histogram.getMaxMicros() / 1000d);
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.trim().split("=");
+            int weight = nameAndWeight.length == 2 ? Integer.parseInt(nameAndWeight[1].trim()) : 1;
+            if (weight > 0) {
+                weights.put(nameAndWeight[0].trim(), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("--mix needs at least one operation with a weight above 0");
+        }
+        return weights;
+    }
+
+    private static int status(APIGatewayProxyResponseEvent response) {
+        return response.getStatusCode() != null ? response.getStatusCode() : 200;
+    }
+
+    private static String pick(List<String> values, Random random) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static final class Stats {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicReference<String> firstError = new AtomicReference<>();
+
+        private void record(long latencyNanos, int status, Exception error) {
+            histogram.record(latencyNanos, TimeUnit.NANOSECONDS);
+            if (status >= 400) {
+                errors.incrementAndGet();
+                firstError.compareAndSet(null, error != null ? error.toString() : "HTTP " + status);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LocalExpressionsTest {
+
+    private Map<String, AttributeValue> item;
+
+    @Before
+    public void setup() {
+        item = new HashMap<>();
+        item.put("id", s("1234"));
+        item.put("name", s("Tenant One"));
+        item.put("tier", s("gold"));
+        item.put("count", n("5"));
+        item.put("tags", AttributeValue.builder().ss("a", "b").build());
+        item.put("resources", AttributeValue.builder().m(Map.of(
+                "ECS_CLUSTER", AttributeValue.builder().m(Map.of("name", s("cluster-1"))).build()
+        )).build());
+    }
+
+    @Test
+    public void blankExpressionMatchesEverything() {
+        assertTrue(LocalExpressions.matches(null, item, null, null));
+        assertTrue(LocalExpressions.matches("  ", null, null, null));
+    }
+
+    @Test
+    public void comparesStringsAndNumbers() {
+        assertTrue(matches("tier = :v", Map.of(":v", s("gold"))));
+        assertFalse(matches("tier = :v", Map.of(":v", s("silver"))));
+        assertTrue(matches("tier <> :v", Map.of(":v", s("silver"))));
+        assertTrue(matches("#c > :v", Map.of("#c", "count"), Map.of(":v", n("4.5"))));
+        assertTrue(matches("#c <= :v", Map.of("#c", "count"), Map.of(":v", n("5"))));
+        assertFalse(matches("#c < :v", Map.of("#c", "count"), Map.of(":v", n("5"))));
+        assertTrue(matches("#c >= :v", Map.of("#c", "count"), Map.of(":v", n("5.0"))));
+        assertTrue(matches("name < :v", Map.of(":v", s("Tenant Two"))));
+    }
+
+    @Test
+    public void comparingDifferentTypesNeverMatches() {
+        assertFalse(matches("#c > :v", Map.of("#c", "count"), Map.of(":v", s("4"))));
+        assertFalse(matches("#c < :v", Map.of("#c", "count"), Map.of(":v", s("4"))));
+    }
+
+    @Test
+    public void missingAttributesDontMatchComparisons() {
+        assertFalse(matches("missing = :v", Map.of(":v", s("gold"))));
+        assertFalse(matches("missing <> :v", Map.of(":v", s("gold"))));
+        assertFalse(matches("missing < :v", Map.of(":v", n("1"))));
+    }
+
+    @Test
+    public void inAndBetween() {
+        assertTrue(matches("tier IN (:a, :b)", Map.of(":a", s("silver"), ":b", s("gold"))));
+        assertFalse(matches("tier IN (:a)", Map.of(":a", s("silver"))));
+        assertTrue(matches("#c BETWEEN :low AND :high", Map.of("#c", "count"),
+                Map.of(":low", n("1"), ":high", n("5"))));
+        assertFalse(matches("#c BETWEEN :low AND :high", Map.of("#c", "count"),
+                Map.of(":low", n("6"), ":high", n("9"))));
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        Map<String, AttributeValue> values = Map.of(":gold", s("gold"), ":silver", s("silver"), ":id", s("9"));
+        // true OR (false AND false)
+        assertTrue(matches("tier = :gold OR tier = :silver AND id = :id", values));
+        // (true OR false) AND false
+        assertFalse(matches("(tier = :gold OR tier = :silver) AND id = :id", values));
+        assertTrue(matches("NOT tier = :silver AND NOT (id = :id)", values));
+        assertFalse(matches("not tier = :gold", values));
+    }
+
+    @Test
+    public void functions() {
+        assertTrue(matches("attribute_exists(tier)", null));
+        assertFalse(matches("attribute_exists(missing)", null));
+        assertTrue(matches("attribute_not_exists(missing)", null));
+        assertTrue(matches("begins_with(#n, :p)", Map.of("#n", "name"), Map.of(":p", s("Tenant"))));
+        assertFalse(matches("begins_with(#n, :p)", Map.of("#n", "name"), Map.of(":p", s("One"))));
+        assertTrue(matches("contains(#n, :p)", Map.of("#n", "name"), Map.of(":p", s("One"))));
+        assertTrue(matches("contains(tags, :t)", Map.of(":t", s("b"))));
+        assertFalse(matches("contains(tags, :t)", Map.of(":t", s("c"))));
+    }
+
+    @Test
+    public void resolvesNestedPathsAndNamePlaceholders() {
+        assertTrue(matches("resources.#key.#name = :v", Map.of("#key", "ECS_CLUSTER", "#name", "name"),
+                Map.of(":v", s("cluster-1"))));
+        assertTrue(matches("attribute_not_exists(resources.LOAD_BALANCER)", null));
+        assertFalse(matches("attribute_exists(tier.name)", null));
+    }
+
+    @Test
+    public void undefinedPlaceholdersAreValidationErrors() {
+        assertValidationError(() -> matches("#missing = :v", Map.of(":v", s("gold"))));
+        assertValidationError(() -> matches("tier = :missing", Map.of(":v", s("gold"))));
+    }
+
+    @Test
+    public void malformedExpressionsAreValidationErrors() {
+        assertValidationError(() -> matches("tier = ", Map.of()));
+        assertValidationError(() -> matches("tier = :v extra", Map.of(":v", s("gold"))));
+        assertValidationError(() -> matches("(tier = :v", Map.of(":v", s("gold"))));
+        assertValidationError(() -> matches("tier ! :v", Map.of(":v", s("gold"))));
+        assertValidationError(() -> matches("size(tier) = :v", Map.of(":v", n("4"))));
+        assertValidationError(() -> matches("#c BETWEEN :low :high", Map.of("#c", "count"),
+                Map.of(":low", n("1"), ":high", n("5"))));
+    }
+
+    @Test
+    public void setsAndRemovesAttributes() {
+        LocalExpressions.update("SET tier = :tier, #c = #c + :one REMOVE tags", item, Map.of("#c", "count"),
+                Map.of(":tier", s("platinum"), ":one", n("1")));
+        assertEquals(s("platinum"), item.get("tier"));
+        assertEquals(n("6"), item.get("count"));
+        assertFalse(item.containsKey("tags"));
+    }
+
+    @Test
+    public void subtractsAndKeepsDecimalPrecision() {
+        LocalExpressions.update("SET #c = #c - :d", item, Map.of("#c", "count"), Map.of(":d", n("0.25")));
+        assertEquals(n("4.75"), item.get("count"));
+    }
+
+    @Test
+    public void ifNotExistsOnlySetsMissingAttributes() {
+        String expression = "SET #c = if_not_exists(#c, :zero) + :one, created = if_not_exists(created, :now)";
+        Map<String, AttributeValue> values = Map.of(":zero", n("0"), ":one", n("1"), ":now", s("today"));
+        LocalExpressions.update(expression, item, Map.of("#c", "count"), values);
+        assertEquals(n("6"), item.get("count"));
+        assertEquals(s("today"), item.get("created"));
+
+        Map<String, AttributeValue> empty = new HashMap<>();
+        LocalExpressions.update(expression, empty, Map.of("#c", "count"), values);
+        assertEquals(n("1"), empty.get("count"));
+    }
+
+    @Test
+    public void updatesNestedMapsWithoutChangingTheOriginal() {
+        Map<String, AttributeValue> original = item.get("resources").m();
+        LocalExpressions.update("SET resources.#key = :resource REMOVE resources.ECS_CLUSTER", item,
+                Map.of("#key", "VPC"), Map.of(":resource", AttributeValue.builder()
+                        .m(Map.of("name", s("vpc-1"))).build()));
+        Map<String, AttributeValue> resources = item.get("resources").m();
+        assertEquals(Set.of("VPC"), resources.keySet());
+        assertEquals(s("vpc-1"), resources.get("VPC").m().get("name"));
+        assertTrue(original.containsKey("ECS_CLUSTER"));
+    }
+
+    @Test
+    public void settingUnderAMissingMapIsAValidationError() {
+        assertValidationError(() -> LocalExpressions.update("SET missing.child = :v", item, null,
+                Map.of(":v", s("x"))));
+    }
+
+    @Test
+    public void arithmeticOnMissingOrNonNumericAttributesIsAValidationError() {
+        assertValidationError(() -> LocalExpressions.update("SET missing = missing + :one", item, null,
+                Map.of(":one", n("1"))));
+        assertValidationError(() -> LocalExpressions.update("SET tier = tier + :one", item, null,
+                Map.of(":one", n("1"))));
+        assertValidationError(() -> LocalExpressions.update("SET tier = missing", item, null, null));
+    }
+
+    @Test
+    public void unsupportedUpdateClausesAreValidationErrors() {
+        assertValidationError(() -> LocalExpressions.update("ADD #c :one", item, Map.of("#c", "count"),
+                Map.of(":one", n("1"))));
+    }
+
+    @Test
+    public void cachedExpressionsResolvePlaceholdersPerCall() {
+        String expression = "tier = :v";
+        assertTrue(matches(expression, Map.of(":v", s("gold"))));
+        assertFalse(matches(expression, Map.of(":v", s("silver"))));
+    }
+
+    private boolean matches(String expression, Map<String, AttributeValue> values) {
+        return LocalExpressions.matches(expression, item, null, values);
+    }
+
+    private boolean matches(String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+        return LocalExpressions.matches(expression, item, names, values);
+    }
+
+    private static void assertValidationError(Runnable evaluation) {
+        try {
+            evaluation.run();
+            fail("Expected a ValidationException");
+        } catch (DynamoDbException ddbe) {
+            assertEquals("ValidationException", ddbe.awsErrorDetails().errorCode());
+        }
+    }
+
+    private static AttributeValue s(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue n(String value) {
+        return AttributeValue.builder().n(value).build();
+    }
+}
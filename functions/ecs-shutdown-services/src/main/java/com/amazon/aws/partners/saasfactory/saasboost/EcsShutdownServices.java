@@ -24,6 +24,7 @@ import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.services.ecs.EcsClient;
 import software.amazon.awssdk.services.ecs.model.DescribeServicesResponse;
 import software.amazon.awssdk.services.ecs.model.Service;
+import software.amazon.awssdk.services.lambda.LambdaClient;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -37,7 +38,16 @@ public class EcsShutdownServices implements RequestHandler<Map<String, Object>,
     private static final String API_GATEWAY_HOST = System.getenv("API_GATEWAY_HOST");
     private static final String API_GATEWAY_STAGE = System.getenv("API_GATEWAY_STAGE");
     private static final String API_TRUST_ROLE = System.getenv("API_TRUST_ROLE");
+    private static final String ECS_CONCURRENCY = System.getenv("ECS_CONCURRENCY");
+    private static final String ECS_REQUESTS_PER_SECOND = System.getenv("ECS_REQUESTS_PER_SECOND");
+    private static final int DEFAULT_CONCURRENCY = 10;
+    // Stays well under the ECS API request rate limits, which are shared with everything else in the account
+    private static final double DEFAULT_REQUESTS_PER_SECOND = 10d;
+    // Stop shutting down tenants this long before the function times out
+    private static final long TIMEOUT_MARGIN_MILLIS = 60 * 1000;
     private final EcsClient ecs;
+    private final LambdaClient lambda;
+    private final FleetOperation<Map<String, Object>> fleetOperation;
 
     public EcsShutdownServices() {
         final long startTimeMillis = System.currentTimeMillis();
@@ -59,6 +69,12 @@ public class EcsShutdownServices implements RequestHandler<Map<String, Object>,
         LOGGER.info("Version Info: {}", Utils.version(this.getClass()));
 
         this.ecs = Utils.sdkClient(EcsClient.builder(), EcsClient.SERVICE_NAME);
+        this.lambda = Utils.sdkClient(LambdaClient.builder(), LambdaClient.SERVICE_NAME);
+        this.fleetOperation = new FleetOperation<>(
+                Utils.isNotBlank(ECS_CONCURRENCY) ? Integer.parseInt(ECS_CONCURRENCY) : DEFAULT_CONCURRENCY,
+                Utils.isNotBlank(ECS_REQUESTS_PER_SECOND) ? Double.parseDouble(ECS_REQUESTS_PER_SECOND)
+                        : DEFAULT_REQUESTS_PER_SECOND
+        );
 
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
@@ -66,10 +82,17 @@ public class EcsShutdownServices implements RequestHandler<Map<String, Object>,
     @Override
     public Object handleRequest(Map<String, Object> event, Context context) {
         Utils.logRequestEvent(event);
+        Map<String, Object> result = new LinkedHashMap<>();
 
         List<Map<String, Object>> provisionedTenants = getProvisionedTenants(context);
         if (provisionedTenants != null) {
-            LOGGER.info("{} provisioned tenants to process", provisionedTenants.size());
+            // An invocation that ran out of time passes along the tenants it didn't get to
+            FleetOperation.resume(event, provisionedTenants, tenant -> (String) tenant.get("id"));
+            Map<String, Map<String, Object>> fleet = new LinkedHashMap<>();
+            for (Map<String, Object> tenant : provisionedTenants) {
+                fleet.put((String) tenant.get("id"), tenant);
+            }
+            LOGGER.info("{} provisioned tenants to process", fleet.size());
 
             // Fetch the app config and make a list of all the configured services
             Map<String, Object> appConfig = getAppConfig(context);
@@ -87,51 +110,73 @@ public class EcsShutdownServices implements RequestHandler<Map<String, Object>,
                     )
                     .values();
 
-            for (Map<String, Object> tenant : provisionedTenants) {
-                Map<String, Map<String, String>> tenantResources = (Map<String, Map<String, String>>) tenant.get("resources");
-                String cluster = tenantResources.get("ECS_CLUSTER").get("name");
-                LOGGER.info("Shutting down services in cluster {}", cluster);
-
-                // For each batch of services (will only be 1 batch unless there are more than 10 services
-                // in the app config), update each service's desired count to zero. Setting the service's
-                // desired count to 0 will gracefully remove all running tasks
-                final Integer count = 0;
-                for (List<String> describeServiceBatch : describeServiceBatches) {
+            // Each tenant has its own cluster, so tenants are shut down in parallel with the ECS calls
+            // for all of them sharing one rate limit
+            long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis() - TIMEOUT_MARGIN_MILLIS;
+            FleetOperation.Result fleetResult = fleetOperation.run(fleet,
+                    tenant -> shutdownServices(tenant, describeServiceBatches),
+                    deadline
+            );
+            result.put("tenants", fleetResult.getOutcomes());
+            result.put("failed", fleetResult.getFailed());
+            result.put("remaining", fleetResult.getRemaining());
+            if (!fleetResult.getRemaining().isEmpty()) {
+                FleetOperation.continueInNewInvocation(lambda, context.getInvokedFunctionArn(), event,
+                        fleetResult.getRemaining(), Collections.emptyMap(), !fleetResult.getOutcomes().isEmpty());
+            }
+        }
+
+        return result;
+    }
+
+    protected String shutdownServices(Map<String, Object> tenant, Collection<List<String>> describeServiceBatches)
+            throws InterruptedException {
+        Map<String, Map<String, String>> tenantResources = (Map<String, Map<String, String>>) tenant.get("resources");
+        String cluster = tenantResources.get("ECS_CLUSTER").get("name");
+        LOGGER.info("Shutting down services in cluster {}", cluster);
+        int updated = 0;
+
+        // For each batch of services (will only be 1 batch unless there are more than 10 services
+        // in the app config), update each service's desired count to zero. Setting the service's
+        // desired count to 0 will gracefully remove all running tasks
+        final Integer count = 0;
+        for (List<String> describeServiceBatch : describeServiceBatches) {
+            DescribeServicesResponse existingServiceSettings;
+            try {
+                fleetOperation.throttle();
+                existingServiceSettings = ecs.describeServices(request -> request
+                        .cluster(cluster)
+                        .services(describeServiceBatch)
+                );
+            } catch (SdkServiceException ecsError) {
+                LOGGER.error("ecs::DescribeServices", ecsError);
+                LOGGER.error(Utils.getFullStackTrace(ecsError));
+                throw ecsError;
+            }
+            for (Service ecsService : existingServiceSettings.services()) {
+                if (ecsService.desiredCount() > count) {
+                    LOGGER.info("Updating desired count for service {} to {}", ecsService.serviceName(),
+                            count);
                     try {
-                        DescribeServicesResponse existingServiceSettings = ecs.describeServices(request -> request
+                        fleetOperation.throttle();
+                        ecs.updateService(request -> request
                                 .cluster(cluster)
-                                .services(describeServiceBatch)
+                                .service(ecsService.serviceName())
+                                .desiredCount(count)
                         );
-                        for (Service ecsService : existingServiceSettings.services()) {
-                            if (ecsService.desiredCount() > count) {
-                                LOGGER.info("Updating desired count for service {} to {}", ecsService.serviceName(),
-                                        count);
-                                try {
-                                    ecs.updateService(request -> request
-                                            .cluster(cluster)
-                                            .service(ecsService.serviceName())
-                                            .desiredCount(count)
-                                    );
-                                } catch (SdkServiceException ecsError) {
-                                    LOGGER.error("ecs::UpdateService", ecsError);
-                                    LOGGER.error(Utils.getFullStackTrace(ecsError));
-                                    throw ecsError;
-                                }
-                            } else {
-                                LOGGER.info("Skipping desired count for service {} already at {}",
-                                        ecsService.serviceName(), ecsService.desiredCount());
-                            }
-                        }
+                        updated++;
                     } catch (SdkServiceException ecsError) {
-                        LOGGER.error("ecs::DescribeServices", ecsError);
+                        LOGGER.error("ecs::UpdateService", ecsError);
                         LOGGER.error(Utils.getFullStackTrace(ecsError));
                         throw ecsError;
                     }
+                } else {
+                    LOGGER.info("Skipping desired count for service {} already at {}",
+                            ecsService.serviceName(), ecsService.desiredCount());
                 }
             }
         }
-
-        return null;
+        return updated + " services shut down";
     }
 
     protected Map<String, Object> getAppConfig(Context context) {
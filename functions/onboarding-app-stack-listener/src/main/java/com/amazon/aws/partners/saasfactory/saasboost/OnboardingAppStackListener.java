@@ -25,6 +25,7 @@ import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.services.cloudformation.CloudFormationClient;
 import software.amazon.awssdk.services.cloudformation.model.*;
 import software.amazon.awssdk.services.cloudformation.model.Stack;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
 
 import java.util.*;
@@ -36,6 +37,7 @@ public class OnboardingAppStackListener implements RequestHandler<SNSEvent, Obje
     private static final String AWS_REGION = System.getenv("AWS_REGION");
     private static final String SAAS_BOOST_ENV = System.getenv("SAAS_BOOST_ENV");
     private static final String SAAS_BOOST_EVENT_BUS = System.getenv("SAAS_BOOST_EVENT_BUS");
+    private static final String STACK_RESOURCES_TABLE = System.getenv("STACK_RESOURCES_TABLE");
     private static final String EVENT_SOURCE = "saas-boost";
     private static final Pattern STACK_NAME_PATTERN = Pattern
             .compile("^sb-" + SAAS_BOOST_ENV + "-tenant-[a-z0-9]{8}-app-.+-.+$");
@@ -43,6 +45,7 @@ public class OnboardingAppStackListener implements RequestHandler<SNSEvent, Obje
             Arrays.asList("CREATE_COMPLETE", "CREATE_FAILED", "UPDATE_COMPLETE", "DELETE_COMPLETE", "DELETE_FAILED"));
     private final CloudFormationClient cfn;
     private final EventBridgeClient eventBridge;
+    private final StackResourceIndex index;
 
     public OnboardingAppStackListener() {
         final long startTimeMillis = System.currentTimeMillis();
@@ -52,8 +55,13 @@ public class OnboardingAppStackListener implements RequestHandler<SNSEvent, Obje
         if (Utils.isBlank(SAAS_BOOST_EVENT_BUS)) {
             throw new IllegalStateException("Missing required environment variable SAAS_BOOST_EVENT_BUS");
         }
+        if (Utils.isBlank(STACK_RESOURCES_TABLE)) {
+            throw new IllegalStateException("Missing required environment variable STACK_RESOURCES_TABLE");
+        }
         this.cfn = Utils.sdkClient(CloudFormationClient.builder(), CloudFormationClient.SERVICE_NAME);
         this.eventBridge = Utils.sdkClient(EventBridgeClient.builder(), EventBridgeClient.SERVICE_NAME);
+        this.index = new StackResourceIndex(Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME),
+                STACK_RESOURCES_TABLE);
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
@@ -68,6 +76,19 @@ public class OnboardingAppStackListener implements RequestHandler<SNSEvent, Obje
             CloudFormationEvent cloudFormationEvent = CloudFormationEventDeserializer.deserialize(message);
 
             // CloudFormation sends SNS notifications for every resource in a stack going through each status change.
+            // Each one goes into the stack resource index as it arrives, so we never have to ask CloudFormation
+            // for the stack's resources.
+            if (!STACK_NAME_PATTERN.matcher(cloudFormationEvent.getStackName()).matches()) {
+                continue;
+            }
+            final boolean indexed = index.index(cloudFormationEvent);
+
+            // We use these to build the ARN of the resources we're interested in if we don't
+            // get the ARN straight from the CloudFormation physical resource id
+            final String[] lambdaArn = context.getInvokedFunctionArn().split(":");
+            final String partition = lambdaArn[1];
+            final String accountId = lambdaArn[4];
+
             // We want to process the resources of the tenant-onboarding-app.yaml CloudFormation stack only after the
             // stack has finished being created or updated so we don't trigger anything downstream prematurely.
             if (filter(cloudFormationEvent)) {
@@ -77,118 +98,30 @@ public class OnboardingAppStackListener implements RequestHandler<SNSEvent, Obje
                 String stackStatus = cloudFormationEvent.getResourceStatus();
                 LOGGER.info("Stack " + stackName + " is in status " + stackStatus);
 
-                // We need to get the tenant and the application service this stack was run for
-                String tenantId = null;
-                String serviceName = null;
-                try {
-                    DescribeStacksResponse stacks = cfn.describeStacks(req -> req
-                            .stackName(cloudFormationEvent.getStackId())
-                    );
-                    Stack stack = stacks.stacks().get(0);
-                    for (Parameter parameter : stack.parameters()) {
-                        if ("TenantId".equals(parameter.parameterKey())) {
-                            tenantId = parameter.parameterValue();
-                        }
-                        if ("ServiceName".equals(parameter.parameterKey())) {
-                            serviceName = parameter.parameterValue();
-                        }
-                    }
-                } catch (SdkServiceException cfnError) {
-                    LOGGER.error("cfn:DescribeStacks error", cfnError);
-                    LOGGER.error(Utils.getFullStackTrace(cfnError));
-                    throw cfnError;
-                }
+                // We need to get the tenant and the application service this stack was run for. Those never
+                // change for a stack, so we only have to describe it the first time. This has to happen before
+                // we read the resources back from the index, see lateResource.
+                Map<String, String> parameters = parameters(stackId);
+                String tenantId = parameters.get("TenantId");
+                String serviceName = parameters.get("ServiceName");
 
                 if ("CREATE_COMPLETE".equals(stackStatus) || "UPDATE_COMPLETE".equals(stackStatus)) {
-                    // We use these to build the ARN of the resources we're interested in if we don't
-                    // get the ARN straight from the CloudFormation physical resource id
-                    final String[] lambdaArn = context.getInvokedFunctionArn().split(":");
-                    final String partition = lambdaArn[1];
-                    final String accountId = lambdaArn[4];
-
                     Map<String, Object> tenantResources = new HashMap<>();
                     // We're looking for CodePipeline repository resources in a CREATE_COMPLETE state. There could be
                     // multiple pipelines provisioned depending on how the application services are configured.
-                    try {
-                        ListStackResourcesResponse resources = cfn.listStackResources(req -> req
-                                .stackName(cloudFormationEvent.getStackId())
-                        );
-                        for (StackResourceSummary resource : resources.stackResourceSummaries()) {
-                            LOGGER.info("Processing {} {}", resource.resourceStatusAsString(), resource.resourceType());
-                            if ("CREATE_COMPLETE".equals(resource.resourceStatusAsString())) {
-                                if ("AWS::CodePipeline::Pipeline".equals(resource.resourceType())) {
-                                    String codePipeline = resource.physicalResourceId();
-                                    // The resources collection on the tenant object is Map<String, Resource>
-                                    // so we need a unique key per service code pipeline. We'll prefix the
-                                    // key with SERVICE_ and suffix it with _CODE_PIPELINE so we can find
-                                    // all of the tenant's code pipelines later on by looking for that pattern.
-                                    String key = serviceNameResourceKey(serviceName, AwsResource.CODE_PIPELINE.name());
-                                    LOGGER.info("Publishing update tenant resources event for tenant {} {} {}", tenantId,
-                                            key, codePipeline);
-
-                                    tenantResources.put(key, Map.of(
-                                            "name", codePipeline,
-                                            "arn", AwsResource.CODE_PIPELINE.formatArn(partition, AWS_REGION, accountId,
-                                                    codePipeline),
-                                            "consoleUrl", AwsResource.CODE_PIPELINE.formatUrl(AWS_REGION, codePipeline)
-                                    ));
-
-                                    // Link this pipeline to the stack that created it in Onboarding so we can keep
-                                    // track of when all pipeline executions for an onboarding request
-                                    Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
-                                            "Onboarding Deployment Pipeline Created",
-                                            Map.of("tenantId", tenantId,
-                                                    "stackId", stackId,
-                                                    "stackName", stackName,
-                                                    "pipeline", codePipeline)
-                                    );
-                                } else if ("AWS::CloudFormation::Stack".equals(resource.resourceType())
-                                        && "rds".equals(resource.logicalResourceId())) {
-                                    // RDS nested stack
-                                    ListStackResourcesResponse rdsResources = cfn.listStackResources(req -> req
-                                            .stackName(resource.physicalResourceId())
-                                    );
-                                    for (StackResourceSummary rdsResource : rdsResources.stackResourceSummaries()) {
-                                        if ("CREATE_COMPLETE".equals(rdsResource.resourceStatusAsString())) {
-                                            if ("AWS::RDS::DBInstance".equals(rdsResource.resourceType())) {
-                                                String dbInstanceKey = serviceNameResourceKey(serviceName, "DB_HOST");
-                                                String dbInstance = rdsResource.physicalResourceId();
-                                                tenantResources.put(dbInstanceKey, Map.of(
-                                                        "name", dbInstance,
-                                                        "arn", AwsResource.RDS_INSTANCE.formatArn(partition, AWS_REGION, accountId, dbInstance),
-                                                        "consoleUrl", AwsResource.RDS_INSTANCE.formatUrl(AWS_REGION, dbInstance)
-                                                ));
-                                                LOGGER.info("Publishing update tenant resources event for tenant {} {} {}", tenantId,
-                                                        dbInstanceKey, dbInstance);
-                                            } else if ("AWS::RDS::DBCluster".equals(rdsResource.resourceType())) {
-                                                String dbClusterKey = serviceNameResourceKey(serviceName, "DB_HOST");
-                                                String dbCluster = rdsResource.physicalResourceId();
-                                                tenantResources.put(dbClusterKey, Map.of(
-                                                        "name", dbCluster,
-                                                        "arn", AwsResource.RDS_CLUSTER.formatArn(partition, AWS_REGION, accountId, dbCluster),
-                                                        "consoleUrl", AwsResource.RDS_CLUSTER.formatUrl(AWS_REGION, dbCluster)
-                                                ));
-                                                LOGGER.info("Publishing update tenant resources event for tenant {} {} {}", tenantId,
-                                                        dbClusterKey, dbCluster);
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                    for (StackResourceIndex.StackResource resource
+                            : index.resources(stackId, () -> listStackResources(stackId))) {
+                        tenantResources.putAll(appResources(resource, tenantId, serviceName, stackId, stackName,
+                                partition, accountId));
+                    }
 
-                        if (!tenantResources.isEmpty()) {
-                            // The update tenant resources API call is additive, so we don't need to pull the
-                            // current tenant object ourselves.
-                            Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
-                                    "Tenant Resources Changed",
-                                    Map.of("tenantId", tenantId, "resources", Utils.toJson(tenantResources))
-                            );
-                        }
-                    } catch (SdkServiceException cfnError) {
-                        LOGGER.error("cfn:ListStackResources error", cfnError);
-                        LOGGER.error(Utils.getFullStackTrace(cfnError));
-                        throw cfnError;
+                    if (!tenantResources.isEmpty()) {
+                        // The update tenant resources API call is additive, so we don't need to pull the
+                        // current tenant object ourselves. One event for the whole stack.
+                        Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
+                                "Tenant Resources Changed",
+                                Map.of("tenantId", tenantId, "resources", Utils.toJson(tenantResources))
+                        );
                     }
                 }
 
@@ -196,11 +129,161 @@ public class OnboardingAppStackListener implements RequestHandler<SNSEvent, Obje
                 Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
                         "Onboarding Stack Status Changed",
                         Map.of("tenantId", tenantId, "stackId", stackId, "stackStatus", stackStatus));
+            } else if (indexed && !StackResourceIndex.isStackEvent(cloudFormationEvent)) {
+                lateResource(cloudFormationEvent, partition, accountId);
             }
         }
         return null;
     }
 
+    /**
+     * SNS can deliver a resource notification after the one for its stack finishing, too late for the resources
+     * update for the whole stack. The tenant resources update is additive, so publish the resource on its own.
+     * The stack is marked complete before its parameters are cached and its resources are read back, so if the
+     * parameters aren't cached yet the resources update for the stack will pick this resource up.
+     */
+    protected void lateResource(CloudFormationEvent cloudFormationEvent, String partition, String accountId) {
+        if (!"CREATE_COMPLETE".equals(cloudFormationEvent.getResourceStatus())) {
+            return;
+        }
+        String stackId = cloudFormationEvent.getStackId();
+        StackResourceIndex.IndexedStack stack = index.stack(stackId);
+        if (stack != null && stack.isComplete() && stack.getParameters() != null) {
+            String tenantId = stack.getParameters().get("TenantId");
+            StackResourceIndex.StackResource resource = new StackResourceIndex.StackResource(
+                    cloudFormationEvent.getLogicalResourceId(), cloudFormationEvent.getPhysicalResourceId(),
+                    cloudFormationEvent.getResourceType(), cloudFormationEvent.getResourceStatus(), 0L);
+            Map<String, Object> tenantResources = appResources(resource, tenantId,
+                    stack.getParameters().get("ServiceName"), stackId, cloudFormationEvent.getStackName(),
+                    partition, accountId);
+            if (!tenantResources.isEmpty()) {
+                LOGGER.info("Updating tenant resources for {} after its stack finished", resource);
+                Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
+                        "Tenant Resources Changed",
+                        Map.of("tenantId", tenantId, "resources", Utils.toJson(tenantResources))
+                );
+            }
+        }
+    }
+
+    /**
+     * The tenant resources for one resource of the stack. Publishes the pipeline created event for a pipeline.
+     */
+    protected Map<String, Object> appResources(StackResourceIndex.StackResource resource, String tenantId,
+                                               String serviceName, String stackId, String stackName,
+                                               String partition, String accountId) {
+        Map<String, Object> tenantResources = new HashMap<>();
+        LOGGER.info("Processing {} {}", resource.getResourceStatus(), resource.getResourceType());
+        if ("CREATE_COMPLETE".equals(resource.getResourceStatus())) {
+            if ("AWS::CodePipeline::Pipeline".equals(resource.getResourceType())) {
+                String codePipeline = resource.getPhysicalId();
+                // The resources collection on the tenant object is Map<String, Resource>
+                // so we need a unique key per service code pipeline. We'll prefix the
+                // key with SERVICE_ and suffix it with _CODE_PIPELINE so we can find
+                // all of the tenant's code pipelines later on by looking for that pattern.
+                String key = serviceNameResourceKey(serviceName, AwsResource.CODE_PIPELINE.name());
+                LOGGER.info("Publishing update tenant resources event for tenant {} {} {}", tenantId,
+                        key, codePipeline);
+
+                tenantResources.put(key, Map.of(
+                        "name", codePipeline,
+                        "arn", AwsResource.CODE_PIPELINE.formatArn(partition, AWS_REGION, accountId,
+                                codePipeline),
+                        "consoleUrl", AwsResource.CODE_PIPELINE.formatUrl(AWS_REGION, codePipeline)
+                ));
+
+                // Link this pipeline to the stack that created it in Onboarding so we can keep
+                // track of when all pipeline executions for an onboarding request
+                Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
+                        "Onboarding Deployment Pipeline Created",
+                        Map.of("tenantId", tenantId,
+                                "stackId", stackId,
+                                "stackName", stackName,
+                                "pipeline", codePipeline)
+                );
+            } else if ("AWS::CloudFormation::Stack".equals(resource.getResourceType())
+                    && "rds".equals(resource.getLogicalId())) {
+                // RDS nested stack. It doesn't send notifications to our topic, so it's the one stack we list.
+                String rdsStackId = resource.getPhysicalId();
+                for (StackResourceIndex.StackResource rdsResource : listStackResources(rdsStackId)) {
+                    if ("CREATE_COMPLETE".equals(rdsResource.getResourceStatus())) {
+                        if ("AWS::RDS::DBInstance".equals(rdsResource.getResourceType())) {
+                            String dbInstanceKey = serviceNameResourceKey(serviceName, "DB_HOST");
+                            String dbInstance = rdsResource.getPhysicalId();
+                            tenantResources.put(dbInstanceKey, Map.of(
+                                    "name", dbInstance,
+                                    "arn", AwsResource.RDS_INSTANCE.formatArn(partition, AWS_REGION, accountId,
+                                            dbInstance),
+                                    "consoleUrl", AwsResource.RDS_INSTANCE.formatUrl(AWS_REGION, dbInstance)
+                            ));
+                            LOGGER.info("Publishing update tenant resources event for tenant {} {} {}", tenantId,
+                                    dbInstanceKey, dbInstance);
+                        } else if ("AWS::RDS::DBCluster".equals(rdsResource.getResourceType())) {
+                            String dbClusterKey = serviceNameResourceKey(serviceName, "DB_HOST");
+                            String dbCluster = rdsResource.getPhysicalId();
+                            tenantResources.put(dbClusterKey, Map.of(
+                                    "name", dbCluster,
+                                    "arn", AwsResource.RDS_CLUSTER.formatArn(partition, AWS_REGION, accountId,
+                                            dbCluster),
+                                    "consoleUrl", AwsResource.RDS_CLUSTER.formatUrl(AWS_REGION, dbCluster)
+                            ));
+                            LOGGER.info("Publishing update tenant resources event for tenant {} {} {}", tenantId,
+                                    dbClusterKey, dbCluster);
+                        }
+                    }
+                }
+            }
+        }
+        return tenantResources;
+    }
+
+    // The stack's parameters, described and cached the first time we need them
+    protected Map<String, String> parameters(String stackId) {
+        StackResourceIndex.IndexedStack indexedStack = index.stack(stackId);
+        if (indexedStack != null && indexedStack.getParameters() != null) {
+            return indexedStack.getParameters();
+        }
+        Map<String, String> parameters = new HashMap<>();
+        Map<String, String> outputs = new HashMap<>();
+        try {
+            DescribeStacksResponse stacks = cfn.describeStacks(req -> req
+                    .stackName(stackId)
+            );
+            Stack stack = stacks.stacks().get(0);
+            for (Parameter parameter : stack.parameters()) {
+                parameters.put(parameter.parameterKey(), parameter.parameterValue());
+            }
+            if (stack.hasOutputs()) {
+                for (Output output : stack.outputs()) {
+                    outputs.put(output.outputKey(), output.outputValue());
+                }
+            }
+        } catch (SdkServiceException cfnError) {
+            LOGGER.error("cfn:DescribeStacks error", cfnError);
+            LOGGER.error(Utils.getFullStackTrace(cfnError));
+            throw cfnError;
+        }
+        index.cacheMetadata(stackId, parameters, outputs);
+        return parameters;
+    }
+
+    // For the RDS nested stack, and for stacks created before the stack resource index
+    protected List<StackResourceIndex.StackResource> listStackResources(String stackId) {
+        List<StackResourceIndex.StackResource> resources = new ArrayList<>();
+        try {
+            cfn.listStackResourcesPaginator(req -> req.stackName(stackId)).stackResourceSummaries()
+                    .forEach(resource -> resources.add(new StackResourceIndex.StackResource(
+                            resource.logicalResourceId(), resource.physicalResourceId(), resource.resourceType(),
+                            resource.resourceStatusAsString(), resource.lastUpdatedTimestamp().toEpochMilli()
+                    )));
+        } catch (SdkServiceException cfnError) {
+            LOGGER.error("cfn:ListStackResources error", cfnError);
+            LOGGER.error(Utils.getFullStackTrace(cfnError));
+            throw cfnError;
+        }
+        return resources;
+    }
+
     protected static String serviceNameResourceKey(String serviceName, String resourceType) {
         if (Utils.isBlank(serviceName)) {
             throw new IllegalArgumentException("Service name must not be blank");
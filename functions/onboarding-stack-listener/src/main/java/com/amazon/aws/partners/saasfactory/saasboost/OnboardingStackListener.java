@@ -25,6 +25,7 @@ import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.services.cloudformation.CloudFormationClient;
 import software.amazon.awssdk.services.cloudformation.model.*;
 import software.amazon.awssdk.services.cloudformation.model.Stack;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
 import software.amazon.awssdk.services.eventbridge.model.PutEventsRequestEntry;
 import software.amazon.awssdk.services.eventbridge.model.PutEventsResponse;
@@ -40,6 +41,7 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
     private static final String AWS_REGION = System.getenv("AWS_REGION");
     private static final String SAAS_BOOST_ENV = System.getenv("SAAS_BOOST_ENV");
     private static final String SAAS_BOOST_EVENT_BUS = System.getenv("SAAS_BOOST_EVENT_BUS");
+    private static final String STACK_RESOURCES_TABLE = System.getenv("STACK_RESOURCES_TABLE");
     private static final String SYSTEM_API_CALL = "System API Call";
     private static final String UPDATE_TENANT_RESOURCES = "Tenant Update Resources";
     private static final String BILLING_SETUP = "Billing Tenant Setup";
@@ -51,6 +53,7 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
             Arrays.asList("CREATE_COMPLETE", "CREATE_FAILED", "UPDATE_COMPLETE", "DELETE_COMPLETE", "DELETE_FAILED"));
     private final CloudFormationClient cfn;
     private final EventBridgeClient eventBridge;
+    private final StackResourceIndex index;
 
     public OnboardingStackListener() {
         final long startTimeMillis = System.currentTimeMillis();
@@ -60,8 +63,13 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
         if (Utils.isBlank(SAAS_BOOST_EVENT_BUS)) {
             throw new IllegalStateException("Missing required environment variable SAAS_BOOST_EVENT_BUS");
         }
+        if (Utils.isBlank(STACK_RESOURCES_TABLE)) {
+            throw new IllegalStateException("Missing required environment variable STACK_RESOURCES_TABLE");
+        }
         this.cfn = Utils.sdkClient(CloudFormationClient.builder(), CloudFormationClient.SERVICE_NAME);
         this.eventBridge = Utils.sdkClient(EventBridgeClient.builder(), EventBridgeClient.SERVICE_NAME);
+        this.index = new StackResourceIndex(Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME),
+                STACK_RESOURCES_TABLE);
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
@@ -75,7 +83,20 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
 
         CloudFormationEvent cloudFormationEvent = CloudFormationEventDeserializer.deserialize(message);
 
+        // We'll use these to build the ARN string for resources that CloudFormation doesn't return the ARN
+        // as either the physical or logical resource id
+        final String[] lambdaArn = context.getInvokedFunctionArn().split(":");
+        final String partition = lambdaArn[1];
+        final String accountId = lambdaArn[4];
+
         // CloudFormation sends SNS notifications for every resource in a stack going through each status change.
+        // Each one goes into the stack resource index as it arrives, so we never have to ask CloudFormation for
+        // the stack's resources.
+        if (!STACK_NAME_PATTERN.matcher(cloudFormationEvent.getStackName()).matches()) {
+            return null;
+        }
+        final boolean indexed = index.index(cloudFormationEvent);
+
         // We want to process the resources of the tenant-onboarding.yaml CloudFormation stack only after the
         // stack has finished being created or updated so we don't trigger anything downstream prematurely.
         if (filter(cloudFormationEvent)) {
@@ -84,63 +105,55 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
             String stackStatus = cloudFormationEvent.getResourceStatus();
             String stackId = cloudFormationEvent.getStackId();
             LOGGER.info("Stack " + stackName + " is in status " + stackStatus);
+            boolean complete = "CREATE_COMPLETE".equals(stackStatus) || "UPDATE_COMPLETE".equals(stackStatus);
 
-            String tenantId = null;
-            String domainName = null;
-            String hostedZone = null;
-            String subdomain = null;
-            try {
-                DescribeStacksResponse stacks = cfn.describeStacks(req -> req
-                        .stackName(stackId)
-                );
-                Stack stack = stacks.stacks().get(0);
-                for (Parameter parameter : stack.parameters()) {
-                    if ("TenantId".equals(parameter.parameterKey())) {
-                        tenantId = parameter.parameterValue();
-                    }
-                    if ("DomainName".equals(parameter.parameterKey())) {
-                        domainName = parameter.parameterValue();
-                    }
-                    if ("HostedZoneId".equals(parameter.parameterKey())) {
-                        hostedZone = parameter.parameterValue();
+            // Creating or updating the stack can change its parameters and outputs, so we read them once each time
+            // the stack finishes. Otherwise we go with what we cached. This has to happen before we read the
+            // resources back from the index, see lateResource.
+            Map<String, String> parameters;
+            Map<String, String> outputs;
+            StackResourceIndex.IndexedStack indexedStack = index.stack(stackId);
+            if (complete || indexedStack == null || indexedStack.getParameters() == null) {
+                try {
+                    Stack stack = describeStack(stackId);
+                    parameters = new HashMap<>();
+                    for (Parameter parameter : stack.parameters()) {
+                        parameters.put(parameter.parameterKey(), parameter.parameterValue());
                     }
-                    if ("TenantSubDomain".equals(parameter.parameterKey())) {
-                        subdomain = parameter.parameterValue();
-                    }
-                }
-
-                // The public URL to access this tenant's environment is either a custom DNS entry we made a
-                // Route53 record set for and pointed at the load balancer, or we can fall back to the ALB's DNS.
-                String hostname = null;
-                if (Utils.isNotBlank(domainName) && Utils.isNotBlank(hostedZone) && Utils.isNotBlank(subdomain)) {
-                    hostname = subdomain + "." + domainName;
-                } else {
+                    outputs = new HashMap<>();
                     if (stack.hasOutputs()) {
                         for (Output output : stack.outputs()) {
-                            if ("DNSName".equals(output.outputKey())) {
-                                hostname = output.outputValue();
-                                break;
-                            }
+                            outputs.put(output.outputKey(), output.outputValue());
                         }
                     }
+                } catch (SdkServiceException cfnError) {
+                    LOGGER.error("cfn:DescribeStacks error", cfnError);
+                    LOGGER.error(Utils.getFullStackTrace(cfnError));
+                    throw cfnError;
                 }
-                // Fire a tenant hostname changed event
-                Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE, "Tenant Hostname Changed",
-                        Map.of("tenantId", tenantId, "hostname", hostname));
-            } catch (SdkServiceException cfnError) {
-                LOGGER.error("cfn:DescribeStacks error", cfnError);
-                LOGGER.error(Utils.getFullStackTrace(cfnError));
-                throw cfnError;
+                index.cacheMetadata(stackId, parameters, outputs);
+            } else {
+                parameters = indexedStack.getParameters();
+                outputs = indexedStack.getOutputs();
             }
+            String tenantId = parameters.get("TenantId");
+            String domainName = parameters.get("DomainName");
+            String hostedZone = parameters.get("HostedZoneId");
+            String subdomain = parameters.get("TenantSubDomain");
 
-            if ("CREATE_COMPLETE".equals(stackStatus) || "UPDATE_COMPLETE".equals(stackStatus)) {
-                // We'll use these to build the ARN string for resources that CloudFormation doesn't return the ARN
-                // as either the physical or logical resource id
-                final String[] lambdaArn = context.getInvokedFunctionArn().split(":");
-                final String partition = lambdaArn[1];
-                final String accountId = lambdaArn[4];
-                final String stackIdName = stackId;
+            // The public URL to access this tenant's environment is either a custom DNS entry we made a
+            // Route53 record set for and pointed at the load balancer, or we can fall back to the ALB's DNS.
+            String hostname = null;
+            if (Utils.isNotBlank(domainName) && Utils.isNotBlank(hostedZone) && Utils.isNotBlank(subdomain)) {
+                hostname = subdomain + "." + domainName;
+            } else if (outputs != null) {
+                hostname = outputs.get("DNSName");
+            }
+            // Fire a tenant hostname changed event
+            Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE, "Tenant Hostname Changed",
+                    Map.of("tenantId", tenantId, "hostname", hostname));
 
+            if (complete) {
                 // Now, collect up all of the provisioned resources for this tenant that we want to save with the
                 // tenant record. Start with the "parent" CloudFormation stack.
                 Map<String, Map<String, String>> tenantResources = new HashMap<>();
@@ -149,117 +162,10 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
                         "arn", stackId,
                         "consoleUrl", AwsResource.CLOUDFORMATION.formatUrl(AWS_REGION, stackId))
                 );
+                tenantResources.putAll(tenantResources(index.resources(stackId, () -> listStackResources(stackId)),
+                        tenantId, partition, accountId));
 
-                // Loop through all of the resources and grab the ones we need to save to the tenant record.
-                ListStackResourcesResponse resources = cfn.listStackResources(req -> req.stackName(stackIdName));
-                for (StackResourceSummary resource : resources.stackResourceSummaries()) {
-                    String resourceType = resource.resourceType();
-                    String physicalResourceId = resource.physicalResourceId();
-                    String resourceStatus = resource.resourceStatusAsString();
-                    String logicalId = resource.logicalResourceId();
-                    LOGGER.info("Processing resource {} {} {} {}", resourceType, resourceStatus, logicalId, physicalResourceId);
-                    if ("CREATE_COMPLETE".equals(resourceStatus)) {
-                        if ("AWS::EC2::SecurityGroup".equals(resourceType) && "ECSSecurityGroup".equals(logicalId)) {
-                            LOGGER.info("Saving ECS Security Group {} {}", logicalId, physicalResourceId);
-                            tenantResources.put(AwsResource.ECS_SECURITY_GROUP.name(), Map.of(
-                                    "name", physicalResourceId,
-                                    "arn", AwsResource.ECS_SECURITY_GROUP.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
-                                    "consoleUrl", AwsResource.ECS_SECURITY_GROUP.formatUrl(AWS_REGION, physicalResourceId))
-                            );
-                        } else if ("AWS::EC2::Subnet".equals(resourceType)) {
-                            // Process all the subnet resources together because we only want the 2 private subnets and
-                            // there are other subnets in the stack which would end up overwriting the values in the
-                            // resources map with whatever subnet happens to be last in the stack summary.
-                            if ("SubnetPrivateA".equals(logicalId)) {
-                                LOGGER.info("Saving Private Subnet {} {}", logicalId, physicalResourceId);
-                                tenantResources.put(AwsResource.PRIVATE_SUBNET_A.name(), Map.of(
-                                        "name", physicalResourceId,
-                                        "arn", AwsResource.PRIVATE_SUBNET_A.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
-                                        "consoleUrl", AwsResource.PRIVATE_SUBNET_A.formatUrl(AWS_REGION, physicalResourceId))
-                                );
-                            } else if ("SubnetPrivateB".equals(logicalId)) {
-                                LOGGER.info("Saving Private Subnet {} {}", logicalId, physicalResourceId);
-                                tenantResources.put(AwsResource.PRIVATE_SUBNET_B.name(), Map.of(
-                                        "name", physicalResourceId,
-                                        "arn", AwsResource.PRIVATE_SUBNET_B.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
-                                        "consoleUrl", AwsResource.PRIVATE_SUBNET_B.formatUrl(AWS_REGION, physicalResourceId))
-                                );
-                            }
-                        } else if ("AWS::EC2::RouteTable".equals(resourceType)) {
-                            // Process all of the route table resources together because we only want the route table
-                            // for the private subnets and there are other route tables in the stack which may end up
-                            // overwriting the values in the resources map depending on which order they are listed in
-                            // from the stack summary
-                            if ("RouteTablePrivate".equals(logicalId)) {
-                                LOGGER.info("Saving Private Route Table {} {}", logicalId, physicalResourceId);
-                                tenantResources.put(AwsResource.PRIVATE_ROUTE_TABLE.name(), Map.of(
-                                        "name", physicalResourceId,
-                                        "arn", AwsResource.PRIVATE_ROUTE_TABLE.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
-                                        "consoleUrl", AwsResource.PRIVATE_ROUTE_TABLE.formatUrl(AWS_REGION, physicalResourceId))
-                                );
-                            }
-                        } else if ("AWS::ServiceDiscovery::PrivateDnsNamespace".equals(resourceType)) {
-                            if ("ServiceDiscoveryNamespace".equals(logicalId)) {
-                                LOGGER.info("Saving Private DNS Namespace {} {}", logicalId, physicalResourceId);
-                                AwsResource namespace = AwsResource.PRIVATE_SERVICE_DISCOVERY_NAMESPACE;
-                                tenantResources.put(namespace.name(), Map.of(
-                                        "name", physicalResourceId,
-                                        "arn", namespace.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
-                                        "consoleUrl", namespace.formatUrl(AWS_REGION, physicalResourceId)
-                                ));
-                            }
-                        } else {
-                            // Match on the resource type and build the console url
-                            for (AwsResource awsResource : AwsResource.values()) {
-                                if (awsResource.getResourceType().equalsIgnoreCase(resourceType)) {
-                                    if ("AWS::ElasticLoadBalancingV2::LoadBalancer".equals(resourceType)) {
-                                        // CloudFormation returns the ARN for the physical id of the load balancer
-                                        // The console url can use the name of the load balancer as a search string
-                                        // and the name is the short tenant id
-                                        tenantResources.put(awsResource.name(), Map.of(
-                                                "name", physicalResourceId.substring(physicalResourceId.indexOf(":loadbalancer/") + 14),
-                                                "arn", physicalResourceId,
-                                                "consoleUrl", AwsResource.LOAD_BALANCER.formatUrl(AWS_REGION, "sb-" + SAAS_BOOST_ENV + "-tenant-" + tenantId.split("-")[0]))
-                                        );
-                                    } else if ("AWS::ElasticLoadBalancingV2::Listener".equals(resourceType)) {
-                                        if ("HttpListener".equals(logicalId)) {
-                                            LOGGER.info("Saving HTTP listener {} {}", logicalId, physicalResourceId);
-                                            tenantResources.put(AwsResource.HTTP_LISTENER.name(), Map.of(
-                                                    "name", physicalResourceId,
-                                                    "arn", physicalResourceId,
-                                                    // Same URL as the load balancer
-                                                    "consoleUrl", AwsResource.LOAD_BALANCER.formatUrl(AWS_REGION, "sb-" + SAAS_BOOST_ENV + "-tenant-" + tenantId.split("-")[0]))
-                                            );
-                                        } else if ("HttpsListener".equals(logicalId)) {
-                                            LOGGER.info("Saving HTTPS listener {} {}", logicalId, physicalResourceId);
-                                            tenantResources.put(AwsResource.HTTPS_LISTENER.name(), Map.of(
-                                                    "name", physicalResourceId,
-                                                    "arn", physicalResourceId,
-                                                    // Same URL as the load balancer
-                                                    "consoleUrl", AwsResource.LOAD_BALANCER.formatUrl(AWS_REGION, "sb-" + SAAS_BOOST_ENV + "-tenant-" + tenantId.split("-")[0]))
-                                            );
-                                        }
-                                    } else if ("AWS::Logs::LogGroup".equals(resourceType)) {
-                                        //need to replace / with $252F for the url path
-                                        //physicalResourceId = physicalResourceId.replaceAll("/", Matcher.quoteReplacement("$252F"));
-                                    } else {
-                                        // Don't overwrite something we've already set
-                                        if (!tenantResources.containsKey(awsResource.name())) {
-                                            LOGGER.info("Saving {} {} {}", awsResource.name(), logicalId, physicalResourceId);
-                                            tenantResources.put(awsResource.name(), Map.of(
-                                                    "name", physicalResourceId,
-                                                    "arn", awsResource.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
-                                                    "consoleUrl", awsResource.formatUrl(AWS_REGION, physicalResourceId))
-                                            );
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-
-                // Fire a tenant resources updated event
+                // Fire a single tenant resources updated event for the whole stack
                 LOGGER.info("Updating tenant resources AWS console links");
                 Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
                         "Tenant Resources Changed",
@@ -285,12 +191,178 @@ public class OnboardingStackListener implements RequestHandler<SNSEvent, Object>
 
             //TODO deal with a deleted stack canceling billing subscription
             //TODO deal with a created stack creating a billing subscription
-        } else {
-            //LOGGER.info("Skipping CloudFormation notification {} {} {} {}", stackId, type, stackName, stackStatus);
+        } else if (indexed && !StackResourceIndex.isStackEvent(cloudFormationEvent)) {
+            lateResource(cloudFormationEvent, partition, accountId);
         }
         return null;
     }
 
+    /**
+     * SNS can deliver a resource notification after the one for its stack finishing, too late for the resources
+     * update for the whole stack. The tenant resources update is additive, so publish the resource on its own.
+     * The stack is marked complete before its metadata is cached and its resources are read back, so if the
+     * metadata isn't cached yet the resources update for the stack will pick this resource up.
+     */
+    protected void lateResource(CloudFormationEvent cloudFormationEvent, String partition, String accountId) {
+        if (!"CREATE_COMPLETE".equals(cloudFormationEvent.getResourceStatus())) {
+            return;
+        }
+        StackResourceIndex.IndexedStack stack = index.stack(cloudFormationEvent.getStackId());
+        if (stack != null && stack.isComplete() && stack.getParameters() != null) {
+            String tenantId = stack.getParameters().get("TenantId");
+            StackResourceIndex.StackResource resource = new StackResourceIndex.StackResource(
+                    cloudFormationEvent.getLogicalResourceId(), cloudFormationEvent.getPhysicalResourceId(),
+                    cloudFormationEvent.getResourceType(), cloudFormationEvent.getResourceStatus(), 0L);
+            Map<String, Map<String, String>> tenantResources = tenantResources(List.of(resource), tenantId,
+                    partition, accountId);
+            if (!tenantResources.isEmpty()) {
+                LOGGER.info("Updating tenant resources for {} after its stack finished", resource);
+                Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE,
+                        "Tenant Resources Changed",
+                        Map.of("tenantId", tenantId, "resources", Utils.toJson(tenantResources))
+                );
+            }
+        }
+    }
+
+    protected Stack describeStack(String stackId) {
+        DescribeStacksResponse stacks = cfn.describeStacks(req -> req
+                .stackName(stackId)
+        );
+        return stacks.stacks().get(0);
+    }
+
+    // Only for stacks created before the stack resource index, see StackResourceIndex.resources
+    protected List<StackResourceIndex.StackResource> listStackResources(String stackId) {
+        List<StackResourceIndex.StackResource> resources = new ArrayList<>();
+        try {
+            cfn.listStackResourcesPaginator(req -> req.stackName(stackId)).stackResourceSummaries()
+                    .forEach(resource -> resources.add(new StackResourceIndex.StackResource(
+                            resource.logicalResourceId(), resource.physicalResourceId(), resource.resourceType(),
+                            resource.resourceStatusAsString(), resource.lastUpdatedTimestamp().toEpochMilli()
+                    )));
+        } catch (SdkServiceException cfnError) {
+            LOGGER.error("cfn:ListStackResources error", cfnError);
+            LOGGER.error(Utils.getFullStackTrace(cfnError));
+            throw cfnError;
+        }
+        return resources;
+    }
+
+    protected static Map<String, Map<String, String>> tenantResources(
+            Collection<StackResourceIndex.StackResource> resources, String tenantId, String partition,
+            String accountId) {
+        Map<String, Map<String, String>> tenantResources = new HashMap<>();
+        // Loop through all of the resources and grab the ones we need to save to the tenant record.
+        for (StackResourceIndex.StackResource resource : resources) {
+            String resourceType = resource.getResourceType();
+            String physicalResourceId = resource.getPhysicalId();
+            String resourceStatus = resource.getResourceStatus();
+            String logicalId = resource.getLogicalId();
+            LOGGER.info("Processing resource {} {} {} {}", resourceType, resourceStatus, logicalId, physicalResourceId);
+            if ("CREATE_COMPLETE".equals(resourceStatus)) {
+                if ("AWS::EC2::SecurityGroup".equals(resourceType) && "ECSSecurityGroup".equals(logicalId)) {
+                    LOGGER.info("Saving ECS Security Group {} {}", logicalId, physicalResourceId);
+                    tenantResources.put(AwsResource.ECS_SECURITY_GROUP.name(), Map.of(
+                            "name", physicalResourceId,
+                            "arn", AwsResource.ECS_SECURITY_GROUP.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
+                            "consoleUrl", AwsResource.ECS_SECURITY_GROUP.formatUrl(AWS_REGION, physicalResourceId))
+                    );
+                } else if ("AWS::EC2::Subnet".equals(resourceType)) {
+                    // Process all the subnet resources together because we only want the 2 private subnets and
+                    // there are other subnets in the stack which would end up overwriting the values in the
+                    // resources map with whatever subnet happens to be last in the stack summary.
+                    if ("SubnetPrivateA".equals(logicalId)) {
+                        LOGGER.info("Saving Private Subnet {} {}", logicalId, physicalResourceId);
+                        tenantResources.put(AwsResource.PRIVATE_SUBNET_A.name(), Map.of(
+                                "name", physicalResourceId,
+                                "arn", AwsResource.PRIVATE_SUBNET_A.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
+                                "consoleUrl", AwsResource.PRIVATE_SUBNET_A.formatUrl(AWS_REGION, physicalResourceId))
+                        );
+                    } else if ("SubnetPrivateB".equals(logicalId)) {
+                        LOGGER.info("Saving Private Subnet {} {}", logicalId, physicalResourceId);
+                        tenantResources.put(AwsResource.PRIVATE_SUBNET_B.name(), Map.of(
+                                "name", physicalResourceId,
+                                "arn", AwsResource.PRIVATE_SUBNET_B.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
+                                "consoleUrl", AwsResource.PRIVATE_SUBNET_B.formatUrl(AWS_REGION, physicalResourceId))
+                        );
+                    }
+                } else if ("AWS::EC2::RouteTable".equals(resourceType)) {
+                    // Process all of the route table resources together because we only want the route table
+                    // for the private subnets and there are other route tables in the stack which may end up
+                    // overwriting the values in the resources map depending on which order they are listed in
+                    // from the stack summary
+                    if ("RouteTablePrivate".equals(logicalId)) {
+                        LOGGER.info("Saving Private Route Table {} {}", logicalId, physicalResourceId);
+                        tenantResources.put(AwsResource.PRIVATE_ROUTE_TABLE.name(), Map.of(
+                                "name", physicalResourceId,
+                                "arn", AwsResource.PRIVATE_ROUTE_TABLE.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
+                                "consoleUrl", AwsResource.PRIVATE_ROUTE_TABLE.formatUrl(AWS_REGION, physicalResourceId))
+                        );
+                    }
+                } else if ("AWS::ServiceDiscovery::PrivateDnsNamespace".equals(resourceType)) {
+                    if ("ServiceDiscoveryNamespace".equals(logicalId)) {
+                        LOGGER.info("Saving Private DNS Namespace {} {}", logicalId, physicalResourceId);
+                        AwsResource namespace = AwsResource.PRIVATE_SERVICE_DISCOVERY_NAMESPACE;
+                        tenantResources.put(namespace.name(), Map.of(
+                                "name", physicalResourceId,
+                                "arn", namespace.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
+                                "consoleUrl", namespace.formatUrl(AWS_REGION, physicalResourceId)
+                        ));
+                    }
+                } else {
+                    // Match on the resource type and build the console url
+                    for (AwsResource awsResource : AwsResource.values()) {
+                        if (awsResource.getResourceType().equalsIgnoreCase(resourceType)) {
+                            if ("AWS::ElasticLoadBalancingV2::LoadBalancer".equals(resourceType)) {
+                                // CloudFormation returns the ARN for the physical id of the load balancer
+                                // The console url can use the name of the load balancer as a search string
+                                // and the name is the short tenant id
+                                tenantResources.put(awsResource.name(), Map.of(
+                                        "name", physicalResourceId.substring(physicalResourceId.indexOf(":loadbalancer/") + 14),
+                                        "arn", physicalResourceId,
+                                        "consoleUrl", AwsResource.LOAD_BALANCER.formatUrl(AWS_REGION, "sb-" + SAAS_BOOST_ENV + "-tenant-" + tenantId.split("-")[0]))
+                                );
+                            } else if ("AWS::ElasticLoadBalancingV2::Listener".equals(resourceType)) {
+                                if ("HttpListener".equals(logicalId)) {
+                                    LOGGER.info("Saving HTTP listener {} {}", logicalId, physicalResourceId);
+                                    tenantResources.put(AwsResource.HTTP_LISTENER.name(), Map.of(
+                                            "name", physicalResourceId,
+                                            "arn", physicalResourceId,
+                                            // Same URL as the load balancer
+                                            "consoleUrl", AwsResource.LOAD_BALANCER.formatUrl(AWS_REGION, "sb-" + SAAS_BOOST_ENV + "-tenant-" + tenantId.split("-")[0]))
+                                    );
+                                } else if ("HttpsListener".equals(logicalId)) {
+                                    LOGGER.info("Saving HTTPS listener {} {}", logicalId, physicalResourceId);
+                                    tenantResources.put(AwsResource.HTTPS_LISTENER.name(), Map.of(
+                                            "name", physicalResourceId,
+                                            "arn", physicalResourceId,
+                                            // Same URL as the load balancer
+                                            "consoleUrl", AwsResource.LOAD_BALANCER.formatUrl(AWS_REGION, "sb-" + SAAS_BOOST_ENV + "-tenant-" + tenantId.split("-")[0]))
+                                    );
+                                }
+                            } else if ("AWS::Logs::LogGroup".equals(resourceType)) {
+                                //need to replace / with $252F for the url path
+                                //physicalResourceId = physicalResourceId.replaceAll("/", Matcher.quoteReplacement("$252F"));
+                            } else {
+                                // Don't overwrite something we've already set
+                                if (!tenantResources.containsKey(awsResource.name())) {
+                                    LOGGER.info("Saving {} {} {}", awsResource.name(), logicalId, physicalResourceId);
+                                    tenantResources.put(awsResource.name(), Map.of(
+                                            "name", physicalResourceId,
+                                            "arn", awsResource.formatArn(partition, AWS_REGION, accountId, physicalResourceId),
+                                            "consoleUrl", awsResource.formatUrl(AWS_REGION, physicalResourceId))
+                                    );
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return tenantResources;
+    }
+
     protected static boolean filter(CloudFormationEvent cloudFormationEvent) {
         return ("AWS::CloudFormation::Stack".equals(cloudFormationEvent.getResourceType())
                 && STACK_NAME_PATTERN.matcher(cloudFormationEvent.getStackName()).matches()
@@ -23,14 +23,22 @@ import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.codepipeline.CodePipelineClient;
+import software.amazon.awssdk.services.codepipeline.model.PipelineExecutionStatus;
 import software.amazon.awssdk.services.codepipeline.model.StartPipelineExecutionResponse;
+import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
+import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -43,8 +51,41 @@ public class WorkloadDeploy implements RequestHandler<Map<String, Object>, Objec
     private static final String API_GATEWAY_STAGE = System.getenv("API_GATEWAY_STAGE");
     private static final String API_TRUST_ROLE = System.getenv("API_TRUST_ROLE");
     private static final String CODE_PIPELINE_BUCKET = System.getenv("CODE_PIPELINE_BUCKET");
+    private static final String SAAS_BOOST_EVENT_BUS = System.getenv("SAAS_BOOST_EVENT_BUS");
+    private static final String EVENT_SOURCE = "saas-boost";
+    private static final String DEPLOYMENT_STOPPED = "Workload Deployment Stopped";
+    private static final int CONCURRENCY = envInt("DEPLOY_CONCURRENCY", 10);
+    // CodePipeline throttles StartPipelineExecution and GetPipelineExecution per account
+    private static final int REQUESTS_PER_SECOND = envInt("DEPLOY_REQUESTS_PER_SECOND", 5);
+    // Tenants per wave after the canary. 0 deploys to all of them at once.
+    private static final int WAVE_SIZE = envInt("DEPLOY_WAVE_SIZE", 0);
+    // Percent of tenants to deploy to first and wait on before the rest. 0 skips the canary.
+    private static final int CANARY_PERCENT = envInt("DEPLOY_CANARY_PERCENT", 0);
+    private static final long PIPELINE_POLL_MILLIS = 15 * 1000;
+    // Polls in a row a pipeline's status can't be read before we treat it as failed
+    private static final int MAX_POLL_ERRORS = 3;
+    // Stop starting deployments this long before the function times out
+    private static final long TIMEOUT_MARGIN_MILLIS = 60 * 1000;
+    // Pipelines a rollout that carries on in a new invocation still has to wait on
+    private static final String WAITING = "waitingPipelines";
+    private static final String CONTENT_HASH_METADATA = "imagedefinitions-sha256";
+    private static final int MAX_CACHED_ARTIFACTS = 1000;
+    // imagedefinitions.json ZIP archives by their content, least recently used are dropped first
+    private static final Map<String, byte[]> ARTIFACTS = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > MAX_CACHED_ARTIFACTS;
+                }
+            }
+    );
+    // The content hash this execution environment last wrote to each artifact key
+    private static final Map<String, String> WRITTEN = new ConcurrentHashMap<>();
     private final S3Client s3;
     private final CodePipelineClient codepipeline;
+    private final LambdaClient lambda;
+    private final EventBridgeClient eventBridge;
+    private final FleetOperation<Deployment> fleetOperation;
 
     public WorkloadDeploy() {
         if (Utils.isBlank(AWS_REGION)) {
@@ -65,42 +106,264 @@ public class WorkloadDeploy implements RequestHandler<Map<String, Object>, Objec
         if (Utils.isBlank(CODE_PIPELINE_BUCKET)) {
             throw new IllegalStateException("Missing required environment variable CODE_PIPELINE_BUCKET");
         }
+        if (Utils.isBlank(SAAS_BOOST_EVENT_BUS)) {
+            throw new IllegalStateException("Missing required environment variable SAAS_BOOST_EVENT_BUS");
+        }
         LOGGER.info("Version Info: {}", Utils.version(this.getClass()));
         this.s3 = Utils.sdkClient(S3Client.builder(), S3Client.SERVICE_NAME);
         this.codepipeline = Utils.sdkClient(CodePipelineClient.builder(), CodePipelineClient.SERVICE_NAME);
+        this.lambda = Utils.sdkClient(LambdaClient.builder(), LambdaClient.SERVICE_NAME);
+        this.eventBridge = Utils.sdkClient(EventBridgeClient.builder(), EventBridgeClient.SERVICE_NAME);
+        this.fleetOperation = new FleetOperation<>(CONCURRENCY, REQUESTS_PER_SECOND);
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return Utils.isNotBlank(value) ? Integer.parseInt(value) : defaultValue;
     }
 
     @Override
     public Object handleRequest(Map<String, Object> event, Context context) {
         Utils.logRequestEvent(event);
+        Map<String, Object> result = null;
         if (validEvent(event)) {
             List<Deployment> deployments = getDeployments(event, context);
-            if (!deployments.isEmpty()) {
+            // A rollout that ran out of time in an earlier invocation passes along where it got to
+            boolean resumed = FleetOperation.resume(event, deployments, Deployment::getTenantId);
+            if (!deployments.isEmpty() || resumed) {
                 LOGGER.info("Deploying for " + deployments.size() + " tenants");
-                for (Deployment deployment : deployments) {
-                    try {
-                        String tenantId = deployment.getTenantId();
+                result = dispatch(event, deployments, resumed, context);
+            } else {
+                LOGGER.warn("No deployments to trigger");
+            }
+        } else {
+            LOGGER.error("Unrecognized event");
+        }
+        return result;
+    }
+
+    /**
+     * Deploy to the tenants a wave at a time. The first wave is the canary if there is one. Within a wave
+     * every tenant's artifact is written and pipeline started in parallel, with the CodePipeline calls
+     * sharing one rate limit. Before starting the next wave we wait for the previous wave's pipelines to
+     * succeed, and stop the rollout if any of them don't. If we run out of time, the rest of the rollout
+     * carries on in a new invocation. A rollout that stops with tenants left to deploy to publishes a
+     * Workload Deployment Stopped event.
+     * @return the status of each tenant's deployment and why the rollout stopped, if it did
+     */
+    protected Map<String, Object> dispatch(Map<String, Object> event, List<Deployment> deployments,
+                                           boolean resumed, Context context) {
+        final long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis()
+                - TIMEOUT_MARGIN_MILLIS;
+        Map<String, String> status = new LinkedHashMap<>();
+        List<Map<String, String>> waiting = new ArrayList<>();
+        if (event.get(WAITING) != null) {
+            waiting.addAll((Collection<Map<String, String>>) event.get(WAITING));
+        }
+        Deque<List<Deployment>> waves = new ArrayDeque<>(waves(deployments, !resumed));
+        String halted = null;
+        boolean outOfTime = false;
+        try {
+            while (halted == null && !outOfTime) {
+                if (!waiting.isEmpty()) {
+                    Boolean succeeded = awaitPipelines(waiting, status, deadline);
+                    if (succeeded == null) {
+                        outOfTime = true;
+                        break;
+                    } else if (!succeeded) {
+                        halted = "Pipeline failed";
+                        break;
+                    }
+                }
+                List<Deployment> wave = waves.poll();
+                if (wave == null) {
+                    break;
+                }
+                Map<String, Deployment> fleet = new LinkedHashMap<>();
+                for (Deployment deployment : wave) {
+                    fleet.put(deployment.getTenantId(), deployment);
+                }
+                LOGGER.info("Starting deployment wave of {} tenants, {} waves left", fleet.size(), waves.size());
+                FleetOperation.Result started = fleetOperation.run(fleet, this::deploy, deadline);
+                for (Map.Entry<String, String> outcome : started.getOutcomes().entrySet()) {
+                    String tenantId = outcome.getKey();
+                    if (started.getFailed().contains(tenantId)) {
+                        status.put(tenantId, outcome.getValue());
+                        if (!waves.isEmpty()) {
+                            halted = "Deployment failed for tenant " + tenantId;
+                        }
+                    } else {
+                        status.put(tenantId, "Started");
+                        // Only a later wave has to wait for this one
+                        if (!waves.isEmpty()) {
+                            waiting.add(Map.of(
+                                    "tenantId", tenantId,
+                                    "pipeline", fleet.get(tenantId).getPipeline(),
+                                    "executionId", outcome.getValue()
+                            ));
+                        }
+                    }
+                }
+                if (!started.getRemaining().isEmpty()) {
+                    List<Deployment> notStarted = new ArrayList<>();
+                    for (String tenantId : started.getRemaining()) {
+                        notStarted.add(fleet.get(tenantId));
+                    }
+                    waves.addFirst(notStarted);
+                    outOfTime = true;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            halted = "Interrupted";
+        }
 
-                        // Create an imagedefinitions.json document for the newly pushed image
-                        byte[] zip = codePipelineArtifact(deployment.getImageName(), deployment.getImageUri());
+        List<String> remaining = new ArrayList<>();
+        for (List<Deployment> wave : waves) {
+            for (Deployment deployment : wave) {
+                remaining.add(deployment.getTenantId());
+            }
+        }
+        if (halted != null) {
+            LOGGER.error("Stopping deployment with {} tenants left. {}", remaining.size(), halted);
+            deploymentStopped(event, halted, status, waiting, remaining);
+        } else if (outOfTime) {
+            // Every tenant we started, or whose pipeline we heard back from, has a status
+            String abandoned = FleetOperation.continueInNewInvocation(lambda, context.getInvokedFunctionArn(), event,
+                    remaining, Map.of(WAITING, waiting), !status.isEmpty());
+            if (abandoned != null) {
+                halted = abandoned;
+                deploymentStopped(event, halted, status, waiting, remaining);
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("status", status);
+        result.put("halted", halted);
+        result.put("remaining", remaining);
+        return result;
+    }
 
-                        // Write the imagedefinitions.json document to the artifact bucket
-                        writeToArtifactBucket(s3, CODE_PIPELINE_BUCKET, tenantId, deployment.getImageName(), zip);
+    // The canary is the first wave, then the rest of the tenants in waves of DEPLOY_WAVE_SIZE
+    protected static List<List<Deployment>> waves(List<Deployment> deployments, boolean canary) {
+        List<List<Deployment>> waves = new ArrayList<>();
+        int next = 0;
+        if (canary && CANARY_PERCENT > 0 && deployments.size() > 1) {
+            int canaries = (int) Math.ceil(deployments.size() * Math.min(100d, CANARY_PERCENT) / 100d);
+            canaries = Math.min(canaries, deployments.size() - 1);
+            waves.add(new ArrayList<>(deployments.subList(0, canaries)));
+            next = canaries;
+        }
+        int waveSize = WAVE_SIZE > 0 ? WAVE_SIZE : deployments.size();
+        while (next < deployments.size()) {
+            int end = Math.min(next + waveSize, deployments.size());
+            waves.add(new ArrayList<>(deployments.subList(next, end)));
+            next = end;
+        }
+        return waves;
+    }
 
-                        // Trigger CodePipeline for this tenant
-                        triggerPipeline(codepipeline, tenantId, deployment.getPipeline());
-                    } catch (Exception e) {
-                        LOGGER.error("Deployment failed {}", Utils.toJson(deployment));
-                        LOGGER.error(Utils.getFullStackTrace(e));
+    /**
+     * @return the pipeline execution id
+     */
+    protected String deploy(Deployment deployment) throws InterruptedException {
+        String tenantId = deployment.getTenantId();
+
+        // Create an imagedefinitions.json document for the newly pushed image
+        byte[] zip = codePipelineArtifact(deployment.getImageName(), deployment.getImageUri());
+
+        // Write the imagedefinitions.json document to the artifact bucket
+        writeToArtifactBucket(s3, CODE_PIPELINE_BUCKET, tenantId, deployment.getImageName(), zip);
+
+        // Trigger CodePipeline for this tenant
+        fleetOperation.throttle();
+        return triggerPipeline(codepipeline, tenantId, deployment.getPipeline());
+    }
+
+    /**
+     * Poll the pipeline executions until they've all finished. A pipeline whose status can't be read
+     * MAX_POLL_ERRORS times in a row counts as failed.
+     * @return true if they all succeeded, false as soon as one fails, or null if we ran out of time
+     */
+    protected Boolean awaitPipelines(List<Map<String, String>> waiting, Map<String, String> status, long deadline)
+            throws InterruptedException {
+        LOGGER.info("Waiting for {} pipelines to finish", waiting.size());
+        // Consecutive GetPipelineExecution errors by tenant
+        Map<String, Integer> errors = new HashMap<>();
+        while (true) {
+            boolean failed = false;
+            for (Iterator<Map<String, String>> it = waiting.iterator(); it.hasNext();) {
+                Map<String, String> execution = it.next();
+                String tenantId = execution.get("tenantId");
+                fleetOperation.throttle();
+                PipelineExecutionStatus executionStatus;
+                try {
+                    executionStatus = codepipeline.getPipelineExecution(request -> request
+                            .pipelineName(execution.get("pipeline"))
+                            .pipelineExecutionId(execution.get("executionId"))
+                    ).pipelineExecution().status();
+                    errors.remove(tenantId);
+                } catch (SdkServiceException codepipelineError) {
+                    // One tenant's pipeline we can't read shouldn't lose track of the rest of the wave
+                    int attempts = errors.merge(tenantId, 1, Integer::sum);
+                    LOGGER.error("codepipeline:GetPipelineExecution for tenant {} failed {} times", tenantId,
+                            attempts);
+                    LOGGER.error(Utils.getFullStackTrace(codepipelineError));
+                    if (attempts >= MAX_POLL_ERRORS) {
+                        status.put(tenantId, "Unknown: " + codepipelineError.getMessage());
+                        it.remove();
+                        failed = true;
                     }
+                    continue;
+                }
+                if (PipelineExecutionStatus.SUCCEEDED == executionStatus
+                        || PipelineExecutionStatus.SUPERSEDED == executionStatus) {
+                    // A superseded execution means a newer deployment to this tenant is already on its way
+                    status.put(tenantId, executionStatus.toString());
+                    it.remove();
+                } else if (PipelineExecutionStatus.FAILED == executionStatus
+                        || PipelineExecutionStatus.STOPPED == executionStatus
+                        || PipelineExecutionStatus.STOPPING == executionStatus) {
+                    LOGGER.error("Pipeline {} for tenant {} {}", execution.get("pipeline"), tenantId,
+                            executionStatus);
+                    status.put(tenantId, executionStatus.toString());
+                    it.remove();
+                    failed = true;
+                } else {
+                    status.put(tenantId, executionStatus.toString());
                 }
-            } else {
-                LOGGER.warn("No deployments to trigger");
             }
-        } else {
-            LOGGER.error("Unrecognized event");
+            if (failed) {
+                return false;
+            } else if (waiting.isEmpty()) {
+                return true;
+            } else if (System.currentTimeMillis() + PIPELINE_POLL_MILLIS >= deadline) {
+                return null;
+            }
+            Thread.sleep(PIPELINE_POLL_MILLIS);
+        }
+    }
+
+    // Let anyone watching the SaaS Boost event bus know these tenants didn't get the new image
+    protected void deploymentStopped(Map<String, Object> event, String reason, Map<String, String> status,
+                                     List<Map<String, String>> waiting, List<String> remaining) {
+        Map<String, Object> detail = (Map<String, Object>) event.get("detail");
+        List<String> inProgress = new ArrayList<>();
+        for (Map<String, String> execution : waiting) {
+            inProgress.add(execution.get("tenantId"));
+        }
+        Map<String, Object> stopped = new LinkedHashMap<>();
+        stopped.put("repository-name", detail.get("repository-name"));
+        stopped.put("image-tag", detail.get("image-tag"));
+        stopped.put("reason", reason);
+        stopped.put("status", status);
+        stopped.put("inProgress", inProgress);
+        stopped.put("remaining", remaining);
+        try {
+            Utils.publishEvent(eventBridge, SAAS_BOOST_EVENT_BUS, EVENT_SOURCE, DEPLOYMENT_STOPPED, stopped);
+        } catch (SdkServiceException eventBridgeError) {
+            // Already logged. Failing the invocation would only have the rollout retried from the start.
+            LOGGER.error("Unable to publish {} event", DEPLOYMENT_STOPPED);
         }
-        return null;
     }
 
     List<Deployment> getDeployments(Map<String, Object> event, Context context) {
@@ -254,15 +517,21 @@ public class WorkloadDeploy implements RequestHandler<Map<String, Object>, Objec
     }
 
     protected static byte[] codePipelineArtifact(String imageName, String imageUri) {
-        LOGGER.info("Creating imagedefinitions.json");
         String imageDefinitions = Utils.toJson(Collections.singletonList(
                 Map.of("name", imageName, "imageUri", imageUri)
         ));
-        LOGGER.info(imageDefinitions);
-
-        // CodePipeline expects source input artifacts to be in a ZIP file
-        LOGGER.info("Creating ZIP archive for CodePipeline");
-        byte[] zip = zip(imageDefinitions);
+        // The same image is usually pushed under the same tag over and over, so the archive for each
+        // imagedefinitions.json is built once per warm execution environment
+        byte[] zip = ARTIFACTS.get(imageDefinitions);
+        if (zip == null) {
+            LOGGER.info("Creating imagedefinitions.json");
+            LOGGER.info(imageDefinitions);
+
+            // CodePipeline expects source input artifacts to be in a ZIP file
+            LOGGER.info("Creating ZIP archive for CodePipeline");
+            zip = zip(imageDefinitions);
+            ARTIFACTS.put(imageDefinitions, zip);
+        }
         return zip;
     }
 
@@ -272,6 +541,9 @@ public class WorkloadDeploy implements RequestHandler<Map<String, Object>, Objec
             ByteArrayOutputStream stream = new ByteArrayOutputStream();
             ZipOutputStream zip = new ZipOutputStream(stream);
             ZipEntry entry = new ZipEntry("imagedefinitions.json");
+            // A fixed timestamp makes the archive bytes depend only on the content, so identical
+            // artifacts hash the same and don't have to be uploaded again
+            entry.setTime(0L);
             zip.putNextEntry(entry);
             zip.write(imagedefinitions.getBytes(StandardCharsets.UTF_8));
             zip.closeEntry();
@@ -284,14 +556,26 @@ public class WorkloadDeploy implements RequestHandler<Map<String, Object>, Objec
         return archive;
     }
 
-    protected static void writeToArtifactBucket(S3Client s3, String bucket, String tenantId,
-                                                String imageName, byte[] artifact) {
+    /**
+     * Write the source artifact for a tenant's pipeline, unless the object already in the bucket has the
+     * same content. Starting the pipeline picks up the existing object just the same.
+     * @return true if the artifact was uploaded, false if it was already there
+     */
+    protected static boolean writeToArtifactBucket(S3Client s3, String bucket, String tenantId,
+                                                   String imageName, byte[] artifact) {
         String key = tenantId + "/" + imageName;
+        String contentHash = sha256(artifact);
+        if (contentHash.equals(WRITTEN.get(key)) || contentHash.equals(artifactHash(s3, bucket, key))) {
+            LOGGER.info("CodePipeline source artifact S3 " + bucket + "/" + key + " is up to date");
+            WRITTEN.put(key, contentHash);
+            return false;
+        }
         LOGGER.info("Putting CodePipeline source artifact to S3 " + bucket + "/" + key);
         try {
             s3.putObject(PutObjectRequest.builder()
                             .bucket(bucket)
                             .key(key)
+                            .metadata(Map.of(CONTENT_HASH_METADATA, contentHash))
                             .build(),
                     RequestBody.fromBytes(artifact)
             );
@@ -299,12 +583,45 @@ public class WorkloadDeploy implements RequestHandler<Map<String, Object>, Objec
             LOGGER.error("s3:PutObject " + Utils.getFullStackTrace(s3error));
             throw s3error;
         }
+        WRITTEN.put(key, contentHash);
+        return true;
+    }
+
+    // The content hash we stored with the artifact, or null if there's no artifact or it predates the hash
+    private static String artifactHash(S3Client s3, String bucket, String key) {
+        try {
+            HeadObjectResponse response = s3.headObject(request -> request.bucket(bucket).key(key));
+            return response.metadata().get(CONTENT_HASH_METADATA);
+        } catch (NoSuchKeyException noSuchKey) {
+            return null;
+        } catch (SdkServiceException s3error) {
+            if (s3error.statusCode() == 404) {
+                return null;
+            }
+            LOGGER.error("s3:HeadObject " + Utils.getFullStackTrace(s3error));
+            throw s3error;
+        }
+    }
+
+    protected static String sha256(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every JVM is required to support SHA-256
+            throw new RuntimeException(nsae);
+        }
     }
 
-    private static void triggerPipeline(CodePipelineClient codepipeline, String tenantId, String pipeline) {
+    private static String triggerPipeline(CodePipelineClient codepipeline, String tenantId, String pipeline) {
         try {
             StartPipelineExecutionResponse response = codepipeline.startPipelineExecution(r -> r.name(pipeline));
             LOGGER.info("Started tenant {} pipeline {} {}", tenantId, pipeline, response.pipelineExecutionId());
+            return response.pipelineExecutionId();
         } catch (SdkServiceException codepipelineError) {
             LOGGER.error("codepipeline:StartPipeline", codepipelineError);
             LOGGER.error(Utils.getFullStackTrace(codepipelineError));
@@ -24,13 +24,41 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.amazon.aws.partners.saasfactory.saasboost.Utils.getFullStackTrace;
 
 public class SaaSBoostArtifactsBucket {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SaaSBoostArtifactsBucket.class);
+    // Files bigger than this go up in parts. S3 needs parts of at least 5 MiB except for the last one.
+    static final long MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+    static final long PART_SIZE = 8 * 1024 * 1024;
+    private static final int UPLOAD_CONCURRENCY = 8;
+    private static final int PART_CONCURRENCY = 4;
+    // Daemon threads so an unfinished upload never keeps the installer from exiting
+    private static final ExecutorService UPLOADS = Executors.newFixedThreadPool(UPLOAD_CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, "artifacts-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService PARTS = Executors.newFixedThreadPool(PART_CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, "artifacts-upload-part");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final String bucketName;
     private final Region region;
@@ -57,20 +85,119 @@ public class SaaSBoostArtifactsBucket {
     }
 
     public void putFile(S3Client s3, Path localPath, Path remotePath) {
+        // java.nio.file.Path will use OS dependent file separators, so when we run the installer on
+        // Windows, the S3 key will have back slashes instead of forward slashes. The CloudFormation
+        // definitions of the Lambda functions will always use forward slashes for the S3Key property.
+        final String key = remotePath.toString().replace('\\', '/');
         try {
             LOGGER.debug("Putting {} to Artifacts bucket: {}", localPath, this);
-            s3.putObject(PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    // java.nio.file.Path will use OS dependent file separators, so when we run the installer on
-                    // Windows, the S3 key will have back slashes instead of forward slashes. The CloudFormation
-                    // definitions of the Lambda functions will always use forward slashes for the S3Key property.
-                    .key(remotePath.toString().replace('\\', '/'))
-                    .build(), RequestBody.fromFile(localPath)
-            );
+            if (Files.size(localPath) > MULTIPART_THRESHOLD) {
+                putMultipartFile(s3, localPath, key);
+            } else {
+                s3.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .build(), RequestBody.fromFile(localPath)
+                );
+            }
         } catch (SdkServiceException s3Error) {
             LOGGER.error("s3:PutObject error {}", s3Error.getMessage());
             LOGGER.error(getFullStackTrace(s3Error));
             throw s3Error;
+        } catch (IOException ioe) {
+            LOGGER.error("Error reading {}", localPath);
+            LOGGER.error(getFullStackTrace(ioe));
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * Upload files concurrently.
+     * @param files local paths and the remote paths to put them to
+     */
+    public void putFiles(S3Client s3, Map<Path, Path> files) {
+        List<Future<?>> uploads = new ArrayList<>();
+        for (Map.Entry<Path, Path> file : files.entrySet()) {
+            uploads.add(submitFile(s3, file.getKey(), file.getValue()));
+        }
+        for (Future<?> upload : uploads) {
+            await(upload);
+        }
+    }
+
+    /**
+     * Start uploading the file in the background. Wait for it to finish with {@link #await(Future)}.
+     */
+    public Future<?> submitFile(S3Client s3, Path localPath, Path remotePath) {
+        return UPLOADS.submit(() -> putFile(s3, localPath, remotePath));
+    }
+
+    public static <T> T await(Future<T> upload) {
+        try {
+            return upload.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private void putMultipartFile(S3Client s3, Path localPath, String key) throws IOException {
+        final String uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()
+        ).uploadId();
+        try (FileChannel channel = FileChannel.open(localPath, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            List<Future<CompletedPart>> parts = new ArrayList<>();
+            for (int partNumber = 1; (partNumber - 1) * PART_SIZE < size; partNumber++) {
+                final int part = partNumber;
+                final long position = (part - 1) * PART_SIZE;
+                final int length = (int) Math.min(PART_SIZE, size - position);
+                parts.add(PARTS.submit(() -> {
+                    // Positional reads don't move the channel, so parts can be read at the same time
+                    ByteBuffer buffer = ByteBuffer.allocate(length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of file " + localPath);
+                        }
+                    }
+                    buffer.flip();
+                    UploadPartResponse response = s3.uploadPart(UploadPartRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(part)
+                            .build(), RequestBody.fromByteBuffer(buffer)
+                    );
+                    return CompletedPart.builder().partNumber(part).eTag(response.eTag()).build();
+                }));
+            }
+            List<CompletedPart> completedParts = new ArrayList<>();
+            for (Future<CompletedPart> part : parts) {
+                completedParts.add(await(part));
+            }
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build()
+            );
+        } catch (IOException | RuntimeException e) {
+            // Don't leave the parts we did upload lying around in the bucket
+            s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()
+            );
+            throw e;
         }
     }
 
@@ -68,6 +68,7 @@ import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -108,6 +109,7 @@ public class SaaSBoostInstall {
     private Map<String, String> baseStackDetails = new HashMap<>();
     private boolean useAnalyticsModule = false;
     private boolean useQuickSight = false;
+    private boolean compressedMetricEvents = false;
     private String quickSightUsername;
     private String quickSightUserArn;
 
@@ -249,6 +251,7 @@ public class SaaSBoostInstall {
                 if (this.useQuickSight) {
                     getQuickSightUsername();
                 }
+                getCompressedMetricEvents();
                 installAnalyticsModule();
                 break;
             case DELETE:
@@ -559,6 +562,9 @@ public class SaaSBoostInstall {
         if (this.useQuickSight) {
             getQuickSightUsername();
         }
+        if (useAnalyticsModule) {
+            getCompressedMetricEvents();
+        }
 
         System.out.println("If your application runs on Windows and uses a shared file system, Active Directory is required.");
         System.out.print("Would you like to provision AWS Directory Service to use with FSx for Windows File Server (y or n)? ");
@@ -583,6 +589,9 @@ public class SaaSBoostInstall {
         } else {
             outputMessage("Amazon QuickSight user for Analytics Module: N/A");
         }
+        if (this.useAnalyticsModule) {
+            outputMessage("Metric events use the compact encoding: " + this.compressedMetricEvents);
+        }
         outputMessage("Setup AWS Directory Service for FSx for Windows File Server: " + setupActiveDirectory);
 
         System.out.println();
@@ -852,6 +861,7 @@ public class SaaSBoostInstall {
         } else {
             outputMessage("Amazon QuickSight user for Analytics Module: N/A");
         }
+        outputMessage("Metric events use the compact encoding: " + compressedMetricEvents);
 
         System.out.print("Continue (y or n)? ");
         boolean continueInstall = Keyboard.readBoolean();
@@ -990,6 +1000,15 @@ public class SaaSBoostInstall {
         return workingDir;
     }
 
+    protected void getCompressedMetricEvents() {
+        // The delivery stream stores records as they arrive when they're already gzipped, and the Redshift
+        // COPY reads every object as gzip, so one setting has to hold for every application sending metrics
+        System.out.println("Applications using the metrics Java SDK can gzip metric events themselves with the compact encoding.");
+        System.out.println("If you choose this, every application sending metric events must use the compact encoding.");
+        System.out.print("Will your applications send metric events with the compact encoding (y or n)? ");
+        this.compressedMetricEvents = Keyboard.readBoolean();
+    }
+
     protected void getQuickSightUsername() {
         Region quickSightRegion;
         QuickSightClient oldClient = null;
@@ -1309,11 +1328,13 @@ public class SaaSBoostInstall {
                                 .build()
                 )
                 .forEachOrdered(inputColumns::add);
-        inputColumns.add(InputColumn.builder()
-                .name("metric_value")
-                .type(InputColumnDataType.INTEGER)
-                .build()
-        );
+        Stream.of("metric_value", "metric_count", "metric_min", "metric_max")
+                .map(column -> InputColumn.builder()
+                                .name(column)
+                                .type(InputColumnDataType.INTEGER)
+                                .build()
+                )
+                .forEachOrdered(inputColumns::add);
         inputColumns.add(InputColumn.builder()
                 .name("timerecorded")
                 .type(InputColumnDataType.DATETIME)
@@ -1404,12 +1425,14 @@ public class SaaSBoostInstall {
                             && file.getFileName().toString().endsWith(".yaml"))
                     .collect(Collectors.toSet());
             outputMessage("Uploading " + cloudFormationTemplates.size() + " CloudFormation resources to S3");
+            Map<Path, Path> uploads = new LinkedHashMap<>();
             for (Path cloudFormationTemplate : cloudFormationTemplates) {
                 LOGGER.info("Uploading CloudFormation template to S3 " + cloudFormationTemplate.toString() + " -> "
                         + cloudFormationTemplate.getFileName().toString());
                 // TODO validate template for syntax errors before continuing with installation
-                saasBoostArtifactsBucket.putFile(s3, cloudFormationTemplate, cloudFormationTemplate.getFileName());
+                uploads.put(cloudFormationTemplate, cloudFormationTemplate.getFileName());
             }
+            saasBoostArtifactsBucket.putFiles(s3, uploads);
         } catch (IOException ioe) {
             LOGGER.error("Error listing resources directory", ioe);
             LOGGER.error(getFullStackTrace(ioe));
@@ -1417,11 +1440,13 @@ public class SaaSBoostInstall {
         }
         try (Stream<Path> stream = Files.walk(resourcesDir.resolve("keycloak"))) {
             Set<Path> keycloakResources = stream.filter(file -> Files.isRegularFile(file)).collect(Collectors.toSet());
+            Map<Path, Path> uploads = new LinkedHashMap<>();
             for (Path keycloakResource : keycloakResources) {
                 Path remotePath = resourcesDir.relativize(keycloakResource);
                 LOGGER.info("Uploading Keycloak resource to S3 " + keycloakResource.toString() + " -> " + remotePath);
-                saasBoostArtifactsBucket.putFile(s3, keycloakResource, remotePath);
+                uploads.put(keycloakResource, remotePath);
             }
+            saasBoostArtifactsBucket.putFiles(s3, uploads);
         } catch (IOException ioe) {
             LOGGER.error("Error walking keycloak directory", ioe);
             LOGGER.error(getFullStackTrace(ioe));
@@ -1641,6 +1666,8 @@ public class SaaSBoostInstall {
 
             final PathMatcher filter = FileSystems.getDefault().getPathMatcher("glob:**.zip");
             outputMessage("Uploading " + sourceDirectories.size() + " Lambda functions to S3");
+            // Uploads run in the background while the next module builds
+            List<Future<?>> uploads = new ArrayList<>();
             for (ListIterator<Path> iter = sourceDirectories.listIterator(); iter.hasNext();) {
                 int progress = iter.nextIndex();
                 Path sourceDirectory = iter.next();
@@ -1654,14 +1681,17 @@ public class SaaSBoostInstall {
                         for (Path zipFile : lambdaSourcePackage) {
                             LOGGER.info("Uploading Lambda source package to S3 " + zipFile.toString() + " -> " + this.lambdaSourceFolder + "/" + zipFile.getFileName().toString());
                             System.out.printf("%2d. %s%n", (progress + 1), zipFile.getFileName().toString());
-                            saasBoostArtifactsBucket.putFile(s3, zipFile,
-                                    Path.of(this.lambdaSourceFolder, zipFile.getFileName().toString()));
+                            uploads.add(saasBoostArtifactsBucket.submitFile(s3, zipFile,
+                                    Path.of(this.lambdaSourceFolder, zipFile.getFileName().toString())));
                         }
                     }
                 } else {
                     LOGGER.warn("No POM file found in {}", sourceDirectory.toString());
                 }
             }
+            for (Future<?> upload : uploads) {
+                SaaSBoostArtifactsBucket.await(upload);
+            }
         } catch (IOException ioe) {
             LOGGER.error("Error processing Lambda source folders", ioe);
             LOGGER.error(getFullStackTrace(ioe));
@@ -1752,6 +1782,7 @@ public class SaaSBoostInstall {
         templateParameters.add(Parameter.builder().parameterKey("PrivateSubnet1").parameterValue(baseStackDetails.get("PrivateSubnet1")).build());
         templateParameters.add(Parameter.builder().parameterKey("PrivateSubnet2").parameterValue(baseStackDetails.get("PrivateSubnet2")).build());
         templateParameters.add(Parameter.builder().parameterKey("VPC").parameterValue(baseStackDetails.get("EgressVpc")).build());
+        templateParameters.add(Parameter.builder().parameterKey("CompressedMetricEvents").parameterValue(compressedMetricEvents ? "Y" : "N").build());
 
         // Now run the  stack to provision the infrastructure for Metrics and Analytics
         LOGGER.info("createMetricsStack::stack " + stackName);
@@ -1900,18 +1931,19 @@ public class SaaSBoostInstall {
             // Create a ZIP archive of the source files so we only call s3 put object once
             // and so we can trigger the CodeBuild project off of that single s3 event
             // (instead of triggering CodeBuild 180+ times -- once for each file put to s3).
+            // The archive is written to a temporary file so no source file is ever held in memory whole.
             try {
-                ByteArrayOutputStream src = new ByteArrayOutputStream();
-                ZipOutputStream zip = new ZipOutputStream(src);
-                for (Path fileToUpload : filesToUpload) {
-                    // java.nio.file.Path will use OS dependent file separators
-                    String fileName = fileToUpload.toFile().toString().replace('\\', '/');
-                    ZipEntry entry = new ZipEntry(fileName);
-                    zip.putNextEntry(entry);
-                    zip.write(Files.readAllBytes(fileToUpload)); // all of our files are very small
-                    zip.closeEntry();
+                Path src = Files.createTempFile("saas-boost-web-src", ".zip");
+                try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(src))) {
+                    for (Path fileToUpload : filesToUpload) {
+                        // java.nio.file.Path will use OS dependent file separators
+                        String fileName = fileToUpload.toFile().toString().replace('\\', '/');
+                        ZipEntry entry = new ZipEntry(fileName);
+                        zip.putNextEntry(entry);
+                        Files.copy(fileToUpload, zip);
+                        zip.closeEntry();
+                    }
                 }
-                zip.close();
                 try {
                     // Now copy the admin web app source files up to the artifacts bucket
                     // This will trigger a CodeBuild project to build and deploy the app
@@ -1919,12 +1951,14 @@ public class SaaSBoostInstall {
                     s3.putObject(PutObjectRequest.builder()
                             .bucket(artifactsBucket)
                             .key("client/web/src.zip")
-                            .build(), RequestBody.fromBytes(src.toByteArray())
+                            .build(), RequestBody.fromFile(src)
                     );
                 } catch (SdkServiceException s3Error) {
                     LOGGER.error("s3:PutObject error", s3Error);
                     LOGGER.error(getFullStackTrace(s3Error));
                     throw s3Error;
+                } finally {
+                    Files.deleteIfExists(src);
                 }
             } catch (IOException ioe) {
                 LOGGER.error("ZIP archive generation failed");
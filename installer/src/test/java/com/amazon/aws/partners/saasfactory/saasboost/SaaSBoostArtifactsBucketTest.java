@@ -28,7 +28,9 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -65,6 +67,60 @@ public class SaaSBoostArtifactsBucketTest {
                 localPathToTestPut.toFile().length(), requestBodyArgumentCaptor.getValue().contentLength());
     }
 
+    @Test
+    public void putFileTest_multipart() throws Exception {
+        SaaSBoostArtifactsBucket testBucket = new SaaSBoostArtifactsBucket("artifacts", Region.US_EAST_1);
+        // Two full parts and a short one
+        byte[] content = new byte[(int) (SaaSBoostArtifactsBucket.PART_SIZE * 2 + 1024)];
+        new Random(42).nextBytes(content);
+        Path largeFile = Files.createTempFile("artifact", ".zip");
+        try {
+            Files.write(largeFile, content);
+            Mockito.doReturn(CreateMultipartUploadResponse.builder().uploadId("upload-id").build())
+                    .when(mockS3).createMultipartUpload(Mockito.any(CreateMultipartUploadRequest.class));
+            Mockito.doReturn(UploadPartResponse.builder().eTag("part").build())
+                    .when(mockS3).uploadPart(Mockito.any(UploadPartRequest.class), Mockito.any(RequestBody.class));
+            ArgumentCaptor<RequestBody> partBodies = ArgumentCaptor.forClass(RequestBody.class);
+            ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest =
+                    ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+
+            testBucket.putFile(mockS3, largeFile, Path.of("lambdas", "artifact.zip"));
+            Mockito.verify(mockS3, Mockito.times(3))
+                    .uploadPart(Mockito.any(UploadPartRequest.class), partBodies.capture());
+            long uploaded = partBodies.getAllValues().stream().mapToLong(RequestBody::contentLength).sum();
+            assertEquals("Parts should add up to the whole file", content.length, uploaded);
+            Mockito.verify(mockS3).completeMultipartUpload(completeRequest.capture());
+            assertEquals("upload-id", completeRequest.getValue().uploadId());
+            assertEquals(3, completeRequest.getValue().multipartUpload().parts().size());
+            Mockito.verify(mockS3, Mockito.never()).putObject(Mockito.any(PutObjectRequest.class),
+                    Mockito.any(RequestBody.class));
+        } finally {
+            Files.deleteIfExists(largeFile);
+        }
+    }
+
+    @Test
+    public void putFileTest_multipartAbortedOnFailure() throws Exception {
+        SaaSBoostArtifactsBucket testBucket = new SaaSBoostArtifactsBucket("artifacts", Region.US_EAST_1);
+        Path largeFile = Files.createTempFile("artifact", ".zip");
+        try {
+            Files.write(largeFile, new byte[(int) (SaaSBoostArtifactsBucket.MULTIPART_THRESHOLD + 1)]);
+            Mockito.doReturn(CreateMultipartUploadResponse.builder().uploadId("upload-id").build())
+                    .when(mockS3).createMultipartUpload(Mockito.any(CreateMultipartUploadRequest.class));
+            Mockito.doThrow(S3Exception.builder().message("part failed").statusCode(500).build())
+                    .when(mockS3).uploadPart(Mockito.any(UploadPartRequest.class), Mockito.any(RequestBody.class));
+            try {
+                testBucket.putFile(mockS3, largeFile, Path.of("lambdas", "artifact.zip"));
+                fail("A failed part should fail the upload");
+            } catch (S3Exception expected) {
+                // expected
+            }
+            Mockito.verify(mockS3).abortMultipartUpload(Mockito.any(AbortMultipartUploadRequest.class));
+        } finally {
+            Files.deleteIfExists(largeFile);
+        }
+    }
+
     @Test
     public void createBucketLocationConstraintTest() {
         ArgumentCaptor<CreateBucketRequest> createBucketRequestArgumentCaptor =
@@ -0,0 +1,398 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Index of the resources in a CloudFormation stack, kept in DynamoDB and built up one SNS notification at a time.
+ * <p>
+ * CloudFormation publishes a notification for every status change of every resource in a stack. A stack listener
+ * applies each one to the index as it arrives, so when the stack finishes it can read the resources back with one
+ * query instead of calling ListStackResources. Every resource remembers the time of the notification it was last
+ * updated from and older notifications are ignored, so notifications that are retried, delivered out of order or
+ * handled by different execution environments all end up in the same state. Resources are indexed by physical id
+ * so cleaning up a resource replaced during an update doesn't touch its replacement. The stack's parameters and
+ * outputs are cached alongside its resources.
+ * <p>
+ * The index can only be trusted for stacks it saw being created. Stacks created before that have their resources
+ * listed once the first time they finish an update and indexed from then on. Safe to share between threads.
+ */
+public class StackResourceIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StackResourceIndex.class);
+    private static final String STACK_RESOURCE_TYPE = "AWS::CloudFormation::Stack";
+    // Sort key of the stack's own item. Logical ids are alphanumeric, so no resource can have it.
+    static final String STACK_KEY = "#stack";
+    // Deleted resources stay around long enough to ignore any older notifications still being retried
+    private static final long DELETED_TTL_SECONDS = 30L * 24 * 60 * 60;
+    private static final String UNINDEXED_OR_OLDER = "attribute_not_exists(#eventTime) OR #eventTime < :eventTime";
+
+    private final DynamoDbClient ddb;
+    private final String table;
+
+    public StackResourceIndex(DynamoDbClient ddb, String table) {
+        this.ddb = ddb;
+        this.table = table;
+    }
+
+    /**
+     * Apply a single CloudFormation notification to the index.
+     * @param event the deserialized SNS notification
+     * @return false if nothing changed because the index already has a newer notification for the resource
+     */
+    public boolean index(CloudFormationEvent event) {
+        long eventTime = eventTime(event);
+        if (isStackEvent(event)) {
+            String status = event.getResourceStatus();
+            List<String> sets = new ArrayList<>(List.of("#status = :status", "#eventTime = :eventTime"));
+            Map<String, String> names = new HashMap<>(Map.of("#status", "stack_status", "#eventTime", "event_time"));
+            Map<String, AttributeValue> values = new HashMap<>(Map.of(
+                    ":status", string(status),
+                    ":eventTime", number(eventTime)
+            ));
+            if (status.startsWith("CREATE_")) {
+                // We're seeing the stack being created, so we'll see every one of its resources too
+                sets.add("#indexed = :indexed");
+                names.put("#indexed", "indexed");
+                values.put(":indexed", AttributeValue.builder().bool(true).build());
+            } else if ("DELETE_COMPLETE".equals(status)) {
+                sets.add("#expires = :expires");
+                names.put("#expires", "expires");
+                values.put(":expires", number(Instant.now().getEpochSecond() + DELETED_TTL_SECONDS));
+            }
+            return update(event.getStackId(), STACK_KEY, "SET " + String.join(", ", sets), names, values);
+        }
+        if (Utils.isBlank(event.getPhysicalResourceId())) {
+            // A resource that hasn't been created yet, there's nothing to remember until it has a physical id
+            return false;
+        }
+        return indexResource(event.getStackId(), new StackResource(event.getLogicalResourceId(),
+                event.getPhysicalResourceId(), event.getResourceType(), event.getResourceStatus(), eventTime));
+    }
+
+    /**
+     * @param stackId the stack ARN
+     * @return the stack as indexed so far, or null if the index has never heard of it
+     */
+    public IndexedStack stack(String stackId) {
+        try {
+            GetItemResponse response = ddb.getItem(request -> request
+                    .tableName(table)
+                    .key(key(stackId, STACK_KEY))
+                    .consistentRead(true)
+            );
+            return response.hasItem() ? new IndexedStack(response.item()) : null;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:GetItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * The resources currently in the stack. If the index can't be trusted for the stack yet, the listing is used
+     * instead and indexed so it only has to be done once.
+     * @param stackId the stack ARN
+     * @param listStackResources lists every resource in the stack, for example with ListStackResources
+     */
+    public List<StackResource> resources(String stackId, Supplier<Collection<StackResource>> listStackResources) {
+        IndexedStack stack = stack(stackId);
+        if (stack != null && stack.isIndexed()) {
+            return resources(stackId);
+        }
+        LOGGER.info("Listing the resources of stack {} created before it was indexed", stackId);
+        Collection<StackResource> resources = listStackResources.get();
+        reset(stackId, resources);
+        return new ArrayList<>(resources);
+    }
+
+    /**
+     * The resources currently in the stack as indexed. While a resource is being replaced only the newest of its
+     * physical resources is returned.
+     * @param stackId the stack ARN
+     * @return the current resources in the order of their logical ids
+     */
+    public List<StackResource> resources(String stackId) {
+        Map<String, StackResource> current = new TreeMap<>();
+        try {
+            ddb.queryPaginator(request -> request
+                    .tableName(table)
+                    .keyConditionExpression("#stackId = :stackId")
+                    .expressionAttributeNames(Map.of("#stackId", "stack_id"))
+                    .expressionAttributeValues(Map.of(":stackId", string(stackId)))
+                    .consistentRead(true)
+            ).items().forEach(item -> {
+                if (!STACK_KEY.equals(item.get("resource_key").s())) {
+                    StackResource resource = new StackResource(item);
+                    StackResource newest = current.get(resource.getLogicalId());
+                    if (!resource.isDeleted() && (newest == null || newest.getEventTime() < resource.getEventTime())) {
+                        current.put(resource.getLogicalId(), resource);
+                    }
+                }
+            });
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:Query error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+        return new ArrayList<>(current.values());
+    }
+
+    // Index a full listing of the stack's resources and trust the index for this stack from now on. Resources
+    // the index has newer notifications for are left alone.
+    private void reset(String stackId, Collection<StackResource> resources) {
+        for (StackResource resource : resources) {
+            if (Utils.isNotBlank(resource.getPhysicalId())) {
+                indexResource(stackId, resource);
+            }
+        }
+        update(stackId, STACK_KEY, "SET #indexed = :indexed", Map.of("#indexed", "indexed"),
+                Map.of(":indexed", AttributeValue.builder().bool(true).build()));
+    }
+
+    /**
+     * Cache the stack's parameters and outputs as returned by DescribeStacks.
+     * @param stackId the stack ARN
+     */
+    public void cacheMetadata(String stackId, Map<String, String> parameters, Map<String, String> outputs) {
+        update(stackId, STACK_KEY, "SET #parameters = :parameters, #outputs = :outputs",
+                Map.of("#parameters", "parameters", "#outputs", "outputs"),
+                Map.of(":parameters", stringMap(parameters), ":outputs", stringMap(outputs)));
+    }
+
+    /**
+     * @return true if the notification is for the stack itself rather than one of its resources
+     */
+    public static boolean isStackEvent(CloudFormationEvent event) {
+        return STACK_RESOURCE_TYPE.equals(event.getResourceType())
+                && event.getStackName() != null
+                && event.getStackName().equals(event.getLogicalResourceId());
+    }
+
+    private boolean indexResource(String stackId, StackResource resource) {
+        String update = "SET #logicalId = :logicalId, #physicalId = :physicalId, #type = :type, #status = :status, "
+                + "#eventTime = :eventTime";
+        Map<String, String> names = new HashMap<>(Map.of(
+                "#logicalId", "logical_id",
+                "#physicalId", "physical_id",
+                "#type", "resource_type",
+                "#status", "resource_status",
+                "#eventTime", "event_time",
+                "#expires", "expires"
+        ));
+        Map<String, AttributeValue> values = new HashMap<>(Map.of(
+                ":logicalId", string(resource.getLogicalId()),
+                ":physicalId", string(resource.getPhysicalId()),
+                ":type", string(resource.getResourceType()),
+                ":status", string(resource.getResourceStatus()),
+                ":eventTime", number(resource.getEventTime())
+        ));
+        if (resource.isDeleted()) {
+            update += ", #expires = :expires";
+            values.put(":expires", number(Instant.now().getEpochSecond() + DELETED_TTL_SECONDS));
+        } else {
+            update += " REMOVE #expires";
+        }
+        return update(stackId, resource.getLogicalId() + "#" + resource.getPhysicalId(), update, names, values);
+    }
+
+    // Only applied if the item is new or was last indexed from an older notification
+    private boolean update(String stackId, String resourceKey, String updateExpression, Map<String, String> names,
+                           Map<String, AttributeValue> values) {
+        boolean conditional = values.containsKey(":eventTime");
+        try {
+            ddb.updateItem(request -> request
+                    .tableName(table)
+                    .key(key(stackId, resourceKey))
+                    .updateExpression(updateExpression)
+                    .conditionExpression(conditional ? UNINDEXED_OR_OLDER : null)
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+            );
+            return true;
+        } catch (ConditionalCheckFailedException ccf) {
+            LOGGER.info("Ignoring older notification for {} {}", stackId, resourceKey);
+            return false;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:UpdateItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    private static long eventTime(CloudFormationEvent event) {
+        if (Utils.isBlank(event.getTimestamp())) {
+            throw new IllegalArgumentException("CloudFormation notification without a timestamp");
+        }
+        try {
+            return Instant.parse(event.getTimestamp()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid CloudFormation notification timestamp "
+                    + event.getTimestamp());
+        }
+    }
+
+    private static Map<String, AttributeValue> key(String stackId, String resourceKey) {
+        return Map.of("stack_id", string(stackId), "resource_key", string(resourceKey));
+    }
+
+    private static AttributeValue string(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue number(long value) {
+        return AttributeValue.builder().n(String.valueOf(value)).build();
+    }
+
+    private static AttributeValue stringMap(Map<String, String> map) {
+        Map<String, AttributeValue> attributes = new HashMap<>();
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                if (entry.getValue() != null) {
+                    attributes.put(entry.getKey(), string(entry.getValue()));
+                }
+            }
+        }
+        return AttributeValue.builder().m(attributes).build();
+    }
+
+    private static Map<String, String> fromStringMap(AttributeValue attribute) {
+        if (attribute == null) {
+            return null;
+        }
+        Map<String, String> map = new HashMap<>();
+        for (Map.Entry<String, AttributeValue> entry : attribute.m().entrySet()) {
+            map.put(entry.getKey(), entry.getValue().s());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    public static final class IndexedStack {
+        private final String status;
+        private final boolean indexed;
+        private final Map<String, String> parameters;
+        private final Map<String, String> outputs;
+
+        private IndexedStack(Map<String, AttributeValue> item) {
+            this.status = item.containsKey("stack_status") ? item.get("stack_status").s() : null;
+            this.indexed = item.containsKey("indexed") && Boolean.TRUE.equals(item.get("indexed").bool());
+            this.parameters = fromStringMap(item.get("parameters"));
+            this.outputs = fromStringMap(item.get("outputs"));
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return true if the index has seen every resource notification for the stack
+         */
+        public boolean isIndexed() {
+            return indexed;
+        }
+
+        /**
+         * @return true if the stack's latest create or update finished successfully
+         */
+        public boolean isComplete() {
+            return "CREATE_COMPLETE".equals(status) || "UPDATE_COMPLETE".equals(status);
+        }
+
+        /**
+         * @return the cached stack parameters, or null if they haven't been cached
+         */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return the cached stack outputs, or null if they haven't been cached
+         */
+        public Map<String, String> getOutputs() {
+            return outputs;
+        }
+    }
+
+    public static final class StackResource {
+        private final String logicalId;
+        private final String physicalId;
+        private final String resourceType;
+        private final String resourceStatus;
+        private final long eventTime;
+
+        /**
+         * @param eventTime when the resource last changed status in epoch milliseconds
+         */
+        public StackResource(String logicalId, String physicalId, String resourceType, String resourceStatus,
+                             long eventTime) {
+            this.logicalId = logicalId;
+            this.physicalId = physicalId;
+            this.resourceType = resourceType;
+            this.resourceStatus = resourceStatus;
+            this.eventTime = eventTime;
+        }
+
+        private StackResource(Map<String, AttributeValue> item) {
+            this(item.get("logical_id").s(), item.get("physical_id").s(), item.get("resource_type").s(),
+                    item.get("resource_status").s(), Long.parseLong(item.get("event_time").n()));
+        }
+
+        public String getLogicalId() {
+            return logicalId;
+        }
+
+        public String getPhysicalId() {
+            return physicalId;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getResourceStatus() {
+            return resourceStatus;
+        }
+
+        public long getEventTime() {
+            return eventTime;
+        }
+
+        /**
+         * @return true if the physical resource is no longer part of the stack
+         */
+        public boolean isDeleted() {
+            return "DELETE_COMPLETE".equals(resourceStatus) || "DELETE_SKIPPED".equals(resourceStatus);
+        }
+
+        @Override
+        public String toString() {
+            return resourceType + " " + logicalId + " " + physicalId + " " + resourceStatus;
+        }
+    }
+}
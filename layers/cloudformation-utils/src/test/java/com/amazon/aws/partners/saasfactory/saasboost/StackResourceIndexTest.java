@@ -0,0 +1,185 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+import software.amazon.awssdk.services.dynamodb.paginators.QueryIterable;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class StackResourceIndexTest {
+
+    private static final String STACK_ID = "arn:aws:cloudformation:us-west-2:111111111111:stack/"
+            + "sb-test-tenant-6cad89f5/3e92db10-8ba1-11ec-97ef-06246f7d706f";
+
+    @Test
+    public void testIndexResourceOnlyIfNewer() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doReturn(UpdateItemResponse.builder().build())
+                .doThrow(ConditionalCheckFailedException.builder().build())
+                .when(ddb).updateItem(any(UpdateItemRequest.class));
+        StackResourceIndex index = new StackResourceIndex(ddb, "table");
+
+        CloudFormationEvent event = event("SubnetPrivateA", "subnet-0123", "AWS::EC2::Subnet", "CREATE_COMPLETE",
+                "2022-03-08T23:16:42.901Z");
+        assertTrue(index.index(event));
+        assertFalse(index.index(event));
+
+        ArgumentCaptor<UpdateItemRequest> request = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(ddb, times(2)).updateItem(request.capture());
+        UpdateItemRequest update = request.getValue();
+        assertEquals("SubnetPrivateA#subnet-0123", update.key().get("resource_key").s());
+        assertEquals(STACK_ID, update.key().get("stack_id").s());
+        assertEquals("1646781402901", update.expressionAttributeValues().get(":eventTime").n());
+        assertTrue(update.conditionExpression().contains("#eventTime < :eventTime"));
+        assertTrue(update.updateExpression().endsWith("REMOVE #expires"));
+    }
+
+    @Test
+    public void testIndexSkipsResourcesWithoutPhysicalId() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        StackResourceIndex index = new StackResourceIndex(ddb, "table");
+
+        assertFalse(index.index(event("SubnetPrivateA", "", "AWS::EC2::Subnet", "CREATE_IN_PROGRESS",
+                "2022-03-08T23:16:42.901Z")));
+        verify(ddb, never()).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void testIndexStackCreateTrustsIndex() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doReturn(UpdateItemResponse.builder().build()).when(ddb).updateItem(any(UpdateItemRequest.class));
+        StackResourceIndex index = new StackResourceIndex(ddb, "table");
+
+        CloudFormationEvent event = event("sb-test-tenant-6cad89f5", STACK_ID, "AWS::CloudFormation::Stack",
+                "CREATE_IN_PROGRESS", "2022-03-08T23:16:42.901Z");
+        assertTrue(StackResourceIndex.isStackEvent(event));
+        assertTrue(index.index(event));
+
+        ArgumentCaptor<UpdateItemRequest> request = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(ddb).updateItem(request.capture());
+        assertEquals(StackResourceIndex.STACK_KEY, request.getValue().key().get("resource_key").s());
+        assertTrue(request.getValue().expressionAttributeValues().get(":indexed").bool());
+    }
+
+    @Test
+    public void testResourcesKeepsNewestPhysicalResource() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doReturn(QueryResponse.builder().items(
+                stackItem(),
+                resourceItem("LoadBalancer", "lb-old", "DELETE_COMPLETE", 3L),
+                resourceItem("LoadBalancer", "lb-new", "UPDATE_COMPLETE", 2L),
+                resourceItem("Cluster", "cluster-old", "UPDATE_COMPLETE", 1L),
+                resourceItem("Cluster", "cluster-new", "CREATE_COMPLETE", 2L),
+                resourceItem("Bucket", "bucket", "DELETE_COMPLETE", 1L)
+        ).build()).when(ddb).query(any(QueryRequest.class));
+        doAnswer(invocation -> new QueryIterable(ddb, invocation.getArgument(0)))
+                .when(ddb).queryPaginator(any(QueryRequest.class));
+        StackResourceIndex index = new StackResourceIndex(ddb, "table");
+
+        List<StackResourceIndex.StackResource> resources = index.resources(STACK_ID);
+        assertEquals(2, resources.size());
+        assertEquals("Cluster", resources.get(0).getLogicalId());
+        assertEquals("cluster-new", resources.get(0).getPhysicalId());
+        assertEquals("LoadBalancer", resources.get(1).getLogicalId());
+        assertEquals("lb-new", resources.get(1).getPhysicalId());
+        assertEquals("UPDATE_COMPLETE", resources.get(1).getResourceStatus());
+    }
+
+    @Test
+    public void testStack() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doReturn(GetItemResponse.builder().build())
+                .doReturn(GetItemResponse.builder().item(stackItem()).build())
+                .when(ddb).getItem(any(GetItemRequest.class));
+        StackResourceIndex index = new StackResourceIndex(ddb, "table");
+
+        assertNull(index.stack(STACK_ID));
+        StackResourceIndex.IndexedStack stack = index.stack(STACK_ID);
+        assertTrue(stack.isIndexed());
+        assertTrue(stack.isComplete());
+        assertEquals("6cad89f5-1111-2222-3333-444455556666", stack.getParameters().get("TenantId"));
+        assertNull(stack.getOutputs());
+    }
+
+    @Test
+    public void testResourcesListsStackNotIndexed() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doReturn(GetItemResponse.builder().build()).when(ddb).getItem(any(GetItemRequest.class));
+        doReturn(UpdateItemResponse.builder().build()).when(ddb).updateItem(any(UpdateItemRequest.class));
+        StackResourceIndex index = new StackResourceIndex(ddb, "table");
+
+        List<StackResourceIndex.StackResource> listed = List.of(
+                new StackResourceIndex.StackResource("Cluster", "cluster", "AWS::ECS::Cluster", "CREATE_COMPLETE", 1L),
+                new StackResourceIndex.StackResource("Bucket", null, "AWS::S3::Bucket", "CREATE_FAILED", 1L)
+        );
+        assertEquals(listed, index.resources(STACK_ID, () -> listed));
+
+        // The failed resource never got a physical id, so there's the cluster and then the stack to update
+        ArgumentCaptor<UpdateItemRequest> request = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(ddb, times(2)).updateItem(request.capture());
+        assertEquals("Cluster#cluster", request.getAllValues().get(0).key().get("resource_key").s());
+        assertEquals(StackResourceIndex.STACK_KEY, request.getAllValues().get(1).key().get("resource_key").s());
+        assertTrue(request.getAllValues().get(1).expressionAttributeValues().get(":indexed").bool());
+        verify(ddb, never()).query(any(QueryRequest.class));
+    }
+
+    private static CloudFormationEvent event(String logicalId, String physicalId, String type, String status,
+                                             String timestamp) {
+        return CloudFormationEvent.builder()
+                .stackId(STACK_ID)
+                .stackName("sb-test-tenant-6cad89f5")
+                .logicalResourceId(logicalId)
+                .physicalResourceId(physicalId)
+                .resourceType(type)
+                .resourceStatus(status)
+                .timestamp(timestamp)
+                .build();
+    }
+
+    private static Map<String, AttributeValue> stackItem() {
+        return Map.of(
+                "stack_id", AttributeValue.builder().s(STACK_ID).build(),
+                "resource_key", AttributeValue.builder().s(StackResourceIndex.STACK_KEY).build(),
+                "stack_status", AttributeValue.builder().s("CREATE_COMPLETE").build(),
+                "indexed", AttributeValue.builder().bool(true).build(),
+                "parameters", AttributeValue.builder().m(Map.of(
+                        "TenantId", AttributeValue.builder().s("6cad89f5-1111-2222-3333-444455556666").build()
+                )).build()
+        );
+    }
+
+    private static Map<String, AttributeValue> resourceItem(String logicalId, String physicalId, String status,
+                                                            long eventTime) {
+        return Map.of(
+                "stack_id", AttributeValue.builder().s(STACK_ID).build(),
+                "resource_key", AttributeValue.builder().s(logicalId + "#" + physicalId).build(),
+                "logical_id", AttributeValue.builder().s(logicalId).build(),
+                "physical_id", AttributeValue.builder().s(physicalId).build(),
+                "resource_type", AttributeValue.builder().s("AWS::Test::Resource").build(),
+                "resource_status", AttributeValue.builder().s(status).build(),
+                "event_time", AttributeValue.builder().n(String.valueOf(eventTime)).build()
+        );
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvocationType;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Runs the same task against every tenant in a fleet, several tenants at a time.
+ * <p>
+ * All of the tasks share one rate limit for the AWS API they call, so adding workers never turns into
+ * throttling errors. Tasks call {@link #throttle()} before each call to that API. Tenants that haven't
+ * been started by the deadline are left alone and reported back as remaining, so the caller can carry
+ * on with them in another invocation instead of running into the Lambda timeout, see
+ * {@link #continueInNewInvocation}. A tenant that fails doesn't stop the others. Safe to share between threads.
+ * @param <T> the fleet member, usually the tenant as returned by the tenants API
+ */
+public class FleetOperation<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetOperation.class);
+    // Keys the next invocation's event carries the remaining tenants and the number of invocations so far in
+    static final String CHECKPOINT = "remainingTenants";
+    static final String CONTINUATION = "continuation";
+    static final int MAX_CONTINUATIONS = 10;
+    private final ExecutorService workers;
+    private final double permitsPerMilli;
+    private final double burst;
+    private double permits;
+    private long lastRefill;
+
+    /**
+     * @param concurrency how many tenants to work on at once
+     * @param requestsPerSecond the most API calls per second across all tenants
+     */
+    public FleetOperation(int concurrency, double requestsPerSecond) {
+        if (concurrency < 1 || requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("Concurrency and rate must be greater than 0");
+        }
+        this.workers = Executors.newFixedThreadPool(concurrency);
+        this.permitsPerMilli = requestsPerSecond / 1000d;
+        this.burst = Math.max(1d, requestsPerSecond);
+        this.permits = burst;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Block until the caller is allowed to make its next API call. Callers are let through in the order
+     * they asked and never faster than the rate.
+     */
+    public void throttle() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            permits = Math.min(burst, permits + (now - lastRefill) * permitsPerMilli);
+            lastRefill = now;
+            // Going negative reserves a permit that hasn't been refilled yet
+            permits -= 1d;
+            wait = permits >= 0 ? 0L : (long) Math.ceil(-permits / permitsPerMilli);
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * @param fleet the fleet members by tenant id, in the order they should be started
+     * @param task the work to do for each member
+     * @param deadline the time in epoch milliseconds after which no more members are started
+     * @return the outcome for each member that was started, and the ids of the members that weren't
+     */
+    public Result run(Map<String, T> fleet, Task<T> task, long deadline) {
+        Map<String, Future<Outcome>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, T> member : fleet.entrySet()) {
+            futures.put(member.getKey(), workers.submit(() -> {
+                if (System.currentTimeMillis() >= deadline) {
+                    return null;
+                }
+                try {
+                    return new Outcome(task.apply(member.getValue()), false);
+                } catch (Exception e) {
+                    LOGGER.error("Fleet operation failed for tenant {}", member.getKey(), e);
+                    LOGGER.error(Utils.getFullStackTrace(e));
+                    return new Outcome("failed: " + e.getMessage(), true);
+                }
+            }));
+        }
+        Result result = new Result();
+        for (Map.Entry<String, Future<Outcome>> future : futures.entrySet()) {
+            String id = future.getKey();
+            Outcome outcome;
+            try {
+                outcome = future.getValue().get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                outcome = null;
+            } catch (ExecutionException ee) {
+                // Task failures are already caught above, so this is unexpected
+                outcome = new Outcome("failed: " + ee.getCause(), true);
+            }
+            if (outcome == null) {
+                result.remaining.add(id);
+            } else {
+                result.outcomes.put(id, outcome.description);
+                if (outcome.failed) {
+                    result.failed.add(id);
+                }
+            }
+        }
+        LOGGER.info("Fleet operation finished {} tenants, {} failed, {} remaining", result.outcomes.size(),
+                result.failed.size(), result.remaining.size());
+        return result;
+    }
+
+    /**
+     * Drop the fleet members an earlier invocation already got to. Does nothing unless the event is from
+     * {@link #continueInNewInvocation}.
+     * @param event the event this invocation was started with
+     * @param fleet the whole fleet, edited in place
+     * @param id the tenant id of a fleet member
+     * @return whether this invocation is carrying on from an earlier one
+     */
+    public static <T> boolean resume(Map<String, Object> event, Collection<T> fleet, Function<T, String> id) {
+        if (!(event.get(CHECKPOINT) instanceof Collection)) {
+            return false;
+        }
+        Set<String> remaining = new HashSet<>((Collection<String>) event.get(CHECKPOINT));
+        fleet.removeIf(member -> !remaining.contains(id.apply(member)));
+        return true;
+    }
+
+    /**
+     * Asynchronously invoke the running function again to carry on with the tenants this invocation didn't
+     * get to. The new invocation gets this invocation's event along with the remaining tenants and the
+     * given state, and should start with {@link #resume}. Gives up instead if this invocation didn't get
+     * anything done or there have already been too many continuations, so a fleet that can never finish
+     * doesn't keep invoking itself.
+     * @param functionArn the invoked function ARN from the Lambda context
+     * @param event the event this invocation was started with
+     * @param remaining the ids of the tenants left to do
+     * @param state anything else the next invocation needs to carry on, added to its event
+     * @param progressed whether this invocation got anything done
+     * @return why we gave up instead of continuing, or null if we continued
+     */
+    public static String continueInNewInvocation(LambdaClient lambda, String functionArn, Map<String, Object> event,
+                                                 Collection<String> remaining, Map<String, Object> state,
+                                                 boolean progressed) {
+        int continuation = event.get(CONTINUATION) instanceof Number
+                ? ((Number) event.get(CONTINUATION)).intValue() : 0;
+        if (continuation >= MAX_CONTINUATIONS || !progressed) {
+            LOGGER.error("Giving up on {} tenants after {} continuations", remaining.size(), continuation);
+            return progressed ? "Gave up after " + continuation + " continuations" : "No progress";
+        }
+        LOGGER.info("Continuing with {} tenants in a new invocation", remaining.size());
+        Map<String, Object> payload = new LinkedHashMap<>(event);
+        payload.putAll(state);
+        payload.put(CHECKPOINT, remaining);
+        payload.put(CONTINUATION, continuation + 1);
+        try {
+            lambda.invoke(request -> request
+                    .functionName(functionArn)
+                    .invocationType(InvocationType.EVENT)
+                    .payload(SdkBytes.fromUtf8String(Utils.toJson(payload)))
+            );
+        } catch (SdkServiceException lambdaError) {
+            LOGGER.error("lambda::Invoke", lambdaError);
+            LOGGER.error(Utils.getFullStackTrace(lambdaError));
+            throw lambdaError;
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    public interface Task<T> {
+        /**
+         * @return a short description of what was done, for the caller's report
+         */
+        String apply(T member) throws Exception;
+    }
+
+    public static final class Result {
+        private final Map<String, String> outcomes = new LinkedHashMap<>();
+        private final List<String> failed = new ArrayList<>();
+        private final List<String> remaining = new ArrayList<>();
+
+        /**
+         * @return what was done for each tenant that was started, by tenant id
+         */
+        public Map<String, String> getOutcomes() {
+            return Collections.unmodifiableMap(outcomes);
+        }
+
+        public List<String> getFailed() {
+            return Collections.unmodifiableList(failed);
+        }
+
+        /**
+         * @return the ids of the tenants that weren't started before the deadline
+         */
+        public List<String> getRemaining() {
+            return Collections.unmodifiableList(remaining);
+        }
+    }
+
+    private static final class Outcome {
+        private final String description;
+        private final boolean failed;
+
+        private Outcome(String description, boolean failed) {
+            this.description = description;
+            this.failed = failed;
+        }
+    }
+}
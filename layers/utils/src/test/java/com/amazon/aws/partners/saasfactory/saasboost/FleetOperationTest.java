@@ -0,0 +1,142 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Test;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FleetOperationTest {
+
+    @Test
+    public void testRunReportsEveryTenant() {
+        FleetOperation<Integer> fleetOperation = new FleetOperation<>(4, 1000);
+        Map<String, Integer> fleet = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            fleet.put("tenant-" + i, i);
+        }
+        FleetOperation.Result result = fleetOperation.run(fleet, member -> {
+            if (member == 7) {
+                throw new IllegalStateException("boom");
+            }
+            return "updated " + member;
+        }, System.currentTimeMillis() + 60000);
+
+        assertEquals(new ArrayList<>(fleet.keySet()), new ArrayList<>(result.getOutcomes().keySet()));
+        assertEquals("updated 3", result.getOutcomes().get("tenant-3"));
+        assertEquals("failed: boom", result.getOutcomes().get("tenant-7"));
+        assertEquals(List.of("tenant-7"), result.getFailed());
+        assertTrue(result.getRemaining().isEmpty());
+    }
+
+    @Test
+    public void testRunStopsStartingTenantsAtDeadline() {
+        FleetOperation<Integer> fleetOperation = new FleetOperation<>(2, 1000);
+        Map<String, Integer> fleet = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            fleet.put("tenant-" + i, i);
+        }
+        AtomicInteger started = new AtomicInteger();
+        FleetOperation.Result result = fleetOperation.run(fleet, member -> {
+            started.incrementAndGet();
+            return "updated";
+        }, System.currentTimeMillis() - 1);
+
+        assertEquals(0, started.get());
+        assertTrue(result.getOutcomes().isEmpty());
+        assertEquals(new ArrayList<>(fleet.keySet()), result.getRemaining());
+    }
+
+    @Test
+    public void testThrottle() throws InterruptedException {
+        assertThrows(IllegalArgumentException.class, () -> new FleetOperation<>(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new FleetOperation<>(1, 0));
+
+        // The first 10 calls are the burst, the next 10 have to wait for the bucket to refill at 10 per second
+        FleetOperation<Integer> fleetOperation = new FleetOperation<>(1, 10);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            fleetOperation.throttle();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Throttled for " + elapsed + "ms", elapsed >= 900);
+    }
+
+    @Test
+    public void testResume() {
+        List<String> fleet = new ArrayList<>(List.of("tenant-1", "tenant-2", "tenant-3"));
+        assertFalse(FleetOperation.resume(new HashMap<>(), fleet, tenant -> tenant));
+        assertEquals(3, fleet.size());
+
+        Map<String, Object> event = Map.of(FleetOperation.CHECKPOINT, List.of("tenant-3", "tenant-1"));
+        assertTrue(FleetOperation.resume(event, fleet, tenant -> tenant));
+        assertEquals(List.of("tenant-1", "tenant-3"), fleet);
+    }
+
+    @Test
+    public void testContinueInNewInvocation() {
+        AtomicReference<InvokeRequest> invoked = new AtomicReference<>();
+        LambdaClient lambda = new LambdaClient() {
+            @Override
+            public InvokeResponse invoke(InvokeRequest request) {
+                invoked.set(request);
+                return InvokeResponse.builder().statusCode(202).build();
+            }
+
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("detail", Map.of("key", "value"));
+        event.put(FleetOperation.CHECKPOINT, List.of("tenant-1", "tenant-2"));
+        event.put(FleetOperation.CONTINUATION, 2);
+
+        assertNull(FleetOperation.continueInNewInvocation(lambda, "arn:function", event, List.of("tenant-2"),
+                Map.of("state", "waiting"), true));
+        assertEquals("arn:function", invoked.get().functionName());
+        Map<String, Object> payload = Utils.fromJson(invoked.get().payload().asUtf8String(), LinkedHashMap.class);
+        assertEquals(Map.of("key", "value"), payload.get("detail"));
+        assertEquals("waiting", payload.get("state"));
+        assertEquals(List.of("tenant-2"), payload.get(FleetOperation.CHECKPOINT));
+        assertEquals(3, payload.get(FleetOperation.CONTINUATION));
+    }
+
+    @Test
+    public void testContinueInNewInvocationGivesUp() {
+        // The Lambda client is never called when we give up
+        Map<String, Object> event = new HashMap<>();
+        assertEquals("No progress", FleetOperation.continueInNewInvocation(null, "arn:function", event,
+                List.of("tenant-1"), Collections.emptyMap(), false));
+
+        event.put(FleetOperation.CONTINUATION, FleetOperation.MAX_CONTINUATIONS);
+        assertEquals("Gave up after 10 continuations", FleetOperation.continueInNewInvocation(null,
+                "arn:function", event, List.of("tenant-1"), Collections.emptyMap(), true));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.ATTRIBUTE_DELIMITER;
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.MAXIMUM_BATCH_SIZE;
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.TRUNCATION_UNIT;
+
+/**
+ * The billing events that go into a single aggregation transaction. A transaction holds one update to the
+ * aggregation entry for a period plus one delete per event, so a batch is capped at one less than the
+ * DynamoDB transaction limit. Quantities are summed per product code as the events are added and the batch
+ * is reused after every transaction, so aggregating a tenant takes the same memory no matter how many
+ * events it has.
+ */
+final class AggregationBatch {
+
+    static final int CAPACITY = MAXIMUM_BATCH_SIZE - 1;
+    private static final long PERIOD_MILLIS = TRUNCATION_UNIT.getDuration().toMillis();
+
+    private final String[] eventKeys = new String[CAPACITY];
+    // A batch can't hold more distinct product codes than events, so parallel arrays beat a map here
+    private final String[] productCodes = new String[CAPACITY];
+    private final long[] quantities = new long[CAPACITY];
+    private int events;
+    private int products;
+    private long periodStart;
+
+    /**
+     * Whether an event for the given period fits in this batch.
+     * @param periodStart start of the aggregation period the event falls in
+     * @return true if the event can go into this batch without starting a new transaction
+     */
+    boolean accepts(long periodStart) {
+        return events == 0 || (events < CAPACITY && this.periodStart == periodStart);
+    }
+
+    void add(long periodStart, String eventKey, String productCode, long quantity) {
+        if (!accepts(periodStart)) {
+            throw new IllegalStateException("Batch is full or for a different period");
+        }
+        this.periodStart = periodStart;
+        eventKeys[events++] = eventKey;
+        int product = 0;
+        while (product < products && !productCodes[product].equals(productCode)) {
+            product++;
+        }
+        if (product == products) {
+            productCodes[products] = productCode;
+            quantities[products++] = 0L;
+        }
+        quantities[product] += quantity;
+    }
+
+    void clear() {
+        for (int i = 0; i < events; i++) {
+            eventKeys[i] = null;
+        }
+        for (int i = 0; i < products; i++) {
+            productCodes[i] = null;
+        }
+        events = 0;
+        products = 0;
+    }
+
+    boolean isEmpty() {
+        return events == 0;
+    }
+
+    int events() {
+        return events;
+    }
+
+    String eventKey(int event) {
+        return eventKeys[event];
+    }
+
+    int products() {
+        return products;
+    }
+
+    String productCode(int product) {
+        return productCodes[product];
+    }
+
+    long quantity(int product) {
+        return quantities[product];
+    }
+
+    long periodStart() {
+        return periodStart;
+    }
+
+    /**
+     * Parses the event time out of an EVENT#&lt;epoch millis&gt;#&lt;nonce&gt; sort key without splitting it
+     * and truncates it to the start of its aggregation period.
+     * @param eventKey the event sort key
+     * @return the period start in epoch milliseconds, or -1 if the sort key isn't an event key
+     */
+    static long periodStart(String eventKey) {
+        int start = eventKey.indexOf(ATTRIBUTE_DELIMITER);
+        int end = start < 0 ? -1 : eventKey.indexOf(ATTRIBUTE_DELIMITER, start + 1);
+        if (end < 0) {
+            return -1L;
+        }
+        try {
+            return truncate(Long.parseLong(eventKey, start + 1, end, 10));
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+
+    static long truncate(long epochMillis) {
+        return epochMillis - Math.floorMod(epochMillis, PERIOD_MILLIS);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+
+/**
+ * Per tenant record of the last aggregation run that finished that tenant. The checkpoint lives next to the
+ * tenant's events and aggregation entries in the metering table so a run that is cut short can be resumed
+ * with the same run id and skip every tenant that was already aggregated.
+ */
+public class AggregationCheckpoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AggregationCheckpoint.class);
+
+    private final DynamoDbClient ddb;
+    private final String tableName;
+    private final String runId;
+
+    /**
+     * Checkpoints for one aggregation run.
+     * @param runId the same for every invocation that works on the run, so a retry skips finished tenants
+     */
+    public AggregationCheckpoint(DynamoDbClient ddb, String tableName, String runId) {
+        this.ddb = ddb;
+        this.tableName = tableName;
+        this.runId = runId;
+    }
+
+    /**
+     * Identifies the aggregation run, tenants checkpointed by another run are aggregated again.
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * Whether this run already aggregated the tenant. A checkpoint that can't be read counts as not done.
+     */
+    public boolean isComplete(String tenantID) {
+        GetItemRequest request = GetItemRequest.builder()
+                .tableName(tableName)
+                .key(checkpointKey(tenantID))
+                .projectionExpression(RUN_ID_ATTRIBUTE_NAME)
+                .consistentRead(true)
+                .build();
+        try {
+            Map<String, AttributeValue> item = ddb.getItem(request).item();
+            return item != null && item.containsKey(RUN_ID_ATTRIBUTE_NAME)
+                    && runId.equals(item.get(RUN_ID_ATTRIBUTE_NAME).s());
+        } catch (SdkServiceException e) {
+            // Without a checkpoint we just aggregate the tenant again, which is safe because aggregated
+            // events are deleted in the same transaction that adds them to the aggregation entry
+            LOGGER.error("Can't read aggregation checkpoint for tenant {}: {}", tenantID, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Records that this run has aggregated every event of the tenant.
+     */
+    public void markComplete(String tenantID) {
+        Map<String, AttributeValue> item = checkpointKey(tenantID);
+        item.put(RUN_ID_ATTRIBUTE_NAME, AttributeValue.builder().s(runId).build());
+        item.put(CHECKPOINT_TIME_ATTRIBUTE_NAME, AttributeValue.builder()
+                .n(String.valueOf(Instant.now().toEpochMilli()))
+                .build());
+        try {
+            ddb.putItem(PutItemRequest.builder()
+                    .tableName(tableName)
+                    .item(item)
+                    .build());
+        } catch (SdkServiceException e) {
+            LOGGER.error("Can't save aggregation checkpoint for tenant {}: {}", tenantID, e.getMessage());
+        }
+    }
+
+    private static Map<String, AttributeValue> checkpointKey(String tenantID) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put(PRIMARY_KEY_NAME, AttributeValue.builder().s(tenantID).build());
+        key.put(SORT_KEY_NAME, AttributeValue.builder().s(AGGREGATION_CHECKPOINT_SORT_KEY_VALUE).build());
+        return key;
+    }
+}
@@ -15,8 +15,8 @@
  */
 package com.amazon.aws.partners.saasfactory.metering.aggregation;
 
-import com.amazon.aws.partners.saasfactory.metering.common.BillingEvent;
 import com.amazon.aws.partners.saasfactory.metering.common.TenantConfiguration;
+import com.amazon.aws.partners.saasfactory.metering.common.TenantConfigurationCache;
 import com.amazon.aws.partners.saasfactory.saasboost.Utils;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
@@ -24,10 +24,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
-import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.Delete;
 import software.amazon.awssdk.services.dynamodb.model.InternalServerErrorException;
-import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
 import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
@@ -36,12 +34,16 @@ import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
 import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
 import software.amazon.awssdk.services.dynamodb.model.Update;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
@@ -51,9 +53,14 @@ public class BillingEventAggregation implements RequestStreamHandler {
     private final DynamoDbClient ddb;
     private final Logger LOGGER = LoggerFactory.getLogger(BillingEventAggregation.class);
     private final static String TABLE_NAME = System.getenv(TABLE_ENV_VARIABLE);
+    private static final int DEFAULT_CONCURRENCY = 8;
+    // Stop starting new work this long before the function times out so in flight tenants can finish
+    private static final long TIMEOUT_MARGIN_MILLIS = 60 * 1000;
+    private final int concurrency;
+    private final TenantConfigurationCache tenantConfigurations;
 
     public BillingEventAggregation() {
-        long startTimeMillis = System.currentTimeMillis();
+        final long startTimeMillis = System.currentTimeMillis();
         if (Utils.isBlank(TABLE_NAME)) {
             throw new IllegalStateException("Missing required environment variable " + TABLE_ENV_VARIABLE);
         }
@@ -63,140 +70,117 @@ public class BillingEventAggregation implements RequestStreamHandler {
         }
         LOGGER.info("Version Info: " + Utils.version(this.getClass()));
         ddb = Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME);
+        concurrency = concurrency();
+        tenantConfigurations = new TenantConfigurationCache(TABLE_NAME, ddb);
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
-    private List<BillingEvent> getBillingEventsForTenant(String tenantID) {
+    BillingEventAggregation(DynamoDbClient ddb, TenantConfigurationCache tenantConfigurations, int concurrency) {
+        this.ddb = ddb;
+        this.tenantConfigurations = tenantConfigurations;
+        this.concurrency = concurrency;
+    }
+
+    private TenantOutcome aggregateEvents(TenantConfiguration tenant, long deadline) {
+        // Events for the current period may still be arriving, so stop the query just before it. Event sort
+        // keys are EVENT#<epoch millis>#<nonce> and sort in time order, so that also hands us the events one
+        // period after the other.
+        final long currentPeriodStart = AggregationBatch.truncate(System.currentTimeMillis());
+
         HashMap<String,String> expressionNames = new HashMap<>();
         expressionNames.put(PRIMARY_KEY_EXPRESSION_NAME, PRIMARY_KEY_NAME);
         expressionNames.put(SORT_KEY_EXPRESSION_NAME, SORT_KEY_NAME);
+        expressionNames.put(PRODUCT_CODE_EXPRESSION_NAME, PRODUCT_CODE_ATTRIBUTE_NAME);
+        expressionNames.put(QUANTITY_EXPRESSION_NAME, QUANTITY_ATTRIBUTE_NAME);
 
         HashMap<String,AttributeValue> queryValues = new HashMap<>();
-
-        AttributeValue tenantIDValue = AttributeValue.builder()
-                .s(tenantID)
-                .build();
-
-        AttributeValue eventPrefixValue = AttributeValue.builder()
-                .s(EVENT_PREFIX)
+        queryValues.put(TENANT_ID_EXPRESSION_VALUE, AttributeValue.builder()
+                .s(tenant.getTenantID())
+                .build());
+        queryValues.put(EVENT_PREFIX_ATTRIBUTE_VALUE, AttributeValue.builder()
+                .s(EVENT_PREFIX + ATTRIBUTE_DELIMITER)
+                .build());
+        queryValues.put(EVENT_CUTOFF_ATTRIBUTE_VALUE, AttributeValue.builder()
+                .s(EVENT_PREFIX + ATTRIBUTE_DELIMITER + currentPeriodStart)
+                .build());
+
+        QueryRequest request = QueryRequest.builder()
+                .tableName(TABLE_NAME)
+                .keyConditionExpression(String.format("%s = %s and %s between %s and %s",
+                                            PRIMARY_KEY_EXPRESSION_NAME,
+                                            TENANT_ID_EXPRESSION_VALUE,
+                                            SORT_KEY_EXPRESSION_NAME,
+                                            EVENT_PREFIX_ATTRIBUTE_VALUE,
+                                            EVENT_CUTOFF_ATTRIBUTE_VALUE))
+                .projectionExpression(String.join(",",
+                                            SORT_KEY_EXPRESSION_NAME,
+                                            PRODUCT_CODE_EXPRESSION_NAME,
+                                            QUANTITY_EXPRESSION_NAME))
+                .expressionAttributeNames(expressionNames)
+                .expressionAttributeValues(queryValues)
                 .build();
 
-        queryValues.put(TENANT_ID_EXPRESSION_VALUE, tenantIDValue);
-        queryValues.put(EVENT_PREFIX_ATTRIBUTE_VALUE, eventPrefixValue);
-
+        // Each page is folded into the batch as it arrives and a transaction goes out whenever the batch
+        // fills up or the period changes, so we never hold more than one page and one batch in memory
+        AggregationBatch batch = new AggregationBatch();
+        // Periods arrive in order, so the only aggregation entry we could write to again is the last one
+        long initializedPeriod = -1L;
+        boolean failed = false;
+        long aggregated = 0;
         QueryResponse result = null;
-        List<BillingEvent> billingEvents = new ArrayList<>();
         do {
-
-            QueryRequest request = QueryRequest.builder()
-                    .tableName(TABLE_NAME)
-                    .keyConditionExpression(String.format("%s = %s and begins_with(%s, %s)",
-                                                PRIMARY_KEY_EXPRESSION_NAME,
-                                                TENANT_ID_EXPRESSION_VALUE,
-                                                SORT_KEY_EXPRESSION_NAME,
-                                                EVENT_PREFIX_ATTRIBUTE_VALUE))
-                    .expressionAttributeNames(expressionNames)
-                    .expressionAttributeValues(queryValues)
-                    .build();
-            if (result != null && !result.lastEvaluatedKey().isEmpty()) {
+            if (result != null) {
                 request = request.toBuilder()
-                            .exclusiveStartKey(result.lastEvaluatedKey())
-                            .build();
+                        .exclusiveStartKey(result.lastEvaluatedKey())
+                        .build();
             }
             try {
                 result = this.ddb.query(request);
             } catch (ResourceNotFoundException e) {
                 this.LOGGER.error("Table {} does not exist", TABLE_NAME);
+                return TenantOutcome.FAILED;
             } catch (InternalServerErrorException e) {
                 this.LOGGER.error(e.getMessage());
-                // if there's a failure, return an empty array list rather than a partial array list
-                return new ArrayList<>();
+                // Whatever we've already aggregated is committed; the rest of the events are still there
+                return TenantOutcome.FAILED;
             }
             for (Map<String, AttributeValue> item : result.items()) {
-                String eventEntry = item.get(SORT_KEY_NAME).s();
-                Long eventTimeInMilliseconds = Long.valueOf(eventEntry.split(ATTRIBUTE_DELIMITER)[EVENT_TIME_ARRAY_INDEX]);
-                String nonce = eventEntry.split(ATTRIBUTE_DELIMITER)[NONCE_ARRAY_INDEX];
-                Instant eventTime = Instant.ofEpochMilli(eventTimeInMilliseconds);
-                String productCode = item.get(PRODUCT_CODE_ATTRIBUTE_NAME).s();
-                Long quantity = Long.valueOf(item.get(QUANTITY_ATTRIBUTE_NAME).n());
-                BillingEvent billingEvent = new BillingEvent(tenantID, eventTime, productCode, quantity, nonce);
-                billingEvents.add(billingEvent);
+                String eventKey = item.get(SORT_KEY_NAME).s();
+                long periodStart = AggregationBatch.periodStart(eventKey);
+                AttributeValue productCode = item.get(PRODUCT_CODE_ATTRIBUTE_NAME);
+                AttributeValue quantity = item.get(QUANTITY_ATTRIBUTE_NAME);
+                if (periodStart < 0 || productCode == null || quantity == null) {
+                    this.LOGGER.error("Skipping malformed billing event {} for tenant {}",
+                            eventKey, tenant.getTenantID());
+                    continue;
+                }
+                if (!batch.accepts(periodStart)) {
+                    if (performTransaction(batch, tenant, batch.periodStart() == initializedPeriod)) {
+                        initializedPeriod = batch.periodStart();
+                    } else {
+                        failed = true;
+                    }
+                    aggregated += batch.events();
+                    batch.clear();
+                    if (System.currentTimeMillis() > deadline) {
+                        this.LOGGER.info("Interrupted aggregation for tenant {} after {} events",
+                                tenant.getTenantID(), aggregated);
+                        return TenantOutcome.INTERRUPTED;
+                    }
+                }
+                batch.add(periodStart, eventKey, productCode.s(), Long.parseLong(quantity.n()));
             }
         } while (!result.lastEvaluatedKey().isEmpty());
-        return billingEvents;
-    }
-
-    private Map<ZonedDateTime, List<BillingEvent>> categorizeEvents(TenantConfiguration tenant, List<BillingEvent> billingEvents) {
-        if (billingEvents.size() == 0) {
-            return null;
+        if (!batch.isEmpty()) {
+            failed |= !performTransaction(batch, tenant, batch.periodStart() == initializedPeriod);
+            aggregated += batch.events();
         }
-        // Figure out the lowest and highest date (the range)
-        Instant earliestBillingEvent = Collections.min(billingEvents).getEventTime();
-        this.LOGGER.info("Earliest event for tenant {} at {}",
-                                    tenant.getTenantID(),
-                                    earliestBillingEvent.toString());
-        Instant latestBillingEvent = Collections.max(billingEvents).getEventTime();
-        this.LOGGER.info("Latest event for tenant {} at {}",
-                                    tenant.getTenantID(),
-                                    latestBillingEvent.toString());
-        // Create a map with each element as a key based on the frequency (e.g. a day for a key with frequency for a day)
-        Map<ZonedDateTime, List<BillingEvent>> eventCounts = new HashMap<>();
-        for (BillingEvent event : billingEvents) {
-            ZonedDateTime eventTime = event.getEventTime().atZone(ZoneId.of("UTC"));
-            ZonedDateTime startOfEventTimePeriod = eventTime.truncatedTo(TRUNCATION_UNIT);
-            ZonedDateTime startOfCurrentTimePeriod = Instant.now().atZone(ZoneId.of("UTC")).truncatedTo(TRUNCATION_UNIT);
-            // Skip over this time period and future time period events because there may eventually be more events
-            if (!(startOfCurrentTimePeriod.compareTo(startOfEventTimePeriod) <= 0)) {
-                List<BillingEvent> eventList = eventCounts.getOrDefault(startOfEventTimePeriod, new ArrayList<>());
-                eventList.add(event);
-                eventCounts.put(startOfEventTimePeriod, eventList);
-            }
-        }
-        return eventCounts;
-    }
-
-    private void initializeItem(Map<String, AttributeValue> compositeKey, String productCode, ZonedDateTime time) {
-        // Format the statements
-        Map<String, AttributeValue> productToValueMap = new HashMap<>();
-        AttributeValue initialEventValue = AttributeValue.builder()
-                .n(EVENT_COUNT_INITIALIZATION_VALUE)
-                .build();
-        productToValueMap.put(productCode, initialEventValue);
-
-        AttributeValue initialMapValue = AttributeValue.builder()
-                .m(productToValueMap)
-                .build();
-
-        compositeKey.put(QUANTITY_ATTRIBUTE_NAME, initialMapValue);
-
-        AttributeValue idempotencyKeyValue = AttributeValue.builder()
-                .s(UUID.randomUUID().toString().split(UUID_DELIMITER)[SELECTED_UUID_INDEX])
-                .build();
-        compositeKey.put(IDEMPOTENTCY_KEY_ATTRIBUTE_NAME, idempotencyKeyValue);
-
-        AttributeValue submittedValue = AttributeValue.builder()
-                .bool(false)
-                .build();
-        compositeKey.put(SUBMITTED_KEY_ATTRIBUTE_NAME, submittedValue);
-
-        String conditionalStatement = String.format("attribute_not_exists(%s)", QUANTITY_ATTRIBUTE_NAME);
-
-        PutItemRequest putItemRequest = PutItemRequest.builder()
-                .tableName(TABLE_NAME)
-                .item(compositeKey)
-                .conditionExpression(conditionalStatement)
-                .build();
-
-        try {
-            ddb.putItem(putItemRequest);
-        } catch (ResourceNotFoundException|InternalServerErrorException e) {
-            this.LOGGER.error("{}", e.toString());
-        } catch (ConditionalCheckFailedException e) {
-            // Repeat the transaction and see if it works
-            this.LOGGER.error("Entry for {} at {} already exists",
-                    productCode,
-                    time.toInstant().toString());
+        if (aggregated == 0) {
+            this.LOGGER.info("No events for {}", tenant.getTenantID());
+        } else {
+            this.LOGGER.info("Aggregated {} events for tenant {}", aggregated, tenant.getTenantID());
         }
+        return failed ? TenantOutcome.FAILED : TenantOutcome.AGGREGATED;
     }
 
     private void putRequestsAsTransaction(Update updateRequest, List<Delete> deleteRequests) {
@@ -215,84 +199,117 @@ public class BillingEventAggregation implements RequestStreamHandler {
                 .transactItems(transaction)
                 .build();
 
-        try {
-            ddb.transactWriteItems(transactWriteItemsRequest);
-        } catch (ResourceNotFoundException|InternalServerErrorException|TransactionCanceledException e) {
-            this.LOGGER.error("{}", e.toString());
-        }
+        ddb.transactWriteItems(transactWriteItemsRequest);
     }
 
-    private Map<String, Long> countEventsByProductCode(List<BillingEvent> billingEvents) {
-        Map<String, Long> countByProductCode = new HashMap<>();
-        this.LOGGER.info("Counting events by product code");
-        for (BillingEvent event : billingEvents) {
-            Long currentCount = countByProductCode.getOrDefault(event.getProductCode(), Long.valueOf(0));
-            Long updatedCount = event.getQuantity() + currentCount;
-            countByProductCode.put(event.getProductCode(), updatedCount);
+    private Update buildCreate(AggregationBatch batch, Map<String, AttributeValue> compositeKey) {
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        expressionAttributeNames.put(QUANTITY_EXPRESSION_NAME, QUANTITY_ATTRIBUTE_NAME);
+        expressionAttributeNames.put(IDEMPOTENCY_KEY_EXPRESSION_NAME, IDEMPOTENTCY_KEY_ATTRIBUTE_NAME);
+        expressionAttributeNames.put(SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME);
+        expressionAttributeNames.put(PENDING_PUBLISH_EXPRESSION_NAME, PENDING_PUBLISH_ATTRIBUTE_NAME);
+        expressionAttributeNames.put(IDEMPOTENCY_KEY_PER_PRODUCT_EXPRESSION_NAME,
+                IDEMPOTENCY_KEY_PER_PRODUCT_ATTRIBUTE_NAME);
+
+        Map<String, AttributeValue> quantityByProductCode = new HashMap<>();
+        for (int product = 0; product < batch.products(); product++) {
+            quantityByProductCode.put(batch.productCode(product), AttributeValue.builder()
+                    .n(Long.toString(batch.quantity(product)))
+                    .build());
         }
-        // There's now a map in the format of
-        // product-code : count
-        return countByProductCode;
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(QUANTITY_EXPRESSION_VALUE, AttributeValue.builder()
+                .m(quantityByProductCode)
+                .build());
+        expressionAttributeValues.put(IDEMPOTENCY_KEY_EXPRESSION_VALUE, AttributeValue.builder()
+                .s(UUID.randomUUID().toString().split(UUID_DELIMITER)[SELECTED_UUID_INDEX])
+                .build());
+        expressionAttributeValues.put(KEY_SUBMITTED_EXPRESSION_VALUE, AttributeValue.builder()
+                .bool(false)
+                .build());
+        // Entries created before this flag share one idempotency key across their product codes
+        expressionAttributeValues.put(IDEMPOTENCY_KEY_PER_PRODUCT_EXPRESSION_VALUE, AttributeValue.builder()
+                .bool(true)
+                .build());
+        // Puts the new entry on the sparse unpublished index until the publisher removes this attribute
+        expressionAttributeValues.put(TENANT_ID_EXPRESSION_VALUE, compositeKey.get(PRIMARY_KEY_NAME));
+
+        return Update.builder()
+                .tableName(TABLE_NAME)
+                .key(compositeKey)
+                .updateExpression(String.format("SET %s = %s, %s = %s, %s = %s, %s = %s, %s = %s",
+                        QUANTITY_EXPRESSION_NAME,
+                        QUANTITY_EXPRESSION_VALUE,
+                        IDEMPOTENCY_KEY_EXPRESSION_NAME,
+                        IDEMPOTENCY_KEY_EXPRESSION_VALUE,
+                        IDEMPOTENCY_KEY_PER_PRODUCT_EXPRESSION_NAME,
+                        IDEMPOTENCY_KEY_PER_PRODUCT_EXPRESSION_VALUE,
+                        SUBMITTED_KEY_EXPRESSION_NAME,
+                        KEY_SUBMITTED_EXPRESSION_VALUE,
+                        PENDING_PUBLISH_EXPRESSION_NAME,
+                        TENANT_ID_EXPRESSION_VALUE))
+                .conditionExpression(String.format("attribute_not_exists(%s)", QUANTITY_EXPRESSION_NAME))
+                .expressionAttributeNames(expressionAttributeNames)
+                .expressionAttributeValues(expressionAttributeValues)
+                .build();
     }
 
-    private Update buildUpdate(Map<String,Long> countByProductCode, Map<String, AttributeValue> compositeKey) {
-        List<String> updateStatements = new ArrayList<>();
+    private Update buildUpdate(AggregationBatch batch, Map<String, AttributeValue> compositeKey) {
+        final List<String> updateStatements = new ArrayList<>();
         Map<String, String> expressionAttributeNames = new HashMap<>();
         expressionAttributeNames.put(QUANTITY_EXPRESSION_NAME, QUANTITY_ATTRIBUTE_NAME);
+        expressionAttributeNames.put(PENDING_PUBLISH_EXPRESSION_NAME, PENDING_PUBLISH_ATTRIBUTE_NAME);
         Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
-        Integer index = 0;
-        for (String productCode : countByProductCode.keySet()) {
-            this.LOGGER.info("Count for {} is {}", productCode, countByProductCode.get(productCode));
+        expressionAttributeValues.put(EVENT_COUNT_INITIALIZATION_EXPRESSION_VALUE, AttributeValue.builder()
+                .n(EVENT_COUNT_INITIALIZATION_VALUE)
+                .build());
+        // Late events can add to a period that was already published, so put it back on the unpublished index
+        // and the publisher sends the difference
+        updateStatements.add(String.format("%s = %s", PENDING_PUBLISH_EXPRESSION_NAME, TENANT_ID_EXPRESSION_VALUE));
+        expressionAttributeValues.put(TENANT_ID_EXPRESSION_VALUE, compositeKey.get(PRIMARY_KEY_NAME));
+        for (int index = 0; index < batch.products(); index++) {
+            this.LOGGER.debug("Count for {} is {}", batch.productCode(index), batch.quantity(index));
             // Appended to the ADD_TO_AGGREGATION_ATTRIBUTE_VALUE for identification in the expression
             // attribute names/values. There could be more than one product code to aggregate
-            String aggregationAttributeName = ADD_TO_AGGREGATION_EXPRESSION_NAME + index.toString();
-            String aggregationAttributeValue = ADD_TO_AGGREGATION_EXPRESSION_VALUE + index.toString();
-            String updateStatement = String.format("SET %s.%s = %s.%s + %s",
+            String aggregationAttributeName = ADD_TO_AGGREGATION_EXPRESSION_NAME + index;
+            String aggregationAttributeValue = ADD_TO_AGGREGATION_EXPRESSION_VALUE + index;
+            // The first batch for a product code in an existing period won't have a count to add to yet
+            String updateStatement = String.format("%s.%s = if_not_exists(%s.%s, %s) + %s",
                     QUANTITY_EXPRESSION_NAME,
                     aggregationAttributeName,
                     QUANTITY_EXPRESSION_NAME,
                     aggregationAttributeName,
+                    EVENT_COUNT_INITIALIZATION_EXPRESSION_VALUE,
                     aggregationAttributeValue);
             updateStatements.add(updateStatement);
-            expressionAttributeNames.put(aggregationAttributeName, productCode);
+            expressionAttributeNames.put(aggregationAttributeName, batch.productCode(index));
             AttributeValue countByProductionCodeValue = AttributeValue.builder()
-                .n(countByProductCode.get(productCode).toString())
+                .n(Long.toString(batch.quantity(index)))
                 .build();
             expressionAttributeValues.put(aggregationAttributeValue, countByProductionCodeValue);
-            index++;
         }
 
         return Update.builder()
                 .tableName(TABLE_NAME)
                 .key(compositeKey)
-                .updateExpression(String.join(",", updateStatements))
+                .updateExpression("SET " + String.join(", ", updateStatements))
                 .expressionAttributeNames(expressionAttributeNames)
                 .expressionAttributeValues(expressionAttributeValues)
                 .build();
 
     }
 
-    private List<Delete> buildDeletes(List<BillingEvent> billingEvents, TenantConfiguration tenant) {
-        List<Delete> deleteRequests = new ArrayList<>();
-        for (BillingEvent event : billingEvents) {
+    private List<Delete> buildDeletes(AggregationBatch batch, TenantConfiguration tenant) {
+        List<Delete> deleteRequests = new ArrayList<>(batch.events());
+        AttributeValue tenantIDValue = AttributeValue.builder()
+                .s(tenant.getTenantID())
+                .build();
+        for (int event = 0; event < batch.events(); event++) {
             Map<String, AttributeValue> keyToDelete = new HashMap<>();
-            Long eventTime = event.getEventTime().toEpochMilli();
-            String nonce = event.getNonce();
-            AttributeValue tenantIDValue = AttributeValue.builder()
-                    .s(tenant.getTenantID())
-                    .build();
             keyToDelete.put(PRIMARY_KEY_NAME, tenantIDValue);
-
-            AttributeValue eventValue = AttributeValue.builder()
-                    .s(String.format("%s%s%d%s%s",
-                        EVENT_PREFIX,
-                        ATTRIBUTE_DELIMITER,
-                        eventTime,
-                        ATTRIBUTE_DELIMITER,
-                        nonce))
-                    .build();
-
-            keyToDelete.put(SORT_KEY_NAME, eventValue);
+            keyToDelete.put(SORT_KEY_NAME, AttributeValue.builder()
+                    .s(batch.eventKey(event))
+                    .build());
 
             Delete delete = Delete.builder()
                     .tableName(TABLE_NAME)
@@ -304,89 +321,171 @@ public class BillingEventAggregation implements RequestStreamHandler {
         return deleteRequests;
     }
 
-    private void performTransaction(List<BillingEvent> billingEvents, Map<String, AttributeValue> compositeKey, ZonedDateTime time, TenantConfiguration tenant) {
-        Map<String, Long> countByProductCode = new HashMap<>();
-        Update updateRequest = null;
-        List<Delete> deleteRequests = null;
-
-        countByProductCode = countEventsByProductCode(billingEvents);
-        this.LOGGER.info("Counting the quantity of entries for each product code");
-        // Initialize the item for this time slot if necessary
-        for (String productCode : countByProductCode.keySet()) {
-            this.LOGGER.debug("Initializing count for product code {} for tenant {} at time {}",
-                    productCode,
-                    tenant.getTenantID(),
-                    time.toInstant().toString());
-            // TODO: This doesn't have to be done each time; keep track of what is already initialized
-            // Pass in a copy of compositeKey because initializeItem makes modifications to it
-            initializeItem(new HashMap<>(compositeKey), productCode, time);
-        }
-        this.LOGGER.debug("Batched {} events, performing transaction", billingEvents.size());
-        updateRequest = buildUpdate(countByProductCode, compositeKey);
-        deleteRequests = buildDeletes(billingEvents, tenant);
-        putRequestsAsTransaction(updateRequest, deleteRequests);
-    }
-
-    private void aggregateEntries(Map<ZonedDateTime, List<BillingEvent>> eventsByDate, TenantConfiguration tenant) {
+    private boolean performTransaction(AggregationBatch batch, TenantConfiguration tenant, boolean initialized) {
         Map<String, AttributeValue> compositeKey = new HashMap<>();
-        List<BillingEvent> eventsToCount = new ArrayList<>();
+        compositeKey.put(PRIMARY_KEY_NAME, AttributeValue.builder()
+                .s(tenant.getTenantID())
+                .build());
+        compositeKey.put(SORT_KEY_NAME, AttributeValue.builder()
+                .s(formatAggregationEntry(batch.periodStart()))
+                .build());
+        List<Delete> deleteRequests = buildDeletes(batch, tenant);
+        this.LOGGER.debug("Batched {} events, performing transaction", batch.events());
 
-        for (ZonedDateTime time : eventsByDate.keySet()) {
-            AttributeValue tenantIDValue = AttributeValue.builder()
-                    .s(tenant.getTenantID())
-                    .build();
-            compositeKey.put(PRIMARY_KEY_NAME, tenantIDValue);
+        try {
+            if (!initialized) {
+                // Almost every period is new when we first see it, so try to create the aggregation entry with
+                // this batch's counts. If it already exists the condition fails and we add to it instead.
+                try {
+                    putRequestsAsTransaction(buildCreate(batch, compositeKey), deleteRequests);
+                    return true;
+                } catch (TransactionCanceledException e) {
+                    if (!isConditionalCheckFailure(e)) {
+                        throw e;
+                    }
+                    this.LOGGER.info("Aggregation entry for tenant {} at {} already exists",
+                            tenant.getTenantID(),
+                            Instant.ofEpochMilli(batch.periodStart()).toString());
+                }
+            }
+            putRequestsAsTransaction(buildUpdate(batch, compositeKey), deleteRequests);
+        } catch (ResourceNotFoundException|InternalServerErrorException|TransactionCanceledException e) {
+            this.LOGGER.error("{}", e.toString());
+            return false;
+        }
+        return true;
+    }
 
-            AttributeValue aggregationEntryValue = AttributeValue.builder()
-                    .s(formatAggregationEntry(time.toInstant().toEpochMilli()))
-                    .build();
-            compositeKey.put(SORT_KEY_NAME, aggregationEntryValue);
+    private static boolean isConditionalCheckFailure(TransactionCanceledException e) {
+        // The aggregation entry update is always the first action in the transaction
+        return e.hasCancellationReasons() && !e.cancellationReasons().isEmpty()
+                && "ConditionalCheckFailed".equals(e.cancellationReasons().get(0).code());
+    }
 
-            List<BillingEvent> billingEvents = eventsByDate.get(time);
+    private TenantOutcome aggregateTenant(TenantConfiguration tenant, AggregationCheckpoint checkpoint,
+                                          long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            return TenantOutcome.INTERRUPTED;
+        }
+        if (checkpoint.isComplete(tenant.getTenantID())) {
+            this.LOGGER.info("Tenant {} already aggregated in run {}", tenant.getTenantID(), checkpoint.getRunId());
+            return TenantOutcome.SKIPPED;
+        }
+        TenantOutcome outcome = aggregateEvents(tenant, deadline);
+        // Only checkpoint tenants we got all the way through so a resumed run picks up the rest
+        if (outcome == TenantOutcome.AGGREGATED) {
+            checkpoint.markComplete(tenant.getTenantID());
+        }
+        return outcome;
+    }
 
-            for (BillingEvent event : billingEvents) {
-                eventsToCount.add(event);
-                // 24 purges, 1 update
-                // Minus one because I need to leave room for the update statement
-                if (eventsToCount.size() == MAXIMUM_BATCH_SIZE - 1) {
-                    performTransaction(eventsToCount, compositeKey, time, tenant);
-                    eventsToCount.clear();
-                }
+    private static String runId(InputStream inputStream) {
+        // Step Functions hands us the scheduled event on the first pass and our own output on a resumed pass
+        Map<String, Object> input = null;
+        try {
+            String json = inputStream != null
+                    ? new String(inputStream.readAllBytes(), StandardCharsets.UTF_8) : null;
+            if (Utils.isNotBlank(json)) {
+                input = Utils.fromJson(json, HashMap.class);
+            }
+        } catch (IOException ioe) {
+            // Treat as a new run
+        }
+        if (input != null) {
+            if (input.get("runId") != null) {
+                return String.valueOf(input.get("runId"));
+            } else if (input.get("id") != null) {
+                return String.valueOf(input.get("id"));
             }
-            // Submit the last batch of items
-            // If the number of requests lands on an increment of 25, need to make sure that no attempt is made to put
-            // an empty list, which is why I'm checking for a size greater than zero
-            if (eventsToCount.size() > 0) {
-                performTransaction(eventsToCount, compositeKey, time, tenant);
-                eventsToCount.clear();
+        }
+        return UUID.randomUUID().toString();
+    }
+
+    private static int concurrency() {
+        String concurrency = System.getenv(AGGREGATION_CONCURRENCY_ENV_VARIABLE);
+        if (Utils.isNotBlank(concurrency)) {
+            try {
+                return Math.max(1, Integer.parseInt(concurrency.trim()));
+            } catch (NumberFormatException nfe) {
+                // Fall through to the default
             }
         }
+        return DEFAULT_CONCURRENCY;
+    }
+
+    private void writeResult(OutputStream outputStream, Map<String, Object> result) {
+        try {
+            outputStream.write(Utils.toJson(result).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            this.LOGGER.error("Error writing aggregation result", ioe);
+        }
     }
 
     @Override
     public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context) {
+        final long startTimeMillis = System.currentTimeMillis();
+        final long deadline = context != null
+                ? startTimeMillis + context.getRemainingTimeInMillis() - TIMEOUT_MARGIN_MILLIS
+                : Long.MAX_VALUE;
+        AggregationCheckpoint checkpoint = new AggregationCheckpoint(ddb, TABLE_NAME, runId(inputStream));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("runId", checkpoint.getRunId());
+        result.put("complete", Boolean.TRUE);
+
         this.LOGGER.info("Resolving tenant IDs in table {}", TABLE_NAME);
-        List<TenantConfiguration> tenants = TenantConfiguration.getTenantConfigurations(TABLE_NAME, this.ddb, this.LOGGER);
+        // Nothing tells this function about onboarded tenants, so start every run from the current configs
+        List<TenantConfiguration> tenants = tenantConfigurations.preload();
         this.LOGGER.info("Resolved tenant IDs in table {}", TABLE_NAME);
         if (tenants == null) {
             this.LOGGER.info("No tenants found");
+            writeResult(outputStream, result);
             return;
         }
-        for (TenantConfiguration tenant : tenants) {
-            List<BillingEvent> billingEvents = getBillingEventsForTenant(tenant.getTenantID());
-            if (billingEvents.isEmpty()) {
-                this.LOGGER.info("No events for {}", tenant.getTenantID());
-                continue;
+
+        // Tenants are independent of each other, so fan them out across the worker pool. Each worker stops
+        // between transactions once we get close to the function timeout and leaves the tenant unfinished.
+        // The pool only lives for this invocation so no worker threads are left behind when the execution
+        // environment is frozen between scheduled runs.
+        Map<TenantOutcome, Integer> outcomes = new EnumMap<>(TenantOutcome.class);
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(concurrency, Math.max(1, tenants.size())));
+        try {
+            List<Future<TenantOutcome>> futures = new ArrayList<>();
+            for (TenantConfiguration tenant : tenants) {
+                futures.add(workers.submit(() -> aggregateTenant(tenant, checkpoint, deadline)));
             }
-            // Count the number of events - this step is necessary to make the transactions work; they need
-            // to be grouped together
-            Map<ZonedDateTime, List<BillingEvent>> categorizedEvents = categorizeEvents(tenant, billingEvents);
-            if (categorizedEvents == null) {
-                this.LOGGER.info("No aggregation entries for {}", tenant.getTenantID());
-            } else {
-                // Put those results back into the table
-                aggregateEntries(categorizedEvents, tenant);
+            for (int i = 0; i < futures.size(); i++) {
+                TenantOutcome outcome;
+                try {
+                    outcome = futures.get(i).get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    outcome = TenantOutcome.INTERRUPTED;
+                } catch (ExecutionException ee) {
+                    this.LOGGER.error("Error aggregating tenant {}", tenants.get(i).getTenantID(), ee.getCause());
+                    outcome = TenantOutcome.FAILED;
+                }
+                outcomes.merge(outcome, 1, Integer::sum);
             }
+        } finally {
+            workers.shutdownNow();
         }
+        // Failed tenants keep their events and are retried on the next scheduled run. Interrupted tenants
+        // need another pass of this run before we publish to the billing provider.
+        int interrupted = outcomes.getOrDefault(TenantOutcome.INTERRUPTED, 0);
+        result.put("complete", interrupted == 0);
+        for (TenantOutcome outcome : TenantOutcome.values()) {
+            result.put(outcome.name().toLowerCase(), outcomes.getOrDefault(outcome, 0));
+        }
+        this.LOGGER.info("Aggregation run {} for {} tenants {}", checkpoint.getRunId(), tenants.size(), outcomes);
+        this.LOGGER.info("BillingEventAggregation::handleRequest exec {}",
+                System.currentTimeMillis() - startTimeMillis);
+        writeResult(outputStream, result);
+    }
+
+    enum TenantOutcome {
+        AGGREGATED,
+        SKIPPED,
+        INTERRUPTED,
+        FAILED
     }
 }
\ No newline at end of file
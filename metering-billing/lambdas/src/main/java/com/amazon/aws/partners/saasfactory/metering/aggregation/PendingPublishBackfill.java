@@ -0,0 +1,215 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+
+/**
+ * One time backfill of the pending_publish attribute for aggregation entries that were created before the
+ * publisher read from the unpublished index. Those entries aren't on the index, so the first publish run for
+ * each tenant finds the tenant's unsubmitted entries the old way, adds them to the index and leaves a marker
+ * item next to them so later runs skip straight to the index. Entries that were submitted before the publisher
+ * recorded the published quantity get it set to their quantity, so they are treated as fully published.
+ */
+public class PendingPublishBackfill {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PendingPublishBackfill.class);
+    private static final String SUBMITTED_EXPRESSION_VALUE = ":submitted";
+
+    private final DynamoDbClient ddb;
+    private final String tableName;
+
+    public PendingPublishBackfill(DynamoDbClient ddb, String tableName) {
+        this.ddb = ddb;
+        this.tableName = tableName;
+    }
+
+    /**
+     * Add the tenant's unsubmitted aggregation entries to the unpublished index if that hasn't been done yet.
+     * @param tenantID the tenant id as stored in the partition key
+     * @param deadline epoch millis after which no more entries are backfilled
+     * @return true if the tenant's entries are all on the index
+     */
+    public boolean backfill(String tenantID, long deadline) {
+        try {
+            if (isComplete(tenantID)) {
+                return true;
+            }
+            int backfilled = 0;
+            int seeded = 0;
+            Map<String, String> expressionNames = new HashMap<>();
+            expressionNames.put(PRIMARY_KEY_EXPRESSION_NAME, PRIMARY_KEY_NAME);
+            expressionNames.put(SORT_KEY_EXPRESSION_NAME, SORT_KEY_NAME);
+            expressionNames.put(SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME);
+            expressionNames.put(PENDING_PUBLISH_EXPRESSION_NAME, PENDING_PUBLISH_ATTRIBUTE_NAME);
+            expressionNames.put(PUBLISHED_QUANTITY_EXPRESSION_NAME, PUBLISHED_QUANTITY_ATTRIBUTE_NAME);
+            Map<String, AttributeValue> expressionValues = new HashMap<>();
+            expressionValues.put(TENANT_ID_EXPRESSION_VALUE, AttributeValue.builder().s(tenantID).build());
+            expressionValues.put(AGGREGATION_EXPRESSION_VALUE, AttributeValue.builder()
+                    .s(AGGREGATION_ENTRY_PREFIX)
+                    .build());
+            expressionValues.put(KEY_SUBMITTED_EXPRESSION_VALUE, AttributeValue.builder().bool(false).build());
+            expressionValues.put(SUBMITTED_EXPRESSION_VALUE, AttributeValue.builder().bool(true).build());
+            String unsubmitted = String.format("%s = %s and attribute_not_exists(%s)",
+                    SUBMITTED_KEY_EXPRESSION_NAME,
+                    KEY_SUBMITTED_EXPRESSION_VALUE,
+                    PENDING_PUBLISH_EXPRESSION_NAME);
+            // Entries submitted before the publisher kept track of what it sent. They were published in full, so
+            // a late event must only publish what it added or the billing provider counts the period twice.
+            String unseeded = String.format("%s = %s and attribute_not_exists(%s)",
+                    SUBMITTED_KEY_EXPRESSION_NAME,
+                    SUBMITTED_EXPRESSION_VALUE,
+                    PUBLISHED_QUANTITY_EXPRESSION_NAME);
+
+            QueryRequest request = QueryRequest.builder()
+                    .tableName(tableName)
+                    .keyConditionExpression(String.format("%s = %s and begins_with(%s, %s)",
+                            PRIMARY_KEY_EXPRESSION_NAME,
+                            TENANT_ID_EXPRESSION_VALUE,
+                            SORT_KEY_EXPRESSION_NAME,
+                            AGGREGATION_EXPRESSION_VALUE))
+                    .filterExpression(String.format("(%s) or (%s)", unsubmitted, unseeded))
+                    .projectionExpression(String.join(",", PRIMARY_KEY_EXPRESSION_NAME, SORT_KEY_EXPRESSION_NAME,
+                            SUBMITTED_KEY_EXPRESSION_NAME))
+                    .expressionAttributeNames(expressionNames)
+                    .expressionAttributeValues(expressionValues)
+                    .build();
+            QueryResponse result = null;
+            do {
+                if (System.currentTimeMillis() > deadline) {
+                    // The conditions make the updates safe to repeat, so the next run just starts over
+                    LOGGER.info("Out of time backfilling unpublished aggregation entries for tenant {}", tenantID);
+                    return false;
+                }
+                if (result != null) {
+                    request = request.toBuilder()
+                            .exclusiveStartKey(result.lastEvaluatedKey())
+                            .build();
+                }
+                result = ddb.query(request);
+                for (Map<String, AttributeValue> item : result.items()) {
+                    Map<String, AttributeValue> key = new HashMap<>();
+                    key.put(PRIMARY_KEY_NAME, item.get(PRIMARY_KEY_NAME));
+                    key.put(SORT_KEY_NAME, item.get(SORT_KEY_NAME));
+                    boolean submitted = item.containsKey(SUBMITTED_KEY_ATTRIBUTE_NAME)
+                            && Boolean.TRUE.equals(item.get(SUBMITTED_KEY_ATTRIBUTE_NAME).bool());
+                    try {
+                        if (submitted) {
+                            seedPublishedQuantity(key, unseeded);
+                            seeded++;
+                        } else {
+                            addToIndex(key, unsubmitted, expressionValues);
+                            backfilled++;
+                        }
+                    } catch (ConditionalCheckFailedException e) {
+                        // Already on the index, already submitted or already seeded
+                    }
+                }
+            } while (!result.lastEvaluatedKey().isEmpty());
+            markComplete(tenantID);
+            LOGGER.info("Added {} aggregation entries for tenant {} to the unpublished index and seeded the "
+                    + "published quantity of {} submitted entries", backfilled, tenantID, seeded);
+            return true;
+        } catch (SdkServiceException e) {
+            // Nothing is lost, the backfill runs again for this tenant on the next publish
+            LOGGER.error("Can't backfill unpublished aggregation entries for tenant {}: {}", tenantID,
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    private void addToIndex(Map<String, AttributeValue> key, String unsubmitted,
+                            Map<String, AttributeValue> expressionValues) {
+        ddb.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(key)
+                .updateExpression(String.format("SET %s = %s",
+                        PENDING_PUBLISH_EXPRESSION_NAME,
+                        TENANT_ID_EXPRESSION_VALUE))
+                // The publisher may have submitted it since the query
+                .conditionExpression(unsubmitted)
+                .expressionAttributeNames(Map.of(
+                        SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME,
+                        PENDING_PUBLISH_EXPRESSION_NAME, PENDING_PUBLISH_ATTRIBUTE_NAME))
+                .expressionAttributeValues(Map.of(
+                        TENANT_ID_EXPRESSION_VALUE, expressionValues.get(TENANT_ID_EXPRESSION_VALUE),
+                        KEY_SUBMITTED_EXPRESSION_VALUE, expressionValues.get(KEY_SUBMITTED_EXPRESSION_VALUE)))
+                .build());
+    }
+
+    private void seedPublishedQuantity(Map<String, AttributeValue> key, String unseeded) {
+        // A late event that was aggregated before this ran is counted as published too. Sending it in full
+        // under the entry's original key would bill the whole period again once that key has expired.
+        ddb.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(key)
+                .updateExpression(String.format("SET %s = %s",
+                        PUBLISHED_QUANTITY_EXPRESSION_NAME,
+                        QUANTITY_EXPRESSION_NAME))
+                .conditionExpression(unseeded)
+                .expressionAttributeNames(Map.of(
+                        SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME,
+                        PUBLISHED_QUANTITY_EXPRESSION_NAME, PUBLISHED_QUANTITY_ATTRIBUTE_NAME,
+                        QUANTITY_EXPRESSION_NAME, QUANTITY_ATTRIBUTE_NAME))
+                .expressionAttributeValues(Map.of(
+                        SUBMITTED_EXPRESSION_VALUE, AttributeValue.builder().bool(true).build()))
+                .build());
+    }
+
+    private boolean isComplete(String tenantID) {
+        Map<String, AttributeValue> item = ddb.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(markerKey(tenantID))
+                .consistentRead(true)
+                .build()).item();
+        return item != null && !item.isEmpty();
+    }
+
+    private void markComplete(String tenantID) {
+        Map<String, AttributeValue> item = markerKey(tenantID);
+        item.put(CHECKPOINT_TIME_ATTRIBUTE_NAME, AttributeValue.builder()
+                .n(String.valueOf(Instant.now().toEpochMilli()))
+                .build());
+        ddb.putItem(PutItemRequest.builder()
+                .tableName(tableName)
+                .item(item)
+                .build());
+    }
+
+    private static Map<String, AttributeValue> markerKey(String tenantID) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put(PRIMARY_KEY_NAME, AttributeValue.builder().s(tenantID).build());
+        key.put(SORT_KEY_NAME, AttributeValue.builder().s(PENDING_PUBLISH_BACKFILL_SORT_KEY_VALUE).build());
+        return key;
+    }
+}
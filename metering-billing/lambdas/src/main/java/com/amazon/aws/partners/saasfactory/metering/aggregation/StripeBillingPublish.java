@@ -19,10 +19,12 @@ package com.amazon.aws.partners.saasfactory.metering.aggregation;
 import com.amazon.aws.partners.saasfactory.metering.common.AggregationEntry;
 import com.amazon.aws.partners.saasfactory.metering.common.BillingUtils;
 import com.amazon.aws.partners.saasfactory.metering.common.TenantConfiguration;
+import com.amazon.aws.partners.saasfactory.metering.common.TenantConfigurationCache;
 import com.amazon.aws.partners.saasfactory.saasboost.Utils;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
 import com.stripe.Stripe;
+import com.stripe.exception.IdempotencyException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.UsageRecord;
 import com.stripe.net.RequestOptions;
@@ -32,14 +34,18 @@ import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
 
@@ -50,10 +56,21 @@ public class StripeBillingPublish implements RequestStreamHandler {
     private static final String API_GATEWAY_HOST = System.getenv("API_GATEWAY_HOST");
     private static final String API_GATEWAY_STAGE = System.getenv("API_GATEWAY_STAGE");
     private static final String API_TRUST_ROLE = System.getenv("API_TRUST_ROLE");
+    private static final String UNPUBLISHED_INDEX_NAME = System.getenv(UNPUBLISHED_INDEX_NAME_ENV_VARIABLE);
+    // Stripe allows 100 requests per second in live mode but only 25 in test mode
+    private static final double DEFAULT_REQUESTS_PER_SECOND = 25d;
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final int STRIPE_MAX_NETWORK_RETRIES = 2;
+    // Stop starting new work this long before the function times out so published entries can be marked
+    private static final long TIMEOUT_MARGIN_MILLIS = 30 * 1000;
     private final DynamoDbClient ddb;
+    private final int concurrency;
+    private final TokenBucket rateLimiter;
+    private final TenantConfigurationCache tenantConfigurations;
+    private final PendingPublishBackfill backfill;
 
     public StripeBillingPublish() {
-        long startTimeMillis = System.currentTimeMillis();
+        final long startTimeMillis = System.currentTimeMillis();
         if (Utils.isBlank(TABLE_NAME)) {
             throw new IllegalStateException("Missing required environment variable " + TABLE_ENV_VARIABLE);
         }
@@ -66,20 +83,31 @@ public class StripeBillingPublish implements RequestStreamHandler {
         if (Utils.isBlank(API_TRUST_ROLE)) {
             throw new IllegalStateException("Missing required environment variable API_TRUST_ROLE");
         }
+        if (Utils.isBlank(UNPUBLISHED_INDEX_NAME)) {
+            throw new IllegalStateException("Missing required environment variable "
+                    + UNPUBLISHED_INDEX_NAME_ENV_VARIABLE);
+        }
         // Used by TenantConfiguration
         if (Utils.isBlank(System.getenv("DYNAMODB_CONFIG_INDEX_NAME"))) {
             throw new IllegalStateException("Missing required environment variable DYNAMODB_CONFIG_INDEX_NAME");
         }
         LOGGER.info("Version Info: " + Utils.version(this.getClass()));
         ddb = Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME);
+        tenantConfigurations = new TenantConfigurationCache(TABLE_NAME, ddb);
+        backfill = new PendingPublishBackfill(ddb, TABLE_NAME);
+        double requestsPerSecond = envDouble(STRIPE_REQUESTS_PER_SECOND_ENV_VARIABLE, DEFAULT_REQUESTS_PER_SECOND);
+        concurrency = Math.max(1, (int) envDouble(STRIPE_PUBLISH_CONCURRENCY_ENV_VARIABLE, DEFAULT_CONCURRENCY));
+        rateLimiter = new TokenBucket(requestsPerSecond, Math.max(1, (int) requestsPerSecond));
+        // Stripe retries 429s and connection errors itself, and our idempotency keys make that safe
+        Stripe.setMaxNetworkRetries(STRIPE_MAX_NETWORK_RETRIES);
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
-    private List<AggregationEntry> getAggregationEntries(String tenantID) {
+    private List<Map<String, AttributeValue>> getAggregationEntries(String tenantID) {
+        // Only aggregation entries that haven't been submitted to the billing provider carry the pending
+        // attribute, so the sparse index holds just the tenant's backlog instead of its whole billing history
         HashMap<String,String> expressionNames = new HashMap<>();
-        expressionNames.put(PRIMARY_KEY_EXPRESSION_NAME, PRIMARY_KEY_NAME);
-        expressionNames.put(SORT_KEY_EXPRESSION_NAME, SORT_KEY_NAME);
-        expressionNames.put(SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME);
+        expressionNames.put(PENDING_PUBLISH_EXPRESSION_NAME, PENDING_PUBLISH_ATTRIBUTE_NAME);
 
         HashMap<String, AttributeValue> expressionValues = new HashMap<>();
         AttributeValue tenantIDValue = AttributeValue.builder()
@@ -87,28 +115,15 @@ public class StripeBillingPublish implements RequestStreamHandler {
                 .build();
         expressionValues.put(TENANT_ID_EXPRESSION_VALUE, tenantIDValue);
 
-        AttributeValue aggregationEntryPrefixValue = AttributeValue.builder()
-                .s(AGGREGATION_ENTRY_PREFIX)
-                .build();
-        expressionValues.put(AGGREGATION_EXPRESSION_VALUE, aggregationEntryPrefixValue);
-
-        // Filter for those entries that have not yet been submitted to the billing provider
-        AttributeValue keySubmittedValue = AttributeValue.builder()
-                .bool(false)
-                .build();
-        expressionValues.put(KEY_SUBMITTED_EXPRESSION_VALUE, keySubmittedValue);
-
         QueryResponse result = null;
-        List<AggregationEntry> aggregationEntries = new ArrayList<>();
+        List<Map<String, AttributeValue>> aggregationEntries = new ArrayList<>();
         do {
             QueryRequest request = QueryRequest.builder()
                     .tableName(TABLE_NAME)
-                    .keyConditionExpression(String.format("%s = %s and begins_with(%s, %s)",
-                                                PRIMARY_KEY_EXPRESSION_NAME,
-                                                TENANT_ID_EXPRESSION_VALUE,
-                                                SORT_KEY_EXPRESSION_NAME,
-                                                AGGREGATION_EXPRESSION_VALUE))
-                    .filterExpression(String.format("%s = %s", SUBMITTED_KEY_EXPRESSION_NAME, KEY_SUBMITTED_EXPRESSION_VALUE))
+                    .indexName(UNPUBLISHED_INDEX_NAME)
+                    .keyConditionExpression(String.format("%s = %s",
+                                                PENDING_PUBLISH_EXPRESSION_NAME,
+                                                TENANT_ID_EXPRESSION_VALUE))
                     .expressionAttributeNames(expressionNames)
                     .expressionAttributeValues(expressionValues)
                     .build();
@@ -126,25 +141,89 @@ public class StripeBillingPublish implements RequestStreamHandler {
                 LOGGER.error(e.getMessage());
                 return null;
             }
-            for (Map<String, AttributeValue> item : result.items()) {
-                String[] aggregationInformation = item.get(SORT_KEY_NAME).s().split(ATTRIBUTE_DELIMITER);
-                Instant periodStart = Instant.ofEpochMilli(Long.valueOf(aggregationInformation[PERIOD_START_ARRAY_LOCATION]));
-                Map<String, AttributeValue> quantityByProductCode = item.get(QUANTITY_ATTRIBUTE_NAME).m();
-                String idempotencyKey = item.get(IDEMPOTENTCY_KEY_ATTRIBUTE_NAME).s();
-                for (Map.Entry<String, AttributeValue> mapEntry : quantityByProductCode.entrySet()) {
-                    AggregationEntry entry = new AggregationEntry(tenantID,
-                            periodStart,
-                            mapEntry.getKey(),
-                            Integer.valueOf(mapEntry.getValue().n()),
-                            idempotencyKey);
-                    aggregationEntries.add(entry);
-                }
-            }
+            aggregationEntries.addAll(result.items());
         } while (!result.lastEvaluatedKey().isEmpty());
         return aggregationEntries;
     }
 
-    private void addUsageToSubscriptionItem(String subscriptionItemId, AggregationEntry aggregationEntry) {
+    /**
+     * The unpublished index is only eventually consistent, so read the entry itself before publishing it.
+     * @return the current aggregation entry, or null if it has been published since the index was read
+     */
+    private Map<String, AttributeValue> getPendingAggregationEntry(Map<String, AttributeValue> indexItem) {
+        Map<String, AttributeValue> compositeKey = new HashMap<>();
+        compositeKey.put(PRIMARY_KEY_NAME, indexItem.get(PRIMARY_KEY_NAME));
+        compositeKey.put(SORT_KEY_NAME, indexItem.get(SORT_KEY_NAME));
+        try {
+            GetItemResponse response = ddb.getItem(GetItemRequest.builder()
+                    .tableName(TABLE_NAME)
+                    .key(compositeKey)
+                    .consistentRead(true)
+                    .build());
+            if (!response.hasItem() || !response.item().containsKey(PENDING_PUBLISH_ATTRIBUTE_NAME)) {
+                return null;
+            }
+            return response.item();
+        } catch (DynamoDbException e) {
+            LOGGER.error("Unable to read aggregation record {} for tenant {}: {}",
+                    indexItem.get(SORT_KEY_NAME).s(),
+                    indexItem.get(PRIMARY_KEY_NAME).s(),
+                    e.getMessage());
+            throw e;
+        }
+    }
+
+    static List<AggregationEntry> toAggregationEntries(String tenantID, Map<String, AttributeValue> item) {
+        List<AggregationEntry> aggregationEntries = new ArrayList<>();
+        String[] aggregationInformation = item.get(SORT_KEY_NAME).s().split(ATTRIBUTE_DELIMITER);
+        Instant periodStart = Instant.ofEpochMilli(Long.valueOf(aggregationInformation[PERIOD_START_ARRAY_LOCATION]));
+        Map<String, AttributeValue> quantityByProductCode = item.get(QUANTITY_ATTRIBUTE_NAME).m();
+        Map<String, AttributeValue> publishedByProductCode = Collections.emptyMap();
+        if (item.containsKey(PUBLISHED_QUANTITY_ATTRIBUTE_NAME)) {
+            publishedByProductCode = item.get(PUBLISHED_QUANTITY_ATTRIBUTE_NAME).m();
+        } else if (item.containsKey(SUBMITTED_KEY_ATTRIBUTE_NAME)
+                && Boolean.TRUE.equals(item.get(SUBMITTED_KEY_ATTRIBUTE_NAME).bool())) {
+            // Submitted before the published quantity was recorded and not seeded by the backfill yet. It was
+            // published in full, and sending it again under its original key would bill it twice once the
+            // billing provider has forgotten the key.
+            publishedByProductCode = quantityByProductCode;
+        }
+        String idempotencyKey = item.get(IDEMPOTENTCY_KEY_ATTRIBUTE_NAME).s();
+        boolean keyPerProduct = item.containsKey(IDEMPOTENCY_KEY_PER_PRODUCT_ATTRIBUTE_NAME)
+                && Boolean.TRUE.equals(item.get(IDEMPOTENCY_KEY_PER_PRODUCT_ATTRIBUTE_NAME).bool());
+        for (Map.Entry<String, AttributeValue> mapEntry : quantityByProductCode.entrySet()) {
+            String productCode = mapEntry.getKey();
+            int quantity = Integer.valueOf(mapEntry.getValue().n());
+            int published = publishedByProductCode.containsKey(productCode)
+                    ? Integer.valueOf(publishedByProductCode.get(productCode).n()) : 0;
+            if (quantity <= published) {
+                continue;
+            }
+            // Usage records increment the subscription item, so only send what was added since the last publish
+            String productKey = idempotencyKey + ATTRIBUTE_DELIMITER + productCode;
+            AggregationEntry entry;
+            if (published > 0) {
+                // Late events for a period that was already published. Every increment gets its own key.
+                entry = new AggregationEntry(tenantID, periodStart, productCode, quantity - published,
+                        productKey + ATTRIBUTE_DELIMITER + published);
+            } else if (quantityByProductCode.size() == 1) {
+                entry = new AggregationEntry(tenantID, periodStart, productCode, quantity, idempotencyKey);
+            } else if (keyPerProduct) {
+                // Each product code in the entry is its own usage record, so it needs its own key
+                entry = new AggregationEntry(tenantID, periodStart, productCode, quantity, productKey);
+            } else {
+                // Older entries published every product code with the entry's key, which the billing provider
+                // only accepts for one of them. Keep using it so that one isn't counted twice, and fall back to
+                // the product key for the rest.
+                entry = new AggregationEntry(tenantID, periodStart, productCode, quantity, idempotencyKey,
+                        productKey);
+            }
+            aggregationEntries.add(entry);
+        }
+        return aggregationEntries;
+    }
+
+    private boolean addUsageToSubscriptionItem(String subscriptionItemId, AggregationEntry aggregationEntry) {
         UsageRecord usageRecord = null;
 
         UsageRecordCreateOnSubscriptionItemParams params =
@@ -159,11 +238,29 @@ public class StripeBillingPublish implements RequestStreamHandler {
                 .build();
 
         try {
-            usageRecord = UsageRecord.createOnSubscriptionItem(subscriptionItemId, params, requestOptions);
+            try {
+                usageRecord = UsageRecord.createOnSubscriptionItem(subscriptionItemId, params, requestOptions);
+            } catch (IdempotencyException e) {
+                if (aggregationEntry.getFallbackIdempotencyKey() == null) {
+                    throw e;
+                }
+                LOGGER.info("Idempotency key for product code {} of tenant {} already used; publishing with {}",
+                        aggregationEntry.getProductCode(),
+                        aggregationEntry.getTenantID(),
+                        aggregationEntry.getFallbackIdempotencyKey());
+                rateLimiter.acquire();
+                usageRecord = UsageRecord.createOnSubscriptionItem(subscriptionItemId, params, RequestOptions
+                        .builder()
+                        .setIdempotencyKey(aggregationEntry.getFallbackIdempotencyKey())
+                        .build());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch(StripeException e) {
             LOGGER.error("Stripe exception:\n{}", e.getMessage());
             LOGGER.error("Timestamp: {}", aggregationEntry.getPeriodStart());
-            return;
+            return false;
         }
         Map<String, List<String>> responseHeaders = usageRecord.getLastResponse().headers().map();
         // Check for idempotency key in use; if it is, then this is likely a situation where the
@@ -173,94 +270,251 @@ public class StripeBillingPublish implements RequestStreamHandler {
                             formatAggregationEntry(aggregationEntry.getPeriodStart().toEpochMilli()),
                             aggregationEntry.getTenantID());
         }
-        markAggregationRecordAsSubmitted(aggregationEntry);
+        return true;
     }
 
-    private void markAggregationRecordAsSubmitted(AggregationEntry aggregationEntry) {
-        // Update the attribute that marks an item as submitted
-        Map<String, AttributeValue> aggregationEntryKey = new HashMap<>();
-        AttributeValue tenantIDValue = AttributeValue.builder()
-                .s(aggregationEntry.getTenantID())
-                .build();
-        aggregationEntryKey.put(PRIMARY_KEY_NAME, tenantIDValue);
+    /**
+     * Publish every product code in an aggregation entry to the billing provider.
+     * @return true if all of them were published, false if any failed, or null if we ran out of time before
+     *     starting
+     */
+    private Boolean publish(TenantConfiguration tenant, Map<String, AttributeValue> item, long deadline)
+            throws InterruptedException {
+        if (System.currentTimeMillis() > deadline) {
+            return null;
+        }
+        boolean published = true;
+        for (AggregationEntry entry : toAggregationEntries(tenant.getTenantID(), item)) {
+            String subscriptionID = tenant.getSubscriptionMapping().get(entry.getProductCode());
+            if (subscriptionID == null) {
+                LOGGER.error("No subscription ID for product code {} found associated with tenant {}",
+                                    entry.getProductCode(),
+                                    tenant.getTenantID());
+                LOGGER.error("Unable to publish aggregation entry {} associated with tenant {}",
+                                    formatAggregationEntry(entry.getPeriodStart().toEpochMilli()),
+                                    tenant.getTenantID());
+                published = false;
+                continue;
+            }
+            rateLimiter.acquire();
+            published &= addUsageToSubscriptionItem(subscriptionID, entry);
+        }
+        return published;
+    }
 
-        AttributeValue aggregationStringValue = AttributeValue.builder()
-                .s(formatAggregationEntry(aggregationEntry.getPeriodStart().toEpochMilli()))
-                .build();
-        aggregationEntryKey.put(SORT_KEY_NAME, aggregationStringValue);
+    /**
+     * Mark a published aggregation entry as submitted and take it off the unpublished index, as long as
+     * aggregation hasn't added to it since we read it. If it has, the quantities we did publish are recorded
+     * and the entry stays pending so the next run publishes just the difference.
+     * @return true if the entry was marked as submitted
+     */
+    private boolean markAggregationRecordAsSubmitted(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> compositeKey = new HashMap<>();
+        compositeKey.put(PRIMARY_KEY_NAME, item.get(PRIMARY_KEY_NAME));
+        compositeKey.put(SORT_KEY_NAME, item.get(SORT_KEY_NAME));
+        Map<String, AttributeValue> quantityByProductCode = item.get(QUANTITY_ATTRIBUTE_NAME).m();
 
         Map<String, String> expressionAttributeNames = new HashMap<>();
-        expressionAttributeNames.put(SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME);
-
+        expressionAttributeNames.put(QUANTITY_EXPRESSION_NAME, QUANTITY_ATTRIBUTE_NAME);
+        expressionAttributeNames.put(PUBLISHED_QUANTITY_EXPRESSION_NAME, PUBLISHED_QUANTITY_ATTRIBUTE_NAME);
         Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        expressionAttributeValues.put(PUBLISHED_QUANTITY_EXPRESSION_VALUE, AttributeValue.builder()
+                .m(quantityByProductCode)
+                .build());
+        expressionAttributeValues.put(PRODUCT_COUNT_EXPRESSION_VALUE, AttributeValue.builder()
+                .n(Integer.toString(quantityByProductCode.size()))
+                .build());
+        List<String> conditions = new ArrayList<>();
+        conditions.add(String.format("size(%s) = %s", QUANTITY_EXPRESSION_NAME, PRODUCT_COUNT_EXPRESSION_VALUE));
+        int index = 0;
+        for (Map.Entry<String, AttributeValue> quantity : quantityByProductCode.entrySet()) {
+            String productCodeName = PRODUCT_CODE_EXPRESSION_NAME + index;
+            String quantityValue = QUANTITY_EXPRESSION_VALUE + index;
+            conditions.add(String.format("%s.%s = %s", QUANTITY_EXPRESSION_NAME, productCodeName, quantityValue));
+            expressionAttributeNames.put(productCodeName, quantity.getKey());
+            expressionAttributeValues.put(quantityValue, quantity.getValue());
+            index++;
+        }
 
-        AttributeValue keySubmittedValue = AttributeValue.builder()
+        Map<String, String> submittedNames = new HashMap<>(expressionAttributeNames);
+        submittedNames.put(SUBMITTED_KEY_EXPRESSION_NAME, SUBMITTED_KEY_ATTRIBUTE_NAME);
+        submittedNames.put(PENDING_PUBLISH_EXPRESSION_NAME, PENDING_PUBLISH_ATTRIBUTE_NAME);
+        Map<String, AttributeValue> submittedValues = new HashMap<>(expressionAttributeValues);
+        submittedValues.put(KEY_SUBMITTED_EXPRESSION_VALUE, AttributeValue.builder()
                 .bool(true)
-                .build();
-        expressionAttributeValues.put(KEY_SUBMITTED_EXPRESSION_VALUE, keySubmittedValue);
-
-        String updateExpression = String.format("SET %s = %s",
-                                                SUBMITTED_KEY_EXPRESSION_NAME,
-                                                KEY_SUBMITTED_EXPRESSION_VALUE);
-
-        UpdateItemRequest updateRequest = UpdateItemRequest.builder()
-                .tableName(TABLE_NAME)
-                .key(aggregationEntryKey)
-                .updateExpression(updateExpression)
-                .expressionAttributeNames(expressionAttributeNames)
-                .expressionAttributeValues(expressionAttributeValues)
-                .build();
-
+                .build());
         try {
-            ddb.updateItem(updateRequest);
-        } catch (ResourceNotFoundException|InternalServerErrorException|TransactionCanceledException e) {
-            LOGGER.error(e.getMessage());
+            try {
+                ddb.updateItem(UpdateItemRequest.builder()
+                        .tableName(TABLE_NAME)
+                        .key(compositeKey)
+                        // Removing the pending attribute takes the entry off the unpublished index
+                        .updateExpression(String.format("SET %s = %s, %s = %s REMOVE %s",
+                                SUBMITTED_KEY_EXPRESSION_NAME,
+                                KEY_SUBMITTED_EXPRESSION_VALUE,
+                                PUBLISHED_QUANTITY_EXPRESSION_NAME,
+                                PUBLISHED_QUANTITY_EXPRESSION_VALUE,
+                                PENDING_PUBLISH_EXPRESSION_NAME))
+                        .conditionExpression(String.join(" AND ", conditions))
+                        .expressionAttributeNames(submittedNames)
+                        .expressionAttributeValues(submittedValues)
+                        .build());
+                return true;
+            } catch (ConditionalCheckFailedException e) {
+                LOGGER.info("Aggregation record {} for tenant {} changed while publishing; publishing the rest later",
+                        item.get(SORT_KEY_NAME).s(),
+                        item.get(PRIMARY_KEY_NAME).s());
+            }
+            expressionAttributeValues.keySet().retainAll(Set.of(PUBLISHED_QUANTITY_EXPRESSION_VALUE));
+            expressionAttributeNames.keySet().retainAll(Set.of(PUBLISHED_QUANTITY_EXPRESSION_NAME));
+            ddb.updateItem(UpdateItemRequest.builder()
+                    .tableName(TABLE_NAME)
+                    .key(compositeKey)
+                    .updateExpression(String.format("SET %s = %s",
+                            PUBLISHED_QUANTITY_EXPRESSION_NAME,
+                            PUBLISHED_QUANTITY_EXPRESSION_VALUE))
+                    .expressionAttributeNames(expressionAttributeNames)
+                    .expressionAttributeValues(expressionAttributeValues)
+                    .build());
+        } catch (ResourceNotFoundException | InternalServerErrorException e) {
+            // Published again on the next run. Stripe recognizes the idempotency key and doesn't count the
+            // usage twice.
+            LOGGER.error("Unable to mark aggregation record {} for tenant {} as published: {}",
+                    item.get(SORT_KEY_NAME).s(),
+                    item.get(PRIMARY_KEY_NAME).s(),
+                    e.getMessage());
         }
+        return false;
+    }
 
-        LOGGER.info("Marked aggregation record {} for tenant {} as published",
-                aggregationEntry.getTenantID(),
-                formatAggregationEntry(aggregationEntry.getPeriodStart().toEpochMilli()));
+    private static double envDouble(String envVariableName, double defaultValue) {
+        String value = System.getenv(envVariableName);
+        if (Utils.isNotBlank(value)) {
+            try {
+                double parsed = Double.parseDouble(value.trim());
+                if (parsed > 0) {
+                    return parsed;
+                }
+            } catch (NumberFormatException nfe) {
+                // Fall through to the default
+            }
+        }
+        return defaultValue;
     }
 
     @Override
     public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context) {
+        final long startTimeMillis = System.currentTimeMillis();
+        final long deadline = context != null
+                ? startTimeMillis + context.getRemainingTimeInMillis() - TIMEOUT_MARGIN_MILLIS
+                : Long.MAX_VALUE;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("complete", Boolean.TRUE);
+
         Stripe.apiKey = BillingUtils.getBillingApiKey(API_GATEWAY_HOST, API_GATEWAY_STAGE, API_TRUST_ROLE);
         LOGGER.info("Fetching tenant IDs in table {}", TABLE_NAME);
-        List<TenantConfiguration> tenantConfigurations = TenantConfiguration.getTenantConfigurations(TABLE_NAME, ddb, LOGGER);
-        if (tenantConfigurations == null || tenantConfigurations.isEmpty()) {
+        // Nothing tells this function about onboarded tenants, so start every run from the current configs
+        List<TenantConfiguration> tenants = tenantConfigurations.preload();
+        if (tenants == null || tenants.isEmpty()) {
             LOGGER.info("No tenant configurations found in table {}", TABLE_NAME);
+            writeResult(outputStream, result);
             return;
         }
         LOGGER.info("Resolved tenant IDs in table {}", TABLE_NAME);
-        for (TenantConfiguration tenant: tenantConfigurations) {
-            List<AggregationEntry> aggregationEntries = getAggregationEntries(tenant.getTenantID());
-            if (aggregationEntries == null || aggregationEntries.isEmpty()) {
-                LOGGER.info("No unpublished aggregation entries found for tenant {}",
-                                tenant.getTenantID());
-            } else {
-                if (aggregationEntries.size() == 1) {
-                    LOGGER.info("Found {} an unpublished aggregation entry for tenant {}",
-                            aggregationEntries.size(),
-                            tenant.getTenantID());
-                } else{
-                    LOGGER.info("Found {} unpublished aggregation entries for tenant {}",
-                            aggregationEntries.size(),
-                            tenant.getTenantID());
+
+        // Every aggregation entry is published on its own worker, with the rate limiter keeping all of them
+        // together under the billing provider's request limit. Each worker marks its entry as submitted as soon
+        // as it's published, so whatever we got through is saved if we run out of time. The pool only lives for
+        // this invocation so no worker threads are left behind between scheduled runs.
+        List<Future<Boolean>> futures = new ArrayList<>();
+        boolean outOfTime = false;
+        int skippedTenants = 0;
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (TenantConfiguration tenant : tenants) {
+                if (System.currentTimeMillis() > deadline) {
+                    LOGGER.info("Out of time before publishing tenant {}", tenant.getTenantID());
+                    outOfTime = true;
+                    break;
+                }
+                if (!backfill.backfill(tenant.getTenantID(), deadline)) {
+                    // Some of the tenant's entries may not be on the index yet or may still look unpublished
+                    LOGGER.info("Publishing tenant {} on the next run", tenant.getTenantID());
+                    skippedTenants++;
+                    continue;
+                }
+                List<Map<String, AttributeValue>> aggregationEntries = getAggregationEntries(tenant.getTenantID());
+                if (aggregationEntries == null || aggregationEntries.isEmpty()) {
+                    LOGGER.info("No unpublished aggregation entries found for tenant {}",
+                                    tenant.getTenantID());
+                    continue;
+                }
+                LOGGER.info("Found {} unpublished aggregation entries for tenant {}",
+                        aggregationEntries.size(),
+                        tenant.getTenantID());
+                for (Map<String, AttributeValue> item : aggregationEntries) {
+                    futures.add(workers.submit(() -> {
+                        if (System.currentTimeMillis() > deadline) {
+                            return null;
+                        }
+                        Map<String, AttributeValue> current = getPendingAggregationEntry(item);
+                        if (current == null) {
+                            LOGGER.info("Aggregation record {} for tenant {} already published",
+                                    item.get(SORT_KEY_NAME).s(),
+                                    tenant.getTenantID());
+                            return Boolean.TRUE;
+                        }
+                        Boolean publishedItem = publish(tenant, current, deadline);
+                        if (Boolean.TRUE.equals(publishedItem)) {
+                            markAggregationRecordAsSubmitted(current);
+                        }
+                        return publishedItem;
+                    }));
                 }
-                for (AggregationEntry entry : aggregationEntries) {
-                    String subscriptionID = tenant.getSubscriptionMapping().get(entry.getProductCode());
-                    if (subscriptionID == null) {
-                        LOGGER.error("No subscription ID for product code {} found associated with tenant {}",
-                                            entry.getProductCode(),
-                                            tenant.getTenantID());
-                        LOGGER.error("Unable to publish aggregation entry {} associated with tenant {}",
-                                            formatAggregationEntry(entry.getPeriodStart().toEpochMilli()),
-                                            tenant.getTenantID());
-                        continue;
-                    }
-                    addUsageToSubscriptionItem(tenant.getSubscriptionMapping().get(entry.getProductCode()), entry);
+            }
+            // Workers stop starting new entries at the deadline, so this only waits for the ones in flight
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        int notStarted = 0;
+        int failed = 0;
+        for (Future<Boolean> future : futures) {
+            try {
+                Boolean publishedItem = future.isDone() ? future.get() : null;
+                if (publishedItem == null) {
+                    notStarted++;
+                } else if (!publishedItem) {
+                    failed++;
                 }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                notStarted++;
+            } catch (ExecutionException ee) {
+                LOGGER.error("Error publishing aggregation entry", ee.getCause());
+                failed++;
             }
         }
+        // Failed entries stay unpublished for the next scheduled run. Entries we didn't get to need another pass.
+        result.put("complete", notStarted == 0 && skippedTenants == 0 && !outOfTime);
+        result.put("published", futures.size() - notStarted - failed);
+        result.put("failed", failed);
+        result.put("remaining", notStarted);
+        result.put("skippedTenants", skippedTenants);
+        LOGGER.info("Published {} of {} aggregation entries", futures.size() - notStarted - failed, futures.size());
+        LOGGER.info("StripeBillingPublish::handleRequest exec {}", System.currentTimeMillis() - startTimeMillis);
+        writeResult(outputStream, result);
+    }
+
+    private static void writeResult(OutputStream outputStream, Map<String, Object> result) {
+        try {
+            outputStream.write(Utils.toJson(result).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            LOGGER.error("Error writing publish result", ioe);
+        }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+/**
+ * Token bucket rate limiter shared by the threads publishing to the billing provider. Callers reserve a token
+ * and sleep until it's theirs, so requests go out in the order they asked and never faster than the rate.
+ */
+final class TokenBucket {
+
+    private final double tokensPerMilli;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Starts with a full bucket.
+     * @param requestsPerSecond the sustained rate
+     * @param burst the most requests allowed at once after the bucket has been idle
+     */
+    TokenBucket(double requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be greater than 0");
+        }
+        this.tokensPerMilli = requestsPerSecond / 1000d;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMilli);
+            lastRefill = now;
+            // Going negative reserves a token that hasn't been refilled yet
+            tokens -= 1d;
+            wait = tokens >= 0 ? 0L : (long) Math.ceil(-tokens / tokensPerMilli);
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.metering.billing;
+
+import java.util.*;
+
+/**
+ * Sums a batch of BILLING events by tenant and product code so the whole batch can be stored as one event
+ * item per tenant and product instead of one item per event. Every message that contributed to a sum is
+ * remembered so the batch can report all of them back to SQS if that sum can't be stored.
+ */
+public class BillingEventBatch {
+
+    private final Map<String, Usage> usage = new LinkedHashMap<>();
+
+    /**
+     * Fold a BILLING event into the batch.
+     * @param messageId the id of the message that carried this event
+     * @param event the EventBridge event
+     * @return true if the event was added, false if it's missing the tenant, product code or quantity
+     */
+    public boolean add(String messageId, Map<String, Object> event) {
+        if (event == null || !(event.get("detail") instanceof Map)) {
+            return false;
+        }
+        Map<String, Object> detail = (Map<String, Object>) event.get("detail");
+        Object tenantId = detail.get("TenantId");
+        Object productCode = detail.get("ProductCode");
+        Object quantity = detail.get("Quantity");
+        if (!(tenantId instanceof String) || !(productCode instanceof String) || !(quantity instanceof Number)) {
+            return false;
+        }
+        String key = tenantId + "#" + productCode;
+        usage.computeIfAbsent(key, k -> new Usage((String) tenantId, (String) productCode))
+                .add(((Number) quantity).longValue(), messageId);
+        return true;
+    }
+
+    public Collection<Usage> usage() {
+        return Collections.unmodifiableCollection(usage.values());
+    }
+
+    public boolean isEmpty() {
+        return usage.isEmpty();
+    }
+
+    public static final class Usage {
+        private final String tenantId;
+        private final String productCode;
+        private final Set<String> messageIds = new LinkedHashSet<>();
+        private long quantity;
+        private int events;
+
+        private Usage(String tenantId, String productCode) {
+            this.tenantId = tenantId;
+            this.productCode = productCode;
+        }
+
+        private void add(long quantity, String messageId) {
+            this.quantity += quantity;
+            this.events++;
+            messageIds.add(messageId);
+        }
+
+        public String getTenantId() {
+            return tenantId;
+        }
+
+        public String getProductCode() {
+            return productCode;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        public int getEvents() {
+            return events;
+        }
+
+        public Set<String> getMessageIds() {
+            return Collections.unmodifiableSet(messageIds);
+        }
+    }
+}
@@ -18,21 +18,28 @@ package com.amazon.aws.partners.saasfactory.metering.billing;
 import com.amazon.aws.partners.saasfactory.metering.common.BillingEvent;
 import com.amazon.aws.partners.saasfactory.metering.common.ProcessBillingEventException;
 import com.amazon.aws.partners.saasfactory.metering.common.TenantConfiguration;
+import com.amazon.aws.partners.saasfactory.metering.common.TenantConfigurationCache;
 import com.amazon.aws.partners.saasfactory.metering.onboarding.OnboardTenantProduct;
 import com.amazon.aws.partners.saasfactory.saasboost.Utils;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.InternalServerErrorException;
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
 
@@ -41,18 +48,43 @@ public class ProcessBillingEvent implements RequestHandler<Map<String, Object>,
     private final DynamoDbClient ddb;
     private final static Logger LOGGER = LoggerFactory.getLogger(OnboardTenantProduct.class);
     private final static String TABLE_NAME = System.getenv(TABLE_ENV_VARIABLE);
+    private static final int MAX_BATCH_WRITE_ATTEMPTS = 5;
+    private final TenantConfigurationCache tenantConfigurations;
 
     public ProcessBillingEvent() {
-        long startTimeMillis = System.currentTimeMillis();
+        final long startTimeMillis = System.currentTimeMillis();
         if (Utils.isBlank(TABLE_NAME)) {
             throw new IllegalStateException("Missing required environment variable " + TABLE_ENV_VARIABLE);
         }
+        // Used by TenantConfiguration
+        if (Utils.isBlank(System.getenv(CONFIG_INDEX_NAME_ENV_VARIABLE))) {
+            throw new IllegalStateException("Missing required environment variable " + CONFIG_INDEX_NAME_ENV_VARIABLE);
+        }
         LOGGER.info("Version Info: " + Utils.version(this.getClass()));
         ddb = Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME);
+        tenantConfigurations = new TenantConfigurationCache(TABLE_NAME, ddb);
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
     private boolean putEvent(BillingEvent billingEvent) {
+        PutItemRequest request = PutItemRequest.builder()
+                .tableName(TABLE_NAME)
+                .item(eventItem(billingEvent))
+                .build();
+
+        try {
+            this.ddb.putItem(request);
+        } catch (ResourceNotFoundException e) {
+            LOGGER.error("Table {} does not exist", TABLE_NAME);
+            return false;
+        } catch (InternalServerErrorException e) {
+            LOGGER.error(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static Map<String, AttributeValue> eventItem(BillingEvent billingEvent) {
         HashMap<String,AttributeValue> item= new HashMap<>();
 
         AttributeValue primaryKeyValue = AttributeValue.builder()
@@ -75,34 +107,66 @@ public class ProcessBillingEvent implements RequestHandler<Map<String, Object>,
         item.put(SORT_KEY_NAME, sortKeyValue);
         item.put(PRODUCT_CODE_ATTRIBUTE_NAME, productCodeValue);
         item.put(QUANTITY_ATTRIBUTE_NAME, quantityAttributeValue);
+        return item;
+    }
 
-        PutItemRequest request = PutItemRequest.builder()
-                .tableName(TABLE_NAME)
-                .item(item)
-                .build();
-
-        try {
-            this.ddb.putItem(request);
-        } catch (ResourceNotFoundException e) {
-            LOGGER.error("Table {} does not exist", TABLE_NAME);
-            return false;
-        } catch (InternalServerErrorException e) {
-            LOGGER.error(e.getMessage());
-            return false;
+    /**
+     * Store the summed usage from a batch as event items, MAXIMUM_BATCH_SIZE at a time.
+     * @param usage the usage to store
+     * @return the usage that couldn't be stored
+     */
+    private List<BillingEventBatch.Usage> putEvents(List<BillingEventBatch.Usage> usage) {
+        List<BillingEventBatch.Usage> failed = new ArrayList<>();
+        Instant eventTime = Instant.now();
+        for (int start = 0; start < usage.size(); start += MAXIMUM_BATCH_SIZE) {
+            // Keyed by the event sort key so we can tell which usage DynamoDB hands back as unprocessed
+            Map<String, BillingEventBatch.Usage> usageByEvent = new HashMap<>();
+            List<WriteRequest> writes = new ArrayList<>();
+            for (BillingEventBatch.Usage tenantUsage : usage.subList(start,
+                    Math.min(start + MAXIMUM_BATCH_SIZE, usage.size()))) {
+                BillingEvent billingEvent = new BillingEvent(tenantUsage.getTenantId(), eventTime,
+                        tenantUsage.getProductCode(), tenantUsage.getQuantity());
+                Map<String, AttributeValue> item = eventItem(billingEvent);
+                usageByEvent.put(item.get(SORT_KEY_NAME).s(), tenantUsage);
+                writes.add(WriteRequest.builder()
+                        .putRequest(PutRequest.builder().item(item).build())
+                        .build());
+            }
+            try {
+                for (int attempt = 0; !writes.isEmpty() && attempt < MAX_BATCH_WRITE_ATTEMPTS; attempt++) {
+                    if (attempt > 0) {
+                        // Unprocessed items mean we're being throttled, so back off before trying them again
+                        Thread.sleep((1L << attempt) * 50L);
+                    }
+                    BatchWriteItemResponse response = ddb.batchWriteItem(BatchWriteItemRequest.builder()
+                            .requestItems(Map.of(TABLE_NAME, writes))
+                            .build());
+                    writes = response.hasUnprocessedItems()
+                            ? response.unprocessedItems().getOrDefault(TABLE_NAME, Collections.emptyList())
+                            : Collections.emptyList();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (SdkException e) {
+                LOGGER.error("dynamodb::BatchWriteItem error", e);
+                LOGGER.error(Utils.getFullStackTrace(e));
+            }
+            for (WriteRequest write : writes) {
+                failed.add(usageByEvent.get(write.putRequest().item().get(SORT_KEY_NAME).s()));
+            }
         }
-        return true;
+        return failed;
     }
 
     @Override
     public Object handleRequest(Map<String, Object> event, Context context) {
+        if (tenantConfigurations.invalidate(event)) {
+            return null;
+        }
         Map<String, Object> detail = (Map<String, Object>) event.get("detail");
 
         // Verify the existence of the tenant ID
-        TenantConfiguration tenant = TenantConfiguration.getTenantConfiguration(
-                (String) detail.get("TenantId"),
-                TABLE_NAME,
-                ddb,
-                LOGGER);
+        TenantConfiguration tenant = tenantConfigurations.get((String) detail.get("TenantId"));
 
         if (tenant == null) {
             LOGGER.info("TenantId with ID {} not found", detail.get("TenantId"));
@@ -138,4 +202,62 @@ public class ProcessBillingEvent implements RequestHandler<Map<String, Object>,
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes a batch of billing events from the queue as summed event items.
+     * @return the messages to retry
+     */
+    public SQSBatchResponse processBillingEventQueue(SQSEvent event, Context context) {
+        final long startTimeMillis = System.currentTimeMillis();
+        List<SQSBatchResponse.BatchItemFailure> retry = new ArrayList<>();
+
+        // EventBridge delivers the BILLING events to an SQS queue so we can pick them up in batches. Sum the
+        // quantities for each tenant and product so the whole batch turns into a handful of event items.
+        // The aggregation job adds them up per period either way. Tenant Product Onboard events come through
+        // the same queue so we drop any tenant configuration they change from the cache.
+        BillingEventBatch batch = new BillingEventBatch();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            Map<String, Object> billingEvent = Utils.fromJson(message.getBody(), LinkedHashMap.class);
+            if (tenantConfigurations.invalidate(billingEvent)) {
+                continue;
+            }
+            if (!batch.add(message.getMessageId(), billingEvent)) {
+                // Will never succeed, but report it so it ends up in the DLQ instead of disappearing
+                LOGGER.error("Billing event not created because a component of the billing event was missing. "
+                        + "Message {}", message.getMessageId());
+                retry.add(SQSBatchResponse.BatchItemFailure.builder()
+                        .withItemIdentifier(message.getMessageId())
+                        .build()
+                );
+            }
+        }
+
+        // One query on the config index per cache lifetime instead of a read for every tenant in every batch
+        if (!batch.isEmpty()) {
+            tenantConfigurations.getAll();
+        }
+        List<BillingEventBatch.Usage> usage = new ArrayList<>();
+        for (BillingEventBatch.Usage tenantUsage : batch.usage()) {
+            if (tenantConfigurations.get(tenantUsage.getTenantId()) != null) {
+                usage.add(tenantUsage);
+            } else {
+                LOGGER.info("TenantId with ID {} not found", tenantUsage.getTenantId());
+            }
+        }
+        for (BillingEventBatch.Usage failed : putEvents(usage)) {
+            // Let SQS redeliver every event that went into this sum
+            LOGGER.error("{} | {} | {} | {} events", failed.getTenantId(), failed.getProductCode(),
+                    failed.getQuantity(), failed.getEvents());
+            for (String messageId : failed.getMessageIds()) {
+                retry.add(SQSBatchResponse.BatchItemFailure.builder()
+                        .withItemIdentifier(messageId)
+                        .build()
+                );
+            }
+        }
+        long totalTimeMillis = System.currentTimeMillis() - startTimeMillis;
+        LOGGER.info("ProcessBillingEvent::processBillingEventQueue {} messages {} items exec {}",
+                event.getRecords().size(), usage.size(), totalTimeMillis);
+        return SQSBatchResponse.builder().withBatchItemFailures(retry).build();
+    }
+}
@@ -24,13 +24,25 @@ public class AggregationEntry {
     private final String productCode;
     private final Integer quantity;
     private final String idempotencyKey;
+    private final String fallbackIdempotencyKey;
 
     public AggregationEntry(String tenantID, Instant periodStart, String productCode, Integer quantity, String idempotencyKey) {
-       this.tenantID = tenantID;
-       this.periodStart = periodStart;
-       this.productCode = productCode;
-       this.quantity = quantity;
-       this.idempotencyKey = idempotencyKey;
+        this(tenantID, periodStart, productCode, quantity, idempotencyKey, null);
+    }
+
+    /**
+     * Entry that can be published again under a second key.
+     * @param fallbackIdempotencyKey key to publish with if the billing provider has already seen the
+     *     idempotency key with other parameters
+     */
+    public AggregationEntry(String tenantID, Instant periodStart, String productCode, Integer quantity,
+                            String idempotencyKey, String fallbackIdempotencyKey) {
+        this.tenantID = tenantID;
+        this.periodStart = periodStart;
+        this.productCode = productCode;
+        this.quantity = quantity;
+        this.idempotencyKey = idempotencyKey;
+        this.fallbackIdempotencyKey = fallbackIdempotencyKey;
     }
 
     public String getTenantID() { return tenantID; }
@@ -42,4 +54,8 @@ public class AggregationEntry {
     public Integer getQuantity() { return quantity; }
 
     public String getIdempotencyKey() { return idempotencyKey; }
+
+    public String getFallbackIdempotencyKey() {
+        return fallbackIdempotencyKey;
+    }
 }
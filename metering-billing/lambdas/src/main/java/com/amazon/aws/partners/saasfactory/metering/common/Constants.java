@@ -38,27 +38,49 @@ public final class Constants {
     public static final String ADD_TO_AGGREGATION_EXPRESSION_VALUE = ":aggregationValue";
     public static final String AGGREGATION_ENTRY_PREFIX = "AGGREGATE";
     public static final String AGGREGATION_EXPRESSION_VALUE = ":aggregate";
+    public static final String AGGREGATION_CHECKPOINT_SORT_KEY_VALUE = "CHECKPOINT#AGGREGATION";
+    public static final String AGGREGATION_CONCURRENCY_ENV_VARIABLE = "AGGREGATION_CONCURRENCY";
     public static final String ATTRIBUTE_DELIMITER = "#";
+    public static final String CHECKPOINT_TIME_ATTRIBUTE_NAME = "checkpoint_time";
     public static final String CONFIG_EXPRESSION_NAME = "#configurationAttributeName";
     public static final String CONFIG_EXPRESSION_VALUE = ":config";
     public static final String CONFIG_INDEX_NAME_ENV_VARIABLE = "DYNAMODB_CONFIG_INDEX_NAME";
     public static final String CONFIG_SORT_KEY_VALUE = "CONFIG";
+    public static final String EVENT_COUNT_INITIALIZATION_EXPRESSION_VALUE = ":initialCount";
     public static final String EVENT_COUNT_INITIALIZATION_VALUE = "0";
     public static final String EVENT_PREFIX = "EVENT";
+    public static final String EVENT_CUTOFF_ATTRIBUTE_VALUE = ":eventCutoff";
     public static final String EVENT_PREFIX_ATTRIBUTE_VALUE = ":event";
     public static final String EXTERNAL_PRODUCT_CODE_EXPRESSION_VALUE = ":externalProductCode";
+    public static final String IDEMPOTENCY_KEY_EXPRESSION_NAME = "#idempotencyKey";
+    public static final String IDEMPOTENCY_KEY_EXPRESSION_VALUE = ":idempotencyKey";
     public static final String IDEMPOTENTCY_KEY_ATTRIBUTE_NAME = "idempotency_key";
+    public static final String IDEMPOTENCY_KEY_PER_PRODUCT_ATTRIBUTE_NAME = "idempotency_key_per_product";
+    public static final String IDEMPOTENCY_KEY_PER_PRODUCT_EXPRESSION_NAME = "#idempotencyKeyPerProduct";
+    public static final String IDEMPOTENCY_KEY_PER_PRODUCT_EXPRESSION_VALUE = ":idempotencyKeyPerProduct";
     public static final String INTERNAL_PRODUCT_CODE_EXPRESSION_NAME = "#internalProductCode";
     public static final String INTERNAL_PRODUCT_CODE_INITIALIZATION_VALUE = "";
     public static final String KEY_SUBMITTED_EXPRESSION_VALUE = ":confirmPublished";
+    public static final String PENDING_PUBLISH_ATTRIBUTE_NAME = "pending_publish";
+    public static final String PENDING_PUBLISH_BACKFILL_SORT_KEY_VALUE = "MIGRATION#PENDING_PUBLISH";
+    public static final String PENDING_PUBLISH_EXPRESSION_NAME = "#pendingPublish";
     public static final String PRIMARY_KEY_EXPRESSION_NAME = "#datatype";
     public static final String PRIMARY_KEY_NAME = "data_type";
     public static final String PRODUCT_CODE_ATTRIBUTE_NAME = "product_code";
+    public static final String PRODUCT_CODE_EXPRESSION_NAME = "#productCode";
+    public static final String PRODUCT_COUNT_EXPRESSION_VALUE = ":productCount";
+    public static final String PUBLISHED_QUANTITY_ATTRIBUTE_NAME = "published_quantity";
+    public static final String PUBLISHED_QUANTITY_EXPRESSION_NAME = "#publishedQuantity";
+    public static final String PUBLISHED_QUANTITY_EXPRESSION_VALUE = ":publishedQuantities";
     public static final String QUANTITY_ATTRIBUTE_NAME = "quantity";
     public static final String QUANTITY_EXPRESSION_NAME = "#quantityName";
+    public static final String QUANTITY_EXPRESSION_VALUE = ":quantities";
+    public static final String RUN_ID_ATTRIBUTE_NAME = "run_id";
     public static final String SORT_KEY_EXPRESSION_NAME = "#subtype";
     public static final String SORT_KEY_NAME = "sub_type";
     public static final String STRIPE_IDEMPOTENCY_REPLAYED = "idempotent-replayed";
+    public static final String STRIPE_PUBLISH_CONCURRENCY_ENV_VARIABLE = "STRIPE_PUBLISH_CONCURRENCY";
+    public static final String STRIPE_REQUESTS_PER_SECOND_ENV_VARIABLE = "STRIPE_REQUESTS_PER_SECOND";
     public static final String STRIPE_SECRET_ARN_ENV_VARIABLE = "STRIPE_SECRET_ARN";
     public static final String SUBMITTED_KEY_ATTRIBUTE_NAME = "published_to_billing_provider";
     public static final String SUBMITTED_KEY_EXPRESSION_NAME = "#publishName";
@@ -67,6 +89,8 @@ public final class Constants {
     public static final String TABLE_ENV_VARIABLE = "DYNAMODB_TABLE_NAME";
     public static final String TENANT_ID_EXPRESSION_VALUE = ":tenantID";
     public static final String TENANT_PREFIX = "TENANT";
+    public static final String TENANT_PRODUCT_ONBOARD_DETAIL_TYPE = "Tenant Product Onboard";
+    public static final String UNPUBLISHED_INDEX_NAME_ENV_VARIABLE = "DYNAMODB_UNPUBLISHED_INDEX_NAME";
     public static final String UUID_DELIMITER = "-";
     private final static Region AWS_REGION = Region.of(System.getenv(SdkSystemSetting.AWS_REGION.environmentVariable()));
 
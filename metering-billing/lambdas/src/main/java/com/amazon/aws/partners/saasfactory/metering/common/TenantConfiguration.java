@@ -114,6 +114,11 @@ public class TenantConfiguration {
     }
 
     public static TenantConfiguration getTenantConfiguration(String tenantID, String tableName, DynamoDbClient ddb, Logger logger) {
+        return getTenantConfiguration(tenantID, tableName, ddb, logger, false);
+    }
+
+    public static TenantConfiguration getTenantConfiguration(String tenantID, String tableName, DynamoDbClient ddb,
+                                                             Logger logger, boolean consistentRead) {
 
         Map<String, AttributeValue> compositeKey = new HashMap<>();
         AttributeValue primaryKeyValue = AttributeValue.builder()
@@ -128,6 +133,7 @@ public class TenantConfiguration {
         GetItemRequest request = GetItemRequest.builder()
                 .tableName(tableName)
                 .key(compositeKey)
+                .consistentRead(consistentRead)
                 .build();
 
         Map<String, AttributeValue> item;
@@ -0,0 +1,162 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.metering.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+
+/**
+ * Tenant billing configurations cached for the life of a warm Lambda execution environment.
+ *
+ * <p>Every metering function needs to know which tenants are set up for billing. Instead of reading the config
+ * items on each invocation, the whole set is loaded with one paginated query on the config index and kept
+ * for a few minutes. Lookups for a tenant that isn't cached fall back to a consistent GetItem. Misses aren't
+ * cached, so usage from a tenant is billed as soon as its config exists. Onboarding a product for a tenant
+ * changes its config, so Tenant Product Onboard events should be passed to {@link #invalidate(Map)}.
+ * Functions that don't see those events should call {@link #preload()} at the start of each run instead of
+ * relying on the cached set. Safe to share between threads.
+ */
+public class TenantConfigurationCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantConfigurationCache.class);
+    private static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    private final String tableName;
+    private final DynamoDbClient ddb;
+    private final long ttlMillis;
+    // Keyed by the config item partition key, TENANT#<tenant id>
+    private final Map<String, Entry> tenants = new ConcurrentHashMap<>();
+    private volatile List<TenantConfiguration> all;
+    private volatile long allLoadedAt;
+
+    public TenantConfigurationCache(String tableName, DynamoDbClient ddb) {
+        this(tableName, ddb, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Cache with its own time to live, mostly for tests.
+     * @param ttlMillis how long a loaded configuration is used before it's read again
+     */
+    public TenantConfigurationCache(String tableName, DynamoDbClient ddb, long ttlMillis) {
+        this.tableName = tableName;
+        this.ddb = ddb;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Every tenant configuration, loaded in bulk from the config index if the cached set is stale.
+     * @return the tenant configurations, or null if they couldn't be loaded
+     */
+    public List<TenantConfiguration> getAll() {
+        List<TenantConfiguration> cached = all;
+        if (cached != null && System.currentTimeMillis() - allLoadedAt < ttlMillis) {
+            return cached;
+        }
+        return preload();
+    }
+
+    /**
+     * Replace the cache with every tenant configuration from the config index.
+     * @return the tenant configurations, or null if they couldn't be loaded
+     */
+    public synchronized List<TenantConfiguration> preload() {
+        final long startTimeMillis = System.currentTimeMillis();
+        List<TenantConfiguration> loaded = TenantConfiguration.getTenantConfigurations(tableName, ddb, LOGGER);
+        if (loaded == null) {
+            // Keep what we had rather than caching a failed read
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        tenants.clear();
+        for (TenantConfiguration tenant : loaded) {
+            tenants.put(tenant.getTenantID(), new Entry(tenant, now + ttlMillis));
+        }
+        all = Collections.unmodifiableList(new ArrayList<>(loaded));
+        allLoadedAt = now;
+        LOGGER.info("TenantConfigurationCache::preload {} tenants exec {}", loaded.size(), now - startTimeMillis);
+        return all;
+    }
+
+    /**
+     * One tenant's configuration, read from the table if it isn't cached.
+     * @param tenantID the tenant id without the TENANT# prefix
+     * @return the tenant's configuration, or null if the tenant isn't set up for billing
+     */
+    public TenantConfiguration get(String tenantID) {
+        String key = formatTenantEntry(tenantID);
+        long now = System.currentTimeMillis();
+        Entry entry = tenants.get(key);
+        if (entry != null && now < entry.expires) {
+            return entry.tenant;
+        }
+        // The config item may have been written moments ago by onboarding
+        TenantConfiguration tenant = TenantConfiguration.getTenantConfiguration(tenantID, tableName, ddb, LOGGER,
+                true);
+        if (tenant != null) {
+            tenants.put(key, new Entry(tenant, now + ttlMillis));
+        } else {
+            tenants.remove(key);
+        }
+        return tenant;
+    }
+
+    /**
+     * Forget the tenant so its configuration is read again on the next lookup.
+     */
+    public void invalidate(String tenantID) {
+        tenants.remove(formatTenantEntry(tenantID));
+        // The bulk list may be missing this tenant or have its old subscription mapping
+        all = null;
+    }
+
+    /**
+     * Invalidate the tenant from a Tenant Product Onboard event.
+     * @param event the EventBridge event
+     * @return true if the event was an onboarding event
+     */
+    public boolean invalidate(Map<String, Object> event) {
+        if (event == null || !TENANT_PRODUCT_ONBOARD_DETAIL_TYPE.equals(event.get("detail-type"))
+                || !(event.get("detail") instanceof Map)) {
+            return false;
+        }
+        Object tenantID = ((Map<String, Object>) event.get("detail")).get("tenantId");
+        if (tenantID != null) {
+            LOGGER.info("Invalidating cached configuration for onboarded tenant {}", tenantID);
+            invalidate(String.valueOf(tenantID));
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        private final TenantConfiguration tenant;
+        private final long expires;
+
+        private Entry(TenantConfiguration tenant, long expires) {
+            this.tenant = tenant;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AggregationBatchTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void testTruncate() {
+        assertEquals(0L, AggregationBatch.truncate(0L));
+        assertEquals(0L, AggregationBatch.truncate(MINUTE - 1));
+        assertEquals(MINUTE, AggregationBatch.truncate(MINUTE));
+        assertEquals(1597192140000L, AggregationBatch.truncate(1597192178924L));
+        // Before the epoch still rounds down to the start of the period
+        assertEquals(-MINUTE, AggregationBatch.truncate(-1L));
+    }
+
+    @Test
+    public void testPeriodStart() {
+        assertEquals(1597192140000L, AggregationBatch.periodStart("EVENT#1597192178924#0e3a9f1b2c4d"));
+        assertEquals(1597192140000L, AggregationBatch.periodStart("EVENT#1597192178924#"));
+    }
+
+    @Test
+    public void testPeriodStartMalformed() {
+        assertEquals(-1L, AggregationBatch.periodStart("EVENT"));
+        assertEquals(-1L, AggregationBatch.periodStart("EVENT#1597192178924"));
+        assertEquals(-1L, AggregationBatch.periodStart("EVENT##0e3a9f1b2c4d"));
+        assertEquals(-1L, AggregationBatch.periodStart("EVENT#notanumber#0e3a9f1b2c4d"));
+        assertEquals(-1L, AggregationBatch.periodStart("CONFIG"));
+    }
+
+    @Test
+    public void testSumsByProductCode() {
+        AggregationBatch batch = new AggregationBatch();
+        assertTrue(batch.isEmpty());
+        batch.add(MINUTE, "EVENT#60001#a", "product_requests", 2L);
+        batch.add(MINUTE, "EVENT#60002#b", "product_storage", 5L);
+        batch.add(MINUTE, "EVENT#60003#c", "product_requests", 3L);
+
+        assertFalse(batch.isEmpty());
+        assertEquals(MINUTE, batch.periodStart());
+        assertEquals(3, batch.events());
+        assertEquals("EVENT#60003#c", batch.eventKey(2));
+        assertEquals(2, batch.products());
+        assertEquals("product_requests", batch.productCode(0));
+        assertEquals(5L, batch.quantity(0));
+        assertEquals("product_storage", batch.productCode(1));
+        assertEquals(5L, batch.quantity(1));
+    }
+
+    @Test
+    public void testAcceptsSamePeriodUntilFull() {
+        AggregationBatch batch = new AggregationBatch();
+        assertTrue(batch.accepts(MINUTE));
+        for (int i = 0; i < AggregationBatch.CAPACITY; i++) {
+            assertTrue(batch.accepts(MINUTE));
+            batch.add(MINUTE, "EVENT#" + (MINUTE + i) + "#n", "product_requests", 1L);
+        }
+        assertFalse(batch.accepts(MINUTE));
+        assertEquals(AggregationBatch.CAPACITY, batch.quantity(0));
+        try {
+            batch.add(MINUTE, "EVENT#" + (2 * MINUTE - 1) + "#n", "product_requests", 1L);
+            fail("Expected a full batch to reject another event");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRejectsDifferentPeriod() {
+        AggregationBatch batch = new AggregationBatch();
+        batch.add(MINUTE, "EVENT#60001#a", "product_requests", 1L);
+        assertFalse(batch.accepts(2 * MINUTE));
+        try {
+            batch.add(2 * MINUTE, "EVENT#120001#b", "product_requests", 1L);
+            fail("Expected a batch to reject an event from another period");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClearResetsForReuse() {
+        AggregationBatch batch = new AggregationBatch();
+        batch.add(MINUTE, "EVENT#60001#a", "product_requests", 7L);
+        batch.clear();
+
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.events());
+        assertEquals(0, batch.products());
+        // An empty batch takes any period
+        assertTrue(batch.accepts(2 * MINUTE));
+        batch.add(2 * MINUTE, "EVENT#120001#b", "product_storage", 1L);
+        assertEquals(2 * MINUTE, batch.periodStart());
+        assertEquals("product_storage", batch.productCode(0));
+        assertEquals(1L, batch.quantity(0));
+    }
+}
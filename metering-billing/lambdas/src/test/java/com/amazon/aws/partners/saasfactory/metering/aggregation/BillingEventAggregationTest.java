@@ -0,0 +1,399 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import com.amazon.aws.partners.saasfactory.metering.common.TenantConfigurationCache;
+import com.amazon.aws.partners.saasfactory.saasboost.Utils;
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+import static org.junit.Assert.*;
+
+// Runs the handler against an in-memory stand-in for the metering table. Relies on the DYNAMODB_TABLE_NAME
+// and DYNAMODB_CONFIG_INDEX_NAME environment variables Maven sets for the tests.
+public class BillingEventAggregationTest {
+
+    private static final long PERIOD_MILLIS = TRUNCATION_UNIT.getDuration().toMillis();
+
+    private MeteringTable table;
+
+    @Before
+    public void setup() {
+        table = new MeteringTable();
+    }
+
+    @Test
+    public void testAggregatesEveryTenant() {
+        long period = AggregationBatch.truncate(System.currentTimeMillis()) - 10 * PERIOD_MILLIS;
+        for (int t = 0; t < 5; t++) {
+            String tenant = table.addTenant("tenant-" + t);
+            // More events than fit in one transaction and more than one query page
+            for (int e = 0; e < 60; e++) {
+                table.addEvent(tenant, period + e, "product_requests", 2L);
+            }
+            table.addEvent(tenant, period + PERIOD_MILLIS, "product_storage", 7L);
+        }
+
+        Map<String, Object> result = aggregate(null, null);
+
+        assertEquals(Boolean.TRUE, result.get("complete"));
+        assertEquals(5, result.get("aggregated"));
+        assertEquals(0, result.get("failed"));
+        assertEquals(0, result.get("interrupted"));
+        for (int t = 0; t < 5; t++) {
+            String tenant = formatTenantEntry("tenant-" + t);
+            assertEquals(120L, table.aggregated(tenant, "product_requests"));
+            assertEquals(7L, table.aggregated(tenant, "product_storage"));
+            assertEquals(61, table.deleted(tenant));
+            assertTrue(table.checkpointed(tenant, (String) result.get("runId")));
+        }
+    }
+
+    @Test
+    public void testFailedTransactionFailsOnlyThatTenant() {
+        long period = AggregationBatch.truncate(System.currentTimeMillis()) - PERIOD_MILLIS;
+        String good = table.addTenant("good");
+        String bad = table.addTenant("bad");
+        table.addEvent(good, period, "product_requests", 1L);
+        table.addEvent(bad, period, "product_requests", 1L);
+        table.failTransactions(bad);
+
+        Map<String, Object> result = aggregate(null, null);
+
+        assertEquals(Boolean.TRUE, result.get("complete"));
+        assertEquals(1, result.get("aggregated"));
+        assertEquals(1, result.get("failed"));
+        assertTrue(table.checkpointed(good, (String) result.get("runId")));
+        // The failed tenant keeps its events for the next run
+        assertFalse(table.checkpointed(bad, (String) result.get("runId")));
+        assertEquals(0, table.deleted(bad));
+    }
+
+    @Test
+    public void testWorkerExceptionFailsOnlyThatTenant() {
+        long period = AggregationBatch.truncate(System.currentTimeMillis()) - PERIOD_MILLIS;
+        String good = table.addTenant("good");
+        String broken = table.addTenant("broken");
+        table.addEvent(good, period, "product_requests", 1L);
+        table.failQueries(broken);
+
+        Map<String, Object> result = aggregate(null, null);
+
+        assertEquals(1, result.get("aggregated"));
+        assertEquals(1, result.get("failed"));
+        assertEquals(1L, table.aggregated(good, "product_requests"));
+    }
+
+    @Test
+    public void testAddsToExistingAggregationEntry() {
+        long period = AggregationBatch.truncate(System.currentTimeMillis()) - PERIOD_MILLIS;
+        String tenant = table.addTenant("existing");
+        // A previous run already created the entry for this period
+        table.addEntry(tenant, period);
+        table.addEvent(tenant, period, "product_requests", 4L);
+        table.addEvent(tenant, period + 1, "product_storage", 1L);
+
+        Map<String, Object> result = aggregate(null, null);
+
+        assertEquals(1, result.get("aggregated"));
+        assertEquals(4L, table.aggregated(tenant, "product_requests"));
+        assertEquals(1L, table.aggregated(tenant, "product_storage"));
+        assertEquals(2, table.deleted(tenant));
+    }
+
+    @Test
+    public void testResumedRunSkipsCheckpointedTenants() {
+        long period = AggregationBatch.truncate(System.currentTimeMillis()) - PERIOD_MILLIS;
+        String done = table.addTenant("done");
+        String todo = table.addTenant("todo");
+        table.checkpoint(done, "run-1");
+        table.addEvent(done, period, "product_requests", 1L);
+        table.addEvent(todo, period, "product_requests", 1L);
+
+        Map<String, Object> result = aggregate("{\"runId\":\"run-1\"}", null);
+
+        assertEquals("run-1", result.get("runId"));
+        assertEquals(1, result.get("skipped"));
+        assertEquals(1, result.get("aggregated"));
+        assertEquals(0, table.deleted(done));
+        assertEquals(1, table.deleted(todo));
+    }
+
+    @Test
+    public void testNoTimeLeftInterruptsTheRun() {
+        long period = AggregationBatch.truncate(System.currentTimeMillis()) - PERIOD_MILLIS;
+        String tenant = table.addTenant("late");
+        table.addEvent(tenant, period, "product_requests", 1L);
+
+        Map<String, Object> result = aggregate("{\"id\":\"scheduled-event\"}", new TestContext(0));
+
+        assertEquals("scheduled-event", result.get("runId"));
+        assertEquals(Boolean.FALSE, result.get("complete"));
+        assertEquals(1, result.get("interrupted"));
+        assertEquals(0, table.deleted(tenant));
+    }
+
+    private Map<String, Object> aggregate(String input, Context context) {
+        BillingEventAggregation aggregation = new BillingEventAggregation(table,
+                new TenantConfigurationCache(System.getenv(TABLE_ENV_VARIABLE), table), 3);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        aggregation.handleRequest(input != null
+                ? new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)) : null, output, context);
+        return Utils.fromJson(new String(output.toByteArray(), StandardCharsets.UTF_8), LinkedHashMap.class);
+    }
+
+    private static final class MeteringTable implements DynamoDbClient {
+
+        private static final int PAGE_SIZE = 40;
+
+        private final Map<String, List<Map<String, AttributeValue>>> events = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, Long>> aggregated = new ConcurrentHashMap<>();
+        private final Map<String, Integer> deleted = new ConcurrentHashMap<>();
+        private final Set<String> entries = ConcurrentHashMap.newKeySet();
+        private final Map<String, String> checkpoints = new ConcurrentHashMap<>();
+        private final Set<String> failTransactions = ConcurrentHashMap.newKeySet();
+        private final Set<String> failQueries = ConcurrentHashMap.newKeySet();
+
+        String addTenant(String tenantId) {
+            String tenant = formatTenantEntry(tenantId);
+            events.put(tenant, Collections.synchronizedList(new ArrayList<>()));
+            return tenant;
+        }
+
+        void addEvent(String tenant, long epochMillis, String productCode, long quantity) {
+            Map<String, AttributeValue> event = new HashMap<>();
+            event.put(PRIMARY_KEY_NAME, AttributeValue.builder().s(tenant).build());
+            event.put(SORT_KEY_NAME, AttributeValue.builder()
+                    .s(EVENT_PREFIX + ATTRIBUTE_DELIMITER + epochMillis + ATTRIBUTE_DELIMITER + UUID.randomUUID())
+                    .build());
+            event.put(PRODUCT_CODE_ATTRIBUTE_NAME, AttributeValue.builder().s(productCode).build());
+            event.put(QUANTITY_ATTRIBUTE_NAME, AttributeValue.builder().n(Long.toString(quantity)).build());
+            events.get(tenant).add(event);
+        }
+
+        void addEntry(String tenant, long periodStart) {
+            entries.add(tenant + formatAggregationEntry(periodStart));
+        }
+
+        void checkpoint(String tenant, String runId) {
+            checkpoints.put(tenant, runId);
+        }
+
+        void failTransactions(String tenant) {
+            failTransactions.add(tenant);
+        }
+
+        void failQueries(String tenant) {
+            failQueries.add(tenant);
+        }
+
+        long aggregated(String tenant, String productCode) {
+            return aggregated.getOrDefault(tenant, Collections.emptyMap()).getOrDefault(productCode, 0L);
+        }
+
+        int deleted(String tenant) {
+            return deleted.getOrDefault(tenant, 0);
+        }
+
+        boolean checkpointed(String tenant, String runId) {
+            return runId.equals(checkpoints.get(tenant));
+        }
+
+        @Override
+        public QueryResponse query(QueryRequest request) {
+            List<Map<String, AttributeValue>> items;
+            if (request.indexName() != null) {
+                // Tenant configurations on the config index
+                items = new ArrayList<>();
+                for (String tenant : events.keySet()) {
+                    Map<String, AttributeValue> config = new HashMap<>();
+                    config.put(PRIMARY_KEY_NAME, AttributeValue.builder().s(tenant).build());
+                    config.put(SORT_KEY_NAME, AttributeValue.builder().s(CONFIG_SORT_KEY_VALUE).build());
+                    config.put(SUBSCRIPTION_MAPPING_ATTRIBUTE_NAME, AttributeValue.builder()
+                            .m(Collections.emptyMap())
+                            .build());
+                    items.add(config);
+                }
+                return QueryResponse.builder().items(items).build();
+            }
+            String tenant = request.expressionAttributeValues().get(TENANT_ID_EXPRESSION_VALUE).s();
+            if (failQueries.contains(tenant)) {
+                throw new IllegalStateException("Query failed for " + tenant);
+            }
+            synchronized (events.get(tenant)) {
+                items = new ArrayList<>(events.get(tenant));
+            }
+            items.sort(Comparator.comparing(item -> item.get(SORT_KEY_NAME).s()));
+            // Pages pick up after the last key like DynamoDB does, so deletes between pages don't shift them
+            if (request.hasExclusiveStartKey()) {
+                String startKey = request.exclusiveStartKey().get(SORT_KEY_NAME).s();
+                items.removeIf(item -> item.get(SORT_KEY_NAME).s().compareTo(startKey) <= 0);
+            }
+            QueryResponse.Builder response = QueryResponse.builder()
+                    .items(items.subList(0, Math.min(items.size(), PAGE_SIZE)));
+            if (items.size() > PAGE_SIZE) {
+                Map<String, AttributeValue> last = items.get(PAGE_SIZE - 1);
+                response.lastEvaluatedKey(Map.of(PRIMARY_KEY_NAME, last.get(PRIMARY_KEY_NAME),
+                        SORT_KEY_NAME, last.get(SORT_KEY_NAME)));
+            }
+            return response.build();
+        }
+
+        @Override
+        public GetItemResponse getItem(GetItemRequest request) {
+            String tenant = request.key().get(PRIMARY_KEY_NAME).s();
+            Map<String, AttributeValue> item = new HashMap<>();
+            if (AGGREGATION_CHECKPOINT_SORT_KEY_VALUE.equals(request.key().get(SORT_KEY_NAME).s())
+                    && checkpoints.containsKey(tenant)) {
+                item.put(RUN_ID_ATTRIBUTE_NAME, AttributeValue.builder().s(checkpoints.get(tenant)).build());
+            }
+            return GetItemResponse.builder().item(item).build();
+        }
+
+        @Override
+        public PutItemResponse putItem(PutItemRequest request) {
+            Map<String, AttributeValue> item = request.item();
+            assertEquals(AGGREGATION_CHECKPOINT_SORT_KEY_VALUE, item.get(SORT_KEY_NAME).s());
+            checkpoints.put(item.get(PRIMARY_KEY_NAME).s(), item.get(RUN_ID_ATTRIBUTE_NAME).s());
+            return PutItemResponse.builder().build();
+        }
+
+        @Override
+        public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+            List<TransactWriteItem> items = request.transactItems();
+            assertTrue(items.size() <= MAXIMUM_BATCH_SIZE);
+            Update update = items.get(0).update();
+            String tenant = update.key().get(PRIMARY_KEY_NAME).s();
+            if (failTransactions.contains(tenant)) {
+                throw TransactionCanceledException.builder().message("Transaction cancelled").build();
+            }
+            Map<String, Long> quantities = aggregated.computeIfAbsent(tenant, k -> new ConcurrentHashMap<>());
+            AttributeValue created = update.expressionAttributeValues().get(QUANTITY_EXPRESSION_VALUE);
+            if (created != null) {
+                // Creating an aggregation entry is conditional on it not being there yet
+                if (!entries.add(tenant + update.key().get(SORT_KEY_NAME).s())) {
+                    throw TransactionCanceledException.builder()
+                            .message("Transaction cancelled")
+                            .cancellationReasons(CancellationReason.builder().code("ConditionalCheckFailed").build())
+                            .build();
+                }
+                created.m().forEach((productCode, quantity) ->
+                        quantities.merge(productCode, Long.valueOf(quantity.n()), Long::sum));
+            } else {
+                for (Map.Entry<String, String> name : update.expressionAttributeNames().entrySet()) {
+                    if (name.getKey().startsWith(ADD_TO_AGGREGATION_EXPRESSION_NAME)) {
+                        String index = name.getKey().substring(ADD_TO_AGGREGATION_EXPRESSION_NAME.length());
+                        AttributeValue quantity = update.expressionAttributeValues()
+                                .get(ADD_TO_AGGREGATION_EXPRESSION_VALUE + index);
+                        quantities.merge(name.getValue(), Long.valueOf(quantity.n()), Long::sum);
+                    }
+                }
+            }
+            List<Map<String, AttributeValue>> tenantEvents = events.get(tenant);
+            for (TransactWriteItem item : items.subList(1, items.size())) {
+                String eventKey = item.delete().key().get(SORT_KEY_NAME).s();
+                tenantEvents.removeIf(event -> event.get(SORT_KEY_NAME).s().equals(eventKey));
+            }
+            deleted.merge(tenant, items.size() - 1, Integer::sum);
+            return TransactWriteItemsResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class TestContext implements Context {
+        private final int remainingTimeInMillis;
+
+        private TestContext(int remainingTimeInMillis) {
+            this.remainingTimeInMillis = remainingTimeInMillis;
+        }
+
+        @Override
+        public String getAwsRequestId() {
+            return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return null;
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return null;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "BillingEventAggregation";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return "$LATEST";
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return null;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return remainingTimeInMillis;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 512;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+import static org.junit.Assert.*;
+
+public class PendingPublishBackfillTest {
+
+    private static final String TENANT = "TENANT#tenant-a";
+
+    @Test
+    public void testBackfillsOnce() {
+        BackfillTable table = new BackfillTable(Arrays.asList(formatAggregationEntry(60000L),
+                formatAggregationEntry(120000L), formatAggregationEntry(180000L)));
+        // Published between the query and the update
+        table.conditionFails.add(formatAggregationEntry(120000L));
+        PendingPublishBackfill backfill = new PendingPublishBackfill(table, "sb-test-billing");
+
+        assertTrue(backfill.backfill(TENANT, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(formatAggregationEntry(60000L), formatAggregationEntry(180000L)),
+                table.pending);
+        for (UpdateItemRequest update : table.updates) {
+            assertEquals(TENANT, update.expressionAttributeValues().get(TENANT_ID_EXPRESSION_VALUE).s());
+            assertNotNull(update.conditionExpression());
+        }
+        assertEquals(3, table.queries);
+        assertTrue(table.marker);
+
+        // The marker is there now, so the tenant's entries aren't queried again
+        assertTrue(backfill.backfill(TENANT, Long.MAX_VALUE));
+        assertEquals(3, table.queries);
+        assertEquals(3, table.updates.size());
+    }
+
+    @Test
+    public void testRetriesAfterError() {
+        BackfillTable table = new BackfillTable(Collections.singletonList(formatAggregationEntry(60000L)));
+        table.queryFails = true;
+        PendingPublishBackfill backfill = new PendingPublishBackfill(table, "sb-test-billing");
+
+        assertFalse(backfill.backfill(TENANT, Long.MAX_VALUE));
+        assertFalse(table.marker);
+
+        table.queryFails = false;
+        assertTrue(backfill.backfill(TENANT, Long.MAX_VALUE));
+        assertEquals(Collections.singletonList(formatAggregationEntry(60000L)), table.pending);
+        assertTrue(table.marker);
+    }
+
+    @Test
+    public void testSeedsPublishedQuantityOfSubmittedEntries() {
+        BackfillTable table = new BackfillTable(Arrays.asList(formatAggregationEntry(60000L),
+                formatAggregationEntry(120000L)));
+        table.submitted.add(formatAggregationEntry(60000L));
+        PendingPublishBackfill backfill = new PendingPublishBackfill(table, "sb-test-billing");
+
+        assertTrue(backfill.backfill(TENANT, Long.MAX_VALUE));
+        assertEquals(Collections.singletonList(formatAggregationEntry(120000L)), table.pending);
+        assertEquals(Collections.singletonList(formatAggregationEntry(60000L)), table.seeded);
+        UpdateItemRequest seed = table.updates.get(0);
+        assertEquals(String.format("SET %s = %s", PUBLISHED_QUANTITY_EXPRESSION_NAME, QUANTITY_EXPRESSION_NAME),
+                seed.updateExpression());
+        assertTrue(seed.conditionExpression().contains("attribute_not_exists(" + PUBLISHED_QUANTITY_EXPRESSION_NAME));
+    }
+
+    @Test
+    public void testStopsAtDeadline() {
+        BackfillTable table = new BackfillTable(Collections.singletonList(formatAggregationEntry(60000L)));
+        PendingPublishBackfill backfill = new PendingPublishBackfill(table, "sb-test-billing");
+
+        assertFalse(backfill.backfill(TENANT, System.currentTimeMillis() - 1));
+        assertEquals(0, table.queries);
+        assertFalse(table.marker);
+    }
+
+    private static final class BackfillTable implements DynamoDbClient {
+        private final List<String> unsubmitted;
+        private final Set<String> submitted = new HashSet<>();
+        private final Set<String> conditionFails = new HashSet<>();
+        private final List<String> pending = new ArrayList<>();
+        private final List<String> seeded = new ArrayList<>();
+        private final List<UpdateItemRequest> updates = new ArrayList<>();
+        private boolean queryFails;
+        private boolean marker;
+        private int queries;
+
+        private BackfillTable(List<String> unsubmitted) {
+            this.unsubmitted = unsubmitted;
+        }
+
+        @Override
+        public GetItemResponse getItem(GetItemRequest request) {
+            assertEquals(PENDING_PUBLISH_BACKFILL_SORT_KEY_VALUE, request.key().get(SORT_KEY_NAME).s());
+            Map<String, AttributeValue> item = new HashMap<>();
+            if (marker) {
+                item.putAll(request.key());
+            }
+            return GetItemResponse.builder().item(item).build();
+        }
+
+        @Override
+        public PutItemResponse putItem(PutItemRequest request) {
+            assertEquals(PENDING_PUBLISH_BACKFILL_SORT_KEY_VALUE, request.item().get(SORT_KEY_NAME).s());
+            marker = true;
+            return PutItemResponse.builder().build();
+        }
+
+        @Override
+        public QueryResponse query(QueryRequest request) {
+            if (queryFails) {
+                throw InternalServerErrorException.builder().message("Internal server error").build();
+            }
+            queries++;
+            // One key per page
+            int from = request.hasExclusiveStartKey()
+                    ? unsubmitted.indexOf(request.exclusiveStartKey().get(SORT_KEY_NAME).s()) + 1 : 0;
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(PRIMARY_KEY_NAME, AttributeValue.builder().s(TENANT).build());
+            key.put(SORT_KEY_NAME, AttributeValue.builder().s(unsubmitted.get(from)).build());
+            Map<String, AttributeValue> item = new HashMap<>(key);
+            item.put(SUBMITTED_KEY_ATTRIBUTE_NAME, AttributeValue.builder()
+                    .bool(submitted.contains(unsubmitted.get(from)))
+                    .build());
+            QueryResponse.Builder response = QueryResponse.builder().items(Collections.singletonList(item));
+            if (from + 1 < unsubmitted.size()) {
+                response.lastEvaluatedKey(key);
+            }
+            return response.build();
+        }
+
+        @Override
+        public UpdateItemResponse updateItem(UpdateItemRequest request) {
+            updates.add(request);
+            String sortKey = request.key().get(SORT_KEY_NAME).s();
+            if (conditionFails.contains(sortKey)) {
+                throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+            }
+            assertEquals(2, request.key().size());
+            if (request.updateExpression().contains(PUBLISHED_QUANTITY_EXPRESSION_NAME)) {
+                seeded.add(sortKey);
+            } else {
+                pending.add(sortKey);
+            }
+            return UpdateItemResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
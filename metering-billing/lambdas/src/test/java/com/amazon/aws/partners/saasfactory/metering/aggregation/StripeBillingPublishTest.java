@@ -0,0 +1,126 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import com.amazon.aws.partners.saasfactory.metering.common.AggregationEntry;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.time.Instant;
+import java.util.*;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+import static org.junit.Assert.*;
+
+public class StripeBillingPublishTest {
+
+    private static final long PERIOD_START = 1597192140000L;
+
+    private static Map<String, AttributeValue> aggregationItem(Map<String, Integer> quantities,
+                                                               Map<String, Integer> published,
+                                                               boolean keyPerProduct) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(PRIMARY_KEY_NAME, AttributeValue.builder().s("TENANT#tenant-a").build());
+        item.put(SORT_KEY_NAME, AttributeValue.builder().s(formatAggregationEntry(PERIOD_START)).build());
+        item.put(QUANTITY_ATTRIBUTE_NAME, numbers(quantities));
+        if (published != null) {
+            item.put(PUBLISHED_QUANTITY_ATTRIBUTE_NAME, numbers(published));
+        }
+        item.put(IDEMPOTENTCY_KEY_ATTRIBUTE_NAME, AttributeValue.builder().s("0e3a9f1b2c4d").build());
+        if (keyPerProduct) {
+            item.put(IDEMPOTENCY_KEY_PER_PRODUCT_ATTRIBUTE_NAME, AttributeValue.builder().bool(true).build());
+        }
+        return item;
+    }
+
+    private static AttributeValue numbers(Map<String, Integer> quantities) {
+        Map<String, AttributeValue> map = new LinkedHashMap<>();
+        quantities.forEach((productCode, quantity) ->
+                map.put(productCode, AttributeValue.builder().n(quantity.toString()).build()));
+        return AttributeValue.builder().m(map).build();
+    }
+
+    private static Map<String, AggregationEntry> byProductCode(List<AggregationEntry> entries) {
+        Map<String, AggregationEntry> byProductCode = new HashMap<>();
+        for (AggregationEntry entry : entries) {
+            byProductCode.put(entry.getProductCode(), entry);
+        }
+        return byProductCode;
+    }
+
+    @Test
+    public void testSingleProductKeepsEntryKey() {
+        List<AggregationEntry> entries = StripeBillingPublish.toAggregationEntries("TENANT#tenant-a",
+                aggregationItem(Map.of("product_requests", 12), null, true));
+        assertEquals(1, entries.size());
+        AggregationEntry entry = entries.get(0);
+        assertEquals(Instant.ofEpochMilli(PERIOD_START), entry.getPeriodStart());
+        assertEquals(Integer.valueOf(12), entry.getQuantity());
+        assertEquals("0e3a9f1b2c4d", entry.getIdempotencyKey());
+        assertNull(entry.getFallbackIdempotencyKey());
+    }
+
+    @Test
+    public void testKeyPerProduct() {
+        Map<String, AggregationEntry> entries = byProductCode(StripeBillingPublish.toAggregationEntries(
+                "TENANT#tenant-a", aggregationItem(Map.of("product_requests", 12, "product_storage", 3), null, true)));
+        assertEquals(2, entries.size());
+        assertEquals("0e3a9f1b2c4d#product_requests", entries.get("product_requests").getIdempotencyKey());
+        assertEquals("0e3a9f1b2c4d#product_storage", entries.get("product_storage").getIdempotencyKey());
+        assertNull(entries.get("product_storage").getFallbackIdempotencyKey());
+    }
+
+    @Test
+    public void testOlderEntriesTryTheEntryKeyFirst() {
+        Map<String, AggregationEntry> entries = byProductCode(StripeBillingPublish.toAggregationEntries(
+                "TENANT#tenant-a", aggregationItem(Map.of("product_requests", 12, "product_storage", 3), null, false)));
+        for (AggregationEntry entry : entries.values()) {
+            assertEquals("0e3a9f1b2c4d", entry.getIdempotencyKey());
+            assertEquals("0e3a9f1b2c4d#" + entry.getProductCode(), entry.getFallbackIdempotencyKey());
+        }
+    }
+
+    @Test
+    public void testPublishesOnlyWhatWasAddedSinceLastPublish() {
+        Map<String, AggregationEntry> entries = byProductCode(StripeBillingPublish.toAggregationEntries(
+                "TENANT#tenant-a", aggregationItem(Map.of("product_requests", 15, "product_storage", 3),
+                        Map.of("product_requests", 12, "product_storage", 3), true)));
+        // Nothing new for storage
+        assertEquals(1, entries.size());
+        AggregationEntry entry = entries.get("product_requests");
+        assertEquals(Integer.valueOf(3), entry.getQuantity());
+        assertEquals("0e3a9f1b2c4d#product_requests#12", entry.getIdempotencyKey());
+        assertNull(entry.getFallbackIdempotencyKey());
+    }
+
+    @Test
+    public void testNewProductAfterPublishIsPublishedInFull() {
+        Map<String, AggregationEntry> entries = byProductCode(StripeBillingPublish.toAggregationEntries(
+                "TENANT#tenant-a", aggregationItem(Map.of("product_requests", 12, "product_storage", 3),
+                        Map.of("product_requests", 12), true)));
+        assertEquals(1, entries.size());
+        assertEquals(Integer.valueOf(3), entries.get("product_storage").getQuantity());
+        assertEquals("0e3a9f1b2c4d#product_storage", entries.get("product_storage").getIdempotencyKey());
+    }
+
+    @Test
+    public void testSubmittedOlderEntriesAreFullyPublished() {
+        Map<String, AttributeValue> item = aggregationItem(Map.of("product_requests", 15, "product_storage", 3),
+                null, false);
+        item.put(SUBMITTED_KEY_ATTRIBUTE_NAME, AttributeValue.builder().bool(true).build());
+        assertTrue(StripeBillingPublish.toAggregationEntries("TENANT#tenant-a", item).isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.aggregation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroRate() {
+        new TokenBucket(0d, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroBurst() {
+        new TokenBucket(10d, 0);
+    }
+
+    @Test
+    public void testBurstDoesNotWait() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1d, 5);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire();
+        }
+        // One request per second would take 4 seconds if the burst weren't honored
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testWaitsForRefillOnceEmpty() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10d, 1);
+        bucket.acquire();
+        long start = System.currentTimeMillis();
+        bucket.acquire();
+        bucket.acquire();
+        // Two more tokens at 10 per second take about 200 ms to refill
+        assertTrue(System.currentTimeMillis() - start >= 150);
+    }
+
+    @Test
+    public void testLimitsThreadsTogether() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20d, 1);
+        AtomicInteger acquired = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        bucket.acquire();
+                        acquired.incrementAndGet();
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(12, acquired.get());
+        // The first token is there from the start, the other 11 come in at 20 per second
+        assertTrue(System.currentTimeMillis() - start >= 500);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.billing;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BillingEventBatchTest {
+
+    private static Map<String, Object> billingEvent(Object tenantId, Object productCode, Object quantity) {
+        Map<String, Object> detail = new HashMap<>();
+        detail.put("TenantId", tenantId);
+        detail.put("ProductCode", productCode);
+        detail.put("Quantity", quantity);
+        Map<String, Object> event = new HashMap<>();
+        event.put("detail-type", "BILLING");
+        event.put("detail", detail);
+        return event;
+    }
+
+    @Test
+    public void testSumsByTenantAndProduct() {
+        BillingEventBatch batch = new BillingEventBatch();
+        assertTrue(batch.isEmpty());
+        assertTrue(batch.add("m1", billingEvent("tenant-a", "product_requests", 2)));
+        assertTrue(batch.add("m2", billingEvent("tenant-b", "product_requests", 1)));
+        assertTrue(batch.add("m3", billingEvent("tenant-a", "product_requests", 3L)));
+        assertTrue(batch.add("m4", billingEvent("tenant-a", "product_storage", 10)));
+        assertFalse(batch.isEmpty());
+
+        List<BillingEventBatch.Usage> usage = new ArrayList<>(batch.usage());
+        assertEquals(3, usage.size());
+
+        BillingEventBatch.Usage requests = usage.get(0);
+        assertEquals("tenant-a", requests.getTenantId());
+        assertEquals("product_requests", requests.getProductCode());
+        assertEquals(5L, requests.getQuantity());
+        assertEquals(2, requests.getEvents());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("m1", "m3")), requests.getMessageIds());
+
+        assertEquals("tenant-b", usage.get(1).getTenantId());
+        assertEquals(1L, usage.get(1).getQuantity());
+        assertEquals("product_storage", usage.get(2).getProductCode());
+        assertEquals(10L, usage.get(2).getQuantity());
+    }
+
+    @Test
+    public void testRejectsIncompleteEvents() {
+        BillingEventBatch batch = new BillingEventBatch();
+        assertFalse(batch.add("m1", null));
+        assertFalse(batch.add("m2", new HashMap<>()));
+        assertFalse(batch.add("m3", billingEvent(null, "product_requests", 1)));
+        assertFalse(batch.add("m4", billingEvent("tenant-a", null, 1)));
+        assertFalse(batch.add("m5", billingEvent("tenant-a", "product_requests", null)));
+        assertFalse(batch.add("m6", billingEvent("tenant-a", "product_requests", "1")));
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void testRedeliveredMessageCountedOnceForRetry() {
+        BillingEventBatch batch = new BillingEventBatch();
+        batch.add("m1", billingEvent("tenant-a", "product_requests", 1));
+        batch.add("m1", billingEvent("tenant-a", "product_requests", 1));
+        BillingEventBatch.Usage usage = batch.usage().iterator().next();
+        assertEquals(2, usage.getEvents());
+        assertEquals(Collections.singleton("m1"), usage.getMessageIds());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUsageIsReadOnly() {
+        BillingEventBatch batch = new BillingEventBatch();
+        batch.add("m1", billingEvent("tenant-a", "product_requests", 1));
+        batch.usage().clear();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.metering.common;
+
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+import static com.amazon.aws.partners.saasfactory.metering.common.Constants.*;
+import static org.junit.Assert.*;
+
+// Relies on the DYNAMODB_CONFIG_INDEX_NAME environment variable Maven sets for the tests
+public class TenantConfigurationCacheTest {
+
+    private ConfigTable table;
+    private TenantConfigurationCache cache;
+
+    @Before
+    public void setup() {
+        table = new ConfigTable();
+        table.configs.put(formatTenantEntry("tenant-a"), "sub_a");
+        table.configs.put(formatTenantEntry("tenant-b"), "sub_b");
+        cache = new TenantConfigurationCache("sb-test-billing", table);
+    }
+
+    @Test
+    public void testGetAllIsCached() {
+        List<TenantConfiguration> tenants = cache.getAll();
+        assertEquals(2, tenants.size());
+        assertSame(tenants, cache.getAll());
+        assertEquals(1, table.queries);
+    }
+
+    @Test
+    public void testPreloadAlwaysReloads() {
+        cache.getAll();
+        table.configs.put(formatTenantEntry("tenant-c"), "sub_c");
+        assertEquals(3, cache.preload().size());
+        assertEquals(2, table.queries);
+    }
+
+    @Test
+    public void testFailedPreloadIsNotCached() {
+        table.queryFails = true;
+        assertNull(cache.preload());
+        table.queryFails = false;
+        assertEquals(2, cache.getAll().size());
+    }
+
+    @Test
+    public void testGetUsesLoadedTenants() {
+        cache.getAll();
+        TenantConfiguration tenant = cache.get("tenant-a");
+        assertNotNull(tenant);
+        assertEquals("sub_a", tenant.getSubscriptionMapping().get("product_requests"));
+        assertTrue(table.reads.isEmpty());
+    }
+
+    @Test
+    public void testMissIsReadConsistentlyAndNotCached() {
+        assertNull(cache.get("tenant-c"));
+        assertEquals(1, table.reads.size());
+        assertTrue(table.reads.get(0).consistentRead());
+
+        // Onboarded right after the miss
+        table.configs.put(formatTenantEntry("tenant-c"), "sub_c");
+        TenantConfiguration tenant = cache.get("tenant-c");
+        assertNotNull(tenant);
+        assertEquals(2, table.reads.size());
+
+        // Hits are cached
+        assertSame(tenant, cache.get("tenant-c"));
+        assertEquals(2, table.reads.size());
+    }
+
+    @Test
+    public void testInvalidateOnboardEvent() {
+        cache.getAll();
+        table.configs.put(formatTenantEntry("tenant-a"), "sub_a2");
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("detail-type", TENANT_PRODUCT_ONBOARD_DETAIL_TYPE);
+        event.put("detail", Collections.singletonMap("tenantId", "tenant-a"));
+        assertTrue(cache.invalidate(event));
+
+        assertEquals("sub_a2", cache.get("tenant-a").getSubscriptionMapping().get("product_requests"));
+        assertEquals(1, table.reads.size());
+        // The bulk list is dropped too
+        cache.getAll();
+        assertEquals(2, table.queries);
+    }
+
+    @Test
+    public void testInvalidateIgnoresOtherEvents() {
+        assertFalse(cache.invalidate((Map<String, Object>) null));
+        Map<String, Object> event = new HashMap<>();
+        event.put("detail-type", "BILLING");
+        event.put("detail", new HashMap<>());
+        assertFalse(cache.invalidate(event));
+    }
+
+    private static final class ConfigTable implements DynamoDbClient {
+        private final Map<String, String> configs = new LinkedHashMap<>();
+        private final List<GetItemRequest> reads = new ArrayList<>();
+        private boolean queryFails;
+        private int queries;
+
+        private Map<String, AttributeValue> config(String tenant) {
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put(PRIMARY_KEY_NAME, AttributeValue.builder().s(tenant).build());
+            item.put(SORT_KEY_NAME, AttributeValue.builder().s(CONFIG_SORT_KEY_VALUE).build());
+            item.put(SUBSCRIPTION_MAPPING_ATTRIBUTE_NAME, AttributeValue.builder()
+                    .m(Collections.singletonMap("product_requests",
+                            AttributeValue.builder().s(configs.get(tenant)).build()))
+                    .build());
+            return item;
+        }
+
+        @Override
+        public QueryResponse query(QueryRequest request) {
+            if (queryFails) {
+                throw InternalServerErrorException.builder().message("Internal server error").build();
+            }
+            queries++;
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (String tenant : configs.keySet()) {
+                items.add(config(tenant));
+            }
+            return QueryResponse.builder().items(items).build();
+        }
+
+        @Override
+        public GetItemResponse getItem(GetItemRequest request) {
+            reads.add(request);
+            String tenant = request.key().get(PRIMARY_KEY_NAME).s();
+            return GetItemResponse.builder()
+                    .item(configs.containsKey(tenant) ? config(tenant) : Collections.emptyMap())
+                    .build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,3 @@
+ALTER TABLE public.metrics ADD COLUMN metric_count NUMERIC(18,0) ENCODE az64;
+ALTER TABLE public.metrics ADD COLUMN metric_min NUMERIC(18,0) ENCODE az64;
+ALTER TABLE public.metrics ADD COLUMN metric_max NUMERIC(18,0) ENCODE az64;
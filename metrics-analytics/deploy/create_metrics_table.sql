@@ -11,6 +11,9 @@ CREATE TABLE IF NOT EXISTS public.metrics
 ,metric_unit VARCHAR(256) ENCODE lzo
 ,metric_value NUMERIC(18,0) ENCODE az64
 ,meta_data VARCHAR(256) ENCODE lzo
+,metric_count NUMERIC(18,0) ENCODE az64
+,metric_min NUMERIC(18,0) ENCODE az64
+,metric_max NUMERIC(18,0) ENCODE az64
 )
 DISTSTYLE AUTO
 ;
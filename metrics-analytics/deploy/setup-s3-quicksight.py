@@ -116,6 +116,18 @@ def SetupQuicksight(client, account_id, quicksight_user_arn, random_string, reds
                             'Name': 'meta_data',
                             'Type': 'STRING'
                         },
+                        {
+                            'Name': 'metric_count',
+                            'Type': 'INTEGER'
+                        },
+                        {
+                            'Name': 'metric_min',
+                            'Type': 'INTEGER'
+                        },
+                        {
+                            'Name': 'metric_max',
+                            'Type': 'INTEGER'
+                        },
                     ]
                 }
             }
@@ -0,0 +1,147 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.saas.metrics;
+
+import com.amazonaws.saas.metrics.MetricEventLogger.Encoding;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the record encodings of MetricEventLogger with the old path that built a new ObjectMapper for
+ * every event. Times are per event, and the bytes per event of each encoding are printed during setup.
+ * <p>
+ * The benchmark is in the SDK's package so it can use the package private encoder. Build and run it from
+ * metrics-java-sdk-benchmarks with
+ * <pre>
+ * mvn package
+ * java -jar target/benchmarks.jar MetricEventEncodingBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricEventEncodingBenchmark {
+
+    private static final int EVENTS = 1000;
+    // Events per record for the aggregated case, well under the record limit for events this size
+    private static final int AGGREGATED = 500;
+
+    @State(Scope.Benchmark)
+    public static class Events {
+        MetricEvent[] events = new MetricEvent[EVENTS];
+
+        @Setup
+        public void setup() {
+            String[] metrics = {"storage", "transfer", "ExecutionTime"};
+            for (int i = 0; i < EVENTS; i++) {
+                events[i] = new MetricEventBuilder()
+                        .withType(MetricEvent.Type.Application)
+                        .withWorkload("Application")
+                        .withContext("TestMetrics")
+                        .withMetric(new MetricBuilder()
+                                .withName(metrics[i % metrics.length])
+                                .withUnit("mb")
+                                .withValue((long) (i * 37 % 5000))
+                                .build())
+                        .withTenant(new TenantBuilder()
+                                .withId("tenant-" + (i % 20))
+                                .withName("tenant-" + (i % 20))
+                                .withTier("Free")
+                                .build())
+                        .addMetaData("user", String.valueOf(i % 100))
+                        .addMetaData("resource", "metrics")
+                        .build();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        MetricEvent next(Events events) {
+            return events.events[next++ % EVENTS];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Encoder {
+        @Param({"JSON", "COMPACT"})
+        public Encoding encoding;
+
+        MetricEventEncoder encoder;
+        RecordBuffer lines = new RecordBuffer(64 * 1024);
+
+        @Setup(Level.Trial)
+        public void setup(Events events) throws IOException {
+            encoder = new MetricEventEncoder(encoding);
+            System.out.printf("%n%s: %.1f bytes per event with a record per event, %.1f with record aggregation%n",
+                    encoding, bytesPerEvent(events, 1), bytesPerEvent(events, AGGREGATED));
+        }
+
+        private double bytesPerEvent(Events events, int eventsPerRecord) throws IOException {
+            long bytes = 0;
+            for (int i = 0; i < EVENTS; i += eventsPerRecord) {
+                lines.reset();
+                for (int j = i; j < Math.min(EVENTS, i + eventsPerRecord); j++) {
+                    encoder.writeLine(events.events[j], lines);
+                }
+                bytes += encoder.encode(lines).length;
+            }
+            return (double) bytes / EVENTS;
+        }
+    }
+
+    @Benchmark
+    public byte[] objectMapperPerEvent(Events events, Cursor cursor) throws IOException {
+        return new ObjectMapper().writeValueAsString(cursor.next(events)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] recordPerEvent(Events events, Cursor cursor, Encoder encoder) throws IOException {
+        encoder.lines.reset();
+        encoder.encoder.writeLine(cursor.next(events), encoder.lines);
+        return encoder.encoder.encode(encoder.lines);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AGGREGATED)
+    public byte[] aggregatedRecord(Events events, Cursor cursor, Encoder encoder) throws IOException {
+        encoder.lines.reset();
+        for (int i = 0; i < AGGREGATED; i++) {
+            encoder.encoder.writeLine(cursor.next(events), encoder.lines);
+        }
+        return encoder.encoder.encode(encoder.lines);
+    }
+}
@@ -17,6 +17,7 @@ package com.amazonaws.saas.metrics;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.Objects;
 
@@ -25,6 +26,10 @@ public class Metric {
     private String name;
     private String unit;
     private Long value;
+    // Only set on events rolled up by the logger's pre-aggregation, where value is the sum
+    private Long count;
+    private Long min;
+    private Long max;
 
     @JsonIgnore
     public boolean isValid() {
@@ -58,8 +63,39 @@ public class Metric {
         this.value = value;
     }
 
+    @JsonGetter("count")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getCount() {
+        return this.count;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    @JsonGetter("min")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getMin() {
+        return this.min;
+    }
+
+    public void setMin(Long min) {
+        this.min = min;
+    }
+
+    @JsonGetter("max")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getMax() {
+        return this.max;
+    }
+
+    public void setMax(Long max) {
+        this.max = max;
+    }
+
     public String toString() {
-        return "Metric{name=" + this.name + ", unit='" + this.unit + '\'' + ", value=" + this.value + '}';
+        return "Metric{name=" + this.name + ", unit='" + this.unit + '\'' + ", value=" + this.value
+                + (this.count != null ? ", count=" + this.count + ", min=" + this.min + ", max=" + this.max : "") + '}';
     }
 
     public boolean equals(Object o) {
@@ -67,14 +103,16 @@ public class Metric {
             return true;
         } else if (o != null && this.getClass() == o.getClass()) {
             Metric metric = (Metric)o;
-            return this.name == metric.name && Objects.equals(this.unit, metric.unit) && Objects.equals(this.value, metric.value);
+            return this.name == metric.name && Objects.equals(this.unit, metric.unit) && Objects.equals(this.value, metric.value)
+                    && Objects.equals(this.count, metric.count) && Objects.equals(this.min, metric.min)
+                    && Objects.equals(this.max, metric.max);
         } else {
             return false;
         }
     }
 
     public int hashCode() {
-        return Objects.hash(new Object[]{this.name, this.unit, this.value});
+        return Objects.hash(new Object[]{this.name, this.unit, this.value, this.count, this.min, this.max});
     }
 
 
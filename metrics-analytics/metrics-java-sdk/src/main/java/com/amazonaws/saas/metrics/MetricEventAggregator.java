@@ -0,0 +1,180 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazonaws.saas.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolls metric events up within a flush window so a workload that emits thousands of identical counters
+ * ships one event per group instead. Events are grouped by tenant id, tenant tier, workload, context, metric
+ * name and unit. Each group becomes a single event whose metric value is the sum of the values, with the
+ * count, min and max alongside, so totals computed from the metric value stay the same. The rolled up event
+ * keeps the type, tenant name and timestamp of the first event in the group. Meta-data is per event and is
+ * left out.
+ */
+final class MetricEventAggregator {
+
+    private final Map<GroupKey, Rollup> rollups = new ConcurrentHashMap<>();
+    private final int maxGroups;
+
+    /**
+     * @param maxGroups the most groups held at once, events for any other group aren't aggregated
+     */
+    MetricEventAggregator(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * @param event the metric event
+     * @return true if the event was added to its group, false if there's no room for a new group
+     */
+    boolean add(MetricEvent event) {
+        GroupKey key = new GroupKey(event);
+        long value = event.getMetric().getValue();
+        while (true) {
+            Rollup rollup = rollups.get(key);
+            if (rollup == null) {
+                if (rollups.size() >= maxGroups) {
+                    return false;
+                }
+                rollup = rollups.computeIfAbsent(key, k -> new Rollup(event));
+            }
+            if (rollup.add(value)) {
+                return true;
+            }
+            // The flusher closed this group between our get and add, start the next one
+            rollups.remove(key, rollup);
+        }
+    }
+
+    /**
+     * Close every group and put its rolled up event on the queue. Only called from the flusher thread.
+     * @return the number of events added to the queue
+     */
+    int drainTo(Queue<MetricEvent> queue) {
+        int events = 0;
+        Iterator<Rollup> it = rollups.values().iterator();
+        while (it.hasNext()) {
+            Rollup rollup = it.next();
+            it.remove();
+            MetricEvent event = rollup.close();
+            if (event != null) {
+                queue.offer(event);
+                events++;
+            }
+        }
+        return events;
+    }
+
+    private static final class GroupKey {
+        private final String tenantId;
+        private final String tier;
+        private final String workload;
+        private final String context;
+        private final String name;
+        private final String unit;
+        private final int hash;
+
+        private GroupKey(MetricEvent event) {
+            this.tenantId = event.getTenant().getId();
+            this.tier = event.getTenant().getTier();
+            this.workload = event.getWorkload();
+            this.context = event.getContext();
+            this.name = event.getMetric().getName();
+            this.unit = event.getMetric().getUnit();
+            int h = Objects.hashCode(tenantId);
+            h = 31 * h + Objects.hashCode(tier);
+            h = 31 * h + Objects.hashCode(workload);
+            h = 31 * h + Objects.hashCode(context);
+            h = 31 * h + Objects.hashCode(name);
+            this.hash = 31 * h + Objects.hashCode(unit);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            GroupKey that = (GroupKey) o;
+            return hash == that.hash
+                    && Objects.equals(tenantId, that.tenantId)
+                    && Objects.equals(tier, that.tier)
+                    && Objects.equals(workload, that.workload)
+                    && Objects.equals(context, that.context)
+                    && Objects.equals(name, that.name)
+                    && Objects.equals(unit, that.unit);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Rollup {
+        private final MetricEvent first;
+        private long sum;
+        private long count;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private boolean closed;
+
+        private Rollup(MetricEvent first) {
+            this.first = first;
+        }
+
+        private synchronized boolean add(long value) {
+            if (closed) {
+                return false;
+            }
+            sum += value;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            return true;
+        }
+
+        private synchronized MetricEvent close() {
+            closed = true;
+            if (count == 0) {
+                return null;
+            }
+            Metric metric = new Metric();
+            metric.setName(first.getMetric().getName());
+            metric.setUnit(first.getMetric().getUnit());
+            metric.setValue(sum);
+            metric.setCount(count);
+            metric.setMin(min);
+            metric.setMax(max);
+            MetricEvent event = new MetricEvent();
+            event.setType(first.getType());
+            event.setWorkload(first.getWorkload());
+            event.setContext(first.getContext());
+            event.setTenant(first.getTenant());
+            event.setMetric(metric);
+            event.setTimestamp(first.getTimestamp());
+            return event;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazonaws.saas.metrics;
+
+import com.amazonaws.saas.metrics.MetricEventLogger.Encoding;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Turns metric events into Firehose record data. Events are written as newline delimited JSON. The compact
+ * encoding leaves out null and empty properties and gzips each record, which Redshift COPY with the GZIP
+ * option and Athena both read. Not thread safe, the logger's flusher owns one.
+ */
+final class MetricEventEncoder {
+
+    // Thread safe and reuse Jackson's recycled buffers across calls
+    private static final ObjectWriter JSON_WRITER = new ObjectMapper().writerFor(MetricEvent.class);
+    private static final ObjectWriter COMPACT_WRITER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
+            .writerFor(MetricEvent.class);
+
+    // Member header with no file name, comment or modification time, the same one GZIPOutputStream writes
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final ObjectWriter writer;
+    private final boolean gzip;
+    // Reused for every record instead of a GZIPOutputStream, which allocates a native Deflater each time
+    private final RecordBuffer compressed;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] deflated;
+
+    MetricEventEncoder(Encoding encoding) {
+        this.writer = encoding == Encoding.COMPACT ? COMPACT_WRITER : JSON_WRITER;
+        this.gzip = encoding == Encoding.COMPACT;
+        this.compressed = gzip ? new RecordBuffer(8 * 1024) : null;
+        this.deflater = gzip ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        this.crc = gzip ? new CRC32() : null;
+        this.deflated = gzip ? new byte[8 * 1024] : null;
+    }
+
+    /**
+     * Append the event to the buffer as one line of JSON.
+     */
+    void writeLine(MetricEvent event, RecordBuffer out) throws IOException {
+        writer.writeValue(out, event);
+        out.write('\n');
+    }
+
+    /**
+     * @param lines the lines that make up one record
+     * @return the record data
+     */
+    byte[] encode(RecordBuffer lines) throws IOException {
+        if (!gzip) {
+            return lines.toByteArray();
+        }
+        compressed.reset();
+        compressed.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        crc.reset();
+        deflater.reset();
+        lines.deflate(deflater, crc);
+        deflater.finish();
+        while (!deflater.finished()) {
+            compressed.write(deflated, 0, deflater.deflate(deflated));
+        }
+        writeIntLE((int) crc.getValue());
+        writeIntLE(lines.size());
+        return compressed.toByteArray();
+    }
+
+    private void writeIntLE(int value) {
+        compressed.write(value & 0xff);
+        compressed.write((value >> 8) & 0xff);
+        compressed.write((value >> 16) & 0xff);
+        compressed.write((value >> 24) & 0xff);
+    }
+}
@@ -15,89 +15,482 @@
  */
 package com.amazonaws.saas.metrics;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.firehose.FirehoseClient;
 import software.amazon.awssdk.services.firehose.model.PutRecordBatchRequest;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponseEntry;
 import software.amazon.awssdk.services.firehose.model.Record;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Sends metric events to a Kinesis Data Firehose delivery stream.
+ * <p>
+ * {@link #log(MetricEvent)} only puts the event on a bounded, lock-free queue, so the calling thread never
+ * waits on Firehose. A background thread serializes the queued events and sends them with PutRecordBatch
+ * once the batch size is reached or the flush time window has passed, splitting them to fit the Firehose
+ * limits and retrying the records Firehose reports as failed. When the queue is full the event is dropped
+ * according to the {@link OverflowPolicy}. Call {@link #shutdown()} to send whatever is still queued.
+ * <p>
+ * Without the background thread, see {@link MetricEventLoggerBuilder#withBackgroundFlush(boolean)}, the thread
+ * that logs the event that fills the batch or that comes after the flush time window has passed sends the
+ * batch itself. That's what the {@link #getLoggerFor(String, Region)} and
+ * {@link #getBatchLoggerFor(String, Region, int, int)} factories return, so loggers created per request don't
+ * each leave a thread behind and nothing waits on a thread that a frozen Lambda execution environment
+ * doesn't run.
+ * <p>
+ * Every event is written as one line of JSON. By default each event is its own Firehose record. With record
+ * aggregation turned on, as many lines as fit are packed into each record, up to the 1000 KB record limit,
+ * which cuts the records per second and the per record charges for chatty workloads. Firehose concatenates
+ * the records it delivers, so the objects in S3 are newline delimited JSON either way, one event per line,
+ * and the Redshift COPY and Athena tables read them the same.
+ * <p>
+ * With pre-aggregation turned on, events are rolled up by tenant, workload, context and metric as they're
+ * logged and one event per group is queued at the end of each flush time window. See
+ * {@link MetricEventAggregator}.
+ * <p>
+ * The {@link Encoding#COMPACT} encoding drops null and empty properties and gzips every record, which cuts the
+ * bytes sent to Firehose several times over, most of all together with record aggregation.
+ */
 public class MetricEventLogger {
     private static final Logger logger = LoggerFactory.getLogger(MetricEventLogger.class);
     public static final int DEFAULT_FLUSH_TIME_IN_SECS = 60;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    // PutRecordBatch limits
+    static final int MAX_RECORDS_PER_BATCH = 500;
+    static final int MAX_BYTES_PER_BATCH = 4 * 1024 * 1024;
+    static final int MAX_BYTES_PER_RECORD = 1000 * 1024;
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 100L;
+    // Clients are thread safe and hold a connection pool, so the factory loggers share one per region
+    private static final Map<String, FirehoseClient> FIREHOSE_CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Reject the event being logged and keep everything already queued. */
+        DROP_NEWEST,
+        /** Discard the oldest queued event to make room for the one being logged. */
+        DROP_OLDEST
+    }
+
+    /**
+     * How events are written into Firehose records.
+     */
+    public enum Encoding {
+        /** Newline delimited JSON with every property of every event. */
+        JSON,
+        /**
+         * Newline delimited JSON without null or empty properties, gzipped per record. The delivery stream
+         * must not compress the data again, Redshift COPY reads it with the GZIP option.
+         */
+        COMPACT
+    }
+
     private final FirehoseClient firehose;
+    private final boolean closeFirehose;
     private final String streamName;
     private final int bufferSize;
-    private List<Record> recordBuffer;
-    private Long startTime;
-    private int flushTimeWindowInSeconds = DEFAULT_FLUSH_TIME_IN_SECS;
+    private final long flushTimeWindowInNanos;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean aggregateRecords;
+    private final MetricEventAggregator aggregator;
+    private final Queue<MetricEvent> queue = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the whole queue
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Threads inside offer, so shutdown can wait for them before the final flush
+    private final AtomicInteger logging = new AtomicInteger();
+    // Null when the threads that log send the batches themselves
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private volatile long nextFlush;
+    private long droppedReported;
+    // Only used while holding the lock on this logger
+    private final MetricEventEncoder encoder;
+    private final RecordBuffer eventBuffer = new RecordBuffer(1024);
+    private final RecordBuffer aggregateBuffer;
+    private int aggregateEvents;
+    private List<Record> batch = new ArrayList<>();
+    private List<Integer> batchEvents = new ArrayList<>();
+    private int batchBytes;
 
-    private MetricEventLogger(String kinesisStreamName, Region region, int batchSize, int flushTimeWindow) {
-        this.bufferSize = batchSize;
-        this.streamName = kinesisStreamName;
-        this.flushTimeWindowInSeconds = flushTimeWindow;
-        this.initializeBuffer();
-        this.firehose = FirehoseClient.builder().region(region).build();
+    MetricEventLogger(FirehoseClient firehose, boolean closeFirehose, MetricEventLoggerBuilder builder) {
+        this.firehose = firehose;
+        this.closeFirehose = closeFirehose;
+        this.streamName = builder.streamName;
+        this.bufferSize = builder.batchSize;
+        this.flushTimeWindowInNanos = TimeUnit.SECONDS.toNanos(builder.flushTimeWindowInSeconds);
+        this.queueCapacity = builder.queueCapacity;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.aggregateRecords = builder.recordAggregation;
+        this.aggregateBuffer = aggregateRecords ? new RecordBuffer(64 * 1024) : null;
+        this.encoder = new MetricEventEncoder(builder.encoding);
+        this.aggregator = builder.preAggregation ? new MetricEventAggregator(queueCapacity) : null;
+        this.nextFlush = System.nanoTime() + flushTimeWindowInNanos;
+        if (builder.backgroundFlush) {
+            this.flusher = new Thread(this::run, "metric-event-logger-" + streamName);
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
     }
 
-    public static MetricEventLogger getBatchLoggerFor(String kinesisStreamName, Region region, int batchSize, int flushTimeWindowInSeconds) {
-        return new MetricEventLogger(kinesisStreamName, region, batchSize, flushTimeWindowInSeconds);
+    /**
+     * Create a logger that sends a batch from the thread that fills it, or that logs after the flush time
+     * window has passed. Events logged after that stay queued until the next batch, so call {@link #flush()}
+     * before a Lambda function returns, or {@link #shutdown()} when you're done with the logger. Loggers
+     * created here share one Firehose client per region, which shutdown leaves open.
+     * @param kinesisStreamName the Firehose delivery stream
+     * @param region the delivery stream's region
+     * @param batchSize how many events to send at once
+     * @param flushTimeWindowInSeconds how long events can wait for a batch to fill up
+     * @return a logger without a background thread
+     */
+    public static MetricEventLogger getBatchLoggerFor(String kinesisStreamName, Region region, int batchSize,
+                                                      int flushTimeWindowInSeconds) {
+        FirehoseClient firehose = FIREHOSE_CLIENTS.computeIfAbsent(String.valueOf(region),
+                key -> FirehoseClient.builder().region(region).build());
+        return new MetricEventLoggerBuilder()
+                .withStreamName(kinesisStreamName)
+                .withFirehoseClient(firehose)
+                .withBatchSize(batchSize)
+                .withFlushTimeWindowInSeconds(flushTimeWindowInSeconds)
+                .withBackgroundFlush(false)
+                .build();
     }
 
+    /**
+     * Create a logger that sends every event to Firehose from the thread that logs it before
+     * {@link #log(MetricEvent)} returns. Loggers created here share one Firehose client per region and don't
+     * need to be shut down.
+     * @param kinesisStreamName the Firehose delivery stream
+     * @param region the delivery stream's region
+     * @return a logger without a background thread
+     */
     public static MetricEventLogger getLoggerFor(String kinesisStreamName, Region region) {
-        return new MetricEventLogger(kinesisStreamName, region, 1, DEFAULT_FLUSH_TIME_IN_SECS);
+        return getBatchLoggerFor(kinesisStreamName, region, 1, DEFAULT_FLUSH_TIME_IN_SECS);
     }
 
+    /**
+     * Queue the event to be sent. The event must not be changed after it's logged.
+     * @param event the metric event
+     */
     public void log(MetricEvent event) {
-        String eventJsonString = "";
+        offer(event);
+    }
 
+    /**
+     * Queue the event to be sent. The event must not be changed after it's logged.
+     * @param event the metric event
+     * @return true if the event was queued, false if it was dropped
+     */
+    public boolean offer(MetricEvent event) {
+        if (event == null) {
+            return false;
+        }
+        boolean added;
+        logging.incrementAndGet();
         try {
-            eventJsonString = (new ObjectMapper()).writeValueAsString(event);
-            logger.debug("Metric Event Json: " + eventJsonString);
-            Record record = Record.builder().data(SdkBytes.fromByteArray(eventJsonString.getBytes(CharsetUtil.UTF_8))).build();
-            recordBuffer.add(record);
-            if (shouldSendToKinesis()) {
+            if (!running) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            added = enqueue(event);
+        } finally {
+            logging.decrementAndGet();
+        }
+        if (flusher == null) {
+            flushIfDue();
+        }
+        return added;
+    }
+
+    private boolean enqueue(MetricEvent event) {
+        if (aggregator != null && aggregator.add(event)) {
+            return true;
+        }
+        int size = queued.incrementAndGet();
+        if (size > queueCapacity) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                queued.decrementAndGet();
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (queue.poll() != null) {
+                queued.decrementAndGet();
+                dropped.incrementAndGet();
+            }
+        }
+        queue.offer(event);
+        if (size == bufferSize && flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    // Without a background thread the batch goes out from whichever thread logs when it's due
+    private void flushIfDue() {
+        if (queued.get() < bufferSize && System.nanoTime() - nextFlush < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (!running) {
+                // Shutdown already sent everything and may have closed the client
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - nextFlush >= 0) {
+                closeAggregationWindow();
+                writeToKinesisFirehose();
+                nextFlush = now + flushTimeWindowInNanos;
+            } else if (queued.get() >= bufferSize) {
                 writeToKinesisFirehose();
             }
-        } catch (Exception var4) {
-            logger.debug("Error: Unable to log metric: " + eventJsonString, var4);
         }
+    }
 
+    /**
+     * Send everything logged so far, including the events pre-aggregation is rolling up, and block until it's
+     * sent. Call this before a Lambda function returns, the execution environment can be frozen or shut down
+     * with events still queued.
+     */
+    public void flush() {
+        synchronized (this) {
+            closeAggregationWindow();
+            writeToKinesisFirehose();
+            nextFlush = System.nanoTime() + flushTimeWindowInNanos;
+        }
     }
 
+    /**
+     * Stop accepting events and block until everything already queued has been sent.
+     */
     public void shutdown() {
         logger.debug("Clean shutdown, sending buffer data to kinesis");
-        writeToKinesisFirehose();
+        running = false;
+        // A thread that got past the running check is still adding its event. Let it finish so the flusher's
+        // last pass picks the event up instead of it being left on the queue unsent and uncounted.
+        while (logging.get() > 0) {
+            Thread.onSpinWait();
+        }
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            synchronized (this) {
+                closeAggregationWindow();
+                writeToKinesisFirehose();
+            }
+        }
+        if (closeFirehose) {
+            firehose.close();
+        }
     }
 
-    private boolean shouldSendToKinesis() {
-        long elapsedTime = (System.currentTimeMillis() - startTime) / 1000L;
-        if (recordBuffer.size() >= bufferSize) {
-            logger.debug("Buffer full, writing to kinesis");
-            return true;
-        } else if (elapsedTime >= flushTimeWindowInSeconds) {
-            logger.debug("Time elapsed, writing to kinesis");
-            return true;
-        } else {
-            return false;
+    /**
+     * @return the number of events dropped because the queue was full or the logger was shut down
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events Firehose still hadn't accepted after every retry
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private void run() {
+        while (running) {
+            long remaining = nextFlush - System.nanoTime();
+            if (remaining <= 0) {
+                // Pre-aggregation windows close on the timer only, a full batch doesn't cut them short
+                flush();
+            } else if (queued.get() >= bufferSize) {
+                synchronized (this) {
+                    writeToKinesisFirehose();
+                }
+            } else {
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        synchronized (this) {
+            closeAggregationWindow();
+            writeToKinesisFirehose();
+        }
+    }
+
+    private void closeAggregationWindow() {
+        if (aggregator != null) {
+            // Rolled up events are bounded by the number of groups, so they go on the queue regardless of capacity
+            queued.addAndGet(aggregator.drainTo(queue));
         }
     }
 
+    /**
+     * Send everything that's queued, as many PutRecordBatch calls as the Firehose limits need. Only called
+     * while holding the lock on this logger.
+     */
     protected void writeToKinesisFirehose() {
-        firehose.putRecordBatch(PutRecordBatchRequest.builder().deliveryStreamName(streamName).records(recordBuffer).build());
-        initializeBuffer();
+        MetricEvent event;
+        while ((event = queue.poll()) != null) {
+            queued.decrementAndGet();
+            if (!serialize(event)) {
+                continue;
+            }
+            if (!aggregateRecords) {
+                addRecord(eventBuffer, 1);
+                continue;
+            }
+            if (aggregateBuffer.size() + eventBuffer.size() > MAX_BYTES_PER_RECORD) {
+                addAggregateRecord();
+            }
+            eventBuffer.appendTo(aggregateBuffer);
+            aggregateEvents++;
+        }
+        if (aggregateRecords) {
+            addAggregateRecord();
+        }
+        sendBatch();
+        long droppedTotal = dropped.get();
+        if (droppedTotal > droppedReported) {
+            logger.warn("Dropped {} metric events since the last flush, queue capacity is {}",
+                    droppedTotal - droppedReported, queueCapacity);
+            droppedReported = droppedTotal;
+        }
+    }
+
+    /**
+     * Serialize the event as a line of JSON into the event buffer.
+     * @return false if the event can't be sent
+     */
+    private boolean serialize(MetricEvent event) {
+        eventBuffer.reset();
+        try {
+            encoder.writeLine(event, eventBuffer);
+        } catch (Exception e) {
+            logger.debug("Error: Unable to log metric: " + event, e);
+            failed.incrementAndGet();
+            return false;
+        }
+        if (eventBuffer.size() > MAX_BYTES_PER_RECORD) {
+            logger.error("Error: Metric event is {} bytes, larger than a Firehose record allows", eventBuffer.size());
+            failed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void addAggregateRecord() {
+        if (aggregateEvents > 0) {
+            addRecord(aggregateBuffer, aggregateEvents);
+            aggregateBuffer.reset();
+            aggregateEvents = 0;
+        }
+    }
+
+    private void addRecord(RecordBuffer lines, int events) {
+        byte[] data;
+        try {
+            data = encoder.encode(lines);
+        } catch (IOException ioe) {
+            logger.error("Error: Unable to encode {} metric events: {}", events, ioe.getMessage());
+            failed.addAndGet(events);
+            return;
+        }
+        if (batch.size() == MAX_RECORDS_PER_BATCH || batchBytes + data.length > MAX_BYTES_PER_BATCH) {
+            sendBatch();
+        }
+        batch.add(Record.builder().data(SdkBytes.fromByteArray(data)).build());
+        batchEvents.add(events);
+        batchBytes += data.length;
     }
 
-    private void initializeBuffer() {
-        logger.debug("Initializing Buffer");
-        startTime = System.currentTimeMillis();
-        recordBuffer = Collections.synchronizedList(new ArrayList<>());
+    private void sendBatch() {
+        if (!batch.isEmpty()) {
+            send(batch, batchEvents);
+            batch = new ArrayList<>();
+            batchEvents = new ArrayList<>();
+            batchBytes = 0;
+        }
+    }
+
+    /**
+     * @param records the records to put
+     * @param events how many metric events are in each record
+     */
+    private void send(List<Record> records, List<Integer> events) {
+        List<Record> pending = records;
+        List<Integer> pendingEvents = events;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                PutRecordBatchResponse response = firehose.putRecordBatch(PutRecordBatchRequest.builder()
+                        .deliveryStreamName(streamName)
+                        .records(pending)
+                        .build());
+                Integer failedPutCount = response.failedPutCount();
+                if (failedPutCount == null || failedPutCount == 0) {
+                    return;
+                }
+                // Responses are in the same order as the records, failed ones have an error code
+                List<Record> retry = new ArrayList<>(failedPutCount);
+                List<Integer> retryEvents = new ArrayList<>(failedPutCount);
+                List<PutRecordBatchResponseEntry> entries = response.requestResponses();
+                for (int i = 0; i < entries.size(); i++) {
+                    if (entries.get(i).errorCode() != null) {
+                        retry.add(pending.get(i));
+                        retryEvents.add(pendingEvents.get(i));
+                    }
+                }
+                logger.debug("Firehose failed {} of {} records on attempt {}", retry.size(), pending.size(), attempt);
+                pending = retry;
+                pendingEvents = retryEvents;
+            } catch (SdkException e) {
+                logger.warn("Unable to send {} records to Firehose on attempt {}: {}", pending.size(), attempt,
+                        e.getMessage());
+            }
+            if (attempt == MAX_SEND_ATTEMPTS || pending.isEmpty()) {
+                break;
+            }
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException ie) {
+                // Not restoring the flag, the flusher would spin in parkNanos. Give up on this batch instead.
+                break;
+            }
+        }
+        if (!pending.isEmpty()) {
+            int lost = 0;
+            for (Integer recordEvents : pendingEvents) {
+                lost += recordEvents;
+            }
+            logger.error("Error: Unable to send {} metric events to Firehose", lost);
+            failed.addAndGet(lost);
+        }
     }
 }
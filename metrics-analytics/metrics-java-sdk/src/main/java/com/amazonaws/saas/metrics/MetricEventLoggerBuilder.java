@@ -0,0 +1,131 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazonaws.saas.metrics;
+
+import com.amazonaws.saas.metrics.MetricEventLogger.Encoding;
+import com.amazonaws.saas.metrics.MetricEventLogger.OverflowPolicy;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.firehose.FirehoseClient;
+
+public class MetricEventLoggerBuilder {
+    // Read by the MetricEventLogger constructor
+    String streamName;
+    Region region;
+    FirehoseClient firehose;
+    int batchSize = 1;
+    int flushTimeWindowInSeconds = MetricEventLogger.DEFAULT_FLUSH_TIME_IN_SECS;
+    int queueCapacity = MetricEventLogger.DEFAULT_QUEUE_CAPACITY;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    boolean recordAggregation;
+    boolean preAggregation;
+    Encoding encoding = Encoding.JSON;
+    boolean backgroundFlush = true;
+
+    public MetricEventLoggerBuilder withStreamName(String streamName) {
+        this.streamName = streamName;
+        return this;
+    }
+
+    public MetricEventLoggerBuilder withRegion(Region region) {
+        this.region = region;
+        return this;
+    }
+
+    /**
+     * Use an existing client instead of creating one for the region. The logger won't close it on shutdown.
+     */
+    public MetricEventLoggerBuilder withFirehoseClient(FirehoseClient firehose) {
+        this.firehose = firehose;
+        return this;
+    }
+
+    public MetricEventLoggerBuilder withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public MetricEventLoggerBuilder withFlushTimeWindowInSeconds(int flushTimeWindowInSeconds) {
+        this.flushTimeWindowInSeconds = flushTimeWindowInSeconds;
+        return this;
+    }
+
+    public MetricEventLoggerBuilder withQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public MetricEventLoggerBuilder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Pack as many events as fit into each Firehose record instead of sending one record per event.
+     */
+    public MetricEventLoggerBuilder withRecordAggregation(boolean recordAggregation) {
+        this.recordAggregation = recordAggregation;
+        return this;
+    }
+
+    /**
+     * Roll events up by tenant, workload, context and metric over each flush time window and send one event
+     * per group with the sum as its value and the count, min and max alongside.
+     */
+    public MetricEventLoggerBuilder withPreAggregation(boolean preAggregation) {
+        this.preAggregation = preAggregation;
+        return this;
+    }
+
+    /**
+     * Use {@link Encoding#COMPACT} only with a delivery stream that doesn't compress its S3 data, the
+     * analytics stack does that when deployed with compressed metric events. The stream can't tell gzipped
+     * records from plain ones, so every application sending to it must use the same encoding.
+     */
+    public MetricEventLoggerBuilder withEncoding(Encoding encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    /**
+     * Send batches from a background thread, the default, or from the threads that log. Without the
+     * background thread nothing is sent until a batch fills up or an event is logged after the flush time
+     * window, so call {@link MetricEventLogger#flush()} or {@link MetricEventLogger#shutdown()} to send the
+     * rest.
+     */
+    public MetricEventLoggerBuilder withBackgroundFlush(boolean backgroundFlush) {
+        this.backgroundFlush = backgroundFlush;
+        return this;
+    }
+
+    public MetricEventLogger build() {
+        if (streamName == null || streamName.isEmpty()) {
+            throw new IllegalArgumentException("Firehose delivery stream name is required");
+        }
+        if (batchSize < 1 || flushTimeWindowInSeconds < 1) {
+            throw new IllegalArgumentException("Batch size and flush time window must be greater than 0");
+        }
+        if (queueCapacity < batchSize) {
+            throw new IllegalArgumentException("Queue capacity can't be less than the batch size");
+        }
+        if (overflowPolicy == null || encoding == null) {
+            throw new IllegalArgumentException("Overflow policy and encoding are required");
+        }
+        boolean closeFirehose = firehose == null;
+        FirehoseClient client = firehose != null ? firehose : FirehoseClient.builder().region(region).build();
+        return new MetricEventLogger(client, closeFirehose, this);
+    }
+}
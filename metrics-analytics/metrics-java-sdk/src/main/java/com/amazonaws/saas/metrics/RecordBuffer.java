@@ -0,0 +1,48 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazonaws.saas.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Growable byte buffer the flusher reuses for every record it builds, so serializing events doesn't allocate
+ * a new buffer per event.
+ */
+final class RecordBuffer extends ByteArrayOutputStream {
+
+    RecordBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Append the contents of this buffer to another one without copying them out first.
+     */
+    void appendTo(RecordBuffer other) {
+        other.write(buf, 0, count);
+    }
+
+    /**
+     * Give the contents of this buffer to a deflater as its input and add them to a checksum, without copying
+     * them out first. The buffer must not change until the deflater is done with it.
+     */
+    void deflate(Deflater deflater, CRC32 crc) {
+        deflater.setInput(buf, 0, count);
+        crc.update(buf, 0, count);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.saas.metrics;
+
+import software.amazon.awssdk.services.firehose.FirehoseClient;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchRequest;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponse;
+import software.amazon.awssdk.services.firehose.model.PutRecordBatchResponseEntry;
+import software.amazon.awssdk.services.firehose.model.Record;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records every PutRecordBatch call instead of sending it. Can be told to fail the first records of the
+ * next call the way Firehose reports partial failures.
+ */
+class FakeFirehoseClient implements FirehoseClient {
+
+    final List<List<Record>> batches = new ArrayList<>();
+    private int failNext;
+
+    synchronized void failNext(int records) {
+        this.failNext = records;
+    }
+
+    synchronized int records() {
+        int records = 0;
+        for (List<Record> batch : batches) {
+            records += batch.size();
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized PutRecordBatchResponse putRecordBatch(PutRecordBatchRequest request) {
+        batches.add(new ArrayList<>(request.records()));
+        List<PutRecordBatchResponseEntry> entries = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < request.records().size(); i++) {
+            if (i < failNext) {
+                entries.add(PutRecordBatchResponseEntry.builder()
+                        .errorCode("ServiceUnavailableException")
+                        .errorMessage("Slow down.")
+                        .build());
+                failed++;
+            } else {
+                entries.add(PutRecordBatchResponseEntry.builder().recordId("record-" + i).build());
+            }
+        }
+        failNext = 0;
+        return PutRecordBatchResponse.builder()
+                .failedPutCount(failed)
+                .requestResponses(entries)
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.saas.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.awssdk.services.firehose.model.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricEventLoggerTest {
+
+    private FakeFirehoseClient firehose;
+    private MetricEvent event;
+
+    @Before
+    public void setup() {
+        firehose = new FakeFirehoseClient();
+        event = new MetricEventBuilder()
+                .withType(MetricEvent.Type.Application)
+                .withWorkload("AuthApp")
+                .withContext("Login")
+                .withMetric(new MetricBuilder()
+                        .withName("ExecutionTime")
+                        .withUnit("msec")
+                        .withValue(1000L)
+                        .build()
+                )
+                .withTenant(new TenantBuilder()
+                        .withId("123")
+                        .withName("ABC")
+                        .withTier("Free")
+                        .build())
+                .build();
+    }
+
+    private MetricEventLoggerBuilder builder() {
+        return new MetricEventLoggerBuilder()
+                .withStreamName("Metrics")
+                .withFirehoseClient(firehose);
+    }
+
+    @Test
+    public void shutdownSendsQueuedEvents() {
+        MetricEventLogger logger = builder().withBatchSize(10).build();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(logger.offer(event));
+        }
+        logger.shutdown();
+        assertEquals(3, firehose.records());
+    }
+
+    @Test
+    public void withoutBackgroundFlushTheLoggingThreadSendsFullBatches() {
+        MetricEventLogger logger = builder()
+                .withStreamName("SynchronousMetrics")
+                .withBatchSize(2)
+                .withBackgroundFlush(false)
+                .build();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("metric-event-logger-SynchronousMetrics"));
+        }
+        logger.log(event);
+        assertEquals(0, firehose.records());
+        logger.log(event);
+        // Sent before log returned
+        assertEquals(2, firehose.records());
+        logger.log(event);
+        logger.flush();
+        assertEquals(3, firehose.records());
+        logger.shutdown();
+        assertEquals(3, firehose.records());
+    }
+
+    @Test
+    public void flushSendsQueuedEventsWithoutShuttingDown() {
+        MetricEventLogger logger = builder().withBatchSize(10).build();
+        logger.log(event);
+        logger.flush();
+        assertEquals(1, firehose.records());
+        assertTrue(logger.offer(event));
+        logger.shutdown();
+        assertEquals(2, firehose.records());
+    }
+
+    @Test
+    public void batchesAreSplitAtTheFirehoseRecordLimit() {
+        int events = MetricEventLogger.MAX_RECORDS_PER_BATCH * 2 + 200;
+        MetricEventLogger logger = builder().withBatchSize(events).withQueueCapacity(events).build();
+        for (int i = 0; i < events; i++) {
+            logger.log(event);
+        }
+        logger.shutdown();
+        assertEquals(3, firehose.batches.size());
+        assertEquals(MetricEventLogger.MAX_RECORDS_PER_BATCH, firehose.batches.get(0).size());
+        assertEquals(MetricEventLogger.MAX_RECORDS_PER_BATCH, firehose.batches.get(1).size());
+        assertEquals(200, firehose.batches.get(2).size());
+    }
+
+    @Test
+    public void failedRecordsAreRetried() {
+        firehose.failNext(2);
+        MetricEventLogger logger = builder().withBatchSize(5).build();
+        for (int i = 0; i < 5; i++) {
+            logger.log(event);
+        }
+        logger.shutdown();
+        assertEquals(2, firehose.batches.size());
+        assertEquals(2, firehose.batches.get(1).size());
+        assertEquals(0, logger.getFailedCount());
+    }
+
+    @Test
+    public void eventsAreNewlineDelimited() {
+        MetricEventLogger logger = builder().build();
+        logger.log(event);
+        logger.shutdown();
+        String record = firehose.batches.get(0).get(0).data().asUtf8String();
+        assertTrue(record.startsWith("{"));
+        assertTrue(record.endsWith("}\n"));
+        assertFalse(record.contains("\"count\""));
+    }
+
+    @Test
+    public void recordAggregationPacksEventsIntoOneRecord() {
+        MetricEventLogger logger = builder().withBatchSize(100).withRecordAggregation(true).build();
+        for (int i = 0; i < 100; i++) {
+            logger.log(event);
+        }
+        logger.shutdown();
+        assertEquals(1, firehose.records());
+        String[] lines = firehose.batches.get(0).get(0).data().asUtf8String().split("\n");
+        assertEquals(100, lines.length);
+        for (String line : lines) {
+            assertTrue(line.contains("\"workload\":\"AuthApp\""));
+        }
+    }
+
+    @Test
+    public void compactEncodingGzipsRecordsWithoutEmptyProperties() throws IOException {
+        MetricEventLogger logger = builder()
+                .withBatchSize(10)
+                .withRecordAggregation(true)
+                .withEncoding(MetricEventLogger.Encoding.COMPACT)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            logger.log(event);
+        }
+        logger.shutdown();
+        assertEquals(1, firehose.records());
+        byte[] data = firehose.batches.get(0).get(0).data().asByteArray();
+        String json;
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)),
+                StandardCharsets.UTF_8)) {
+            StringBuilder sb = new StringBuilder();
+            char[] chars = new char[1024];
+            for (int read = reader.read(chars); read != -1; read = reader.read(chars)) {
+                sb.append(chars, 0, read);
+            }
+            json = sb.toString();
+        }
+        assertEquals(10, json.split("\n").length);
+        assertTrue(json.contains("\"workload\":\"AuthApp\""));
+        assertFalse(json.contains("meta-data"));
+    }
+
+    @Test
+    public void preAggregationRollsUpEventsByGroup() {
+        MetricEventLogger logger = builder().withBatchSize(10).withPreAggregation(true).build();
+        for (int i = 0; i < 1000; i++) {
+            logger.log(event);
+        }
+        MetricEvent other = new MetricEventBuilder()
+                .withWorkload("AuthApp")
+                .withContext("Logout")
+                .withMetric(new MetricBuilder()
+                        .withName("ExecutionTime")
+                        .withUnit("msec")
+                        .withValue(5L)
+                        .build())
+                .withTenant(event.getTenant())
+                .build();
+        logger.log(other);
+        logger.log(other);
+        logger.shutdown();
+        assertEquals(2, firehose.records());
+        String login = null;
+        String logout = null;
+        for (Record record : firehose.batches.get(0)) {
+            String json = record.data().asUtf8String();
+            if (json.contains("\"context\":\"Login\"")) {
+                login = json;
+            } else {
+                logout = json;
+            }
+        }
+        assertTrue(login.contains("\"value\":1000000"));
+        assertTrue(login.contains("\"count\":1000"));
+        assertTrue(login.contains("\"min\":1000"));
+        assertTrue(logout.contains("\"value\":10"));
+        assertTrue(logout.contains("\"count\":2"));
+        assertTrue(logout.contains("\"max\":5"));
+    }
+
+    @Test
+    public void eventsLoggedAfterShutdownAreDropped() {
+        MetricEventLogger logger = builder().build();
+        logger.shutdown();
+        assertFalse(logger.offer(event));
+        assertEquals(1, logger.getDroppedCount());
+        assertEquals(0, firehose.records());
+    }
+
+    @Test
+    public void eventsLoggedDuringShutdownAreSentOrCounted() throws InterruptedException {
+        MetricEventLogger logger = builder().withBatchSize(100).withQueueCapacity(100000).build();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger attempted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                while (!stop.get()) {
+                    logger.log(event);
+                    attempted.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(50);
+        logger.shutdown();
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(attempted.get(), firehose.records() + logger.getDroppedCount() + logger.getFailedCount());
+    }
+
+    @Test
+    public void preAggregatedEventsLoggedDuringShutdownAreSentOrCounted() throws InterruptedException {
+        MetricEventLogger logger = builder().withBatchSize(100).withPreAggregation(true).build();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger attempted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                while (!stop.get()) {
+                    logger.log(event);
+                    attempted.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(50);
+        logger.shutdown();
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long sent = 0;
+        Pattern count = Pattern.compile("\"count\":(\\d+)");
+        for (List<Record> batch : firehose.batches) {
+            for (Record record : batch) {
+                Matcher matcher = count.matcher(record.data().asUtf8String());
+                sent += matcher.find() ? Long.parseLong(matcher.group(1)) : 1;
+            }
+        }
+        assertEquals(0, logger.getFailedCount());
+        assertEquals(attempted.get(), sent + logger.getDroppedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void queueCapacityMustHoldABatch() {
+        builder().withBatchSize(100).withQueueCapacity(10).build();
+    }
+}
@@ -22,6 +22,7 @@ import software.amazon.awssdk.services.ecs.EcsClient;
 import software.amazon.awssdk.services.ecs.model.Cluster;
 import software.amazon.awssdk.services.ecs.model.ClusterNotFoundException;
 import software.amazon.awssdk.services.ecs.model.DescribeClustersRequest;
+import software.amazon.awssdk.services.ecs.model.EcsException;
 import software.amazon.awssdk.services.ecs.model.PutClusterCapacityProvidersRequest;
 import software.amazon.awssdk.services.ecs.model.UpdateInProgressException;
 
@@ -39,14 +40,32 @@ public final class AttachCapacityProviderRequestHandler implements Callable<Hand
     private final RequestContext requestContext;
     private final CapacityProviderLock lock;
     private final EcsClient ecs;
+    private final PendingCapacityProviderChanges pending;
+    private final long coalesceWindowMillis;
 
     public AttachCapacityProviderRequestHandler(
             RequestContext requestContext,
             CapacityProviderLock lock,
             EcsClient ecs) {
+        this(requestContext, lock, ecs, null, 0L);
+    }
+
+    /**
+     * @param pending where concurrent requests for the same cluster leave their changes, or null to apply
+     *                each request on its own
+     * @param coalesceWindowMillis how long to wait for other requests to add their changes before applying
+     */
+    public AttachCapacityProviderRequestHandler(
+            RequestContext requestContext,
+            CapacityProviderLock lock,
+            EcsClient ecs,
+            PendingCapacityProviderChanges pending,
+            long coalesceWindowMillis) {
         this.ecs = ecs;
         this.requestContext = requestContext;
         this.lock = lock;
+        this.pending = pending;
+        this.coalesceWindowMillis = coalesceWindowMillis;
     }
 
     @Override
@@ -57,23 +76,31 @@ public final class AttachCapacityProviderRequestHandler implements Callable<Hand
                 || "Update".equalsIgnoreCase(requestContext.requestType)) {
             LOGGER.info("Attaching capacity provider {} to ecs cluster {} for tenant {}", 
                     requestContext.capacityProvider, requestContext.ecsCluster, requestContext.tenantId);
-            result = atomicallyUpdateCapacityProviders((capacityProviders) -> {
-                if (!capacityProviders.contains(requestContext.capacityProvider)) {
-                    List<String> modifiedCapacityProviders = new ArrayList<String>(capacityProviders);
-                    modifiedCapacityProviders.add(requestContext.capacityProvider);
-                    return modifiedCapacityProviders;
-                }
-                return capacityProviders;
-            });
+            if (pending != null) {
+                result = coalescedUpdateCapacityProviders(true);
+            } else {
+                result = atomicallyUpdateCapacityProviders((capacityProviders) -> {
+                    if (!capacityProviders.contains(requestContext.capacityProvider)) {
+                        List<String> modifiedCapacityProviders = new ArrayList<String>(capacityProviders);
+                        modifiedCapacityProviders.add(requestContext.capacityProvider);
+                        return modifiedCapacityProviders;
+                    }
+                    return capacityProviders;
+                });
+            }
         } else if ("Delete".equalsIgnoreCase(requestContext.requestType)) {
             // unclear whether we need this.. commenting it out for testing.
             LOGGER.info("Detaching capacity provider {} from ecs cluster {} for tenant {}", 
                     requestContext.capacityProvider, requestContext.ecsCluster, requestContext.tenantId);
-            result = atomicallyUpdateCapacityProviders((capacityProviders) -> {
-                return capacityProviders.stream()
-                        .filter((capacityProvider) -> !capacityProvider.equals(requestContext.capacityProvider))
-                        .collect(Collectors.toList());
-            });
+            if (pending != null) {
+                result = coalescedUpdateCapacityProviders(false);
+            } else {
+                result = atomicallyUpdateCapacityProviders((capacityProviders) -> {
+                    return capacityProviders.stream()
+                            .filter((capacityProvider) -> !capacityProvider.equals(requestContext.capacityProvider))
+                            .collect(Collectors.toList());
+                });
+            }
             result.setSucceeded();
         } else {
             LOGGER.error("FAILED unknown requestType {}", requestContext.requestType);
@@ -84,6 +111,80 @@ public final class AttachCapacityProviderRequestHandler implements Callable<Hand
         return result;
     }
 
+    /**
+     * Leave our change with the other pending changes for this cluster, give concurrent requests a moment to
+     * do the same, then apply all of them with a single PutClusterCapacityProviders call. If another request
+     * got there first and applied our change with its own, we're done without touching ECS.
+     *
+     * Only the request that owns a change reports it as failed. If the combined call fails we apply our own
+     * change by itself and leave the others pending for their requests to apply, so one bad capacity
+     * provider doesn't fail every request it was batched with. A change that fails is cleared by its owner
+     * so nobody retries it.
+     */
+    private HandleResult coalescedUpdateCapacityProviders(boolean attach) {
+        HandleResult result = new HandleResult();
+        final String entry = pending.add(requestContext, attach);
+        final PendingCapacityProviderChanges.Changes ours = PendingCapacityProviderChanges.Changes.of(entry, attach);
+        try {
+            Thread.sleep(coalesceWindowMillis);
+        } catch (InterruptedException ie) {
+            LOGGER.error("Interrupted waiting for other capacity provider changes", ie.getMessage());
+            pending.remove(requestContext, ours);
+            result.putFailureReason(ie.getMessage());
+            result.setFailed();
+            return result;
+        }
+        if (!pending.get(requestContext).contains(entry)) {
+            LOGGER.info("Capacity provider {} was already applied to ecs cluster {} by another request",
+                    requestContext.capacityProvider, requestContext.ecsCluster);
+            result.setSucceeded();
+            return result;
+        }
+        lock.lock(requestContext);
+        try {
+            // Read again under the lock, the request ahead of us may have applied some or all of these
+            PendingCapacityProviderChanges.Changes changes = pending.get(requestContext);
+            if (!changes.contains(entry)) {
+                LOGGER.info("Capacity provider {} was applied to ecs cluster {} while waiting for the lock",
+                        requestContext.capacityProvider, requestContext.ecsCluster);
+                result.setSucceeded();
+                return result;
+            }
+            List<String> existingCapacityProviders = getExistingCapacityProviders();
+            LOGGER.info("Applying {} pending attach and {} pending detach requests together",
+                    changes.attach.size(), changes.detach.size());
+            try {
+                putCapacityProviders(existingCapacityProviders, changes.applyTo(existingCapacityProviders));
+                pending.remove(requestContext, changes);
+            } catch (EcsException ecse) {
+                if (changes.size() == 1) {
+                    throw ecse;
+                }
+                LOGGER.warn("Applying pending changes together failed, applying only capacity provider {}: {}",
+                        requestContext.capacityProvider, ecse.getMessage());
+                putCapacityProviders(existingCapacityProviders, ours.applyTo(existingCapacityProviders));
+                pending.remove(requestContext, ours);
+            }
+            result.setSucceeded();
+        } catch (EcsException ecse) {
+            LOGGER.error("Error updating capacity providers of ecs cluster {}: {}",
+                    requestContext.ecsCluster, ecse.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ecse));
+            pending.remove(requestContext, ours);
+            result.putFailureReason(ecse.getMessage());
+            result.setFailed();
+        } catch (InterruptedException ie) {
+            LOGGER.error("Error while waiting between putClusterCapacityProvider calls", ie.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ie));
+            pending.remove(requestContext, ours);
+            result.putFailureReason(ie.getMessage());
+            result.setFailed();
+        } finally {
+            lock.unlock(requestContext);
+        }
+        return result;
+    }
+
     private HandleResult atomicallyUpdateCapacityProviders(
             Function<List<String>, List<String>> capacityProvidersMutationFunction) {
         HandleResult result = new HandleResult();
@@ -94,34 +195,8 @@ public final class AttachCapacityProviderRequestHandler implements Callable<Hand
             List<String> existingCapacityProviders = getExistingCapacityProviders();
             
             List<String> mutatedCapacityProviders = capacityProvidersMutationFunction.apply(existingCapacityProviders);
-            LOGGER.debug("existingCapacityProviders {} mutated to {}",
-                    existingCapacityProviders, mutatedCapacityProviders);
-
-            boolean successful = false;
-            // if the mutate did nothing, no point in slowing us down to make an ECS call
-            if (existingCapacityProviders.equals(mutatedCapacityProviders)) {
-                successful = true;
-                result.setSucceeded();
-            }
-            while (!successful) {
-                try {
-                    // set capacity providers. response doesn't really give us anything but a 
-                    // description of the new cluster. exceptions are thrown on failure
-                    ecs.putClusterCapacityProviders(PutClusterCapacityProvidersRequest.builder()
-                            .cluster(requestContext.ecsCluster)
-                            .capacityProviders(mutatedCapacityProviders)
-                            .build());
-                    successful = true;
-                    result.setSucceeded();
-                } catch (UpdateInProgressException uipe) {
-                    // There's a Amazon ECS container agent update in progress on this container instance.
-                    // ECS errors indicate this can be retried. Wait 10 seconds and try again.
-                    LOGGER.error("Received error calling putClusterCapacityProviders", uipe);
-                    LOGGER.error(Utils.getFullStackTrace(uipe));
-                    LOGGER.error("Waiting 10 seconds before retrying..");
-                    Thread.sleep(10 * 1000); // 10 seconds
-                }
-            }
+            putCapacityProviders(existingCapacityProviders, mutatedCapacityProviders);
+            result.setSucceeded();
         } catch (ClusterNotFoundException cnfe) {
             LOGGER.error("Could not find ecs cluster: {}", requestContext.ecsCluster);
             LOGGER.error(Utils.getFullStackTrace(cnfe));
@@ -139,6 +214,32 @@ public final class AttachCapacityProviderRequestHandler implements Callable<Hand
         return result;
     }
 
+    private void putCapacityProviders(List<String> existingCapacityProviders,
+            List<String> mutatedCapacityProviders) throws InterruptedException {
+        LOGGER.debug("existingCapacityProviders {} mutated to {}",
+                existingCapacityProviders, mutatedCapacityProviders);
+        // if the mutate did nothing, no point in slowing us down to make an ECS call
+        boolean successful = existingCapacityProviders.equals(mutatedCapacityProviders);
+        while (!successful) {
+            try {
+                // set capacity providers. response doesn't really give us anything but a 
+                // description of the new cluster. exceptions are thrown on failure
+                ecs.putClusterCapacityProviders(PutClusterCapacityProvidersRequest.builder()
+                        .cluster(requestContext.ecsCluster)
+                        .capacityProviders(mutatedCapacityProviders)
+                        .build());
+                successful = true;
+            } catch (UpdateInProgressException uipe) {
+                // There's a Amazon ECS container agent update in progress on this container instance.
+                // ECS errors indicate this can be retried. Wait 10 seconds and try again.
+                LOGGER.error("Received error calling putClusterCapacityProviders", uipe);
+                LOGGER.error(Utils.getFullStackTrace(uipe));
+                LOGGER.error("Waiting 10 seconds before retrying..");
+                Thread.sleep(10 * 1000); // 10 seconds
+            }
+        }
+    }
+
     private List<String> getExistingCapacityProviders() {
         List<Cluster> returnedClusters = ecs.describeClusters(
                 DescribeClustersRequest.builder().clusters(requestContext.ecsCluster).build()).clusters();
@@ -32,11 +32,20 @@ public class AttachEcsCapacityProvider implements RequestHandler<Map<String, Obj
 
     private final EcsClient ecs;
     private final CapacityProviderLock lock;
+    private final PendingCapacityProviderChanges pending;
+    private final long coalesceWindowMillis;
 
     public AttachEcsCapacityProvider() {
         LOGGER.info("Version Info: {}", Utils.version(this.getClass()));
         ecs = Utils.sdkClient(EcsClient.builder(), EcsClient.SERVICE_NAME);
-        lock = new CapacityProviderLock(Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME));
+        long leaseMillis = Long.parseLong(Objects.toString(System.getenv("ECS_CLUSTER_LOCK_LEASE_SECONDS"), "60"))
+                * 1000;
+        boolean fifo = Boolean.parseBoolean(System.getenv("ECS_CLUSTER_LOCK_FIFO"));
+        DynamoDbClient ddb = Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME);
+        lock = new CapacityProviderLock(ddb, leaseMillis, fifo);
+        // With a window, concurrent requests for the same cluster are applied together
+        coalesceWindowMillis = Long.parseLong(Objects.toString(System.getenv("ECS_CLUSTER_COALESCE_MILLIS"), "0"));
+        pending = coalesceWindowMillis > 0 ? new PendingCapacityProviderChanges(ddb, lock) : null;
     }
 
     @Override
@@ -54,7 +63,8 @@ public class AttachEcsCapacityProvider implements RequestHandler<Map<String, Obj
         HandleResult handleRequestResult = new HandleResult();
         ExecutorService service = Executors.newSingleThreadExecutor();
         try {
-            Callable<HandleResult> c = new AttachCapacityProviderRequestHandler(requestContext, lock, ecs);
+            Callable<HandleResult> c = new AttachCapacityProviderRequestHandler(requestContext, lock, ecs,
+                    pending, coalesceWindowMillis);
             Future<?> f = service.submit(c);
             handleRequestResult = (HandleResult) f.get(context.getRemainingTimeInMillis() - 1000, 
                     TimeUnit.MILLISECONDS);
@@ -6,67 +6,130 @@ import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Distributed lock for reading/writing the CapacityProviders of a tenant's ECS cluster, kept on the tenant's
+ * onboarding item.
+ *
+ * The lock is a lease: the holder writes its owner id and an expiry time, and a heartbeat keeps pushing the
+ * expiry out while the lock is held. If the holder dies the lease runs out and the next waiter takes over
+ * instead of everyone waiting forever. Waiters back off exponentially with jitter so they don't retry in
+ * lockstep. In FIFO mode each waiter first takes a ticket and the lock is handed out in ticket order, unless
+ * the waiter whose turn it is doesn't show up in time.
+ */
 public class CapacityProviderLock {
     private static final Logger LOGGER = LoggerFactory.getLogger(CapacityProviderLock.class);
+    private static final long DEFAULT_LEASE_MILLIS = 60 * 1000; // 1 minute
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 1000; // 5 seconds
+    // How long the lock can sit free before a waiter may jump ahead of the ticket being served
+    private static final long ABANDONED_TICKET_MILLIS = 15 * 1000; // 15 seconds
+    private static final String METRICS_NAMESPACE = "SaaSBoost/AttachEcsCapacityProvider";
+    // Written without a pattern by its own appender, see log4j2.xml, so CloudWatch reads each line as EMF
+    private static final Logger METRICS = LoggerFactory.getLogger("EmbeddedMetrics");
 
     private final DynamoDbClient ddb;
-    private AttributeValue onboardingId = null;
+    private final long leaseMillis;
+    private final boolean fifo;
+    private final ScheduledExecutorService heartbeats;
+    // One warm container serves requests for any tenant, so the onboarding id is cached per tenant
+    private final Map<String, AttributeValue> onboardingIds = new ConcurrentHashMap<>();
+    // The lease we hold, if any
+    private String owner;
+    private long ticket;
+    private long acquiredAt;
+    private ScheduledFuture<?> heartbeat;
 
     public CapacityProviderLock(DynamoDbClient ddb) {
+        this(ddb, DEFAULT_LEASE_MILLIS, false);
+    }
+
+    public CapacityProviderLock(DynamoDbClient ddb, long leaseMillis, boolean fifo) {
         this.ddb = ddb;
+        this.leaseMillis = leaseMillis;
+        this.fifo = fifo;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "capacity-provider-lock-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
      * Locks the distributed lock for reading/writing CapacityProviders.
-     * 
+     *
      * This function blocks indefinitely until the operation is successful, relying on outside
      * timeouts to prevent us from actually blocking forever.
      */
-    public void lock(RequestContext requestContext) {
+    public synchronized void lock(RequestContext requestContext) {
+        final long startTimeMillis = System.currentTimeMillis();
+        owner = UUID.randomUUID().toString();
+        ticket = fifo ? takeTicket(requestContext) : 0L;
+        int attempts = 0;
         boolean locked = false;
         while (!locked) {
-            locked = tryLockUnlock(requestContext, true);
+            attempts++;
+            locked = tryLock(requestContext);
             if (!locked) {
                 // self-throttle so we don't blow up DDB trying to attain the lock
                 try {
-                    Thread.sleep(5 * 1000); // 5 seconds
+                    Thread.sleep(backoff(attempts));
                 } catch (InterruptedException ie) {
                     // do nothing, keep trying
                 }
             }
         }
+        acquiredAt = System.currentTimeMillis();
+        final String leaseOwner = owner;
+        final long heartbeatMillis = leaseMillis / 3;
+        heartbeat = heartbeats.scheduleAtFixedRate(() -> renew(requestContext, leaseOwner),
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        long waitTimeMillis = acquiredAt - startTimeMillis;
+        LOGGER.info("Locked ecs cluster {} for tenant {} after {} attempts in {} ms",
+                requestContext.ecsCluster, requestContext.tenantId, attempts, waitTimeMillis);
+        putMetric("LockWaitTime", waitTimeMillis, "Milliseconds");
+        putMetric("LockAttempts", attempts, "Count");
     }
 
     /**
      * Unlocks the distributed lock for reading/writing CapacityProviders.
-     * 
-     * This function blocks indefinitely until the operation is successful, relying on outside
-     * timeouts to prevent us from actually blocking forever. We don't allow unlocking an unlocked
-     * lock, since it is an invalid operation: we should only be unlocking after our own lock.
+     *
+     * Only our own lease is released. If the lease ran out and someone else took the lock, it is theirs
+     * now and we leave it alone.
      */
-    public void unlock(RequestContext requestContext) {
-        boolean success = false;
-        while (!success) {
-            success = tryLockUnlock(requestContext, false);
-            if (!success) {
-                // self-throttle so we don't blow up DDB trying to relinquish the lock
-                try {
-                    Thread.sleep(5 * 1000); // 5 seconds
-                } catch (InterruptedException ie) {
-                    // do nothing, keep trying
-                }
-            }
+    public synchronized void unlock(RequestContext requestContext) {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
         }
+        if (!tryUnlock(requestContext)) {
+            LOGGER.warn("Lease on ecs cluster {} for tenant {} expired before it was released",
+                    requestContext.ecsCluster, requestContext.tenantId);
+        }
+        putMetric("LockHoldTime", System.currentTimeMillis() - acquiredAt, "Milliseconds");
+        owner = null;
     }
 
     // VisibleForTesting
     protected AttributeValue currentOnboardingId(RequestContext requestContext) {
+        AttributeValue onboardingId = onboardingIds.get(requestContext.tenantId);
         if (onboardingId == null) {
             try {
                 ScanRequest scanRequest = ScanRequest.builder()
@@ -82,47 +145,176 @@ public class CapacityProviderLock {
                         .expressionAttributeValues((Map<String, AttributeValue>) Map.of(
                                 ":tenantid", AttributeValue.builder().s(requestContext.tenantId).build()))
                         .build());
-                this.onboardingId = scanResponse.items().get(0).get("id");
+                onboardingId = scanResponse.items().get(0).get("id");
+                onboardingIds.put(requestContext.tenantId, onboardingId);
             } catch (DynamoDbException ddbe) {
                 LOGGER.error("Error trying to scan for current onboarding id: {}", ddbe.getMessage());
                 LOGGER.error(Utils.getFullStackTrace(ddbe));
                 throw new RuntimeException(ddbe);
             }
         }
-        return this.onboardingId;
+        return onboardingId;
     }
 
     // VisibleForTesting
-    protected boolean tryLockUnlock(RequestContext requestContext, boolean tryLock) {
+    protected boolean tryLock(RequestContext requestContext) {
+        final long now = System.currentTimeMillis();
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":false", AttributeValue.builder().bool(false).build());
+        values.put(":true", AttributeValue.builder().bool(true).build());
+        values.put(":owner", AttributeValue.builder().s(owner).build());
+        values.put(":expires", AttributeValue.builder().n(String.valueOf(now + leaseMillis)).build());
+        values.put(":now", AttributeValue.builder().n(String.valueOf(now)).build());
+        String free = "(attribute_not_exists(ecs_cluster_locked) OR ecs_cluster_locked = :false)";
+        String condition;
+        if (fifo) {
+            // It's our turn, or whoever's turn it is hasn't claimed the lock for a while
+            values.put(":ticket", AttributeValue.builder().n(String.valueOf(ticket)).build());
+            values.put(":abandoned", AttributeValue.builder().n(String.valueOf(now - ABANDONED_TICKET_MILLIS)).build());
+            condition = "(" + free + " AND (attribute_not_exists(ecs_cluster_lock_serving)"
+                    + " OR ecs_cluster_lock_serving >= :ticket OR ecs_cluster_lock_released < :abandoned))"
+                    + " OR ecs_cluster_lock_expires < :now";
+        } else {
+            condition = free + " OR ecs_cluster_lock_expires < :now";
+        }
         try {
             UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
                     .tableName(requestContext.onboardingDdbTable)
                     .key(Map.of("id", currentOnboardingId(requestContext)))
-                    .conditionExpression("ecs_cluster_locked = :lock_expected")
-                    .updateExpression("SET ecs_cluster_locked = :new_lock")
-                    .expressionAttributeValues(Map.of(
-                            ":lock_expected", AttributeValue.builder().bool(!tryLock).build(),
-                            ":new_lock", AttributeValue.builder().bool(tryLock).build()))
+                    .conditionExpression(condition)
+                    .updateExpression("SET ecs_cluster_locked = :true, ecs_cluster_lock_owner = :owner, "
+                            + "ecs_cluster_lock_expires = :expires")
+                    .expressionAttributeValues(values)
+                    .build();
+            LOGGER.debug("trying to lock with updateItemRequest {}", updateItemRequest);
+            ddb.updateItem(updateItemRequest);
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOGGER.info("Could not lock ecs_cluster_locked, held by another request");
+            return false;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("Error trying to update lock for current onboarding id: {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw new RuntimeException(ddbe);
+        }
+        return true;
+    }
+
+    // VisibleForTesting
+    protected boolean tryUnlock(RequestContext requestContext) {
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":false", AttributeValue.builder().bool(false).build());
+        values.put(":owner", AttributeValue.builder().s(owner).build());
+        values.put(":now", AttributeValue.builder().n(String.valueOf(System.currentTimeMillis())).build());
+        String release = "SET ecs_cluster_locked = :false, ecs_cluster_lock_released = :now";
+        String remove = " REMOVE ecs_cluster_lock_owner, ecs_cluster_lock_expires";
+        String ours = "ecs_cluster_lock_owner = :owner";
+        if (fifo) {
+            // Hand the lock to the next ticket. If we got the lock by jumping ahead of an abandoned ticket,
+            // a later ticket may already have moved serving past ours, and moving it back would make
+            // tickets that were already served wait their turn again.
+            Map<String, AttributeValue> handOff = new HashMap<>(values);
+            handOff.put(":next", AttributeValue.builder().n(String.valueOf(ticket + 1)).build());
+            try {
+                release(requestContext, release + ", ecs_cluster_lock_serving = :next" + remove,
+                        ours + " AND (attribute_not_exists(ecs_cluster_lock_serving)"
+                                + " OR ecs_cluster_lock_serving < :next)", handOff);
+                return true;
+            } catch (ConditionalCheckFailedException ccfe) {
+                // Either serving is already ahead of us or the lease isn't ours anymore
+            }
+        }
+        try {
+            release(requestContext, release + remove, ours, values);
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOGGER.error("Could not unlock ecs_cluster_locked, conditional check failed: {}", ccfe.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private void release(RequestContext requestContext, String update, String condition,
+                         Map<String, AttributeValue> values) {
+        try {
+            UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+                    .tableName(requestContext.onboardingDdbTable)
+                    .key(Map.of("id", currentOnboardingId(requestContext)))
+                    .conditionExpression(condition)
+                    .updateExpression(update)
+                    .expressionAttributeValues(values)
                     .build();
-            LOGGER.debug("trying to {} with updateItemRequest {}", tryLock ? "lock" : "unlock", updateItemRequest);
+            LOGGER.debug("trying to unlock with updateItemRequest {}", updateItemRequest);
+            ddb.updateItem(updateItemRequest);
+        } catch (ConditionalCheckFailedException ccfe) {
+            throw ccfe;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("Error trying to update lock for current onboarding id: {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw new RuntimeException(ddbe);
+        }
+    }
+
+    private long takeTicket(RequestContext requestContext) {
+        try {
+            UpdateItemResponse response = ddb.updateItem(UpdateItemRequest.builder()
+                    .tableName(requestContext.onboardingDdbTable)
+                    .key(Map.of("id", currentOnboardingId(requestContext)))
+                    .updateExpression("ADD ecs_cluster_lock_tickets :one")
+                    .expressionAttributeValues(Map.of(":one", AttributeValue.builder().n("1").build()))
+                    .returnValues(ReturnValue.UPDATED_NEW)
+                    .build());
+            long taken = Long.parseLong(response.attributes().get("ecs_cluster_lock_tickets").n());
+            LOGGER.info("Waiting for ecs cluster {} lock with ticket {}", requestContext.ecsCluster, taken);
+            return taken;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("Error trying to take a lock ticket for current onboarding id: {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw new RuntimeException(ddbe);
+        }
+    }
+
+    private void renew(RequestContext requestContext, String leaseOwner) {
+        try {
             ddb.updateItem(UpdateItemRequest.builder()
                     .tableName(requestContext.onboardingDdbTable)
                     .key(Map.of("id", currentOnboardingId(requestContext)))
-                    .conditionExpression("ecs_cluster_locked = :lock_expected")
-                    .updateExpression("SET ecs_cluster_locked = :new_lock")
+                    .conditionExpression("ecs_cluster_lock_owner = :owner")
+                    .updateExpression("SET ecs_cluster_lock_expires = :expires")
                     .expressionAttributeValues(Map.of(
-                            ":lock_expected", AttributeValue.builder().bool(!tryLock).build(),
-                            ":new_lock", AttributeValue.builder().bool(tryLock).build()))
+                            ":owner", AttributeValue.builder().s(leaseOwner).build(),
+                            ":expires", AttributeValue.builder()
+                                    .n(String.valueOf(System.currentTimeMillis() + leaseMillis)).build()))
                     .build());
         } catch (ConditionalCheckFailedException ccfe) {
-            LOGGER.error("Could not {} ecs_cluster_locked, conditional check failed: {}",
-                    tryLock ? "lock" : "unlock", ccfe.getMessage());
-            return false;
+            // Throwing stops the heartbeat, there's nothing left to renew
+            LOGGER.error("Lost lease on ecs cluster {} for tenant {}",
+                    requestContext.ecsCluster, requestContext.tenantId);
+            throw ccfe;
         } catch (DynamoDbException ddbe) {
-            LOGGER.error("Error trying to update lock for current onboarding id: {}", ddbe.getMessage());
+            // The next heartbeat will try again before the lease runs out
+            LOGGER.error("Error trying to renew lock for current onboarding id: {}", ddbe.getMessage());
             LOGGER.error(Utils.getFullStackTrace(ddbe));
-            throw new RuntimeException(ddbe);
         }
-        return true;
+    }
+
+    // Exponential backoff with jitter so waiters don't all retry at the same moment
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 10));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    // CloudWatch embedded metric format, extracted from the function's log output
+    private void putMetric(String name, long value, String unit) {
+        Map<String, Object> metric = new LinkedHashMap<>();
+        metric.put("_aws", Map.of(
+                "Timestamp", System.currentTimeMillis(),
+                "CloudWatchMetrics", List.of(Map.of(
+                        "Namespace", METRICS_NAMESPACE,
+                        "Dimensions", List.of(List.of("LockMode")),
+                        "Metrics", List.of(Map.of("Name", name, "Unit", unit))
+                ))
+        ));
+        metric.put("LockMode", fifo ? "fifo" : "lease");
+        metric.put(name, value);
+        METRICS.info(Utils.toJson(metric));
     }
 }
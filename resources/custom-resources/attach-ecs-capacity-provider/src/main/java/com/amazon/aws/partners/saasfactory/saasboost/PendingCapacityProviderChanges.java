@@ -0,0 +1,225 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Capacity provider attach and detach requests waiting to be applied to a tenant's ECS cluster, kept as
+ * string sets on the same onboarding item as the {@link CapacityProviderLock}.
+ *
+ * Each request adds its own entry here before taking the lock. Whoever gets the lock first applies every
+ * pending change in one PutClusterCapacityProviders call and clears the entries it applied, so the requests
+ * behind it find their entry gone and only have to report back. An entry is the capacity provider, the time
+ * it was added and a random suffix, so every request can tell its own entry from the others. Entries older
+ * than the longest a request can run belong to requests that died before clearing them and are dropped.
+ */
+public class PendingCapacityProviderChanges {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PendingCapacityProviderChanges.class);
+    private static final String ATTACH = "ecs_cluster_pending_attach";
+    private static final String DETACH = "ecs_cluster_pending_detach";
+    private static final String SEPARATOR = "@";
+    // The Lambda timeout can't be more than 15 minutes, nobody is waiting on an entry older than that
+    private static final long DEFAULT_EXPIRY_MILLIS = 15 * 60 * 1000;
+
+    private final DynamoDbClient ddb;
+    private final CapacityProviderLock lock;
+    private final long expiryMillis;
+
+    public PendingCapacityProviderChanges(DynamoDbClient ddb, CapacityProviderLock lock) {
+        this(ddb, lock, DEFAULT_EXPIRY_MILLIS);
+    }
+
+    public PendingCapacityProviderChanges(DynamoDbClient ddb, CapacityProviderLock lock, long expiryMillis) {
+        this.ddb = ddb;
+        this.lock = lock;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * @return the entry this request owns, to find it again with {@link Changes#contains(String)}
+     */
+    public String add(RequestContext requestContext, boolean attach) {
+        String entry = requestContext.capacityProvider + SEPARATOR + System.currentTimeMillis() + SEPARATOR
+                + UUID.randomUUID().toString().substring(0, 8);
+        try {
+            ddb.updateItem(request -> request
+                    .tableName(requestContext.onboardingDdbTable)
+                    .key(Map.of("id", lock.currentOnboardingId(requestContext)))
+                    .updateExpression("ADD " + (attach ? ATTACH : DETACH) + " :entry")
+                    .expressionAttributeValues(Map.of(":entry", AttributeValue.builder().ss(entry).build()))
+            );
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("Error adding pending capacity provider change: {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw new RuntimeException(ddbe);
+        }
+        return entry;
+    }
+
+    /**
+     * The changes still waiting to be applied. Expired entries are cleared instead of returned.
+     */
+    public Changes get(RequestContext requestContext) {
+        Map<String, AttributeValue> item;
+        try {
+            GetItemResponse response = ddb.getItem(request -> request
+                    .tableName(requestContext.onboardingDdbTable)
+                    .key(Map.of("id", lock.currentOnboardingId(requestContext)))
+                    .projectionExpression(ATTACH + ", " + DETACH)
+                    .consistentRead(true)
+            );
+            item = response.hasItem() ? response.item() : Collections.emptyMap();
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("Error reading pending capacity provider changes: {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw new RuntimeException(ddbe);
+        }
+        final long oldest = System.currentTimeMillis() - expiryMillis;
+        Set<String> attach = new LinkedHashSet<>();
+        Set<String> detach = new LinkedHashSet<>();
+        Set<String> expiredAttach = new LinkedHashSet<>();
+        Set<String> expiredDetach = new LinkedHashSet<>();
+        for (String entry : stringSet(item.get(ATTACH))) {
+            (addedAt(entry) < oldest ? expiredAttach : attach).add(entry);
+        }
+        for (String entry : stringSet(item.get(DETACH))) {
+            (addedAt(entry) < oldest ? expiredDetach : detach).add(entry);
+        }
+        if (!expiredAttach.isEmpty() || !expiredDetach.isEmpty()) {
+            LOGGER.warn("Dropping expired capacity provider changes for ecs cluster {}: attach {} detach {}",
+                    requestContext.ecsCluster, expiredAttach, expiredDetach);
+            remove(requestContext, new Changes(expiredAttach, expiredDetach));
+        }
+        return new Changes(attach, detach);
+    }
+
+    /**
+     * Clear changes that have been applied, or failed. Changes added since they were read stay pending.
+     */
+    public void remove(RequestContext requestContext, Changes applied) {
+        List<String> deletes = new ArrayList<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        if (!applied.attach.isEmpty()) {
+            deletes.add(ATTACH + " :attach");
+            values.put(":attach", AttributeValue.builder().ss(applied.attach).build());
+        }
+        if (!applied.detach.isEmpty()) {
+            deletes.add(DETACH + " :detach");
+            values.put(":detach", AttributeValue.builder().ss(applied.detach).build());
+        }
+        if (deletes.isEmpty()) {
+            return;
+        }
+        try {
+            ddb.updateItem(request -> request
+                    .tableName(requestContext.onboardingDdbTable)
+                    .key(Map.of("id", lock.currentOnboardingId(requestContext)))
+                    .updateExpression("DELETE " + String.join(", ", deletes))
+                    .expressionAttributeValues(values)
+            );
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("Error clearing capacity provider changes: {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw new RuntimeException(ddbe);
+        }
+    }
+
+    static String capacityProvider(String entry) {
+        int separator = entry.indexOf(SEPARATOR);
+        return separator < 0 ? entry : entry.substring(0, separator);
+    }
+
+    static long addedAt(String entry) {
+        String[] parts = entry.split(SEPARATOR);
+        try {
+            return parts.length > 1 ? Long.parseLong(parts[1]) : 0L;
+        } catch (NumberFormatException nfe) {
+            return 0L;
+        }
+    }
+
+    private static Set<String> stringSet(AttributeValue value) {
+        return value != null && value.hasSs() ? new LinkedHashSet<>(value.ss()) : Collections.emptySet();
+    }
+
+    public static final class Changes {
+        public final Set<String> attach;
+        public final Set<String> detach;
+
+        public Changes(Set<String> attach, Set<String> detach) {
+            this.attach = Collections.unmodifiableSet(attach);
+            this.detach = Collections.unmodifiableSet(detach);
+        }
+
+        /**
+         * Just the one entry, for a request that applies or gives up on its own change.
+         */
+        public static Changes of(String entry, boolean attach) {
+            return attach ? new Changes(Set.of(entry), Set.of()) : new Changes(Set.of(), Set.of(entry));
+        }
+
+        public boolean contains(String entry) {
+            return attach.contains(entry) || detach.contains(entry);
+        }
+
+        public int size() {
+            return attach.size() + detach.size();
+        }
+
+        /**
+         * When the same capacity provider is both attached and detached, the request that came last wins,
+         * the same as if they had been applied one after the other.
+         */
+        public List<String> applyTo(List<String> capacityProviders) {
+            List<String> entries = new ArrayList<>(attach);
+            entries.addAll(detach);
+            entries.sort(Comparator.comparingLong(PendingCapacityProviderChanges::addedAt));
+            Map<String, Boolean> latest = new LinkedHashMap<>();
+            for (String entry : entries) {
+                String capacityProvider = capacityProvider(entry);
+                latest.remove(capacityProvider);
+                latest.put(capacityProvider, attach.contains(entry));
+            }
+            List<String> modifiedCapacityProviders = new ArrayList<>(capacityProviders);
+            for (Map.Entry<String, Boolean> change : latest.entrySet()) {
+                if (!change.getValue()) {
+                    modifiedCapacityProviders.remove(change.getKey());
+                } else if (!modifiedCapacityProviders.contains(change.getKey())) {
+                    modifiedCapacityProviders.add(change.getKey());
+                }
+            }
+            return modifiedCapacityProviders;
+        }
+    }
+}
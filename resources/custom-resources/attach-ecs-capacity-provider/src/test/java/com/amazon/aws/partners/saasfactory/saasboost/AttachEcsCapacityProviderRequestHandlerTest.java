@@ -21,16 +21,24 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import software.amazon.awssdk.services.ecs.EcsClient;
 import software.amazon.awssdk.services.ecs.model.Cluster;
+import software.amazon.awssdk.services.ecs.model.ClusterNotFoundException;
 import software.amazon.awssdk.services.ecs.model.DescribeClustersRequest;
 import software.amazon.awssdk.services.ecs.model.DescribeClustersResponse;
+import software.amazon.awssdk.services.ecs.model.InvalidParameterException;
 import software.amazon.awssdk.services.ecs.model.PutClusterCapacityProvidersRequest;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -40,6 +48,7 @@ public class AttachEcsCapacityProviderRequestHandlerTest {
     private static final String CAPACITY_PROVIDER_1 = "capacityProvider1";
     private static final String CAPACITY_PROVIDER_2 = "capacityProvider2";
     private static final String NEW_CAPACITY_PROVIDER = "capacityProvider3";
+    private static final String CAPACITY_PROVIDER_4 = "capacityProvider4";
     private static final List<String> EXISTING_PROVIDERS = List.of(CAPACITY_PROVIDER_1, CAPACITY_PROVIDER_2);
     private static final RequestContext BASE_REQUEST_CONTEXT = RequestContext.builder()
             .requestType("Create")
@@ -127,6 +136,119 @@ public class AttachEcsCapacityProviderRequestHandlerTest {
         testCall(testHandler, false, null);
     }
 
+    @Test
+    public void testCall_coalescedCreate() {
+        PendingCapacityProviderChanges mockPending = mock(PendingCapacityProviderChanges.class);
+        final String ours = entry(NEW_CAPACITY_PROVIDER, 1000L);
+        doReturn(ours).when(mockPending).add(BASE_REQUEST_CONTEXT, true);
+        // another tenant service asked for CAPACITY_PROVIDER_4 during the window
+        PendingCapacityProviderChanges.Changes changes = new PendingCapacityProviderChanges.Changes(
+                new LinkedHashSet<>(List.of(ours, entry(CAPACITY_PROVIDER_4, 1001L))), Set.of());
+        doReturn(changes).when(mockPending).get(any(RequestContext.class));
+        AttachCapacityProviderRequestHandler testHandler = new AttachCapacityProviderRequestHandler(
+                BASE_REQUEST_CONTEXT, mockLock, mockEcs, mockPending, 1L);
+        List<String> expectedProviders = new ArrayList<>(EXISTING_PROVIDERS);
+        expectedProviders.add(NEW_CAPACITY_PROVIDER);
+        expectedProviders.add(CAPACITY_PROVIDER_4);
+        testCall(testHandler, true, expectedProviders);
+        verify(mockPending, times(1)).add(BASE_REQUEST_CONTEXT, true);
+        verify(mockPending, times(1)).remove(BASE_REQUEST_CONTEXT, changes);
+    }
+
+    @Test
+    public void testCall_coalescedAlreadyApplied() {
+        PendingCapacityProviderChanges mockPending = mock(PendingCapacityProviderChanges.class);
+        doReturn(entry(NEW_CAPACITY_PROVIDER, 1000L)).when(mockPending).add(BASE_REQUEST_CONTEXT, true);
+        doReturn(new PendingCapacityProviderChanges.Changes(Set.of(), Set.of()))
+                .when(mockPending).get(any(RequestContext.class));
+        AttachCapacityProviderRequestHandler testHandler = new AttachCapacityProviderRequestHandler(
+                BASE_REQUEST_CONTEXT, mockLock, mockEcs, mockPending, 1L);
+        HandleResult result = testHandler.call();
+        assertTrue(result.succeeded());
+        // the request ahead of us applied our change, so we never need the lock or ECS
+        verify(mockLock, times(0)).lock(any(RequestContext.class));
+        verify(mockEcs, times(0)).putClusterCapacityProviders(any(PutClusterCapacityProvidersRequest.class));
+    }
+
+    @Test
+    public void testCall_coalescedBatchFailureAppliesOnlyOurs() {
+        PendingCapacityProviderChanges mockPending = mock(PendingCapacityProviderChanges.class);
+        final String ours = entry(NEW_CAPACITY_PROVIDER, 1000L);
+        final String theirs = entry(CAPACITY_PROVIDER_4, 1001L);
+        doReturn(ours).when(mockPending).add(BASE_REQUEST_CONTEXT, true);
+        PendingCapacityProviderChanges.Changes changes = new PendingCapacityProviderChanges.Changes(
+                new LinkedHashSet<>(List.of(ours, theirs)), Set.of());
+        doReturn(changes).when(mockPending).get(any(RequestContext.class));
+        // CAPACITY_PROVIDER_4 doesn't exist, so the combined call fails and ours alone doesn't
+        final ArgumentCaptor<PutClusterCapacityProvidersRequest> putCaptor =
+                ArgumentCaptor.forClass(PutClusterCapacityProvidersRequest.class);
+        doThrow(InvalidParameterException.builder().message("capacityProvider4 not found").build())
+                .doReturn(null)
+                .when(mockEcs).putClusterCapacityProviders(putCaptor.capture());
+        AttachCapacityProviderRequestHandler testHandler = new AttachCapacityProviderRequestHandler(
+                BASE_REQUEST_CONTEXT, mockLock, mockEcs, mockPending, 1L);
+
+        HandleResult result = testHandler.call();
+        assertTrue(result.succeeded());
+        List<String> expectedProviders = new ArrayList<>(EXISTING_PROVIDERS);
+        expectedProviders.add(NEW_CAPACITY_PROVIDER);
+        assertEquals(expectedProviders, putCaptor.getAllValues().get(1).capacityProviders());
+        // only our entry is cleared, the other one is left for its own request to apply or fail
+        verify(mockPending, times(1)).remove(any(RequestContext.class),
+                argThat(cleared -> cleared.size() == 1 && cleared.contains(ours)));
+        verify(mockPending, times(0)).remove(BASE_REQUEST_CONTEXT, changes);
+        verify(mockLock, times(1)).unlock(any(RequestContext.class));
+    }
+
+    @Test
+    public void testCall_coalescedFailureClearsOurEntry() {
+        PendingCapacityProviderChanges mockPending = mock(PendingCapacityProviderChanges.class);
+        final String ours = entry(NEW_CAPACITY_PROVIDER, 1000L);
+        doReturn(ours).when(mockPending).add(BASE_REQUEST_CONTEXT, true);
+        doReturn(PendingCapacityProviderChanges.Changes.of(ours, true))
+                .when(mockPending).get(any(RequestContext.class));
+        doThrow(ClusterNotFoundException.builder().message("cluster not found").build())
+                .when(mockEcs).describeClusters(any(DescribeClustersRequest.class));
+        AttachCapacityProviderRequestHandler testHandler = new AttachCapacityProviderRequestHandler(
+                BASE_REQUEST_CONTEXT, mockLock, mockEcs, mockPending, 1L);
+
+        HandleResult result = testHandler.call();
+        assertFalse(result.succeeded());
+        // the failed change doesn't stay pending for the next request to pick up
+        verify(mockPending, times(1)).remove(any(RequestContext.class),
+                argThat(cleared -> cleared.size() == 1 && cleared.contains(ours)));
+        verify(mockLock, times(1)).unlock(any(RequestContext.class));
+    }
+
+    @Test
+    public void testCall_coalescedDetachAfterAttach() {
+        RequestContext deleteContext = RequestContext.builder()
+                .requestType("Delete")
+                .capacityProvider(NEW_CAPACITY_PROVIDER)
+                .ecsCluster("ecsCluster")
+                .onboardingDdbTable("onboardingDdbTable")
+                .tenantId("tenant-123-456")
+                .build();
+        PendingCapacityProviderChanges mockPending = mock(PendingCapacityProviderChanges.class);
+        // an attach of the same capacity provider was still pending when we asked to detach it
+        final String attach = entry(NEW_CAPACITY_PROVIDER, 1000L);
+        final String ours = entry(NEW_CAPACITY_PROVIDER, 1001L);
+        doReturn(ours).when(mockPending).add(deleteContext, false);
+        PendingCapacityProviderChanges.Changes changes = new PendingCapacityProviderChanges.Changes(
+                Set.of(attach), Set.of(ours));
+        doReturn(changes).when(mockPending).get(any(RequestContext.class));
+        AttachCapacityProviderRequestHandler testHandler = new AttachCapacityProviderRequestHandler(
+                deleteContext, mockLock, mockEcs, mockPending, 1L);
+
+        // the detach came last, so the cluster keeps what it had and ECS isn't called
+        testCall(testHandler, true, null);
+        verify(mockPending, times(1)).remove(deleteContext, changes);
+    }
+
+    private static String entry(String capacityProvider, long addedAt) {
+        return capacityProvider + "@" + addedAt + "@0a1b2c3d";
+    }
+
     private void testCall(AttachCapacityProviderRequestHandler handler, 
             boolean expectSuccess, List<String> expectedPassedCapacityProviders) {
         // start start
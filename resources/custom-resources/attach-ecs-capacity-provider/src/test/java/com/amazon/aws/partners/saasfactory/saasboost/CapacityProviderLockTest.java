@@ -2,6 +2,7 @@ package com.amazon.aws.partners.saasfactory.saasboost;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
@@ -31,6 +32,7 @@ public final class CapacityProviderLockTest {
     private static final String ONBOARDING_DDB_TABLE = "onboarding";
     private static final String TENANT_ID = "123-456";
     private static final String ONBOARDING_ID = "onb-123-456";
+    private static final long LEASE_MILLIS = 60 * 1000;
     private static final RequestContext TEST_CONTEXT = RequestContext.builder()
             .requestType("Create")
             .ecsCluster("ecsCluster")
@@ -45,14 +47,14 @@ public final class CapacityProviderLockTest {
     @Before
     public void setup() {
         mockDdb = mock(DynamoDbClient.class);
-        testLock = new CapacityProviderLock(mockDdb);
+        testLock = new CapacityProviderLock(mockDdb, LEASE_MILLIS, false);
     }
 
     /**
-     * trylock something already locked
-     * tryunlock something not locked
-     * trylock happy case
-     * tryunlock happy case
+     * lock something already locked
+     * unlock a lease someone else took over
+     * lock/unlock happy case
+     * lock/unlock in ticket order
      * verify each test does a scan
      * verify each test does an update
      * verify a conditional update fail means false
@@ -76,6 +78,27 @@ public final class CapacityProviderLockTest {
         verify(mockDdb, times(1)).scan(any(ScanRequest.class));
     }
 
+    @Test
+    public void getOnboardingId_perTenant() {
+        final AttributeValue onboardingId = AttributeValue.builder().s("onb-123-456").build();
+        final AttributeValue otherOnboardingId = AttributeValue.builder().s("onb-789-012").build();
+        final RequestContext otherContext = RequestContext.builder()
+                .requestType("Create")
+                .ecsCluster("otherEcsCluster")
+                .onboardingDdbTable(ONBOARDING_DDB_TABLE)
+                .capacityProvider("capacityProvider")
+                .tenantId("789-012")
+                .build();
+        doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
+                .doReturn(ScanResponse.builder().items(List.of(Map.of("id", otherOnboardingId))).build())
+                .when(mockDdb).scan(any(ScanRequest.class));
+        assertEquals(onboardingId, testLock.currentOnboardingId(TEST_CONTEXT));
+        // a warm container serving another tenant must not reuse the first tenant's onboarding item
+        assertEquals(otherOnboardingId, testLock.currentOnboardingId(otherContext));
+        assertEquals(onboardingId, testLock.currentOnboardingId(TEST_CONTEXT));
+        verify(mockDdb, times(2)).scan(any(ScanRequest.class));
+    }
+
     @Test(expected = RuntimeException.class)
     public void getOnboardingId_scanFailure() {
         doThrow(ResourceNotFoundException.builder().build()).when(mockDdb).scan(any(ScanRequest.class));
@@ -83,52 +106,153 @@ public final class CapacityProviderLockTest {
     }
 
     @Test
-    public void tryLockUnlock_basic() {
+    public void lockUnlock_basic() {
         final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
         doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
                 .when(mockDdb).scan(any(ScanRequest.class));
-        
+
         final ArgumentCaptor<UpdateItemRequest> updateCaptor = ArgumentCaptor.forClass(UpdateItemRequest.class);
         doReturn(UpdateItemResponse.builder().build()).when(mockDdb).updateItem(updateCaptor.capture());
-        
-        boolean success = testLock.tryLockUnlock(TEST_CONTEXT, true);
+
+        final long before = System.currentTimeMillis();
+        testLock.lock(TEST_CONTEXT);
         UpdateItemRequest actualRequest = updateCaptor.getValue();
         assertEquals(onboardingId, actualRequest.key().get("id"));
-        assertEquals("ecs_cluster_locked = :lock_expected", actualRequest.conditionExpression());
-        assertEquals("SET ecs_cluster_locked = :new_lock", actualRequest.updateExpression());
-        assertEquals(AttributeValue.builder().bool(false).build(), actualRequest.expressionAttributeValues().get(":lock_expected"));
-        assertEquals(AttributeValue.builder().bool(true).build(), actualRequest.expressionAttributeValues().get(":new_lock"));
-        assertTrue(success);
-        
-        success = testLock.tryLockUnlock(TEST_CONTEXT, false);
+        assertEquals("(attribute_not_exists(ecs_cluster_locked) OR ecs_cluster_locked = :false)"
+                + " OR ecs_cluster_lock_expires < :now", actualRequest.conditionExpression());
+        assertEquals("SET ecs_cluster_locked = :true, ecs_cluster_lock_owner = :owner, "
+                + "ecs_cluster_lock_expires = :expires", actualRequest.updateExpression());
+        final AttributeValue owner = actualRequest.expressionAttributeValues().get(":owner");
+        assertNotNull(owner.s());
+        long expires = Long.parseLong(actualRequest.expressionAttributeValues().get(":expires").n());
+        assertTrue("lease should run for the lease time", expires >= before + LEASE_MILLIS);
+
+        testLock.unlock(TEST_CONTEXT);
         actualRequest = updateCaptor.getValue();
         assertEquals(onboardingId, actualRequest.key().get("id"));
-        assertEquals("ecs_cluster_locked = :lock_expected", actualRequest.conditionExpression());
-        assertEquals("SET ecs_cluster_locked = :new_lock", actualRequest.updateExpression());
-        assertEquals(AttributeValue.builder().bool(true).build(), actualRequest.expressionAttributeValues().get(":lock_expected"));
-        assertEquals(AttributeValue.builder().bool(false).build(), actualRequest.expressionAttributeValues().get(":new_lock"));
-        assertTrue(success);
+        assertEquals("ecs_cluster_lock_owner = :owner", actualRequest.conditionExpression());
+        assertEquals("SET ecs_cluster_locked = :false, ecs_cluster_lock_released = :now"
+                + " REMOVE ecs_cluster_lock_owner, ecs_cluster_lock_expires", actualRequest.updateExpression());
+        assertEquals("unlock should only release our own lease",
+                owner, actualRequest.expressionAttributeValues().get(":owner"));
+        verify(mockDdb, times(2)).updateItem(any(UpdateItemRequest.class));
     }
 
     @Test
-    public void tryLockUnlock_conditionNotMet() {
+    public void lock_retriesUntilFree() {
         final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
         doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
                 .when(mockDdb).scan(any(ScanRequest.class));
-        
-        doThrow(ConditionalCheckFailedException.builder().build()).when(mockDdb).updateItem(any(UpdateItemRequest.class));
-        
-        boolean success = testLock.tryLockUnlock(TEST_CONTEXT, true);
-        assertFalse(success);
+
+        doThrow(ConditionalCheckFailedException.builder().build())
+                .doReturn(UpdateItemResponse.builder().build())
+                .when(mockDdb).updateItem(any(UpdateItemRequest.class));
+        testLock.lock(TEST_CONTEXT);
+        verify(mockDdb, times(2)).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void unlock_leaseLost() {
+        final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
+        doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
+                .when(mockDdb).scan(any(ScanRequest.class));
+
+        doReturn(UpdateItemResponse.builder().build())
+                .doThrow(ConditionalCheckFailedException.builder().build())
+                .when(mockDdb).updateItem(any(UpdateItemRequest.class));
+        testLock.lock(TEST_CONTEXT);
+        // someone else took over the expired lease, unlocking must not spin or fail
+        testLock.unlock(TEST_CONTEXT);
+        verify(mockDdb, times(2)).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void lockUnlock_fifo() {
+        testLock = new CapacityProviderLock(mockDdb, LEASE_MILLIS, true);
+        final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
+        doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
+                .when(mockDdb).scan(any(ScanRequest.class));
+
+        final ArgumentCaptor<UpdateItemRequest> updateCaptor = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        doReturn(UpdateItemResponse.builder()
+                .attributes(Map.of("ecs_cluster_lock_tickets", AttributeValue.builder().n("7").build()))
+                .build()).when(mockDdb).updateItem(updateCaptor.capture());
+
+        testLock.lock(TEST_CONTEXT);
+        List<UpdateItemRequest> requests = updateCaptor.getAllValues();
+        assertEquals(2, requests.size());
+        assertEquals("ADD ecs_cluster_lock_tickets :one", requests.get(0).updateExpression());
+        assertEquals(AttributeValue.builder().n("7").build(),
+                requests.get(1).expressionAttributeValues().get(":ticket"));
+        assertTrue(requests.get(1).conditionExpression().contains("ecs_cluster_lock_serving >= :ticket"));
+
+        testLock.unlock(TEST_CONTEXT);
+        UpdateItemRequest actualRequest = updateCaptor.getValue();
+        assertTrue(actualRequest.updateExpression().contains("ecs_cluster_lock_serving = :next"));
+        assertEquals(AttributeValue.builder().n("8").build(),
+                actualRequest.expressionAttributeValues().get(":next"));
+    }
+
+    @Test
+    public void unlock_fifoNeverMovesServingBack() {
+        testLock = new CapacityProviderLock(mockDdb, LEASE_MILLIS, true);
+        final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
+        doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
+                .when(mockDdb).scan(any(ScanRequest.class));
+
+        final ArgumentCaptor<UpdateItemRequest> updateCaptor = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        final UpdateItemResponse ticket = UpdateItemResponse.builder()
+                .attributes(Map.of("ecs_cluster_lock_tickets", AttributeValue.builder().n("4").build()))
+                .build();
+        // take a ticket, lock, then a later ticket has already moved serving past ours
+        doReturn(ticket)
+                .doReturn(ticket)
+                .doThrow(ConditionalCheckFailedException.builder().build())
+                .doReturn(UpdateItemResponse.builder().build())
+                .when(mockDdb).updateItem(updateCaptor.capture());
+
+        testLock.lock(TEST_CONTEXT);
+        testLock.unlock(TEST_CONTEXT);
+        List<UpdateItemRequest> requests = updateCaptor.getAllValues();
+        assertEquals(4, requests.size());
+        UpdateItemRequest handOff = requests.get(2);
+        assertEquals("ecs_cluster_lock_owner = :owner AND (attribute_not_exists(ecs_cluster_lock_serving)"
+                + " OR ecs_cluster_lock_serving < :next)", handOff.conditionExpression());
+        assertEquals(AttributeValue.builder().n("5").build(), handOff.expressionAttributeValues().get(":next"));
+        UpdateItemRequest release = requests.get(3);
+        assertEquals("ecs_cluster_lock_owner = :owner", release.conditionExpression());
+        assertEquals("SET ecs_cluster_locked = :false, ecs_cluster_lock_released = :now"
+                + " REMOVE ecs_cluster_lock_owner, ecs_cluster_lock_expires", release.updateExpression());
+        assertFalse(release.expressionAttributeValues().containsKey(":next"));
+    }
+
+    @Test
+    public void unlock_fifoLeaseLost() {
+        testLock = new CapacityProviderLock(mockDdb, LEASE_MILLIS, true);
+        final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
+        doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
+                .when(mockDdb).scan(any(ScanRequest.class));
+
+        final UpdateItemResponse ticket = UpdateItemResponse.builder()
+                .attributes(Map.of("ecs_cluster_lock_tickets", AttributeValue.builder().n("4").build()))
+                .build();
+        doReturn(ticket)
+                .doReturn(ticket)
+                .doThrow(ConditionalCheckFailedException.builder().build())
+                .when(mockDdb).updateItem(any(UpdateItemRequest.class));
+
+        testLock.lock(TEST_CONTEXT);
+        assertFalse(testLock.tryUnlock(TEST_CONTEXT));
+        verify(mockDdb, times(4)).updateItem(any(UpdateItemRequest.class));
     }
 
     @Test(expected = RuntimeException.class)
-    public void tryLockUnlock_unexpectedException() {
+    public void tryLock_unexpectedException() {
         final AttributeValue onboardingId = AttributeValue.builder().s(ONBOARDING_ID).build();
         doReturn(ScanResponse.builder().items(List.of(Map.of("id", onboardingId))).build())
                 .when(mockDdb).scan(any(ScanRequest.class));
         
         doThrow(InternalServerErrorException.builder().build()).when(mockDdb).updateItem(any(UpdateItemRequest.class));
-        testLock.tryLockUnlock(TEST_CONTEXT, true);
+        testLock.tryLock(TEST_CONTEXT);
     }
 }
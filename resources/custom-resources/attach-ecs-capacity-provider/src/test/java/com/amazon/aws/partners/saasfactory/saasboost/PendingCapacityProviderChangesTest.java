@@ -0,0 +1,149 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public final class PendingCapacityProviderChangesTest {
+    private static final String ONBOARDING_ID = "onb-123-456";
+    private static final long EXPIRY_MILLIS = 15 * 60 * 1000;
+    private static final RequestContext TEST_CONTEXT = RequestContext.builder()
+            .requestType("Create")
+            .ecsCluster("ecsCluster")
+            .onboardingDdbTable("onboarding")
+            .capacityProvider("capacityProvider3")
+            .tenantId("123-456")
+            .build();
+    private static final List<String> EXISTING_PROVIDERS = List.of("capacityProvider1", "capacityProvider2");
+
+    private DynamoDbClient mockDdb;
+    private PendingCapacityProviderChanges pending;
+
+    @Before
+    public void setup() {
+        mockDdb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        CapacityProviderLock mockLock = mock(CapacityProviderLock.class);
+        doReturn(AttributeValue.builder().s(ONBOARDING_ID).build())
+                .when(mockLock).currentOnboardingId(any(RequestContext.class));
+        pending = new PendingCapacityProviderChanges(mockDdb, mockLock, EXPIRY_MILLIS);
+    }
+
+    @Test
+    public void add_entryIsOwnedByTheRequest() {
+        final ArgumentCaptor<UpdateItemRequest> updateCaptor = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        doReturn(UpdateItemResponse.builder().build()).when(mockDdb).updateItem(updateCaptor.capture());
+
+        final long before = System.currentTimeMillis();
+        String first = pending.add(TEST_CONTEXT, true);
+        String second = pending.add(TEST_CONTEXT, true);
+        assertEquals("capacityProvider3", PendingCapacityProviderChanges.capacityProvider(first));
+        assertTrue(PendingCapacityProviderChanges.addedAt(first) >= before);
+        assertFalse("two requests for the same capacity provider each get their own entry", first.equals(second));
+
+        UpdateItemRequest request = updateCaptor.getAllValues().get(0);
+        assertEquals(ONBOARDING_ID, request.key().get("id").s());
+        assertEquals("ADD ecs_cluster_pending_attach :entry", request.updateExpression());
+        assertEquals(List.of(first), request.expressionAttributeValues().get(":entry").ss());
+    }
+
+    @Test
+    public void get_dropsExpiredEntries() {
+        final long now = System.currentTimeMillis();
+        final String live = entry("capacityProvider3", now);
+        final String expired = entry("capacityProvider4", now - EXPIRY_MILLIS - 1000);
+        doReturn(GetItemResponse.builder().item(Map.of(
+                "ecs_cluster_pending_attach", AttributeValue.builder().ss(live, expired).build())).build())
+                .when(mockDdb).getItem(any(GetItemRequest.class));
+        final ArgumentCaptor<UpdateItemRequest> updateCaptor = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        doReturn(UpdateItemResponse.builder().build()).when(mockDdb).updateItem(updateCaptor.capture());
+
+        PendingCapacityProviderChanges.Changes changes = pending.get(TEST_CONTEXT);
+        assertEquals(Set.of(live), changes.attach);
+        assertTrue(changes.detach.isEmpty());
+        // the request that added it is long gone, so it's cleared instead of applied
+        UpdateItemRequest request = updateCaptor.getValue();
+        assertEquals("DELETE ecs_cluster_pending_attach :attach", request.updateExpression());
+        assertEquals(List.of(expired), request.expressionAttributeValues().get(":attach").ss());
+    }
+
+    @Test
+    public void get_nothingExpired() {
+        doReturn(GetItemResponse.builder().item(Map.of(
+                "ecs_cluster_pending_detach",
+                AttributeValue.builder().ss(entry("capacityProvider3", System.currentTimeMillis())).build()))
+                .build()).when(mockDdb).getItem(any(GetItemRequest.class));
+
+        PendingCapacityProviderChanges.Changes changes = pending.get(TEST_CONTEXT);
+        assertEquals(1, changes.detach.size());
+        verify(mockDdb, times(0)).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void applyTo_attachThenDetach() {
+        PendingCapacityProviderChanges.Changes changes = new PendingCapacityProviderChanges.Changes(
+                Set.of(entry("capacityProvider3", 1000L)), Set.of(entry("capacityProvider3", 1001L)));
+        assertEquals(EXISTING_PROVIDERS, changes.applyTo(EXISTING_PROVIDERS));
+    }
+
+    @Test
+    public void applyTo_detachThenAttach() {
+        PendingCapacityProviderChanges.Changes changes = new PendingCapacityProviderChanges.Changes(
+                Set.of(entry("capacityProvider1", 1001L)), Set.of(entry("capacityProvider1", 1000L)));
+        // the attach came last, so the capacity provider stays attached
+        assertEquals(EXISTING_PROVIDERS, changes.applyTo(EXISTING_PROVIDERS));
+
+        changes = new PendingCapacityProviderChanges.Changes(
+                Set.of(entry("capacityProvider3", 1001L)), Set.of(entry("capacityProvider3", 1000L)));
+        List<String> expectedProviders = new ArrayList<>(EXISTING_PROVIDERS);
+        expectedProviders.add("capacityProvider3");
+        assertEquals(expectedProviders, changes.applyTo(EXISTING_PROVIDERS));
+    }
+
+    @Test
+    public void applyTo_independentChanges() {
+        PendingCapacityProviderChanges.Changes changes = new PendingCapacityProviderChanges.Changes(
+                Set.of(entry("capacityProvider3", 1000L)), Set.of(entry("capacityProvider1", 1001L)));
+        assertEquals(List.of("capacityProvider2", "capacityProvider3"), changes.applyTo(EXISTING_PROVIDERS));
+    }
+
+    private static String entry(String capacityProvider, long addedAt) {
+        return capacityProvider + "@" + addedAt + "@0a1b2c3d";
+    }
+}
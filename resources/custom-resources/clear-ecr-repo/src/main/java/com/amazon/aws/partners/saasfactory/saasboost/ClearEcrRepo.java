@@ -21,25 +21,36 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.ecr.EcrClient;
+import software.amazon.awssdk.services.ecr.model.BatchDeleteImageResponse;
 import software.amazon.awssdk.services.ecr.model.EcrException;
+import software.amazon.awssdk.services.ecr.model.ImageFailure;
+import software.amazon.awssdk.services.ecr.model.ImageFailureCode;
 import software.amazon.awssdk.services.ecr.model.ImageIdentifier;
 import software.amazon.awssdk.services.ecr.model.ListImagesResponse;
 import software.amazon.awssdk.services.ecr.model.RepositoryNotFoundException;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 public class ClearEcrRepo implements RequestHandler<Map<String, Object>, Object> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClearEcrRepo.class);
+    // ListImages returns at most 1000 image ids per page and BatchDeleteImage takes at most 100
+    private static final int LIST_IMAGES_PAGE_SIZE = 1000;
+    private static final int BATCH_DELETE_IMAGE_BATCH_SIZE = 100;
+    private static final int DELETE_CONCURRENCY = 8;
     private final EcrClient ecr;
+    private final ExecutorService workers;
 
     public ClearEcrRepo() {
         LOGGER.info("Version Info: {}", Utils.version(this.getClass()));
         this.ecr = Utils.sdkClient(EcrClient.builder(), EcrClient.SERVICE_NAME);
+        this.workers = Executors.newFixedThreadPool(DELETE_CONCURRENCY);
     }
 
     @Override
@@ -61,33 +72,19 @@ public class ClearEcrRepo implements RequestHandler<Map<String, Object>, Object>
                 } else if ("Delete".equalsIgnoreCase(requestType)) {
                     LOGGER.info("DELETE");
                     try {
-                        List<ImageIdentifier> imagesToDelete = new ArrayList<>();
-                        String token = null;
-                        do {
-                            ListImagesResponse response = ecr.listImages(request -> request.repositoryName(repo));
-                            token = response.nextToken();
-                            imagesToDelete.addAll(response.imageIds());
-                        } while (token != null);
-
-                        final int batchDeleteImageBatchSize = 100;
-                        List<ImageIdentifier> imagesToDeleteBatch = new ArrayList<>();
-                        for (ImageIdentifier image : imagesToDelete) {
-                            imagesToDeleteBatch.add(image);
-                            if (imagesToDeleteBatch.size() == batchDeleteImageBatchSize) {
-                                ecr.batchDeleteImage(request -> request
-                                        .repositoryName(repo).imageIds(imagesToDeleteBatch));
-                                imagesToDeleteBatch.clear();
-                            }
-                        }
-                        // final batch
-                        ecr.batchDeleteImage(request -> request.repositoryName(repo).imageIds(imagesToDeleteBatch));
-
+                        int deleted = purge(repo);
+                        LOGGER.info("Deleted {} images from repository {}", deleted, repo);
                         CloudFormationResponse.send(event, context, "SUCCESS", responseData);
                     } catch (RepositoryNotFoundException rnfe) {
                         LOGGER.error("FAILED repository {} not found", repo);
                         LOGGER.error(Utils.getFullStackTrace(rnfe));
                         responseData.put("Reason", "Passed repository does not exist: " + repo);
                         CloudFormationResponse.send(event, context, "SUCCESS", responseData);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        LOGGER.error("FAILED interrupted clearing repository {}", repo);
+                        responseData.put("Reason", "Interrupted clearing repository " + repo);
+                        CloudFormationResponse.send(event, context, "FAILED", responseData);
                     } catch (EcrException ecrException) {
                         LOGGER.error("FAILED unexpected error {}", ecrException.getMessage());
                         LOGGER.error(Utils.getFullStackTrace(ecrException));
@@ -113,4 +110,77 @@ public class ClearEcrRepo implements RequestHandler<Map<String, Object>, Object>
         }
         return null;
     }
+
+    /**
+     * Delete every image in the repository. Each page of image ids is deleted in batches on the worker
+     * pool while the next page is listed. Deleting while paging can make the listing skip images, so we
+     * keep listing until a pass finds nothing left to delete.
+     * @return the number of image digests deleted
+     */
+    protected int purge(String repo) throws InterruptedException {
+        int deleted = 0;
+        int deletedThisPass;
+        do {
+            deletedThisPass = 0;
+            List<Future<Integer>> batches = new ArrayList<>();
+            // Deleting an image by digest removes all of its tags, so each digest only needs deleting once
+            Set<String> digests = new HashSet<>();
+            List<ImageIdentifier> batch = new ArrayList<>();
+            String token = null;
+            do {
+                final String nextToken = token;
+                ListImagesResponse response = ecr.listImages(request -> request
+                        .repositoryName(repo)
+                        .maxResults(LIST_IMAGES_PAGE_SIZE)
+                        .nextToken(nextToken)
+                );
+                token = response.nextToken();
+                for (ImageIdentifier image : response.imageIds()) {
+                    if (digests.add(image.imageDigest())) {
+                        batch.add(ImageIdentifier.builder().imageDigest(image.imageDigest()).build());
+                        if (batch.size() == BATCH_DELETE_IMAGE_BATCH_SIZE) {
+                            batches.add(deleteImages(repo, batch));
+                            batch = new ArrayList<>();
+                        }
+                    }
+                }
+            } while (token != null);
+            if (!batch.isEmpty()) {
+                batches.add(deleteImages(repo, batch));
+            }
+            for (Future<Integer> future : batches) {
+                try {
+                    deletedThisPass += future.get();
+                } catch (ExecutionException ee) {
+                    // Don't leave the rest of the batches running against a repository we've given up on
+                    for (Future<Integer> outstanding : batches) {
+                        outstanding.cancel(true);
+                    }
+                    if (ee.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ee.getCause();
+                    }
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+            deleted += deletedThisPass;
+        } while (deletedThisPass > 0);
+        return deleted;
+    }
+
+    private Future<Integer> deleteImages(String repo, List<ImageIdentifier> images) {
+        return workers.submit(() -> {
+            BatchDeleteImageResponse response = ecr.batchDeleteImage(request -> request
+                    .repositoryName(repo)
+                    .imageIds(images)
+            );
+            for (ImageFailure failure : response.failures()) {
+                // Another pass will pick up anything that's still there
+                if (ImageFailureCode.IMAGE_NOT_FOUND != failure.failureCode()) {
+                    LOGGER.warn("Failed to delete image {} {} {}", failure.imageId(),
+                            failure.failureCode(), failure.failureReason());
+                }
+            }
+            return response.imageIds().size();
+        });
+    }
 }
\ No newline at end of file
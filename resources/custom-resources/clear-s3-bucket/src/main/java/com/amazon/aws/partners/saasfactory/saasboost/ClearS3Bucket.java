@@ -24,19 +24,30 @@ import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClearS3Bucket implements RequestHandler<Map<String, Object>, Object> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClearS3Bucket.class);
+    // DeleteObjects takes at most 1000 keys
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final int DELETE_CONCURRENCY = 8;
+    // Batches listed but not yet deleted, including the ones being deleted
+    private static final int MAX_BATCHES_IN_FLIGHT = DELETE_CONCURRENCY * 2;
+    private static final int MAX_DELETE_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
     private final S3Client s3;
+    private final ExecutorService workers;
 
     public ClearS3Bucket() {
         LOGGER.info("Version Info: {}", Utils.version(this.getClass()));
         this.s3 = Utils.sdkClient(S3Client.builder(), S3Client.SERVICE_NAME);
+        this.workers = Executors.newFixedThreadPool(DELETE_CONCURRENCY);
     }
 
     @Override
@@ -59,107 +70,35 @@ public class ClearS3Bucket implements RequestHandler<Map<String, Object>, Object
                 } else if ("Delete".equalsIgnoreCase(requestType)) {
                     LOGGER.info("DELETE");
 
-                    // The list of objects in the bucket to delete
-                    List<ObjectIdentifier> toDelete = new ArrayList<>();
-
                     // Is the bucket versioned?
                     GetBucketVersioningResponse versioningResponse = s3.getBucketVersioning(request -> request
                             .bucket(bucket)
                     );
-                    if (BucketVersioningStatus.ENABLED == versioningResponse.status()
-                            || BucketVersioningStatus.SUSPENDED == versioningResponse.status()) {
-                        LOGGER.info("Bucket {} is versioned ({})", bucket, versioningResponse.status());
-                        ListObjectVersionsResponse response;
-                        String keyMarker = null;
-                        String versionIdMarker = null;
-                        do {
-                            ListObjectVersionsRequest request;
-                            if (Utils.isNotBlank(keyMarker) && Utils.isNotBlank(versionIdMarker)) {
-                                request = ListObjectVersionsRequest.builder()
-                                        .bucket(bucket)
-                                        .prefix(prefix)
-                                        .keyMarker(keyMarker)
-                                        .versionIdMarker(versionIdMarker)
-                                        .build();
-                            } else if (Utils.isNotBlank(keyMarker)) {
-                                request = ListObjectVersionsRequest.builder()
-                                        .bucket(bucket)
-                                        .prefix(prefix)
-                                        .keyMarker(keyMarker)
-                                        .build();
-                            } else {
-                                request = ListObjectVersionsRequest.builder()
-                                        .bucket(bucket)
-                                        .prefix(prefix)
-                                        .build();
-                            }
-                            response = s3.listObjectVersions(request);
-                            keyMarker = response.nextKeyMarker();
-                            versionIdMarker = response.nextVersionIdMarker();
-                            response.versions()
-                                    .stream()
-                                    .map(version ->
-                                        ObjectIdentifier.builder()
-                                                .key(version.key())
-                                                .versionId(version.versionId())
-                                                .build()
-                                    )
-                                    .forEachOrdered(toDelete::add);
-                        } while (response.isTruncated());
-                    } else {
-                        LOGGER.info("Bucket {} is not versioned ({})", bucket, versioningResponse.status());
-                        ListObjectsV2Response response;
-                        String token = null;
-                        do {
-                            ListObjectsV2Request request;
-                            if (Utils.isNotBlank(token)) {
-                                request = ListObjectsV2Request.builder()
-                                        .bucket(bucket)
-                                        .prefix(prefix)
-                                        .continuationToken(token)
-                                        .build();
+                    boolean versioned = BucketVersioningStatus.ENABLED == versioningResponse.status()
+                            || BucketVersioningStatus.SUSPENDED == versioningResponse.status();
+                    LOGGER.info("Bucket {} is {}versioned ({})", bucket, versioned ? "" : "not ",
+                            versioningResponse.status());
+                    try {
+                        PurgeResult result = purge(bucket, prefix, versioned);
+                        if (result.failed.get() > 0) {
+                            LOGGER.error("FAILED to delete {} objects in bucket {}", result.failed, bucket);
+                            responseData.put("Reason", "Failed to delete " + result.failed.get() + " objects in bucket "
+                                    + bucket);
+                            CloudFormationResponse.send(event, context, "FAILED", responseData);
+                        } else {
+                            if (result.deleted.get() == 0) {
+                                LOGGER.info("Bucket {} is empty. No objects to clean up.", bucket);
                             } else {
-                                request = ListObjectsV2Request.builder()
-                                        .bucket(bucket)
-                                        .prefix(prefix)
-                                        .build();
+                                LOGGER.info("Cleaned up {} objects in bucket {}", result.deleted, bucket);
                             }
-                            response = s3.listObjectsV2(request);
-                            token = response.nextContinuationToken();
-                            response.contents()
-                                    .stream()
-                                    .map(obj ->
-                                            ObjectIdentifier.builder()
-                                                    .key(obj.key())
-                                                    .build()
-                                    )
-                                    .forEachOrdered(toDelete::add);
-                        } while (response.isTruncated());
-                    }
-                    if (!toDelete.isEmpty()) {
-                        LOGGER.info("Deleting {} objects", toDelete.size());
-                        final int maxBatchSize = 1000;
-                        int batchStart = 0;
-                        int batchEnd = 0;
-                        while (batchEnd < toDelete.size()) {
-                            batchStart = batchEnd;
-                            batchEnd += maxBatchSize;
-                            if (batchEnd > toDelete.size()) {
-                                batchEnd = toDelete.size();
-                            }
-                            Delete delete = Delete.builder()
-                                    .objects(toDelete.subList(batchStart, batchEnd))
-                                    .build();
-                            DeleteObjectsResponse deleteResponse = s3.deleteObjects(builder -> builder
-                                    .bucket(bucket)
-                                    .delete(delete)
-                            );
-                            LOGGER.info("Cleaned up {} objects in bucket {}", deleteResponse.deleted().size(), bucket);
+                            CloudFormationResponse.send(event, context, "SUCCESS", responseData);
                         }
-                    } else {
-                        LOGGER.info("Bucket {} is empty. No objects to clean up.", bucket);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        LOGGER.error("FAILED interrupted clearing bucket {}", bucket);
+                        responseData.put("Reason", "Interrupted clearing bucket " + bucket);
+                        CloudFormationResponse.send(event, context, "FAILED", responseData);
                     }
-                    CloudFormationResponse.send(event, context, "SUCCESS", responseData);
                 } else {
                     LOGGER.error("FAILED unknown requestType {}", requestType);
                     responseData.put("Reason", "Unknown RequestType " + requestType);
@@ -179,4 +118,126 @@ public class ClearS3Bucket implements RequestHandler<Map<String, Object>, Object
         }
         return null;
     }
+
+    /**
+     * Delete everything in the bucket under the prefix. Deletes start as soon as the first page of the
+     * listing arrives and run on the worker pool while the listing carries on. Only a limited number of
+     * batches can be waiting or in flight at once, so memory stays bounded no matter how big the bucket is.
+     */
+    protected PurgeResult purge(String bucket, String prefix, boolean versioned) throws InterruptedException {
+        PurgeResult result = new PurgeResult();
+        Semaphore batchesInFlight = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+        List<ObjectIdentifier> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        if (versioned) {
+            ListObjectVersionsRequest request = ListObjectVersionsRequest.builder()
+                    .bucket(bucket)
+                    .prefix(prefix)
+                    .build();
+            for (ListObjectVersionsResponse response : s3.listObjectVersionsPaginator(request)) {
+                for (ObjectVersion version : response.versions()) {
+                    batch = add(bucket, batch, version.key(), version.versionId(), batchesInFlight, result);
+                }
+                // Delete markers keep a bucket from being empty too
+                for (DeleteMarkerEntry deleteMarker : response.deleteMarkers()) {
+                    batch = add(bucket, batch, deleteMarker.key(), deleteMarker.versionId(), batchesInFlight,
+                            result);
+                }
+            }
+        } else {
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(prefix)
+                    .build();
+            for (ListObjectsV2Response response : s3.listObjectsV2Paginator(request)) {
+                for (S3Object obj : response.contents()) {
+                    batch = add(bucket, batch, obj.key(), null, batchesInFlight, result);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            submitDelete(bucket, batch, batchesInFlight, result);
+        }
+        // Wait for the last batches to finish
+        batchesInFlight.acquire(MAX_BATCHES_IN_FLIGHT);
+        batchesInFlight.release(MAX_BATCHES_IN_FLIGHT);
+        return result;
+    }
+
+    private List<ObjectIdentifier> add(String bucket, List<ObjectIdentifier> batch, String key, String versionId,
+                                       Semaphore batchesInFlight, PurgeResult result) throws InterruptedException {
+        batch.add(ObjectIdentifier.builder()
+                .key(key)
+                .versionId(versionId)
+                .build()
+        );
+        if (batch.size() == MAX_BATCH_SIZE) {
+            submitDelete(bucket, batch, batchesInFlight, result);
+            return new ArrayList<>(MAX_BATCH_SIZE);
+        }
+        return batch;
+    }
+
+    private void submitDelete(String bucket, List<ObjectIdentifier> batch, Semaphore batchesInFlight,
+                              PurgeResult result) throws InterruptedException {
+        // Blocks the listing when the workers are behind
+        batchesInFlight.acquire();
+        try {
+            workers.submit(() -> {
+                try {
+                    deleteObjects(bucket, batch, result);
+                } catch (Exception e) {
+                    LOGGER.error("Error deleting {} objects in bucket {}", batch.size(), bucket);
+                    LOGGER.error(Utils.getFullStackTrace(e));
+                    result.failed.addAndGet(batch.size());
+                } finally {
+                    batchesInFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            batchesInFlight.release();
+            throw ree;
+        }
+    }
+
+    // DeleteObjects reports errors per key, so only the keys that failed are tried again
+    private void deleteObjects(String bucket, List<ObjectIdentifier> objects, PurgeResult result)
+            throws InterruptedException {
+        List<ObjectIdentifier> remaining = objects;
+        for (int attempt = 1; ; attempt++) {
+            final List<ObjectIdentifier> batch = remaining;
+            DeleteObjectsResponse response = s3.deleteObjects(builder -> builder
+                    .bucket(bucket)
+                    .delete(Delete.builder().objects(batch).quiet(true).build())
+            );
+            // Quiet mode only reports the keys that couldn't be deleted
+            List<S3Error> errors = response.hasErrors() ? response.errors() : Collections.emptyList();
+            result.deleted.addAndGet(batch.size() - errors.size());
+            if (errors.isEmpty()) {
+                return;
+            }
+            if (attempt == MAX_DELETE_ATTEMPTS) {
+                for (S3Error error : errors) {
+                    LOGGER.error("Can't delete {} {} {} {}", error.key(), error.versionId(), error.code(),
+                            error.message());
+                }
+                result.failed.addAndGet(errors.size());
+                return;
+            }
+            LOGGER.warn("Retrying {} of {} objects in bucket {}", errors.size(), batch.size(), bucket);
+            remaining = new ArrayList<>(errors.size());
+            for (S3Error error : errors) {
+                remaining.add(ObjectIdentifier.builder()
+                        .key(error.key())
+                        .versionId(error.versionId())
+                        .build()
+                );
+            }
+            Thread.sleep(RETRY_BACKOFF_MILLIS * attempt);
+        }
+    }
+
+    protected static final class PurgeResult {
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+    }
 }
\ No newline at end of file
@@ -30,6 +30,8 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
@@ -38,6 +40,7 @@ import java.util.concurrent.*;
 public class RedshiftTable implements RequestHandler<Map<String, Object>, Object> {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(RedshiftTable.class);
+    private final static List<String> AGGREGATE_COLUMNS = List.of("metric_count", "metric_min", "metric_max");
     private SsmClient ssm;
     public RedshiftTable()  {
             LOGGER.info("Version Info: {}", Utils.version(this.getClass()));
@@ -60,8 +63,8 @@ public class RedshiftTable implements RequestHandler<Map<String, Object>, Object
         ObjectNode responseData = JsonNodeFactory.instance.objectNode();
         try {
             Runnable r = () -> {
-                if ("Create".equalsIgnoreCase(requestType)) {
-                    LOGGER.info("CREATE");
+                if ("Create".equalsIgnoreCase(requestType) || "Update".equalsIgnoreCase(requestType)) {
+                    LOGGER.info(requestType.toUpperCase());
                     Connection connection = null;
                     Statement statement = null;
 
@@ -124,10 +127,22 @@ public class RedshiftTable implements RequestHandler<Map<String, Object>, Object
                                 ",metric_unit VARCHAR(256) ENCODE lzo\n" +
                                 ",metric_value NUMERIC(18,0) ENCODE az64\n" +
                                 ",meta_data VARCHAR(256) ENCODE lzo\n" +
+                                ",metric_count NUMERIC(18,0) ENCODE az64\n" +
+                                ",metric_min NUMERIC(18,0) ENCODE az64\n" +
+                                ",metric_max NUMERIC(18,0) ENCODE az64\n" +
                                 ")\n" +
                                 "DISTSTYLE AUTO";
                         statement.executeUpdate(sql);
-                        // Further code to follow
+
+                        // Tables created before pre-aggregated events were loaded don't have the
+                        // count, min and max columns the jsonpaths file now maps to
+                        for (String column : AGGREGATE_COLUMNS) {
+                            if (!hasColumn(connection, tableName, column)) {
+                                LOGGER.info("Adding column {} to table {}", column, tableName);
+                                statement.executeUpdate("ALTER TABLE public." + tableName
+                                        + " ADD COLUMN " + column + " NUMERIC(18,0) ENCODE az64");
+                            }
+                        }
                     } catch(ClassNotFoundException cnfe) {
                         String stackTrace = Utils.getFullStackTrace(cnfe);
                         LOGGER.error(stackTrace);
@@ -157,9 +172,6 @@ public class RedshiftTable implements RequestHandler<Map<String, Object>, Object
 
                     // Tell CloudFormation we're done
                     sendResponse(event, context, "SUCCESS", responseData);
-                } else if ("Update".equalsIgnoreCase(requestType)) {
-                    LOGGER.info("UPDATE");
-                    sendResponse(event, context, "SUCCESS", responseData);
                 } else if ("Delete".equalsIgnoreCase(requestType)) {
                     LOGGER.info("DELETE");
                     sendResponse(event, context, "SUCCESS", responseData);
@@ -184,6 +196,18 @@ public class RedshiftTable implements RequestHandler<Map<String, Object>, Object
         return null;
     }
 
+    private static boolean hasColumn(Connection connection, String tableName, String column) throws SQLException {
+        String sql = "SELECT 1 FROM information_schema.columns "
+                + "WHERE table_schema = 'public' AND table_name = ? AND column_name = ?";
+        try (PreparedStatement query = connection.prepareStatement(sql)) {
+            query.setString(1, tableName.toLowerCase());
+            query.setString(2, column);
+            try (ResultSet resultSet = query.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
     /**
      * Send a response to CloudFormation regarding progress in creating resource.
      *
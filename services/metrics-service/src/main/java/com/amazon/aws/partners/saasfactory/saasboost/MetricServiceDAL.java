@@ -96,6 +96,16 @@ public class MetricServiceDAL {
         }
     }
 
+    // Runs the CloudWatch query and aggregation code against stand-in clients outside of Lambda, as the
+    // benchmarks do. Access log queries and presigned URLs aren't available.
+    MetricServiceDAL(CloudWatchClient cloudWatch, ApplicationAutoScalingClient autoScaling) {
+        this.cloudWatch = cloudWatch;
+        this.autoScaling = autoScaling;
+        this.s3 = null;
+        this.athenaClient = null;
+        this.presigner = null;
+    }
+
     // Used to query CW metrics across tenants and aggregate the data
     public List<QueryResult> queryMetrics(final MetricQuery query) {
         final long startTimeMillis = System.currentTimeMillis();
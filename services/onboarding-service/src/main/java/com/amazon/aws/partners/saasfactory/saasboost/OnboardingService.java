@@ -497,6 +497,7 @@ public class OnboardingService {
                         "Tenant Onboarding Status Changed",
                         Map.of(
                                 "tenantId", tenantId,
+                                "onboardingId", onboarding.getId(),
                                 "onboardingStatus",  onboarding.getStatus()
                         )
                 );
@@ -626,6 +627,7 @@ public class OnboardingService {
                             "Tenant Onboarding Status Changed",
                             Map.of(
                                     "tenantId", tenantId,
+                                    "onboardingId", onboarding.getId(),
                                     "onboardingStatus", onboarding.getStatus()
                             )
                     );
@@ -708,6 +710,7 @@ public class OnboardingService {
                                     "Tenant Onboarding Status Changed",
                                     Map.of(
                                             "tenantId", tenantId,
+                                            "onboardingId", onboarding.getId(),
                                             "onboardingStatus",  onboarding.getStatus()
                                     )
                             );
@@ -1258,6 +1261,7 @@ public class OnboardingService {
                                 "Tenant Onboarding Status Changed",
                                 Map.of(
                                         "tenantId", tenantId,
+                                        "onboardingId", onboarding.getId(),
                                         "onboardingStatus", OnboardingStatus.deploying
                                 )
                         );
@@ -1277,6 +1281,7 @@ public class OnboardingService {
                                     "Tenant Onboarding Status Changed",
                                     Map.of(
                                             "tenantId", tenantId,
+                                            "onboardingId", onboarding.getId(),
                                             "onboardingStatus", "failed"
                                     )
                             );
@@ -1288,6 +1293,7 @@ public class OnboardingService {
                                     "Tenant Onboarding Status Changed",
                                     Map.of(
                                             "tenantId", tenantId,
+                                            "onboardingId", onboarding.getId(),
                                             "onboardingStatus", OnboardingStatus.deployed
                                     )
                             );
@@ -1946,6 +1952,7 @@ public class OnboardingService {
                     "Tenant Onboarding Status Changed",
                     Map.of(
                             "tenantId", tenantId,
+                            "onboardingId", onboarding.getId(),
                             "onboardingStatus",  onboarding.getStatus()
                     )
             );
@@ -2041,6 +2048,7 @@ public class OnboardingService {
                         "Tenant Onboarding Status Changed",
                         Map.of(
                                 "tenantId", tenantId,
+                                "onboardingId", onboarding.getId(),
                                 "onboardingStatus",  onboarding.getStatus()
                         )
                 );
@@ -2093,6 +2101,7 @@ public class OnboardingService {
                             "Tenant Onboarding Status Changed",
                             Map.of(
                                     "tenantId", tenantId,
+                                    "onboardingId", onboarding.getId(),
                                     "onboardingStatus",  onboarding.getStatus()
                             )
                     );
@@ -42,6 +42,10 @@ public class QuotasService implements RequestHandler<Map<String, Object>, APIGat
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
+    QuotasService(QuotasServiceDAL dal) {
+        this.dal = dal;
+    }
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(Map<String, Object> event, Context context) {
         //Utils.logRequestEvent(event);
@@ -54,6 +58,10 @@ public class QuotasService implements RequestHandler<Map<String, Object>, APIGat
             //LOGGER.info("Warming up");
             return new APIGatewayProxyResponseEvent().withHeaders(CORS).withStatusCode(200);
         }
+        if (event.containsKey("detail-type")) {
+            handleUsageEvent(event);
+            return new APIGatewayProxyResponseEvent().withHeaders(CORS).withStatusCode(200);
+        }
 
         QuotasServiceDAL.QuotaCheck quotaCheck;
         if (Utils.isChinaRegion(AWS_REGION)) {
@@ -70,4 +78,30 @@ public class QuotasService implements RequestHandler<Map<String, Object>, APIGat
                 .withBody(Utils.toJson(quotaCheck));
     }
 
+    // Onboarding and tenant events from the SaaS Boost event bus keep the tracked usage current
+    // between full counts
+    protected void handleUsageEvent(Map<String, Object> event) {
+        String detailType = (String) event.get("detail-type");
+        Map<String, Object> detail = (Map<String, Object>) event.get("detail");
+        if (detail == null || detail.get("onboardingId") == null) {
+            LOGGER.info("Ignoring event {} without an onboardingId", detailType);
+            return;
+        }
+        String onboardingId = String.valueOf(detail.get("onboardingId"));
+        String onboardingStatus = String.valueOf(detail.get("onboardingStatus"));
+        if ("Onboarding Validated".equals(detailType)) {
+            // Count the tenant as soon as it passes the quota check so the next onboarding in a
+            // bulk run is checked against it, even though its resources don't exist yet
+            dal.tenantValidated(onboardingId);
+        } else if ("Onboarding Provisioned".equals(detailType)) {
+            dal.tenantProvisioned(onboardingId);
+        } else if ("Onboarding Failed".equals(detailType)) {
+            dal.tenantFailed(onboardingId);
+        } else if ("Tenant Onboarding Status Changed".equals(detailType) && "deleted".equals(onboardingStatus)) {
+            dal.tenantDeleted(onboardingId);
+        } else {
+            LOGGER.info("Ignoring event {} {}", detailType, onboardingStatus);
+        }
+    }
+
 }
\ No newline at end of file
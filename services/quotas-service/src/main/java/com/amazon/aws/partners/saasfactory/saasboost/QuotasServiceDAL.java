@@ -21,14 +21,25 @@ import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.*;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.model.DescribeNatGatewaysResponse;
+import software.amazon.awssdk.services.ec2.model.DescribeInternetGatewaysRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeNatGatewaysRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeVpcsRequest;
+import software.amazon.awssdk.services.ec2.model.InternetGateway;
 import software.amazon.awssdk.services.ec2.model.NatGateway;
 import software.amazon.awssdk.services.ec2.model.NatGatewayState;
+import software.amazon.awssdk.services.ec2.model.Vpc;
 import software.amazon.awssdk.services.elasticloadbalancingv2.ElasticLoadBalancingV2Client;
+import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.Limit;
+import software.amazon.awssdk.services.elasticloadbalancingv2.model.LoadBalancer;
 import software.amazon.awssdk.services.rds.RdsClient;
 import software.amazon.awssdk.services.rds.model.AccountQuota;
+import software.amazon.awssdk.services.rds.model.DBCluster;
+import software.amazon.awssdk.services.rds.model.DBInstance;
+import software.amazon.awssdk.services.rds.model.DescribeDbClustersRequest;
+import software.amazon.awssdk.services.rds.model.DescribeDbInstancesRequest;
 import software.amazon.awssdk.services.servicequotas.ServiceQuotasClient;
 import software.amazon.awssdk.services.servicequotas.model.ListServiceQuotasRequest;
 import software.amazon.awssdk.services.servicequotas.model.ListServiceQuotasResponse;
@@ -37,81 +48,219 @@ import software.amazon.awssdk.services.servicequotas.model.ServiceQuota;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class QuotasServiceDAL {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(QuotasServiceDAL.class);
+    private static final String QUOTAS_TABLE = System.getenv("QUOTAS_TABLE");
+    // Enough threads for every call in a quota check to be in flight at the same time
+    private static final int QUOTA_CHECK_CONCURRENCY = 12;
+    private static final String FARGATE_QUERY_ID = "fargate";
+    private static final String FARGATE_SPOT_QUERY_ID = "fargatespot";
+    private static final String EC2_VCPU_QUERY_ID = "vcpu";
+    private static final List<String> SERVICE_CODES = List.of("rds", "elasticloadbalancing", "fargate", "vpc", "ec2");
+    // Quota values only change when an increase is approved
+    private static final long QUOTA_LIMITS_TTL_MILLIS = 6 * 60 * 60 * 1000;
+    // How long onboarding and offboarding deltas are trusted before everything is counted again
+    private static final long USAGE_RECONCILE_MILLIS = 5 * 60 * 1000;
+    // Longer than provisioning a tenant takes, in case we never hear how its onboarding ended
+    private static final long PENDING_TENANT_MILLIS = 2 * 60 * 60 * 1000;
+    // What every tenant's base infrastructure adds to the quota check usage counts
+    private static final Map<String, Double> TENANT_FOOTPRINT = Map.of(
+            "VPCs per Region", 1d,
+            "Internet gateways per Region", 1d,
+            "Application Load Balancers per Region", 1d
+    );
     private final ElasticLoadBalancingV2Client elb;
     private final Ec2Client ec2;
     private final ServiceQuotasClient serviceQuotas;
     private final RdsClient rds;
     private final CloudWatchClient cloudWatch;
+    private final DynamoDbClient ddb;
+    private final ExecutorService workers;
+    private final ServiceQuotaCache quotaLimits;
+    private final UsageTracker usageTracker;
 
     public QuotasServiceDAL() {
         final long startTimeMillis = System.currentTimeMillis();
+        if (Utils.isBlank(QUOTAS_TABLE)) {
+            throw new IllegalStateException("Missing required environment variable QUOTAS_TABLE");
+        }
         this.elb = Utils.sdkClient(ElasticLoadBalancingV2Client.builder(), ElasticLoadBalancingV2Client.SERVICE_NAME);
         this.ec2 = Utils.sdkClient(Ec2Client.builder(), Ec2Client.SERVICE_NAME);
         this.serviceQuotas = Utils.sdkClient(ServiceQuotasClient.builder(), ServiceQuotasClient.SERVICE_NAME);
         this.rds = Utils.sdkClient(RdsClient.builder(), RdsClient.SERVICE_NAME);
         this.cloudWatch = Utils.sdkClient(CloudWatchClient.builder(), CloudWatchClient.SERVICE_NAME);
+        this.ddb = Utils.sdkClient(DynamoDbClient.builder(), DynamoDbClient.SERVICE_NAME);
+        // Cold start performance hack -- take the TLS hit for the client in the constructor
+        this.ddb.describeTable(request -> request.tableName(QUOTAS_TABLE));
+        // Daemon threads so an idle pool never keeps the JVM around
+        this.workers = Executors.newFixedThreadPool(QUOTA_CHECK_CONCURRENCY, runnable -> {
+            Thread thread = new Thread(runnable, "quota-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.quotaLimits = new ServiceQuotaCache(ddb, QUOTAS_TABLE, QUOTA_LIMITS_TTL_MILLIS);
+        this.usageTracker = new UsageTracker(ddb, QUOTAS_TABLE, USAGE_RECONCILE_MILLIS, PENDING_TENANT_MILLIS);
         LOGGER.info("Constructor init: {}", System.currentTimeMillis() - startTimeMillis);
     }
 
     public QuotaCheck checkQuotas() {
+        final long startTimeMillis = System.currentTimeMillis();
+        AtomicBoolean cached = new AtomicBoolean(false);
+        QuotaCheck quotaCheck = collectQuotaCheck(cached);
+        if (!quotaCheck.passed && cached.get()) {
+            // Don't turn an onboarding away based on cached values. A quota increase may have been
+            // approved or resources deleted since we last looked.
+            LOGGER.info("Quota check failed with cached values, checking again");
+            for (String serviceCode : SERVICE_CODES) {
+                quotaLimits.invalidate(serviceCode);
+            }
+            usageTracker.invalidate();
+            quotaCheck = collectQuotaCheck(cached);
+        }
+        LOGGER.info("QuotasServiceDAL::checkQuotas exec {}", System.currentTimeMillis() - startTimeMillis);
+        return quotaCheck;
+    }
+
+    /**
+     * Count a tenant that passed validation against the quotas before its resources exist, so the next
+     * onboarding in a bulk run is checked with it included.
+     */
+    public void tenantValidated(String onboardingId) {
+        usageTracker.addPending(onboardingId);
+        LOGGER.info("Tenant for onboarding {} pending", onboardingId);
+    }
+
+    /**
+     * A provisioned tenant's resources exist now, so they move from pending to the tracked counts until
+     * the next full count finds them. Onboarding Provisioned is sent again when the tenant's stacks are
+     * updated, so only a tenant that was still pending is added.
+     */
+    public void tenantProvisioned(String onboardingId) {
+        if (usageTracker.removePending(onboardingId)) {
+            applyTenantUsage(1);
+        }
+    }
+
+    public void tenantFailed(String onboardingId) {
+        usageTracker.removePending(onboardingId);
+    }
+
+    public void tenantDeleted(String onboardingId) {
+        usageTracker.removePending(onboardingId);
+        applyTenantUsage(-1);
+    }
+
+    /**
+     * Apply the resources that tenants add when they're provisioned, or free when they're deleted, to the
+     * tracked usage. Only the resources every tenant gets are counted here. The rest depend on the
+     * tenant's application and are picked up by the next full count.
+     * @param tenants the number of tenants provisioned, or a negative number for deleted tenants
+     */
+    private void applyTenantUsage(int tenants) {
+        Map<String, Double> deltas = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> resource : TENANT_FOOTPRINT.entrySet()) {
+            deltas.put(resource.getKey(), resource.getValue() * tenants);
+        }
+        if (usageTracker.apply(deltas)) {
+            LOGGER.info("Applied usage for {} tenants {}", tenants, deltas);
+        }
+    }
+
+    private QuotaCheck collectQuotaCheck(AtomicBoolean cached) {
+        // None of the usage counts or quota listings depend on each other, so whatever isn't cached
+        // goes out at once and the results are compared in the same order as always once they're back
+        List<Future<?>> futures = new ArrayList<>();
+        Map<String, Future<Map<String, Double>>> quotas = new LinkedHashMap<>();
+        for (String serviceCode : SERVICE_CODES) {
+            quotas.put(serviceCode, submit(futures, () -> {
+                Map<String, Double> serviceQuotas = quotaLimits.getIfFresh(serviceCode);
+                if (serviceQuotas != null) {
+                    cached.set(true);
+                    return serviceQuotas;
+                }
+                return quotaLimits.put(serviceCode, getQuotas(serviceCode));
+            }));
+        }
+        Future<Integer> pendingTenants = submit(futures, usageTracker::pendingTenants);
+
         String serviceCode;
-        Map<String, Double> deployedCountMap = new LinkedHashMap<>();
-        Map<String, Double> quotasMap = new LinkedHashMap<>();
+        Map<String, Double> deployedCountMap;
+        Map<String, Double> quotasMap;
         StringBuilder builder = new StringBuilder();
 
         boolean reportBackError = false;
         boolean exceedsLimit = false;
         List<Service> retList = new ArrayList<>();
-        // RDS
-        serviceCode = "rds";
-        deployedCountMap.clear();
-        deployedCountMap.put("DB clusters", Double.valueOf(getRdsClusters()));
-        deployedCountMap.put("DB instances", Double.valueOf(getRdsInstances()));
-        quotasMap = getQuotas(serviceCode);
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
-
-        // load balancers
-        serviceCode = "elasticloadbalancing";
-        deployedCountMap.clear();
-        deployedCountMap.put("Application Load Balancers per Region", Double.valueOf(getAlbs()));
-        quotasMap = getQuotas(serviceCode);
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
-
-        // fargate
-        serviceCode = "fargate";
-        deployedCountMap.clear();
-        deployedCountMap.put("Fargate On-Demand vCPU resource count", getFargateResourceCount());
-        deployedCountMap.put("Fargate Spot vCPU resource count", getFargateSpotResourceCount());
-        quotasMap = getQuotas(serviceCode);
-        // Remove old on demand quota that have been replaced with the new vCPU quota
-        quotasMap.remove("Fargate On-Demand resource count");
-        quotasMap.remove("Fargate Spot resource count");
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
-
-        // vpc
-        serviceCode = "vpc";
-        deployedCountMap.clear();
-        deployedCountMap.put("VPCs per Region", Double.valueOf(getVpcs()));
-        deployedCountMap.put("Internet gateways per Region", Double.valueOf(getInternetGateways()));
-        deployedCountMap.put("NAT gateways per Availability Zone", Double.valueOf(getNatGateways()));
-        quotasMap = getQuotas(serviceCode);
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
-
-        // ec2 vCPU
-        serviceCode = "ec2";
-        deployedCountMap.clear();
-        deployedCountMap.put("Running On-Demand Standard (A, C, D, H, I, M, R, T, Z) instances", getVCpuCount());
-        quotasMap = getQuotas(serviceCode);
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
+        try {
+            Map<String, Double> usage = usageTracker.current();
+            if (usage == null) {
+                usage = countUsage(futures);
+                usageTracker.reconcile(usage);
+            } else {
+                cached.set(true);
+            }
+            // Tenants that passed validation have a claim on resources that aren't there to count yet
+            int pending = await(pendingTenants);
+            if (pending > 0) {
+                LOGGER.info("Including {} pending tenants", pending);
+                for (Map.Entry<String, Double> resource : TENANT_FOOTPRINT.entrySet()) {
+                    usage.computeIfPresent(resource.getKey(), (name, count) -> count + resource.getValue() * pending);
+                }
+            }
+
+            // RDS
+            serviceCode = "rds";
+            deployedCountMap = deployed(usage, "DB clusters", "DB instances");
+            quotasMap = await(quotas.get(serviceCode));
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+
+            // load balancers
+            serviceCode = "elasticloadbalancing";
+            deployedCountMap = deployed(usage, "Application Load Balancers per Region");
+            quotasMap = await(quotas.get(serviceCode));
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+
+            // fargate
+            serviceCode = "fargate";
+            deployedCountMap = deployed(usage, "Fargate On-Demand vCPU resource count",
+                    "Fargate Spot vCPU resource count");
+            quotasMap = await(quotas.get(serviceCode));
+            // Remove old on demand quota that have been replaced with the new vCPU quota
+            quotasMap.remove("Fargate On-Demand resource count");
+            quotasMap.remove("Fargate Spot resource count");
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+
+            // vpc
+            serviceCode = "vpc";
+            deployedCountMap = deployed(usage, "VPCs per Region", "Internet gateways per Region",
+                    "NAT gateways per Availability Zone");
+            quotasMap = await(quotas.get(serviceCode));
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+
+            // ec2 vCPU
+            serviceCode = "ec2";
+            deployedCountMap = deployed(usage, "Running On-Demand Standard (A, C, D, H, I, M, R, T, Z) instances");
+            quotasMap = await(quotas.get(serviceCode));
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+        } finally {
+            // If anything failed there's no point finishing the rest of the calls
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
 
         QuotaCheck quotaCheck = new QuotaCheck();
         quotaCheck.setPassed(!reportBackError);
@@ -120,6 +269,63 @@ public class QuotasServiceDAL {
         return quotaCheck;
     }
 
+    // Count everything the quota check compares, keyed by quota name
+    private Map<String, Double> countUsage(List<Future<?>> futures) {
+        Future<Integer> rdsClusters = submit(futures, this::getRdsClusters);
+        Future<Integer> rdsInstances = submit(futures, this::getRdsInstances);
+        Future<Integer> albs = submit(futures, this::getAlbs);
+        Future<Integer> vpcs = submit(futures, this::getVpcs);
+        Future<Integer> internetGateways = submit(futures, this::getInternetGateways);
+        Future<Integer> natGateways = submit(futures, this::getNatGateways);
+        Future<Map<String, Double>> resourceCounts = submit(futures, this::getResourceCounts);
+
+        Map<String, Double> usage = new LinkedHashMap<>();
+        usage.put("DB clusters", Double.valueOf(await(rdsClusters)));
+        usage.put("DB instances", Double.valueOf(await(rdsInstances)));
+        usage.put("Application Load Balancers per Region", Double.valueOf(await(albs)));
+        Map<String, Double> counts = await(resourceCounts);
+        usage.put("Fargate On-Demand vCPU resource count", counts.get(FARGATE_QUERY_ID));
+        usage.put("Fargate Spot vCPU resource count", counts.get(FARGATE_SPOT_QUERY_ID));
+        usage.put("VPCs per Region", Double.valueOf(await(vpcs)));
+        usage.put("Internet gateways per Region", Double.valueOf(await(internetGateways)));
+        usage.put("NAT gateways per Availability Zone", Double.valueOf(await(natGateways)));
+        usage.put("Running On-Demand Standard (A, C, D, H, I, M, R, T, Z) instances", counts.get(EC2_VCPU_QUERY_ID));
+        return usage;
+    }
+
+    private static Map<String, Double> deployed(Map<String, Double> usage, String... quotaNames) {
+        Map<String, Double> deployedCountMap = new LinkedHashMap<>();
+        for (String quotaName : quotaNames) {
+            deployedCountMap.put(quotaName, usage.get(quotaName));
+        }
+        return deployedCountMap;
+    }
+
+    private <T> Future<T> submit(List<Future<?>> futures, Callable<T> task) {
+        Future<T> future = workers.submit(task);
+        futures.add(future);
+        return future;
+    }
+
+    // Wait for a quota check task and rethrow whatever it failed with, so callers see the same
+    // SdkServiceException they would have if the call had been made on this thread
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for quota check", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     private static boolean compareValues(List<Service> retList, Map<String, Double> deployedCountMap, String serviceCode, Map<String, Double> quotasMap, StringBuilder builder) {
         //now compare and build list of messages
         boolean exceedsLimit = false;
@@ -156,7 +362,10 @@ public class QuotasServiceDAL {
     private int getRdsClusters() {
         int clusters = 0;
         try {
-            clusters = rds.describeDBClusters().dbClusters().size();
+            for (DBCluster cluster : rds.describeDBClustersPaginator(DescribeDbClustersRequest.builder().build())
+                    .dbClusters()) {
+                clusters++;
+            }
         } catch (SdkServiceException rdsError) {
             LOGGER.error("rds::DescribeClusters", rdsError);
             LOGGER.error(Utils.getFullStackTrace(rdsError));
@@ -168,7 +377,10 @@ public class QuotasServiceDAL {
     private int getRdsInstances() {
         int instances = 0;
         try {
-            instances = rds.describeDBInstances().dbInstances().size();
+            for (DBInstance instance : rds.describeDBInstancesPaginator(DescribeDbInstancesRequest.builder().build())
+                    .dbInstances()) {
+                instances++;
+            }
         } catch (SdkServiceException rdsError) {
             LOGGER.error("rds::DescribeDBInstances", rdsError);
             LOGGER.error(Utils.getFullStackTrace(rdsError));
@@ -180,7 +392,10 @@ public class QuotasServiceDAL {
     private int getAlbs() {
         int loadBalancers = 0;
         try {
-            loadBalancers = elb.describeLoadBalancers().loadBalancers().size();
+            for (LoadBalancer loadBalancer : elb.describeLoadBalancersPaginator(
+                    DescribeLoadBalancersRequest.builder().build()).loadBalancers()) {
+                loadBalancers++;
+            }
         } catch (SdkServiceException elbError) {
             LOGGER.error("elasticloadbalancing::DescribeLoadBalancers", elbError);
             LOGGER.error(Utils.getFullStackTrace(elbError));
@@ -192,7 +407,9 @@ public class QuotasServiceDAL {
     private int getVpcs() {
         int vpcs = 0;
         try {
-            vpcs = ec2.describeVpcs().vpcs().size();
+            for (Vpc vpc : ec2.describeVpcsPaginator(DescribeVpcsRequest.builder().build()).vpcs()) {
+                vpcs++;
+            }
         } catch (SdkServiceException ec2Error) {
             LOGGER.error("ec2::DescribeVpcs", ec2Error);
             LOGGER.error(Utils.getFullStackTrace(ec2Error));
@@ -204,7 +421,10 @@ public class QuotasServiceDAL {
     private int getInternetGateways() {
         int gateways = 0;
         try {
-            gateways = ec2.describeInternetGateways().internetGateways().size();
+            for (InternetGateway gateway : ec2.describeInternetGatewaysPaginator(
+                    DescribeInternetGatewaysRequest.builder().build()).internetGateways()) {
+                gateways++;
+            }
         } catch (SdkServiceException ec2Error) {
             LOGGER.error("ec2::DescribeInternetGateways", ec2Error);
             LOGGER.error(Utils.getFullStackTrace(ec2Error));
@@ -216,13 +436,11 @@ public class QuotasServiceDAL {
     private int getNatGateways() {
         int natGateways = 0;
         try {
-            DescribeNatGatewaysResponse response = ec2.describeNatGateways();
-            if (response.hasNatGateways()) {
-                for (NatGateway natGateway : response.natGateways()) {
-                    if (NatGatewayState.AVAILABLE == natGateway.state()
-                            || NatGatewayState.PENDING == natGateway.state()) {
-                        natGateways++;
-                    }
+            for (NatGateway natGateway : ec2.describeNatGatewaysPaginator(
+                    DescribeNatGatewaysRequest.builder().build()).natGateways()) {
+                if (NatGatewayState.AVAILABLE == natGateway.state()
+                        || NatGatewayState.PENDING == natGateway.state()) {
+                    natGateways++;
                 }
             }
         } catch (SdkServiceException ec2Error) {
@@ -233,33 +451,12 @@ public class QuotasServiceDAL {
         return natGateways;
     }
 
-    private Double getFargateResourceCount() {
+    // Fargate On-Demand, Fargate Spot and EC2 On-Demand vCPU usage in one GetMetricData call,
+    // keyed by query id. Counts with no recent datapoints are 0.
+    private Map<String, Double> getResourceCounts() {
         final long startTime = System.currentTimeMillis();
-        Double count = 0d;
+        Map<String, Double> counts = new HashMap<>();
         try {
-            Metric metric = Metric.builder()
-                    .metricName("ResourceCount")
-                    .namespace("AWS/Usage")
-                    .dimensions(Arrays.asList(
-                            Dimension.builder().name("Type").value("Resource").build(),
-                            Dimension.builder().name("Resource").value("vCPU").build(),
-                            Dimension.builder().name("Service").value("Fargate").build(),
-                            Dimension.builder().name("Class").value("Standard/OnDemand").build()
-                    ))
-                    .build();
-
-            MetricStat metricStat = MetricStat.builder()
-                    .stat("Maximum")
-                    .period(600)
-                    .metric(metric)
-                    .build();
-
-            MetricDataQuery dataQuery = MetricDataQuery.builder()
-                    .metricStat(metricStat)
-                    .id("fargate")
-                    .returnData(true)
-                    .build();
-
             Instant end = Instant.now();
             Instant start = end.minus(600, ChronoUnit.SECONDS);
 
@@ -267,68 +464,19 @@ public class QuotasServiceDAL {
                     .maxDatapoints(10000)
                     .startTime(start)
                     .endTime(end)
-                    .metricDataQueries(Arrays.asList(dataQuery))
-                    .build();
-
-            GetMetricDataResponse response = cloudWatch.getMetricData(getMetricDataRequest);
-            for (MetricDataResult item : response.metricDataResults()) {
-                //get the last value as it is the most current
-                if (!item.values().isEmpty()) {
-                    count = item.values().get(item.values().size() - 1);
-                    break;
-                }
-            }
-            LOGGER.info("Time to process: " + (System.currentTimeMillis() - startTime));
-        } catch (CloudWatchException cloudWatchError) {
-            LOGGER.error("cloudwatch::GetMetricData", cloudWatchError);
-            LOGGER.error(Utils.getFullStackTrace(cloudWatchError));
-            throw cloudWatchError;
-        }
-        return count;
-    }
-    private Double getFargateSpotResourceCount() {
-        final long startTime = System.currentTimeMillis();
-        Double count = 0d;
-        try {
-            Metric metric = Metric.builder()
-                    .metricName("ResourceCount")
-                    .namespace("AWS/Usage")
-                    .dimensions(Arrays.asList(
-                            Dimension.builder().name("Type").value("Resource").build(),
-                            Dimension.builder().name("Resource").value("vCPU").build(),
-                            Dimension.builder().name("Service").value("Fargate").build(),
-                            Dimension.builder().name("Class").value("Standard/Spot").build()
+                    .metricDataQueries(Arrays.asList(
+                            vCpuResourceCountQuery(FARGATE_QUERY_ID, "Fargate", "Standard/OnDemand"),
+                            vCpuResourceCountQuery(FARGATE_SPOT_QUERY_ID, "Fargate", "Standard/Spot"),
+                            vCpuResourceCountQuery(EC2_VCPU_QUERY_ID, "EC2", "Standard/OnDemand")
                     ))
                     .build();
 
-            MetricStat metricStat = MetricStat.builder()
-                    .stat("Maximum")
-                    .period(600)
-                    .metric(metric)
-                    .build();
-
-            MetricDataQuery dataQuery = MetricDataQuery.builder()
-                    .metricStat(metricStat)
-                    .id("fargate")
-                    .returnData(true)
-                    .build();
-
-            Instant end = Instant.now();
-            Instant start = end.minus(600, ChronoUnit.SECONDS);
-
-            GetMetricDataRequest getMetricDataRequest = GetMetricDataRequest.builder()
-                    .maxDatapoints(10000)
-                    .startTime(start)
-                    .endTime(end)
-                    .metricDataQueries(Arrays.asList(dataQuery))
-                    .build();
-
-            GetMetricDataResponse response = cloudWatch.getMetricData(getMetricDataRequest);
-            for (MetricDataResult item : response.metricDataResults()) {
-                //get the last value as it is the most current
-                if (!item.values().isEmpty()) {
-                    count = item.values().get(item.values().size() - 1);
-                    break;
+            for (GetMetricDataResponse response : cloudWatch.getMetricDataPaginator(getMetricDataRequest)) {
+                for (MetricDataResult item : response.metricDataResults()) {
+                    //get the last value as it is the most current
+                    if (!item.values().isEmpty()) {
+                        counts.putIfAbsent(item.id(), item.values().get(item.values().size() - 1));
+                    }
                 }
             }
             LOGGER.info("Time to process: " + (System.currentTimeMillis() - startTime));
@@ -337,60 +485,35 @@ public class QuotasServiceDAL {
             LOGGER.error(Utils.getFullStackTrace(cloudWatchError));
             throw cloudWatchError;
         }
-        return count;
+        counts.putIfAbsent(FARGATE_QUERY_ID, 0d);
+        counts.putIfAbsent(FARGATE_SPOT_QUERY_ID, 0d);
+        counts.putIfAbsent(EC2_VCPU_QUERY_ID, 0d);
+        return counts;
     }
-    private Double getVCpuCount() {
-        final long startTime = System.currentTimeMillis();
-        Double count = 0d;
-        try {
-            Metric metric = Metric.builder()
-                    .metricName("ResourceCount")
-                    .namespace("AWS/Usage")
-                    .dimensions(Arrays.asList(
-                            Dimension.builder().name("Type").value("Resource").build(),
-                            Dimension.builder().name("Resource").value("vCPU").build(),
-                            Dimension.builder().name("Service").value("EC2").build(),
-                            Dimension.builder().name("Class").value("Standard/OnDemand").build()
-                    ))
-                    .build();
-
-            MetricStat metricStat = MetricStat.builder()
-                    .stat("Maximum")
-                    .period(600)
-                    .metric(metric)
-                    .build();
-
-            MetricDataQuery dataQuery = MetricDataQuery.builder()
-                    .metricStat(metricStat)
-                    .id("vcpu")
-                    .returnData(true)
-                    .build();
-
-            Instant end = Instant.now();
-            Instant start = end.minus(600, ChronoUnit.SECONDS);
-
-            GetMetricDataRequest getMetricDataRequest = GetMetricDataRequest.builder()
-                    .maxDatapoints(10000)
-                    .startTime(start)
-                    .endTime(end)
-                    .metricDataQueries(Arrays.asList(dataQuery))
-                    .build();
 
-            GetMetricDataResponse response = cloudWatch.getMetricData(getMetricDataRequest);
-            for (MetricDataResult item : response.metricDataResults()) {
-                //get the last value as it is the most current
-                if (!item.values().isEmpty()) {
-                    count = item.values().get(item.values().size() - 1);
-                    break;
-                }
-            }
-            LOGGER.info("Time to process: " + (System.currentTimeMillis() - startTime));
-        } catch (CloudWatchException cloudWatchError) {
-            LOGGER.error("cloudwatch::GetMetricData", cloudWatchError);
-            LOGGER.error(Utils.getFullStackTrace(cloudWatchError));
-            throw cloudWatchError;
-        }
-        return count;
+    private static MetricDataQuery vCpuResourceCountQuery(String id, String service, String usageClass) {
+        Metric metric = Metric.builder()
+                .metricName("ResourceCount")
+                .namespace("AWS/Usage")
+                .dimensions(Arrays.asList(
+                        Dimension.builder().name("Type").value("Resource").build(),
+                        Dimension.builder().name("Resource").value("vCPU").build(),
+                        Dimension.builder().name("Service").value(service).build(),
+                        Dimension.builder().name("Class").value(usageClass).build()
+                ))
+                .build();
+
+        MetricStat metricStat = MetricStat.builder()
+                .stat("Maximum")
+                .period(600)
+                .metric(metric)
+                .build();
+
+        return MetricDataQuery.builder()
+                .metricStat(metricStat)
+                .id(id)
+                .returnData(true)
+                .build();
     }
 
     // Get the Quota
@@ -427,30 +550,43 @@ public class QuotasServiceDAL {
 
     // AWS Service Quotas is currently unavailable in the GCR regions, so we use the quota from service itself for check.
     public QuotaCheck checkQuotasForCNRegion() {
+        List<Future<?>> futures = new ArrayList<>();
+        Future<Integer> rdsClusters = submit(futures, this::getRdsClusters);
+        Future<Integer> rdsInstances = submit(futures, this::getRdsInstances);
+        Future<Map<String, Double>> rdsQuotas = submit(futures, this::getRdsInstancesQuota);
+        Future<Integer> albs = submit(futures, this::getAlbs);
+        Future<Map<String, Double>> elbQuotas = submit(futures, this::getELBQuota);
+
         String serviceCode;
         Map<String, Double> deployedCountMap = new LinkedHashMap<>();
-        Map<String, Double> quotasMap = new LinkedHashMap<>();
+        Map<String, Double> quotasMap;
         StringBuilder builder = new StringBuilder();
 
         boolean reportBackError = false;
         boolean exceedsLimit = false;
         List<Service> retList = new ArrayList<>();
-        // RDS
-        serviceCode = "rds";
-        deployedCountMap.clear();
-        deployedCountMap.put("DB clusters", Double.valueOf(getRdsClusters()));
-        deployedCountMap.put("DB instances", Double.valueOf(getRdsInstances()));
-        quotasMap = getRdsInstancesQuota();
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
-
-        // load balancers
-        serviceCode = "elasticloadbalancing";
-        deployedCountMap.clear();
-        deployedCountMap.put("Application Load Balancers per Region", Double.valueOf(getAlbs()));
-        quotasMap = getELBQuota();
-        exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
-        reportBackError = reportBackError || exceedsLimit;
+        try {
+            // RDS
+            serviceCode = "rds";
+            deployedCountMap.clear();
+            deployedCountMap.put("DB clusters", Double.valueOf(await(rdsClusters)));
+            deployedCountMap.put("DB instances", Double.valueOf(await(rdsInstances)));
+            quotasMap = await(rdsQuotas);
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+
+            // load balancers
+            serviceCode = "elasticloadbalancing";
+            deployedCountMap.clear();
+            deployedCountMap.put("Application Load Balancers per Region", Double.valueOf(await(albs)));
+            quotasMap = await(elbQuotas);
+            exceedsLimit = compareValues(retList, deployedCountMap, serviceCode, quotasMap, builder);
+            reportBackError = reportBackError || exceedsLimit;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
 
         QuotaCheck quotaCheck = new QuotaCheck();
         quotaCheck.setPassed(!reportBackError);
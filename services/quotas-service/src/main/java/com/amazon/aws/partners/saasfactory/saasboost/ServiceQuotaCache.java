@@ -0,0 +1,117 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Service quota values by service code, cached in the quotas table so every quota check function instance
+ * shares them.
+ * <p>
+ * Quota values only change when an increase is approved, so each service's quotas are listed once and
+ * kept for hours instead of being listed again on every quota check.
+ */
+final class ServiceQuotaCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceQuotaCache.class);
+    static final String QUOTAS_PREFIX = "quotas#";
+
+    private final DynamoDbClient ddb;
+    private final String table;
+    private final long ttlMillis;
+
+    ServiceQuotaCache(DynamoDbClient ddb, String table, long ttlMillis) {
+        this.ddb = ddb;
+        this.table = table;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param serviceCode the Service Quotas service code
+     * @return the cached quotas for the service, or null if they haven't been loaded or are stale
+     */
+    Map<String, Double> getIfFresh(String serviceCode) {
+        try {
+            GetItemResponse response = ddb.getItem(request -> request
+                    .tableName(table)
+                    .key(UsageTracker.key(QUOTAS_PREFIX + serviceCode))
+            );
+            if (!response.hasItem() || UsageTracker.expired(response.item())
+                    || !response.item().containsKey("quotas")) {
+                return null;
+            }
+            Map<String, Double> serviceQuotas = new LinkedHashMap<>();
+            for (Map.Entry<String, AttributeValue> quota : response.item().get("quotas").m().entrySet()) {
+                serviceQuotas.put(quota.getKey(), quota.getValue().n() != null
+                        ? Double.valueOf(quota.getValue().n()) : null);
+            }
+            return serviceQuotas;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:GetItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * Cache freshly listed quotas for a service.
+     * @return a copy of the quotas for the caller
+     */
+    Map<String, Double> put(String serviceCode, Map<String, Double> serviceQuotas) {
+        Map<String, AttributeValue> quotas = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> quota : serviceQuotas.entrySet()) {
+            quotas.put(quota.getKey(), quota.getValue() != null
+                    ? UsageTracker.number(quota.getValue())
+                    : AttributeValue.builder().nul(true).build());
+        }
+        try {
+            ddb.putItem(request -> request
+                    .tableName(table)
+                    .item(Map.of(
+                            "id", AttributeValue.builder().s(QUOTAS_PREFIX + serviceCode).build(),
+                            "quotas", AttributeValue.builder().m(quotas).build(),
+                            "expires", UsageTracker.expires(ttlMillis)
+                    ))
+            );
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:PutItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+        return new LinkedHashMap<>(serviceQuotas);
+    }
+
+    void invalidate(String serviceCode) {
+        try {
+            ddb.deleteItem(request -> request
+                    .tableName(table)
+                    .key(UsageTracker.key(QUOTAS_PREFIX + serviceCode))
+            );
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:DeleteItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.Select;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deployed resource counts that quota checks compare against the service quotas, kept in the quotas table
+ * so every quota check function instance sees the same counts.
+ * <p>
+ * Counting everything means paging through several AWS APIs, so the counts are only taken in full every
+ * few minutes. In between, provisioned and deleted tenants apply the resources they add or free as deltas.
+ * Tenants that have passed validation but aren't provisioned yet are tracked separately as pending, so a
+ * full count taken before their resources exist doesn't forget them. Anything the deltas can't know about,
+ * like resources created outside of SaaS Boost, is corrected by the next full count.
+ */
+final class UsageTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsageTracker.class);
+    static final String USAGE_ID = "usage";
+    static final String PENDING_PREFIX = "pending#";
+
+    private final DynamoDbClient ddb;
+    private final String table;
+    private final long reconcileMillis;
+    private final long pendingMillis;
+
+    /**
+     * @param reconcileMillis how long a full count is trusted
+     * @param pendingMillis how long a validated tenant counts as pending if we never hear it was
+     *                      provisioned, failed or deleted
+     */
+    UsageTracker(DynamoDbClient ddb, String table, long reconcileMillis, long pendingMillis) {
+        this.ddb = ddb;
+        this.table = table;
+        this.reconcileMillis = reconcileMillis;
+        this.pendingMillis = pendingMillis;
+    }
+
+    /**
+     * @return the current counts by quota name, or null if it's time for a full count
+     */
+    Map<String, Double> current() {
+        try {
+            GetItemResponse response = ddb.getItem(request -> request
+                    .tableName(table)
+                    .key(key(USAGE_ID))
+                    .consistentRead(true)
+            );
+            if (!response.hasItem() || expired(response.item()) || !response.item().containsKey("counts")) {
+                return null;
+            }
+            Map<String, Double> usage = new LinkedHashMap<>();
+            for (Map.Entry<String, AttributeValue> count : response.item().get("counts").m().entrySet()) {
+                usage.put(count.getKey(), Double.valueOf(count.getValue().n()));
+            }
+            return usage;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:GetItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * Replace the tracked counts with a full count.
+     */
+    void reconcile(Map<String, Double> counted) {
+        Map<String, AttributeValue> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> count : counted.entrySet()) {
+            counts.put(count.getKey(), number(count.getValue()));
+        }
+        try {
+            ddb.putItem(request -> request
+                    .tableName(table)
+                    .item(Map.of(
+                            "id", AttributeValue.builder().s(USAGE_ID).build(),
+                            "counts", AttributeValue.builder().m(counts).build(),
+                            "expires", expires(reconcileMillis)
+                    ))
+            );
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:PutItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * Add to or subtract from the tracked counts in one atomic update. Counts never go below 0, if a
+     * delta would take one there nothing is applied and the next full count sorts it out.
+     * @param deltas the change by quota name
+     * @return false if the deltas weren't applied because there are no current counts to apply them to
+     */
+    boolean apply(Map<String, Double> deltas) {
+        if (deltas.isEmpty()) {
+            return true;
+        }
+        List<String> sets = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+        conditions.add("#expires > :now");
+        Map<String, String> names = new HashMap<>();
+        names.put("#counts", "counts");
+        names.put("#expires", "expires");
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":now", number(System.currentTimeMillis() / 1000));
+        int i = 0;
+        for (Map.Entry<String, Double> delta : deltas.entrySet()) {
+            String name = "#q" + i;
+            String path = "#counts." + name;
+            names.put(name, delta.getKey());
+            values.put(":d" + i, number(delta.getValue()));
+            sets.add(path + " = " + path + " + :d" + i);
+            conditions.add("attribute_exists(" + path + ")");
+            if (delta.getValue() < 0) {
+                values.put(":min" + i, number(-delta.getValue()));
+                conditions.add(path + " >= :min" + i);
+            }
+            i++;
+        }
+        try {
+            ddb.updateItem(request -> request
+                    .tableName(table)
+                    .key(key(USAGE_ID))
+                    .updateExpression("SET " + String.join(", ", sets))
+                    .conditionExpression(String.join(" AND ", conditions))
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+            );
+            return true;
+        } catch (ConditionalCheckFailedException ccfe) {
+            return false;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:UpdateItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * Throw away the tracked counts so the next check takes a full count.
+     */
+    void invalidate() {
+        delete(USAGE_ID);
+    }
+
+    /**
+     * Count a tenant that passed validation until it's provisioned, fails or is deleted.
+     */
+    void addPending(String onboardingId) {
+        try {
+            ddb.putItem(request -> request
+                    .tableName(table)
+                    .item(Map.of(
+                            "id", AttributeValue.builder().s(PENDING_PREFIX + onboardingId).build(),
+                            "expires", expires(pendingMillis)
+                    ))
+            );
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:PutItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * Stop counting a tenant as pending.
+     * @return true if the tenant was pending
+     */
+    boolean removePending(String onboardingId) {
+        try {
+            DeleteItemResponse response = ddb.deleteItem(request -> request
+                    .tableName(table)
+                    .key(key(PENDING_PREFIX + onboardingId))
+                    .returnValues(ReturnValue.ALL_OLD)
+            );
+            return response.hasAttributes() && !response.attributes().isEmpty();
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:DeleteItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    /**
+     * @return the number of tenants that passed validation and don't have resources to count yet
+     */
+    int pendingTenants() {
+        ScanRequest request = ScanRequest.builder()
+                .tableName(table)
+                .filterExpression("begins_with(id, :prefix) AND #expires > :now")
+                .expressionAttributeNames(Map.of("#expires", "expires"))
+                .expressionAttributeValues(Map.of(
+                        ":prefix", AttributeValue.builder().s(PENDING_PREFIX).build(),
+                        ":now", number(System.currentTimeMillis() / 1000)
+                ))
+                .select(Select.COUNT)
+                .consistentRead(true)
+                .build();
+        try {
+            int pending = 0;
+            for (ScanResponse response : ddb.scanPaginator(request)) {
+                pending += response.count();
+            }
+            return pending;
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:Scan error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    private void delete(String id) {
+        try {
+            ddb.deleteItem(request -> request.tableName(table).key(key(id)));
+        } catch (DynamoDbException ddbe) {
+            LOGGER.error("dynamodb:DeleteItem error {}", ddbe.getMessage());
+            LOGGER.error(Utils.getFullStackTrace(ddbe));
+            throw ddbe;
+        }
+    }
+
+    static Map<String, AttributeValue> key(String id) {
+        return Map.of("id", AttributeValue.builder().s(id).build());
+    }
+
+    // Epoch seconds, which is also what DynamoDB TTL expects, so stale items clean themselves up
+    static AttributeValue expires(long ttlMillis) {
+        return number((System.currentTimeMillis() + ttlMillis) / 1000);
+    }
+
+    // TTL deletes can lag by hours, so expired items that are still there are ignored
+    static boolean expired(Map<String, AttributeValue> item) {
+        AttributeValue expires = item.get("expires");
+        return expires == null || Long.parseLong(expires.n()) <= System.currentTimeMillis() / 1000;
+    }
+
+    static AttributeValue number(Number value) {
+        return AttributeValue.builder().n(String.valueOf(value)).build();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+public class QuotasServiceTest {
+
+    private static final String ONBOARDING_ID = "5f0f6c4e-8a1b-4a51-9d4c-0e0c2f1a7b3d";
+
+    private QuotasServiceDAL dal;
+    private QuotasService service;
+
+    @Before
+    public void setup() {
+        dal = mock(QuotasServiceDAL.class);
+        service = new QuotasService(dal);
+    }
+
+    // Same shape the onboarding service publishes to the SaaS Boost event bus
+    private static Map<String, Object> event(String detailType, Map<String, Object> detail) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("source", "saas-boost");
+        event.put("detail-type", detailType);
+        event.put("detail", detail);
+        return event;
+    }
+
+    @Test
+    public void validatedTenantIsPending() {
+        service.checkQuotas(event("Onboarding Validated", Map.of("onboardingId", ONBOARDING_ID)), null);
+        verify(dal).tenantValidated(ONBOARDING_ID);
+        verifyNoMoreInteractions(dal);
+    }
+
+    @Test
+    public void provisionedTenantIsCounted() {
+        service.checkQuotas(event("Onboarding Provisioned", Map.of("onboardingId", ONBOARDING_ID)), null);
+        verify(dal).tenantProvisioned(ONBOARDING_ID);
+        verifyNoMoreInteractions(dal);
+    }
+
+    @Test
+    public void failedTenantIsNoLongerPending() {
+        service.checkQuotas(event("Onboarding Failed", Map.of("onboardingId", ONBOARDING_ID,
+                "message", "Pipeline tenant-app failed")), null);
+        verify(dal).tenantFailed(ONBOARDING_ID);
+        verifyNoMoreInteractions(dal);
+    }
+
+    @Test
+    public void deletedTenantFreesItsResources() {
+        service.checkQuotas(event("Tenant Onboarding Status Changed", Map.of("tenantId", "tenant-a",
+                "onboardingId", ONBOARDING_ID, "onboardingStatus", "deleted")), null);
+        verify(dal).tenantDeleted(ONBOARDING_ID);
+        verifyNoMoreInteractions(dal);
+    }
+
+    @Test
+    public void otherStatusChangesAreIgnored() {
+        // Failures and provisioning are handled from their own events, so these would count the tenant twice
+        service.checkQuotas(event("Tenant Onboarding Status Changed", Map.of("tenantId", "tenant-a",
+                "onboardingId", ONBOARDING_ID, "onboardingStatus", "failed")), null);
+        service.checkQuotas(event("Tenant Onboarding Status Changed", Map.of("tenantId", "tenant-a",
+                "onboardingId", ONBOARDING_ID, "onboardingStatus", "provisioned")), null);
+        service.checkQuotas(event("Onboarding Base Provisioned", Map.of("onboardingId", ONBOARDING_ID)), null);
+        verifyNoInteractions(dal);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ServiceQuotaCacheTest {
+
+    private static final String TABLE = "quotas";
+    private static final long TTL_MILLIS = 6 * 60 * 60 * 1000;
+
+    private DynamoDbClient ddb;
+    private ServiceQuotaCache cache;
+
+    @Before
+    public void setup() {
+        ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        cache = new ServiceQuotaCache(ddb, TABLE, TTL_MILLIS);
+    }
+
+    @Test
+    public void missingQuotasArentFresh() {
+        doReturn(GetItemResponse.builder().build()).when(ddb).getItem(any(GetItemRequest.class));
+        assertNull(cache.getIfFresh("vpc"));
+    }
+
+    @Test
+    public void expiredQuotasArentFresh() {
+        doReturn(GetItemResponse.builder().item(quotasItem("vpc", -1)).build())
+                .when(ddb).getItem(any(GetItemRequest.class));
+        assertNull(cache.getIfFresh("vpc"));
+    }
+
+    @Test
+    public void freshQuotasAreSharedByServiceCode() {
+        ArgumentCaptor<GetItemRequest> captor = ArgumentCaptor.forClass(GetItemRequest.class);
+        doReturn(GetItemResponse.builder().item(quotasItem("vpc", 60)).build()).when(ddb).getItem(captor.capture());
+
+        Map<String, Double> quotas = cache.getIfFresh("vpc");
+
+        assertEquals(Double.valueOf(5d), quotas.get("VPCs per Region"));
+        assertTrue(quotas.containsKey("Unset quota"));
+        assertNull(quotas.get("Unset quota"));
+        assertEquals(TABLE, captor.getValue().tableName());
+        assertEquals(UsageTracker.key(ServiceQuotaCache.QUOTAS_PREFIX + "vpc"), captor.getValue().key());
+    }
+
+    @Test
+    public void putStoresTheQuotasAndReturnsACopy() {
+        ArgumentCaptor<PutItemRequest> captor = ArgumentCaptor.forClass(PutItemRequest.class);
+        doReturn(PutItemResponse.builder().build()).when(ddb).putItem(captor.capture());
+        Map<String, Double> listed = new HashMap<>();
+        listed.put("VPCs per Region", 5d);
+        listed.put("Unset quota", null);
+        long now = System.currentTimeMillis() / 1000;
+
+        Map<String, Double> quotas = cache.put("vpc", listed);
+        quotas.remove("VPCs per Region");
+
+        assertTrue(listed.containsKey("VPCs per Region"));
+        Map<String, AttributeValue> item = captor.getValue().item();
+        assertEquals(ServiceQuotaCache.QUOTAS_PREFIX + "vpc", item.get("id").s());
+        assertEquals("5.0", item.get("quotas").m().get("VPCs per Region").n());
+        assertTrue(item.get("quotas").m().get("Unset quota").nul());
+        assertTrue(Long.parseLong(item.get("expires").n()) >= now + TTL_MILLIS / 1000 - 1);
+    }
+
+    @Test
+    public void invalidateDeletesTheServiceQuotas() {
+        ArgumentCaptor<DeleteItemRequest> captor = ArgumentCaptor.forClass(DeleteItemRequest.class);
+        doReturn(DeleteItemResponse.builder().build()).when(ddb).deleteItem(captor.capture());
+        cache.invalidate("rds");
+        assertEquals(UsageTracker.key(ServiceQuotaCache.QUOTAS_PREFIX + "rds"), captor.getValue().key());
+    }
+
+    @Test(expected = DynamoDbException.class)
+    public void readErrorsAreRethrown() {
+        doThrow(ResourceNotFoundException.builder().build()).when(ddb).getItem(any(GetItemRequest.class));
+        cache.getIfFresh("vpc");
+    }
+
+    private static Map<String, AttributeValue> quotasItem(String serviceCode, long expiresInSeconds) {
+        return Map.of(
+                "id", AttributeValue.builder().s(ServiceQuotaCache.QUOTAS_PREFIX + serviceCode).build(),
+                "quotas", AttributeValue.builder().m(Map.of(
+                        "VPCs per Region", UsageTracker.number(5d),
+                        "Unset quota", AttributeValue.builder().nul(true).build()
+                )).build(),
+                "expires", UsageTracker.number(System.currentTimeMillis() / 1000 + expiresInSeconds)
+        );
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+import software.amazon.awssdk.services.dynamodb.paginators.ScanIterable;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UsageTrackerTest {
+
+    private static final String TABLE = "quotas";
+    private static final long RECONCILE_MILLIS = 5 * 60 * 1000;
+    private static final long PENDING_MILLIS = 2 * 60 * 60 * 1000;
+
+    private DynamoDbClient ddb;
+    private UsageTracker tracker;
+
+    @Before
+    public void setup() {
+        // The consumer builder overloads are default methods that build the request and call the
+        // overload we stub, so let them run
+        ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        tracker = new UsageTracker(ddb, TABLE, RECONCILE_MILLIS, PENDING_MILLIS);
+    }
+
+    @Test
+    public void currentIsNullWithoutAFullCount() {
+        doReturn(GetItemResponse.builder().build()).when(ddb).getItem(any(GetItemRequest.class));
+        assertNull(tracker.current());
+    }
+
+    @Test
+    public void currentIsNullOnceTheFullCountExpires() {
+        doReturn(GetItemResponse.builder().item(usageItem(Map.of("VPCs per Region", 3d), -1)).build())
+                .when(ddb).getItem(any(GetItemRequest.class));
+        assertNull(tracker.current());
+    }
+
+    @Test
+    public void currentReadsTheSharedCounts() {
+        ArgumentCaptor<GetItemRequest> captor = ArgumentCaptor.forClass(GetItemRequest.class);
+        Map<String, Double> counts = new LinkedHashMap<>();
+        counts.put("VPCs per Region", 3d);
+        counts.put("Internet gateways per Region", 2d);
+        doReturn(GetItemResponse.builder().item(usageItem(counts, 60)).build())
+                .when(ddb).getItem(captor.capture());
+
+        assertEquals(counts, tracker.current());
+        assertEquals(TABLE, captor.getValue().tableName());
+        assertEquals(UsageTracker.key(UsageTracker.USAGE_ID), captor.getValue().key());
+        assertTrue("Counts other functions just wrote must be visible", captor.getValue().consistentRead());
+    }
+
+    @Test
+    public void reconcileStoresTheFullCountUntilItExpires() {
+        ArgumentCaptor<PutItemRequest> captor = ArgumentCaptor.forClass(PutItemRequest.class);
+        doReturn(PutItemResponse.builder().build()).when(ddb).putItem(captor.capture());
+        long now = System.currentTimeMillis() / 1000;
+
+        tracker.reconcile(Map.of("VPCs per Region", 3d));
+
+        Map<String, AttributeValue> item = captor.getValue().item();
+        assertEquals(UsageTracker.USAGE_ID, item.get("id").s());
+        assertEquals(3d, Double.parseDouble(item.get("counts").m().get("VPCs per Region").n()), 0d);
+        long expires = Long.parseLong(item.get("expires").n());
+        assertTrue(expires >= now + RECONCILE_MILLIS / 1000 - 1 && expires <= now + RECONCILE_MILLIS / 1000 + 1);
+    }
+
+    @Test
+    public void applyUpdatesEveryCountInOneConditionalWrite() {
+        ArgumentCaptor<UpdateItemRequest> captor = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        doReturn(UpdateItemResponse.builder().build()).when(ddb).updateItem(captor.capture());
+        Map<String, Double> deltas = new LinkedHashMap<>();
+        deltas.put("VPCs per Region", 1d);
+        deltas.put("Internet gateways per Region", -1d);
+
+        assertTrue(tracker.apply(deltas));
+
+        UpdateItemRequest request = captor.getValue();
+        assertEquals("SET #counts.#q0 = #counts.#q0 + :d0, #counts.#q1 = #counts.#q1 + :d1",
+                request.updateExpression());
+        assertEquals("VPCs per Region", request.expressionAttributeNames().get("#q0"));
+        assertEquals("Internet gateways per Region", request.expressionAttributeNames().get("#q1"));
+        String condition = request.conditionExpression();
+        assertTrue(condition.contains("#expires > :now"));
+        assertTrue(condition.contains("attribute_exists(#counts.#q0)"));
+        // Only deltas that subtract can take a count below 0
+        assertFalse(condition.contains(":min0"));
+        assertTrue(condition.contains("#counts.#q1 >= :min1"));
+        assertEquals(1d, Double.parseDouble(request.expressionAttributeValues().get(":min1").n()), 0d);
+    }
+
+    @Test
+    public void applyReportsWhenThereAreNoCountsToUpdate() {
+        doThrow(ConditionalCheckFailedException.builder().build()).when(ddb).updateItem(any(UpdateItemRequest.class));
+        assertFalse(tracker.apply(Map.of("VPCs per Region", 1d)));
+    }
+
+    @Test(expected = DynamoDbException.class)
+    public void applyRethrowsOtherErrors() {
+        doThrow(ProvisionedThroughputExceededException.builder().build())
+                .when(ddb).updateItem(any(UpdateItemRequest.class));
+        tracker.apply(Map.of("VPCs per Region", 1d));
+    }
+
+    @Test
+    public void invalidateDeletesTheSharedCounts() {
+        ArgumentCaptor<DeleteItemRequest> captor = ArgumentCaptor.forClass(DeleteItemRequest.class);
+        doReturn(DeleteItemResponse.builder().build()).when(ddb).deleteItem(captor.capture());
+        tracker.invalidate();
+        assertEquals(UsageTracker.key(UsageTracker.USAGE_ID), captor.getValue().key());
+    }
+
+    @Test
+    public void pendingTenantsAreSeparateFromTheCounts() {
+        ArgumentCaptor<PutItemRequest> put = ArgumentCaptor.forClass(PutItemRequest.class);
+        doReturn(PutItemResponse.builder().build()).when(ddb).putItem(put.capture());
+        ArgumentCaptor<DeleteItemRequest> delete = ArgumentCaptor.forClass(DeleteItemRequest.class);
+        doReturn(DeleteItemResponse.builder().build()).when(ddb).deleteItem(delete.capture());
+
+        tracker.addPending("onboarding-1");
+        tracker.reconcile(Map.of("VPCs per Region", 3d));
+        tracker.removePending("onboarding-1");
+
+        // A full count replaces the usage item, it never touches the pending tenant
+        List<PutItemRequest> puts = put.getAllValues();
+        assertEquals(UsageTracker.PENDING_PREFIX + "onboarding-1", puts.get(0).item().get("id").s());
+        assertEquals(UsageTracker.USAGE_ID, puts.get(1).item().get("id").s());
+        assertEquals(UsageTracker.key(UsageTracker.PENDING_PREFIX + "onboarding-1"), delete.getValue().key());
+    }
+
+    @Test
+    public void removePendingTellsWhetherTheTenantWasPending() {
+        ArgumentCaptor<DeleteItemRequest> delete = ArgumentCaptor.forClass(DeleteItemRequest.class);
+        doReturn(DeleteItemResponse.builder()
+                        .attributes(UsageTracker.key(UsageTracker.PENDING_PREFIX + "onboarding-1"))
+                        .build(),
+                DeleteItemResponse.builder().build())
+                .when(ddb).deleteItem(delete.capture());
+
+        assertTrue(tracker.removePending("onboarding-1"));
+        assertFalse("Already removed by an earlier event", tracker.removePending("onboarding-1"));
+        assertEquals(ReturnValue.ALL_OLD, delete.getValue().returnValues());
+    }
+
+    @Test
+    public void pendingTenantsCountsEveryPage() {
+        ArgumentCaptor<ScanRequest> captor = ArgumentCaptor.forClass(ScanRequest.class);
+        Map<String, AttributeValue> lastKey = UsageTracker.key(UsageTracker.PENDING_PREFIX + "onboarding-2");
+        doReturn(ScanResponse.builder().count(2).lastEvaluatedKey(lastKey).build(),
+                ScanResponse.builder().count(1).build())
+                .when(ddb).scan(captor.capture());
+        doAnswer(invocation -> new ScanIterable(ddb, invocation.getArgument(0)))
+                .when(ddb).scanPaginator(any(ScanRequest.class));
+
+        assertEquals(3, tracker.pendingTenants());
+
+        ScanRequest request = captor.getAllValues().get(0);
+        assertEquals(Select.COUNT, request.select());
+        assertTrue("Pending tenants past their expiry don't count",
+                request.filterExpression().contains("#expires > :now"));
+        assertEquals(UsageTracker.PENDING_PREFIX,
+                request.expressionAttributeValues().get(":prefix").s());
+        assertEquals(lastKey, captor.getAllValues().get(1).exclusiveStartKey());
+    }
+
+    private static Map<String, AttributeValue> usageItem(Map<String, Double> counts, long expiresInSeconds) {
+        Map<String, AttributeValue> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> count : counts.entrySet()) {
+            values.put(count.getKey(), UsageTracker.number(count.getValue()));
+        }
+        return Map.of(
+                "id", AttributeValue.builder().s(UsageTracker.USAGE_ID).build(),
+                "counts", AttributeValue.builder().m(values).build(),
+                "expires", UsageTracker.number(System.currentTimeMillis() / 1000 + expiresInSeconds)
+        );
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Coalesces a batch of tenant EventBridge events so each tenant is written to at most once.
+ * <p>
+ * During an onboarding wave the same tenant will have its onboarding status, hostname and resources change
+ * several times in quick succession. Only the latest onboarding status and hostname matter, and resource
+ * changes are additive, so we fold all of the events for a tenant into a single update. Events are ordered by
+ * the EventBridge event time, falling back to the order they were added for events with the same time. The
+ * time of the event each value came from is kept so the write can be ordered against earlier batches too.
+ */
+public class TenantEventBatch {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantEventBatch.class);
+
+    private final Map<String, TenantUpdate> updates = new LinkedHashMap<>();
+
+    /**
+     * Fold an event into the batch.
+     * @param messageId the id of the message that carried this event, used to report failures
+     * @param event the EventBridge event
+     * @return true if the event was added, false if it's not a tenant event this batch can handle
+     */
+    public boolean add(String messageId, Map<String, Object> event) {
+        if (event == null || !"saas-boost".equals(event.get("source"))) {
+            return false;
+        }
+        TenantEvent tenantEvent = TenantEvent.fromDetailType((String) event.get("detail-type"));
+        if (tenantEvent == null) {
+            return false;
+        }
+        String time = event.get("time") != null ? String.valueOf(event.get("time")) : "";
+        Map<String, Object> detail;
+        switch (tenantEvent) {
+            case TENANT_ONBOARDING_STATUS_CHANGED:
+                if (!TenantEvent.validate(event, "onboardingStatus")) {
+                    return false;
+                }
+                detail = (Map<String, Object>) event.get("detail");
+                update(detail).onboardingStatus((String) detail.get("onboardingStatus"), time, messageId);
+                return true;
+            case TENANT_HOSTNAME_CHANGED:
+                if (!TenantEvent.validate(event, "hostname")) {
+                    return false;
+                }
+                detail = (Map<String, Object>) event.get("detail");
+                update(detail).hostname((String) detail.get("hostname"), time, messageId);
+                return true;
+            case TENANT_RESOURCES_CHANGED:
+                if (!TenantEvent.validate(event, "resources")) {
+                    return false;
+                }
+                detail = (Map<String, Object>) event.get("detail");
+                Map<String, Tenant.Resource> resources = TenantService.fromTenantResourcesChangedEvent(event);
+                if (resources == null) {
+                    return false;
+                }
+                update(detail).resources(resources, time, messageId);
+                return true;
+            default:
+                LOGGER.info("Not batching tenant event {}", tenantEvent.detailType());
+                return false;
+        }
+    }
+
+    public Collection<TenantUpdate> updates() {
+        return Collections.unmodifiableCollection(updates.values());
+    }
+
+    public boolean isEmpty() {
+        return updates.isEmpty();
+    }
+
+    private TenantUpdate update(Map<String, Object> detail) {
+        String tenantId = String.valueOf(detail.get("tenantId"));
+        return updates.computeIfAbsent(tenantId, TenantUpdate::new);
+    }
+
+    public static final class TenantUpdate {
+        private final String tenantId;
+        private final Set<String> messageIds = new LinkedHashSet<>();
+        private String onboardingStatus;
+        private String onboardingStatusTime;
+        private String hostname;
+        private String hostnameTime;
+        private final Map<String, Tenant.Resource> resources = new LinkedHashMap<>();
+        private final Map<String, String> resourceTimes = new HashMap<>();
+
+        private TenantUpdate(String tenantId) {
+            this.tenantId = tenantId;
+        }
+
+        private void onboardingStatus(String onboardingStatus, String time, String messageId) {
+            messageIds.add(messageId);
+            if (onboardingStatusTime == null || onboardingStatusTime.compareTo(time) <= 0) {
+                this.onboardingStatus = onboardingStatus;
+                this.onboardingStatusTime = time;
+            }
+        }
+
+        private void hostname(String hostname, String time, String messageId) {
+            messageIds.add(messageId);
+            if (hostnameTime == null || hostnameTime.compareTo(time) <= 0) {
+                this.hostname = hostname;
+                this.hostnameTime = time;
+            }
+        }
+
+        private void resources(Map<String, Tenant.Resource> changed, String time, String messageId) {
+            messageIds.add(messageId);
+            for (Map.Entry<String, Tenant.Resource> resource : changed.entrySet()) {
+                String previous = resourceTimes.get(resource.getKey());
+                if (previous == null || previous.compareTo(time) <= 0) {
+                    resources.put(resource.getKey(), resource.getValue());
+                    resourceTimes.put(resource.getKey(), time);
+                }
+            }
+        }
+
+        public String getTenantId() {
+            return tenantId;
+        }
+
+        public Set<String> getMessageIds() {
+            return Collections.unmodifiableSet(messageIds);
+        }
+
+        public String getOnboardingStatus() {
+            return onboardingStatus;
+        }
+
+        public String getOnboardingStatusTime() {
+            return onboardingStatusTime;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        public String getHostnameTime() {
+            return hostnameTime;
+        }
+
+        public Map<String, Tenant.Resource> getResources() {
+            return Collections.unmodifiableMap(resources);
+        }
+
+        public Map<String, String> getResourceTimes() {
+            return Collections.unmodifiableMap(resourceTimes);
+        }
+    }
+}
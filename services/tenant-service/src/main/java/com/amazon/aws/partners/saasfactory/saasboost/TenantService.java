@@ -19,8 +19,11 @@ package com.amazon.aws.partners.saasfactory.saasboost;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.eventbridge.EventBridgeClient;
 
 import java.util.*;
@@ -317,6 +320,55 @@ public class TenantService implements RequestHandler<Map<String, Object>, APIGat
         }
     }
 
+    public SQSBatchResponse processTenantEventQueue(SQSEvent event, Context context) {
+        final long startTimeMillis = System.currentTimeMillis();
+        List<SQSBatchResponse.BatchItemFailure> retry = new ArrayList<>();
+
+        // EventBridge delivers the tenant events to an SQS queue so we can pick them up in batches. Fold all
+        // of the events for the same tenant together so each tenant gets a single conditional write with
+        // only the latest state instead of a read and a write per event.
+        TenantEventBatch batch = new TenantEventBatch();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            Map<String, Object> tenantEvent = Utils.fromJson(message.getBody(), LinkedHashMap.class);
+            if (tenantEvent == null) {
+                // Report it as failed so it ends up in the DLQ instead of being dropped
+                LOGGER.error("Can't parse tenant event from message {}", message.getMessageId());
+                retry.add(SQSBatchResponse.BatchItemFailure.builder()
+                        .withItemIdentifier(message.getMessageId())
+                        .build()
+                );
+            } else if (!batch.add(message.getMessageId(), tenantEvent)) {
+                LOGGER.error("Skipping tenant event {} {}", tenantEvent.get("detail-type"),
+                        Utils.toJson(tenantEvent.get("detail")));
+            }
+        }
+
+        for (TenantEventBatch.TenantUpdate update : batch.updates()) {
+            try {
+                LOGGER.info("Updating tenant {} from {} events", update.getTenantId(), update.getMessageIds().size());
+                Tenant updated = dal.updateTenantState(update);
+                if (updated == null) {
+                    // Can't find an tenant record for this id
+                    LOGGER.error("Can't find tenant record for {}", update.getTenantId());
+                }
+            } catch (SdkException e) {
+                // Let SQS redeliver every event that went into this tenant's update
+                LOGGER.error("Error updating tenant {}", update.getTenantId());
+                LOGGER.error(Utils.getFullStackTrace(e));
+                for (String messageId : update.getMessageIds()) {
+                    retry.add(SQSBatchResponse.BatchItemFailure.builder()
+                            .withItemIdentifier(messageId)
+                            .build()
+                    );
+                }
+            }
+        }
+        long totalTimeMillis = System.currentTimeMillis() - startTimeMillis;
+        LOGGER.info("TenantService::processTenantEventQueue {} messages exec {}", event.getRecords().size(),
+                totalTimeMillis);
+        return SQSBatchResponse.builder().withBatchItemFailures(retry).build();
+    }
+
     protected void handleTenantOnboardingStatusChanged(Map<String, Object> event, Context context) {
         //Utils.logRequestEvent(event);
         if (TenantEvent.validate(event, "onboardingStatus")) {
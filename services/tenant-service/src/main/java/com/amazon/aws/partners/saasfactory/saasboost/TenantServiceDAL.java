@@ -33,6 +33,10 @@ public class TenantServiceDAL {
     private static final String TENANTS_TABLE = System.getenv("TENANTS_TABLE");
     private final DynamoDbClient ddb;
 
+    TenantServiceDAL(DynamoDbClient ddb) {
+        this.ddb = ddb;
+    }
+
     public TenantServiceDAL() {
         if (Utils.isBlank(TENANTS_TABLE)) {
             throw new IllegalStateException("Missing required environment variable TENANTS_TABLE");
@@ -228,24 +232,8 @@ public class TenantServiceDAL {
             String modified = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
             expressionAttributeValues.put(":modified", AttributeValue.builder().s(modified).build());
 
-            for (Map.Entry<String, Tenant.Resource> tenantResource : resources.entrySet()) {
-                String resourceKey = tenantResource.getKey();
-                Tenant.Resource resourceValue = tenantResource.getValue();
-
-                updateExpression.append(", ");
-                updateExpression.append(mapAttributeUpdateExpression("resources", resourceKey, resourceKey));
-                expressionAttributeNames.put(mapAttributeExpressionName(resourceKey), resourceKey);
-                expressionAttributeValues.put(
-                        mapAttributeExpressionValue(resourceKey),
-                        AttributeValue.builder().m(
-                                Map.of(
-                                    "name", AttributeValue.builder().s(resourceValue.getName()).build(),
-                                    "arn", AttributeValue.builder().s(resourceValue.getArn()).build(),
-                                    "consoleUrl", AttributeValue.builder().s(resourceValue.getConsoleUrl()).build()
-                                )
-                        ).build()
-                );
-            }
+            appendResourcesUpdate(resources, updateExpression, expressionAttributeNames,
+                    expressionAttributeValues);
 
             key.put("id", AttributeValue.builder().s(tenantId).build());
             //LOGGER.debug(updateExpression.toString());
@@ -268,6 +256,166 @@ public class TenantServiceDAL {
         }
     }
 
+    // Applies whatever combination of onboarding status, hostname and resources changed for a tenant in a
+    // single write. Each of them is stored with the time of the event that set it and is only replaced by a
+    // newer event, so an event SQS redelivers after a later batch was written can't roll the tenant back.
+    // Returns null if the tenant doesn't exist instead of creating a partial tenant record.
+    public Tenant updateTenantState(TenantEventBatch.TenantUpdate update) {
+        final long startTimeMillis = System.currentTimeMillis();
+        final String tenantId = update.getTenantId();
+        LOGGER.info("TenantServiceDAL::updateTenantState {}", tenantId);
+        List<StateChange> changes = new ArrayList<>();
+        if (update.getOnboardingStatus() != null) {
+            changes.add(new StateChange("onboarding_status", ":onboarding",
+                    AttributeValue.builder().s(update.getOnboardingStatus()).build())
+                    .newerThan("onboarding_status_time", ":onboarding_time", update.getOnboardingStatusTime(), true));
+        }
+        if (update.getHostname() != null) {
+            changes.add(new StateChange("hostname", ":hostname",
+                    AttributeValue.builder().s(update.getHostname()).build())
+                    .newerThan("hostname_time", ":hostname_time", update.getHostnameTime(), true));
+        }
+        for (Map.Entry<String, Tenant.Resource> resource : update.getResources().entrySet()) {
+            String resourceKey = resource.getKey();
+            String resourcePath = "resources." + mapAttributeExpressionName(resourceKey);
+            String eventTime = update.getResourceTimes().get(resourceKey);
+            // The event time is stored on the resource itself because a path inside a map that doesn't
+            // exist yet can't be set
+            StateChange change = new StateChange(resourcePath, mapAttributeExpressionValue(resourceKey),
+                    resourceValue(resource.getValue(), eventTime))
+                    .newerThan(resourcePath + ".event_time", mapAttributeExpressionValue(resourceKey) + "_time",
+                            eventTime, false);
+            change.names.put(mapAttributeExpressionName(resourceKey), resourceKey);
+            changes.add(change);
+        }
+        try {
+            Map<String, AttributeValue> updated;
+            try {
+                updated = updateTenantState(tenantId, changes);
+            } catch (ConditionalCheckFailedException staleOrNotFound) {
+                // Some of the changes are older than what's stored. Apply the rest one at a time.
+                updated = null;
+                for (StateChange change : changes) {
+                    try {
+                        updated = updateTenantState(tenantId, List.of(change));
+                    } catch (ConditionalCheckFailedException stale) {
+                        LOGGER.info("TenantServiceDAL::updateTenantState skipping {} for {}, already set by a "
+                                + "newer event", change.path, tenantId);
+                    }
+                }
+                if (updated == null) {
+                    // Nothing was newer, or there's no tenant to update
+                    Tenant tenant = fromAttributeValueMap(ddb.getItem(request -> request
+                            .tableName(TENANTS_TABLE)
+                            .key(Map.of("id", AttributeValue.builder().s(tenantId).build()))
+                            .consistentRead(true)
+                    ).item());
+                    if (tenant == null) {
+                        LOGGER.error("TenantServiceDAL::updateTenantState can't find tenant record for {}",
+                                tenantId);
+                    }
+                    return tenant;
+                }
+            }
+            long totalTimeMillis = System.currentTimeMillis() - startTimeMillis;
+            LOGGER.info("TenantServiceDAL::updateTenantState exec {}", totalTimeMillis);
+            return fromAttributeValueMap(updated);
+        } catch (DynamoDbException e) {
+            LOGGER.error("TenantServiceDAL::updateTenantState {}", e.awsErrorDetails().errorMessage());
+            LOGGER.error(Utils.getFullStackTrace(e));
+            throw e;
+        }
+    }
+
+    private Map<String, AttributeValue> updateTenantState(String tenantId, List<StateChange> changes) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        Map<String, String> expressionAttributeNames = new HashMap<>();
+        Map<String, AttributeValue> expressionAttributeValues = new HashMap<>();
+        StringBuilder updateExpression = new StringBuilder("SET modified = :modified");
+        String modified = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        expressionAttributeValues.put(":modified", AttributeValue.builder().s(modified).build());
+        StringBuilder conditionExpression = new StringBuilder("attribute_exists(id)");
+        for (StateChange change : changes) {
+            for (String set : change.updates) {
+                updateExpression.append(", ").append(set);
+            }
+            if (change.condition != null) {
+                conditionExpression.append(" AND ").append(change.condition);
+            }
+            expressionAttributeNames.putAll(change.names);
+            expressionAttributeValues.putAll(change.values);
+        }
+
+        key.put("id", AttributeValue.builder().s(tenantId).build());
+        UpdateItemRequest.Builder request = UpdateItemRequest.builder()
+                .tableName(TENANTS_TABLE)
+                .key(key)
+                .updateExpression(updateExpression.toString())
+                .conditionExpression(conditionExpression.toString())
+                .expressionAttributeValues(expressionAttributeValues)
+                .returnValues(ReturnValue.ALL_NEW);
+        if (!expressionAttributeNames.isEmpty()) {
+            request.expressionAttributeNames(expressionAttributeNames);
+        }
+        return ddb.updateItem(request.build()).attributes();
+    }
+
+    // One field of the tenant set from an event, along with the condition that keeps an older event from
+    // overwriting it
+    private static final class StateChange {
+        private final String path;
+        private final List<String> updates = new ArrayList<>();
+        private final Map<String, String> names = new HashMap<>();
+        private final Map<String, AttributeValue> values = new HashMap<>();
+        private String condition;
+
+        private StateChange(String path, String valueName, AttributeValue value) {
+            this.path = path;
+            updates.add(path + " = " + valueName);
+            values.put(valueName, value);
+        }
+
+        // Only replace what's stored if this event is newer than the one that set it. Events without a time
+        // can't be ordered, so they're applied as they come.
+        private StateChange newerThan(String timePath, String timeValueName, String eventTime, boolean storeTime) {
+            if (Utils.isBlank(eventTime)) {
+                return this;
+            }
+            if (storeTime) {
+                updates.add(timePath + " = " + timeValueName);
+            }
+            values.put(timeValueName, AttributeValue.builder().s(eventTime).build());
+            condition = String.format("(attribute_not_exists(%s) OR %s < %s)", timePath, timePath, timeValueName);
+            return this;
+        }
+    }
+
+    // Adds a SET clause for each tenant resource to an update expression that already starts with SET
+    private static void appendResourcesUpdate(Map<String, Tenant.Resource> resources, StringBuilder updateExpression,
+                                              Map<String, String> expressionAttributeNames,
+                                              Map<String, AttributeValue> expressionAttributeValues) {
+        for (Map.Entry<String, Tenant.Resource> tenantResource : resources.entrySet()) {
+            String resourceKey = tenantResource.getKey();
+            Tenant.Resource resourceValue = tenantResource.getValue();
+
+            updateExpression.append(", ");
+            updateExpression.append(mapAttributeUpdateExpression("resources", resourceKey, resourceKey));
+            expressionAttributeNames.put(mapAttributeExpressionName(resourceKey), resourceKey);
+            expressionAttributeValues.put(mapAttributeExpressionValue(resourceKey), resourceValue(resourceValue, null));
+        }
+    }
+
+    private static AttributeValue resourceValue(Tenant.Resource resource, String eventTime) {
+        Map<String, AttributeValue> value = new HashMap<>();
+        value.put("name", AttributeValue.builder().s(resource.getName()).build());
+        value.put("arn", AttributeValue.builder().s(resource.getArn()).build());
+        value.put("consoleUrl", AttributeValue.builder().s(resource.getConsoleUrl()).build());
+        if (!Utils.isBlank(eventTime)) {
+            value.put("event_time", AttributeValue.builder().s(eventTime).build());
+        }
+        return AttributeValue.builder().m(value).build();
+    }
+
     public Tenant disableTenant(String tenantId) {
         final long startTimeMillis = System.currentTimeMillis();
         LOGGER.info("TenantServiceDAL::disableTenant");
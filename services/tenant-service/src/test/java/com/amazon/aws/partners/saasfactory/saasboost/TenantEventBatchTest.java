@@ -0,0 +1,112 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.amazon.aws.partners.saasfactory.saasboost;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TenantEventBatchTest {
+
+    private static final String TENANT_A = "d1c1e3cc-962f-4f03-b4a8-d8a7c1f986c3";
+    private static final String TENANT_B = "8541aceb-12e0-4a3c-9dc1-5a8b4cbcbd8f";
+
+    @Test
+    public void testCoalesceLatestState() {
+        TenantEventBatch batch = new TenantEventBatch();
+        assertTrue(batch.add("1", event("Tenant Onboarding Status Changed", "2022-03-01T00:00:02Z",
+                TENANT_A, "onboardingStatus", "provisioned")));
+        // Arrives later but happened earlier
+        assertTrue(batch.add("2", event("Tenant Onboarding Status Changed", "2022-03-01T00:00:01Z",
+                TENANT_A, "onboardingStatus", "provisioning")));
+        assertTrue(batch.add("3", event("Tenant Hostname Changed", "2022-03-01T00:00:01Z",
+                TENANT_A, "hostname", "tenant-a.example.com")));
+        assertTrue(batch.add("4", event("Tenant Onboarding Status Changed", "2022-03-01T00:00:01Z",
+                TENANT_B, "onboardingStatus", "provisioning")));
+
+        assertEquals(2, batch.updates().size());
+        Iterator<TenantEventBatch.TenantUpdate> updates = batch.updates().iterator();
+        TenantEventBatch.TenantUpdate tenantA = updates.next();
+        assertEquals(TENANT_A, tenantA.getTenantId());
+        assertEquals("provisioned", tenantA.getOnboardingStatus());
+        assertEquals("tenant-a.example.com", tenantA.getHostname());
+        assertTrue(tenantA.getResources().isEmpty());
+        assertEquals(Set.of("1", "2", "3"), tenantA.getMessageIds());
+
+        TenantEventBatch.TenantUpdate tenantB = updates.next();
+        assertEquals("provisioning", tenantB.getOnboardingStatus());
+        assertNull(tenantB.getHostname());
+    }
+
+    @Test
+    public void testMergeResources() {
+        Map<String, Tenant.Resource> first = new HashMap<>();
+        first.put("VPC", new Tenant.Resource("vpc-1", "arn:aws:ec2:us-east-1:111111111:vpc/vpc-1", "url"));
+        first.put("ECS_CLUSTER", new Tenant.Resource("cluster-1", "arn:cluster-1", "url"));
+        Map<String, Tenant.Resource> second = new HashMap<>();
+        second.put("ECS_CLUSTER", new Tenant.Resource("cluster-2", "arn:cluster-2", "url"));
+
+        TenantEventBatch batch = new TenantEventBatch();
+        assertTrue(batch.add("1", event("Tenant Resources Changed", "2022-03-01T00:00:01Z",
+                TENANT_A, "resources", Utils.toJson(first))));
+        assertTrue(batch.add("2", event("Tenant Resources Changed", "2022-03-01T00:00:02Z",
+                TENANT_A, "resources", Utils.toJson(second))));
+
+        TenantEventBatch.TenantUpdate update = batch.updates().iterator().next();
+        assertEquals(2, update.getResources().size());
+        assertEquals("vpc-1", update.getResources().get("VPC").getName());
+        assertEquals("cluster-2", update.getResources().get("ECS_CLUSTER").getName());
+    }
+
+    @Test
+    public void testSkipInvalidEvents() {
+        TenantEventBatch batch = new TenantEventBatch();
+        assertFalse(batch.add("1", null));
+        assertFalse(batch.add("2", event("Tenant Onboarding Status Changed", "2022-03-01T00:00:01Z",
+                "not-a-uuid", "onboardingStatus", "provisioned")));
+        assertFalse(batch.add("3", event("Tenant Hostname Changed", "2022-03-01T00:00:01Z",
+                TENANT_A, "onboardingStatus", "provisioned")));
+        assertFalse(batch.add("4", event("Tenant Disabled", "2022-03-01T00:00:01Z",
+                TENANT_A, "active", "false")));
+        Map<String, Object> otherSource = event("Tenant Hostname Changed", "2022-03-01T00:00:01Z",
+                TENANT_A, "hostname", "tenant-a.example.com");
+        otherSource.put("source", "aws.events");
+        assertFalse(batch.add("5", otherSource));
+        assertTrue(batch.isEmpty());
+    }
+
+    private static Map<String, Object> event(String detailType, String time, String tenantId, String key,
+                                             String value) {
+        Map<String, Object> detail = new HashMap<>();
+        detail.put("tenantId", tenantId);
+        detail.put(key, value);
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("version", "0");
+        event.put("id", UUID.randomUUID().toString());
+        event.put("detail-type", detailType);
+        event.put("source", "saas-boost");
+        event.put("account", "111111111111");
+        event.put("time", time);
+        event.put("region", "us-west-2");
+        event.put("resources", new ArrayList<String>());
+        event.put("detail", detail);
+        return event;
+    }
+}
@@ -19,7 +19,8 @@ package com.amazon.aws.partners.saasfactory.saasboost;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.junit.BeforeClass;
 import org.junit.Test;
-import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
 
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
@@ -29,9 +30,12 @@ import java.lang.reflect.Method;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 public class TenantServiceDALTest {
 
@@ -163,4 +167,92 @@ public class TenantServiceDALTest {
         assertEquals("resources.#VPC = :VPC",
                 TenantServiceDAL.mapAttributeUpdateExpression("resources", "VPC", "VPC"));
     }
+
+    @Test
+    public void testRedeliveredEventDoesNotRollBackTenantState() {
+        // A newer hostname and an older onboarding status were written by an earlier batch
+        Map<String, String> storedTimes = new HashMap<>();
+        storedTimes.put("hostname_time", "2022-03-01T00:00:05Z");
+        storedTimes.put("onboarding_status_time", "2022-03-01T00:00:02Z");
+        List<UpdateItemRequest> applied = new ArrayList<>();
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("id", AttributeValue.builder().s(tenantId.toString()).build());
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doAnswer(invocation -> updateIfNewer(invocation.getArgument(0), item, storedTimes, applied))
+                .when(ddb).updateItem(any(UpdateItemRequest.class));
+
+        TenantEventBatch batch = new TenantEventBatch();
+        // SQS redelivers the hostname event the earlier batch already replaced
+        batch.add("1", event("Tenant Hostname Changed", "2022-03-01T00:00:01Z", "hostname",
+                "old.example.com"));
+        batch.add("2", event("Tenant Onboarding Status Changed", "2022-03-01T00:00:06Z", "onboardingStatus",
+                "deployed"));
+        batch.add("3", event("Tenant Resources Changed", "2022-03-01T00:00:06Z", "resources",
+                Utils.toJson(Map.of("VPC", resources.get("VPC")))));
+
+        Tenant tenant = new TenantServiceDAL(ddb).updateTenantState(batch.updates().iterator().next());
+
+        assertNotNull(tenant);
+        assertEquals("deployed", tenant.getOnboardingStatus());
+        assertEquals("2022-03-01T00:00:06Z", storedTimes.get("onboarding_status_time"));
+        assertEquals("2022-03-01T00:00:06Z", storedTimes.get("resources.VPC.event_time"));
+        assertEquals("2022-03-01T00:00:05Z", storedTimes.get("hostname_time"));
+        for (UpdateItemRequest request : applied) {
+            assertFalse(request.updateExpression().contains("hostname"));
+        }
+    }
+
+    @Test
+    public void testStaleUpdateForMissingTenant() {
+        DynamoDbClient ddb = mock(DynamoDbClient.class, CALLS_REAL_METHODS);
+        doThrow(ConditionalCheckFailedException.builder().message("The conditional request failed").build())
+                .when(ddb).updateItem(any(UpdateItemRequest.class));
+        doReturn(GetItemResponse.builder().item(new HashMap<>()).build())
+                .when(ddb).getItem(any(GetItemRequest.class));
+
+        TenantEventBatch batch = new TenantEventBatch();
+        batch.add("1", event("Tenant Onboarding Status Changed", "2022-03-01T00:00:06Z", "onboardingStatus",
+                "deployed"));
+
+        assertNull(new TenantServiceDAL(ddb).updateTenantState(batch.updates().iterator().next()));
+    }
+
+    // Evaluates the event time conditions the way DynamoDB would against the stored times
+    private static UpdateItemResponse updateIfNewer(UpdateItemRequest request, Map<String, AttributeValue> item,
+                                                    Map<String, String> storedTimes,
+                                                    List<UpdateItemRequest> applied) {
+        Map<String, String> newTimes = new HashMap<>();
+        Matcher condition = Pattern.compile("OR (\\S+) < (:\\S+)\\)").matcher(request.conditionExpression());
+        while (condition.find()) {
+            String path = condition.group(1);
+            for (Map.Entry<String, String> name : request.expressionAttributeNames().entrySet()) {
+                path = path.replace(name.getKey(), name.getValue());
+            }
+            String eventTime = request.expressionAttributeValues().get(condition.group(2)).s();
+            if (storedTimes.containsKey(path) && storedTimes.get(path).compareTo(eventTime) >= 0) {
+                throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+            }
+            newTimes.put(path, eventTime);
+        }
+        storedTimes.putAll(newTimes);
+        applied.add(request);
+
+        if (request.expressionAttributeValues().containsKey(":onboarding")) {
+            item.put("onboarding_status", request.expressionAttributeValues().get(":onboarding"));
+        }
+        return UpdateItemResponse.builder().attributes(item).build();
+    }
+
+    private static Map<String, Object> event(String detailType, String time, String key, String value) {
+        Map<String, Object> detail = new HashMap<>();
+        detail.put("tenantId", tenantId.toString());
+        detail.put(key, value);
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("detail-type", detailType);
+        event.put("source", "saas-boost");
+        event.put("time", time);
+        event.put("detail", detail);
+        return event;
+    }
 }